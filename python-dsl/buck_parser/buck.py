@@ -127,6 +127,8 @@ class BuildFileContext(AbstractContext):
         self._used_env_vars = {}
         self._diagnostics = []
         self.rules = {}
+        # Include patterns of all glob() calls, relative to the package.
+        self.glob_patterns = set()
 
         self.project_root = project_root
         self.base_path = base_path
@@ -415,6 +417,10 @@ def glob(includes, excludes=None, include_dotfiles=False, build_env=None, search
 
     if search_base is None:
         search_base = Path(build_env.dirname)
+        build_env.glob_patterns.update(includes)
+    else:
+        # The patterns are relative to some other directory, so any file may match.
+        build_env.glob_patterns.add('**')
 
     results = None
     if not includes:
@@ -1332,6 +1338,10 @@ class BuildFileProcessor(object):
         # Add in used environment variables as a special meta rule.
         values.append({"__env": build_env.used_env_vars})
 
+        # Add in the patterns of all globs as a special meta rule, so that the parser cache only
+        # invalidates this file when a matching file is added or removed.
+        values.append({"__globs": sorted(build_env.glob_patterns)})
+
         diagnostics.extend(build_env.diagnostics)
 
         return values
@@ -1369,11 +1379,29 @@ def format_exception_info(exception_info):
     return formatted
 
 
-def encode_result(values, diagnostics, profile):
+def bser_encodable(obj):
+    """Converts the values BuckJSONEncoder handles to the types BSER supports."""
+    if obj is None or isinstance(obj, (basestring, bool, int, long, float)):
+        return obj
+    if isinstance(obj, collections.Mapping) and isinstance(obj, collections.Sized):
+        return dict((k, bser_encodable(v)) for k, v in obj.iteritems())
+    if isinstance(obj, collections.Iterable) and isinstance(obj, collections.Sized):
+        return [bser_encodable(v) for v in obj]
+    raise TypeError(repr(obj) + ' is not BSER serializable')
+
+
+class BuckBSEREncoder(object):
+    """Encodes results like BuckJSONEncoder, but in the binary BSER format."""
+
+    def encode(self, obj):
+        return pywatchman.bser.dumps(bser_encodable(obj))
+
+
+def encode_result(values, diagnostics, profile, use_bser=False):
     result = {'values': [
         dict((k, v) for k, v in value.iteritems() if v is not None)
         for value in values]}
-    json_encoder = BuckJSONEncoder()
+    encoder = BuckBSEREncoder() if use_bser else BuckJSONEncoder()
     if diagnostics:
         encoded_diagnostics = []
         for d in diagnostics:
@@ -1389,7 +1417,7 @@ def encode_result(values, diagnostics, profile):
     if profile is not None:
         result['profile'] = profile
     try:
-        return json_encoder.encode(result)
+        return encoder.encode(result)
     except Exception as e:
         # Try again without the values
         result['values'] = []
@@ -1401,11 +1429,11 @@ def encode_result(values, diagnostics, profile):
             'source': 'parse',
             'exception': format_exception_info(sys.exc_info()),
         })
-        return json_encoder.encode(result)
+        return encoder.encode(result)
 
 
 def process_with_diagnostics(build_file_query, build_file_processor, to_parent,
-                             should_profile=False):
+                             should_profile=False, use_bser=False):
     start_time = time.time()
     build_file = build_file_query.get('buildFile')
     watch_root = build_file_query.get('watchRoot')
@@ -1441,15 +1469,15 @@ def process_with_diagnostics(build_file_query, build_file_processor, to_parent,
                     exception=sys.exc_info()))
         raise
     finally:
-        java_process_send_result(to_parent, values, diagnostics, None)
+        java_process_send_result(to_parent, values, diagnostics, None, use_bser)
 
     end_time = time.time()
     return end_time - start_time
 
 
-def java_process_send_result(to_parent, values, diagnostics, profile_result):
+def java_process_send_result(to_parent, values, diagnostics, profile_result, use_bser=False):
     """Sends result to the Java process"""
-    data = encode_result(values, diagnostics, profile_result)
+    data = encode_result(values, diagnostics, profile_result, use_bser)
     to_parent.write(data)
     to_parent.flush()
 
@@ -1496,8 +1524,9 @@ def _optparse_store_kv(option, opt_str, value, parser):
 # directories of generated files produced by Buck.
 #
 # All of the build rules that are parsed from the BUCK files will be printed
-# to stdout encoded in JSON. That means that printing out other information
-# for debugging purposes will break the JSON encoding, so be careful!
+# to stdout encoded in JSON (or BSER, with --use_bser_encoding). That means
+# that printing out other information for debugging purposes will break the
+# encoding, so be careful!
 
 
 def main():
@@ -1601,6 +1630,11 @@ def main():
         action='store_true',
         help='Warn about deprecated syntax usage.',
     )
+    parser.add_option(
+        '--use_bser_encoding',
+        action='store_true',
+        help='Send results to the parent encoded in BSER rather than JSON.',
+    )
     (options, args) = parser.parse_args()
 
     # Even though project_root is absolute path, it may not be concise. For
@@ -1687,7 +1721,8 @@ def main():
                     query,
                     buildFileProcessor,
                     to_parent,
-                    should_profile=options.profile)
+                    should_profile=options.profile,
+                    use_bser=options.use_bser_encoding)
                 processed_build_file.append({'buildFile': build_file, 'duration': duration})
 
             # From https://docs.python.org/2/using/cmdline.html :
@@ -1707,7 +1742,8 @@ def main():
                         build_file_query,
                         buildFileProcessor,
                         to_parent,
-                        should_profile=options.profile)
+                        should_profile=options.profile,
+                        use_bser=options.use_bser_encoding)
                     processed_build_file.append(
                         {'buildFile': build_file_query['buildFile'], 'duration': duration})
 
@@ -1764,13 +1800,14 @@ def report_profile(options, to_parent, processed_build_file, profiler):
                     info['buildFile'], info['duration'])
             extra_result += '\n\n'
             profile_result = extra_result + profile_result
-            java_process_send_result(to_parent, [], [], profile_result)
+            java_process_send_result(
+                to_parent, [], [], profile_result, options.use_bser_encoding)
         except Exception as e:
             trace = traceback.format_exc()
             print(str(trace))
             raise
     else:
-        to_parent.write(encode_result([], [], None))
+        to_parent.write(encode_result([], [], None, options.use_bser_encoding))
         to_parent.flush()
 
 
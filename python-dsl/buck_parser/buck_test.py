@@ -1,6 +1,7 @@
 from .buck import (
     BuildFileContext,
     LazyBuildEnvPartial,
+    encode_result,
     flatten_dicts,
     get_mismatched_args,
     subdir_glob,
@@ -8,9 +9,12 @@ from .buck import (
 )
 from .glob_watchman import format_watchman_query_params
 from .glob_internal import path_component_contains_dot, glob_internal
+from .deterministic_set import DeterministicSet
 from pathlib import Path, PurePosixPath, PureWindowsPath
 import itertools
+import json
 import os
+import pywatchman
 import shutil
 import tempfile
 import unittest
@@ -627,5 +631,21 @@ class TestMemoized(unittest.TestCase):
         self.assertEqual(extra, [])
 
 
+class TestEncodeResult(unittest.TestCase):
+
+    def test_bser_and_json_results_match(self):
+        values = [{
+            'name': 'foo',
+            'srcs': DeterministicSet(['b.c', 'a.c']),
+            'deps': ('//:bar',),
+            'labels': None,
+            'count': 3,
+        }]
+        from_json = json.loads(encode_result(values, [], None))
+        from_bser = pywatchman.bser.loads(encode_result(values, [], None, use_bser=True))
+        self.assertEqual(from_json, from_bser)
+        self.assertNotIn('labels', from_bser['values'][0])
+
+
 if __name__ == '__main__':
     unittest.main()
@@ -45,6 +45,10 @@ def get_env_from_results(results):
     return extract_from_results('__env', results)
 
 
+def get_globs_from_results(results):
+    return extract_from_results('__globs', results)
+
+
 def setenv(varname, value=None):
     if value is None:
         os.environ.pop(varname, None)
@@ -509,6 +513,7 @@ class BuckTest(unittest.TestCase):
                 build_file.root, build_file.prefix, build_file.path,
                 diagnostics)
             self.assertEqual(['Foo.java', 'Foo.c'], rules[0]['srcs'])
+            self.assertEqual(['*.c', '*.java'], get_globs_from_results(rules))
             self.assertEqual(
                 [Diagnostic(
                     message='Warning 1',
@@ -1498,7 +1503,7 @@ foo_rule(
             '{"values": [{"buck.base_path": "", "buck.type": "foo", "name": '
             '"foo", "options": {"baz": "blech", "foo": "bar"}, "srcs": [], '
             '"visibility": []}, {"__includes": ["BUCK"]}, {"__configs": {}}, '
-            '{"__env": {}}]}',
+            '{"__env": {}}, {"__globs": []}]}',
             result)
 
     def test_file_parsed_as_build_file_and_include_def(self):
@@ -25,6 +25,7 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.Scope;
 import com.facebook.buck.util.immutables.BuckStyleTuple;
+import com.facebook.buck.util.types.Pair;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
@@ -34,9 +35,11 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
@@ -103,6 +106,18 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
 
   protected abstract FetchResult fetchImpl(RuleKey ruleKey, LazyPath output) throws IOException;
 
+  /**
+   * Fetches an artifact for {@link #fetchStreamingAsync(RuleKey, LazyPath,
+   * ArtifactPayloadConsumer)}. Caches which download the payload should override this to hand it
+   * to the consumer while writing it out, the default doesn't use the consumer.
+   */
+  @SuppressWarnings("unused") // The consumer is meant for implementations that can stream.
+  protected FetchResult fetchImpl(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer)
+      throws IOException {
+    return fetchImpl(ruleKey, output);
+  }
+
   protected abstract MultiContainsResult multiContainsImpl(ImmutableSet<RuleKey> ruleKeys)
       throws IOException;
 
@@ -212,7 +227,11 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     CacheEventListener.FetchRequestEvents requestEvents =
         eventListener.fetchStarted(request.getRuleKey());
     try {
-      FetchResult fetchResult = fetchImpl(request.getRuleKey(), request.getOutput());
+      FetchResult fetchResult =
+          request.getPayloadConsumer().isPresent()
+              ? fetchImpl(
+                  request.getRuleKey(), request.getOutput(), request.getPayloadConsumer().get())
+              : fetchImpl(request.getRuleKey(), request.getOutput());
       result = fetchResult.getCacheResult();
       requestEvents.finished(fetchResult);
     } catch (IOException e) {
@@ -344,6 +363,35 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     return future;
   }
 
+  @Override
+  public final ListenableFuture<CacheResult> fetchStreamingAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    eventListener.fetchScheduled(ruleKey);
+    SettableFuture<CacheResult> future = SettableFuture.create();
+    addFetchRequest(new FetchRequest(ruleKey, output, Optional.of(payloadConsumer), future));
+    return future;
+  }
+
+  @Override
+  @SuppressWarnings("CheckReturnValue")
+  public final ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      List<Pair<RuleKey, LazyPath>> requests) {
+    List<ListenableFuture<CacheResult>> results = new ArrayList<>(requests.size());
+    for (Pair<RuleKey, LazyPath> request : requests) {
+      eventListener.fetchScheduled(request.getFirst());
+      SettableFuture<CacheResult> future = SettableFuture.create();
+      pendingFetchRequests.add(new FetchRequest(request.getFirst(), request.getSecond(), future));
+      results.add(future);
+    }
+    // All requests are queued before any of them is processed, so that processFetch() can pick
+    // them up in as few multiFetch batches as the implementation allows.
+    for (int i = 0; i < requests.size(); i++) {
+      fetchExecutorService.submit(this::processFetch);
+    }
+    return Futures.transform(
+        Futures.allAsList(results), ImmutableList::copyOf, MoreExecutors.directExecutor());
+  }
+
   @Override
   public final ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
       ImmutableSet<RuleKey> ruleKeys) {
@@ -478,12 +526,22 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
   protected static class FetchRequest {
     private final RuleKey ruleKey;
     private final LazyPath output;
+    private final Optional<ArtifactPayloadConsumer> payloadConsumer;
     private final SettableFuture<CacheResult> future;
 
     @VisibleForTesting
     protected FetchRequest(RuleKey ruleKey, LazyPath output, SettableFuture<CacheResult> future) {
+      this(ruleKey, output, Optional.empty(), future);
+    }
+
+    private FetchRequest(
+        RuleKey ruleKey,
+        LazyPath output,
+        Optional<ArtifactPayloadConsumer> payloadConsumer,
+        SettableFuture<CacheResult> future) {
       this.ruleKey = ruleKey;
       this.output = output;
+      this.payloadConsumer = payloadConsumer;
       this.future = future;
     }
 
@@ -494,6 +552,10 @@ public abstract class AbstractAsynchronousCache implements ArtifactCache {
     public LazyPath getOutput() {
       return output;
     }
+
+    public Optional<ArtifactPayloadConsumer> getPayloadConsumer() {
+      return payloadConsumer;
+    }
   }
 
   /** Return type used by the implementations of this abstract class. */
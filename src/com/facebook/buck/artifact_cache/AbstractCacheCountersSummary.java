@@ -62,6 +62,11 @@ abstract class AbstractCacheCountersSummary {
   @JsonView(JsonViews.MachineReadableLog.class)
   public abstract int getTotalCacheLocalKeyUnchangedHits();
 
+  /** Hits served by the local L1 cache, which aren't included in the per mode hits. */
+  @Value.Parameter
+  @JsonView(JsonViews.MachineReadableLog.class)
+  public abstract int getTotalL1CacheHits();
+
   @Value.Parameter
   @JsonView(JsonViews.MachineReadableLog.class)
   public abstract AtomicInteger getSuccessUploadCount();
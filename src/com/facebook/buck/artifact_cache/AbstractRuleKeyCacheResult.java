@@ -25,11 +25,11 @@ import org.immutables.value.Value;
 @Value.Immutable
 @BuckStyleImmutable
 abstract class AbstractRuleKeyCacheResult {
-  abstract String buildTarget();
+  public abstract String buildTarget();
 
   abstract String ruleKey();
 
-  abstract long requestTimestampMillis();
+  public abstract long requestTimestampMillis();
 
   abstract RuleKeyType ruleKeyType();
 
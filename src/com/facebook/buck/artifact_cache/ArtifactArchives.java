@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCodec;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.zip.Lz4BlockInputStream;
+import com.facebook.buck.util.zip.Lz4BlockOutputStream;
+import com.facebook.buck.util.zip.Zip;
+import com.facebook.buck.util.zip.ZipCompressionLevel;
+import com.google.common.io.ByteStreams;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Creates and reads the archives stored in the artifact cache.
+ *
+ * <p>Artifacts are zip files. With {@link ArtifactCodec#LZ4} the zip file is additionally wrapped
+ * in an LZ4 stream, which is marked by a header recording the codec. Since zip files never start
+ * with that header, archives without it are read as plain zip files, so artifacts stored by older
+ * versions of buck or with other codecs keep working. The header is part of the payload, so every
+ * cache implementation stores and serves it as is.
+ */
+public class ArtifactArchives {
+
+  private static final byte[] MAGIC = {'B', 'U', 'C', 'K', 'A', 'R'};
+  private static final byte LZ4_CODEC_ID = 1;
+  private static final int HEADER_LENGTH = MAGIC.length + 1;
+
+  private ArtifactArchives() {}
+
+  /** Writes an artifact containing the given paths of the project filesystem to {@code out}. */
+  public static void create(
+      ProjectFilesystem projectFilesystem,
+      Collection<Path> pathsToIncludeInArtifact,
+      Path out,
+      ArtifactCodec codec)
+      throws IOException {
+    if (codec == ArtifactCodec.ZIP) {
+      Zip.create(projectFilesystem, pathsToIncludeInArtifact, out);
+      return;
+    }
+    try (OutputStream fileOut = new BufferedOutputStream(Files.newOutputStream(out))) {
+      switch (codec) {
+        case ZIP_FAST:
+          Zip.create(projectFilesystem, pathsToIncludeInArtifact, fileOut, ZipCompressionLevel.MIN);
+          break;
+        case ZIP_STORED:
+          Zip.create(
+              projectFilesystem, pathsToIncludeInArtifact, fileOut, ZipCompressionLevel.NONE);
+          break;
+        case LZ4:
+          fileOut.write(MAGIC);
+          fileOut.write(LZ4_CODEC_ID);
+          Zip.create(
+              projectFilesystem,
+              pathsToIncludeInArtifact,
+              new Lz4BlockOutputStream(fileOut),
+              ZipCompressionLevel.NONE);
+          break;
+        case ZIP:
+        default:
+          throw new IllegalArgumentException("Unexpected codec: " + codec);
+      }
+    }
+  }
+
+  /**
+   * Wraps a stream reading an artifact, so that it returns the zip file contained in it. Closing
+   * the returned stream closes {@code artifact}.
+   */
+  public static InputStream decode(InputStream artifact) throws IOException {
+    PushbackInputStream in = new PushbackInputStream(artifact, HEADER_LENGTH);
+    byte[] header = new byte[HEADER_LENGTH];
+    int length = ByteStreams.read(in, header, 0, HEADER_LENGTH);
+    if (!hasHeader(header, length)) {
+      in.unread(header, 0, length);
+      return in;
+    }
+    if (header[MAGIC.length] != LZ4_CODEC_ID) {
+      throw new IOException(
+          String.format("Artifact was stored with unknown codec %d.", header[MAGIC.length]));
+    }
+    return new Lz4BlockInputStream(in);
+  }
+
+  /**
+   * Turns the artifact at {@code artifact} into a plain zip file if it was stored with a codec
+   * which wraps the zip file.
+   */
+  public static void decodeInPlace(Path artifact) throws IOException {
+    try (InputStream in = Files.newInputStream(artifact)) {
+      byte[] header = new byte[HEADER_LENGTH];
+      if (!hasHeader(header, ByteStreams.read(in, header, 0, HEADER_LENGTH))) {
+        return;
+      }
+    }
+    Path decoded = artifact.resolveSibling(artifact.getFileName() + ".decoded");
+    try {
+      try (InputStream in = decode(Files.newInputStream(artifact));
+          OutputStream out = new BufferedOutputStream(Files.newOutputStream(decoded))) {
+        ByteStreams.copy(in, out);
+      }
+      Files.move(decoded, artifact, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(decoded);
+    }
+  }
+
+  private static boolean hasHeader(byte[] header, int length) {
+    return length == HEADER_LENGTH && Arrays.equals(MAGIC, Arrays.copyOf(header, MAGIC.length));
+  }
+}
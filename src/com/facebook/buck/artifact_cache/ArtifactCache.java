@@ -20,9 +20,14 @@ import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
 import java.util.List;
 
 public interface ArtifactCache extends AutoCloseable {
@@ -38,6 +43,39 @@ public interface ArtifactCache extends AutoCloseable {
    */
   ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output);
 
+  /**
+   * Same as {@link #fetchAsync(RuleKey, LazyPath)}, but caches which download the artifact also
+   * hand its payload to {@code payloadConsumer} while it is being written to {@code output}, so
+   * the payload can be processed without waiting for the download to finish. The default
+   * implementation doesn't call the consumer at all.
+   *
+   * <p>The artifact saved to {@code output} stays the authoritative result of the fetch: whatever
+   * the consumer has seen must be checked against it.
+   */
+  @SuppressWarnings("unused") // The consumer is meant for implementations that can stream.
+  default ListenableFuture<CacheResult> fetchStreamingAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    return fetchAsync(ruleKey, output);
+  }
+
+  /**
+   * Fetch several cached artifacts at once. Caches which are able to look up multiple keys in a
+   * single request should override this, the default implementation simply issues a {@link
+   * #fetchAsync(RuleKey, LazyPath)} for every request.
+   *
+   * @param requests pairs of cache fetch key and path to store the artifact to.
+   * @return results in the same order as the requests.
+   */
+  default ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      List<Pair<RuleKey, LazyPath>> requests) {
+    List<ListenableFuture<CacheResult>> results = new ArrayList<>(requests.size());
+    for (Pair<RuleKey, LazyPath> request : requests) {
+      results.add(fetchAsync(request.getFirst(), request.getSecond()));
+    }
+    return Futures.transform(
+        Futures.allAsList(results), ImmutableList::copyOf, MoreExecutors.directExecutor());
+  }
+
   /** All pending (and future) async fetches will be immediately marked as skipped. */
   void skipPendingAndFutureAsyncFetches();
 
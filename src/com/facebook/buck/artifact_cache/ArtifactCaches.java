@@ -75,6 +75,9 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
 
   private static final Logger LOG = Logger.get(ArtifactCaches.class);
 
+  // Not under the dir cache's folder, so that it doesn't get trimmed along with the dir cache.
+  private static final String L1_CACHE_FOLDER = "l1_cache";
+
   private final ArtifactCacheBuckConfig buckConfig;
   private final BuckEventBus buckEventBus;
   private final ProjectFilesystem projectFilesystem;
@@ -317,6 +320,30 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
             buckConfig.getTwoLevelCachingMinimumSize(),
             buckConfig.getTwoLevelCachingMaximumSize());
 
+    boolean hasRemoteCache =
+        !cacheTypeBlacklist.contains(remote)
+            && modes.stream().anyMatch(mode -> mode.getCacheType() == remote);
+    Optional<Long> l1MaxSizeBytes = buckConfig.getL1CacheMaxSizeBytes();
+    if (hasRemoteCache && l1MaxSizeBytes.isPresent()) {
+      Path l1CacheDir =
+          buckConfig
+              .getL1CacheDir()
+              .orElse(projectFilesystem.getBuckPaths().getBuckOut().resolve(L1_CACHE_FOLDER));
+      try {
+        result =
+            new L1ArtifactCacheDecorator(
+                result,
+                projectFilesystem,
+                l1CacheDir,
+                l1MaxSizeBytes.get(),
+                buckConfig.getL1CacheEvictionPolicy(),
+                httpWriteExecutorService);
+      } catch (IOException e) {
+        throw new HumanReadableException(
+            e, "Failure initializing L1 artifact cache directory: %s", l1CacheDir);
+      }
+    }
+
     return result;
   }
 
@@ -392,7 +419,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
               projectFilesystem,
               cacheDir,
               dirCacheConfig.getCacheReadMode(),
-              dirCacheConfig.getMaxSizeBytes());
+              dirCacheConfig.getMaxSizeBytes(),
+              dirCacheConfig.getStorageMode());
 
       if (!buckEventBus.isPresent()) {
         return dirArtifactCache;
@@ -581,7 +609,8 @@ public class ArtifactCaches implements ArtifactCacheFactory, AutoCloseable {
               buckEventBus,
               cacheConfig.getMaxSizeBytes(),
               cacheConfig.getMaxInlinedSizeBytes(),
-              cacheConfig.getCacheReadMode());
+              cacheConfig.getCacheReadMode(),
+              cacheConfig.getReaderConnections());
 
       return new LoggingArtifactCacheDecorator(
           buckEventBus,
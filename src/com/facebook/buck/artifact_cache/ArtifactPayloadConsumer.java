@@ -0,0 +1,38 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the payload of an artifact while it is being downloaded, see {@link
+ * ArtifactCache#fetchStreamingAsync(com.facebook.buck.rules.RuleKey,
+ * com.facebook.buck.io.file.LazyPath, ArtifactPayloadConsumer)}.
+ */
+@FunctionalInterface
+public interface ArtifactPayloadConsumer {
+
+  /**
+   * Reads (part of) the payload. The stream must not be closed, any bytes left unread are consumed
+   * by the caller once this returns.
+   *
+   * <p>The payload has not been validated yet when this is called, so the fetch may still fail
+   * afterwards. This may also be called several times for the same fetch, e.g. when retrying.
+   */
+  void consume(InputStream payload) throws IOException;
+}
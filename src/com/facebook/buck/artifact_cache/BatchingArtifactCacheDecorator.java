@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decorator which groups individual {@link #fetchAsync(RuleKey, LazyPath)} calls into {@link
+ * ArtifactCache#multiFetchAsync(List)} calls on the delegate. Fetches are queued and the queue is
+ * drained on the given executor, so all the fetches requested while a drain is pending end up in
+ * the same batches. Streaming fetches go straight to the delegate, as multi-fetches can't stream.
+ */
+public class BatchingArtifactCacheDecorator implements ArtifactCache, CacheDecorator {
+
+  private final ArtifactCache delegate;
+  private final Executor executor;
+  private final int maxBatchSize;
+
+  private final Queue<PendingFetch> pendingFetches = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+
+  public BatchingArtifactCacheDecorator(
+      ArtifactCache delegate, Executor executor, int maxBatchSize) {
+    Preconditions.checkArgument(maxBatchSize > 0);
+    this.delegate = delegate;
+    this.executor = executor;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+    SettableFuture<CacheResult> future = SettableFuture.create();
+    pendingFetches.add(new PendingFetch(ruleKey, output, future));
+    if (drainScheduled.compareAndSet(false, true)) {
+      executor.execute(this::drainPendingFetches);
+    }
+    return future;
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchStreamingAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    return delegate.fetchStreamingAsync(ruleKey, output, payloadConsumer);
+  }
+
+  @Override
+  public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      List<Pair<RuleKey, LazyPath>> requests) {
+    return delegate.multiFetchAsync(requests);
+  }
+
+  private void drainPendingFetches() {
+    // Reset the flag before draining, so fetches added from now on schedule another drain.
+    drainScheduled.set(false);
+    while (true) {
+      List<PendingFetch> batch = new ArrayList<>();
+      PendingFetch pendingFetch;
+      while (batch.size() < maxBatchSize && (pendingFetch = pendingFetches.poll()) != null) {
+        batch.add(pendingFetch);
+      }
+      if (batch.isEmpty()) {
+        return;
+      }
+      dispatch(batch);
+    }
+  }
+
+  private void dispatch(List<PendingFetch> batch) {
+    List<Pair<RuleKey, LazyPath>> requests = new ArrayList<>(batch.size());
+    for (PendingFetch pendingFetch : batch) {
+      requests.add(new Pair<>(pendingFetch.ruleKey, pendingFetch.output));
+    }
+
+    ListenableFuture<ImmutableList<CacheResult>> results;
+    try {
+      results = delegate.multiFetchAsync(requests);
+    } catch (RuntimeException e) {
+      results = Futures.immediateFailedFuture(e);
+    }
+    Futures.addCallback(
+        results,
+        new FutureCallback<ImmutableList<CacheResult>>() {
+          @Override
+          public void onSuccess(ImmutableList<CacheResult> result) {
+            for (int i = 0; i < batch.size(); i++) {
+              batch.get(i).future.set(result.get(i));
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            for (PendingFetch pendingFetch : batch) {
+              pendingFetch.future.setException(t);
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  @Override
+  public void skipPendingAndFutureAsyncFetches() {
+    delegate.skipPendingAndFutureAsyncFetches();
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+    return delegate.store(info, output);
+  }
+
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    return delegate.multiContainsAsync(ruleKeys);
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    return delegate.deleteAsync(ruleKeys);
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return delegate.getCacheReadMode();
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  @Override
+  public ArtifactCache getDelegate() {
+    return delegate;
+  }
+
+  private static class PendingFetch {
+    private final RuleKey ruleKey;
+    private final LazyPath output;
+    private final SettableFuture<CacheResult> future;
+
+    private PendingFetch(RuleKey ruleKey, LazyPath output, SettableFuture<CacheResult> future) {
+      this.ruleKey = ruleKey;
+      this.output = output;
+      this.future = future;
+    }
+  }
+}
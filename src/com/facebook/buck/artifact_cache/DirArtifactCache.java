@@ -18,6 +18,7 @@ package com.facebook.buck.artifact_cache;
 
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.artifact_cache.config.DirCacheStorageMode;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
@@ -25,6 +26,7 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.DirectoryCleaner;
 import com.facebook.buck.util.DirectoryCleanerArgs;
+import com.facebook.buck.util.sha1.Sha1HashCode;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ComparisonChain;
@@ -37,6 +39,7 @@ import com.google.common.util.concurrent.ListenableFuture;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
@@ -61,12 +64,15 @@ public class DirArtifactCache implements ArtifactCache {
   // How much of the max size to leave if we decide to delete old files.
   private static final float MAX_BYTES_TRIM_RATIO = 2 / 3f;
   private static final String TMP_EXTENSION = ".tmp";
+  // Name of the folder holding the shared content blobs in CONTENT_ADDRESSED mode.
+  private static final String CONTENT_FOLDER = "cas";
 
   private final String name;
   private final ProjectFilesystem filesystem;
   private final Path cacheDir;
   private final Optional<Long> maxCacheSizeBytes;
   private final CacheReadMode cacheReadMode;
+  private final DirCacheStorageMode storageMode;
   private long bytesSinceLastDeleteOldFiles;
 
   public DirArtifactCache(
@@ -76,11 +82,28 @@ public class DirArtifactCache implements ArtifactCache {
       CacheReadMode cacheReadMode,
       Optional<Long> maxCacheSizeBytes)
       throws IOException {
+    this(name, filesystem, cacheDir, cacheReadMode, maxCacheSizeBytes, DirCacheStorageMode.RULEKEY);
+  }
+
+  /**
+   * @param storageMode when {@link DirCacheStorageMode#CONTENT_ADDRESSED}, artifact contents are
+   *     stored once per content hash under {@code cas/} and every rule key entry is a hard link to
+   *     that blob, so the link count of a blob acts as its reference count.
+   */
+  public DirArtifactCache(
+      String name,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      CacheReadMode cacheReadMode,
+      Optional<Long> maxCacheSizeBytes,
+      DirCacheStorageMode storageMode)
+      throws IOException {
     this.name = name;
     this.filesystem = filesystem;
     this.cacheDir = cacheDir;
     this.maxCacheSizeBytes = maxCacheSizeBytes;
     this.cacheReadMode = cacheReadMode;
+    this.storageMode = storageMode;
     this.bytesSinceLastDeleteOldFiles = 0L;
 
     // Check first, as mkdirs will fail if the path is a symlink.
@@ -145,6 +168,7 @@ public class DirArtifactCache implements ArtifactCache {
       return Futures.immediateFuture(null);
     }
 
+    Optional<Path> stagedContent = Optional.empty();
     try {
       Optional<Path> borrowedAndStoredArtifactPath = Optional.empty();
       for (RuleKey ruleKey : info.getRuleKeys()) {
@@ -157,20 +181,30 @@ public class DirArtifactCache implements ArtifactCache {
 
         filesystem.mkdirs(getParentDirForRuleKey(ruleKey));
 
-        if (!output.canBorrow()) {
-          storeArtifactOutput(output.getPath(), artifactPath);
+        if (storageMode == DirCacheStorageMode.CONTENT_ADDRESSED) {
+          if (!stagedContent.isPresent()) {
+            borrowedAndStoredArtifactPath =
+                Optional.of(getPathForContentHash(filesystem.computeSha1(output.getPath())));
+            stagedContent = Optional.of(stageContent(output));
+          }
+          storeContentAndLink(
+              stagedContent.get(), borrowedAndStoredArtifactPath.get(), artifactPath);
         } else {
-          // This branch means that we are apparently the only users of the `output`, so instead
-          // of making a safe transfer of the output to the dir cache (copy+move), we can just
-          // move it without copying.  This significantly optimizes the Disk I/O.
-          if (!borrowedAndStoredArtifactPath.isPresent()) {
-            borrowedAndStoredArtifactPath = Optional.of(artifactPath);
-            filesystem.move(output.getPath(), artifactPath, StandardCopyOption.REPLACE_EXISTING);
+          if (!output.canBorrow()) {
+            storeArtifactOutput(output.getPath(), artifactPath);
           } else {
-            storeArtifactOutput(borrowedAndStoredArtifactPath.get(), artifactPath);
+            // This branch means that we are apparently the only users of the `output`, so instead
+            // of making a safe transfer of the output to the dir cache (copy+move), we can just
+            // move it without copying.  This significantly optimizes the Disk I/O.
+            if (!borrowedAndStoredArtifactPath.isPresent()) {
+              borrowedAndStoredArtifactPath = Optional.of(artifactPath);
+              filesystem.move(output.getPath(), artifactPath, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+              storeArtifactOutput(borrowedAndStoredArtifactPath.get(), artifactPath);
+            }
           }
+          bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
         }
-        bytesSinceLastDeleteOldFiles += filesystem.getFileSize(artifactPath);
 
         // Now, write the meta data artifact.
         Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "metadata", TMP_EXTENSION);
@@ -193,6 +227,14 @@ public class DirArtifactCache implements ArtifactCache {
 
     } catch (IOException e) {
       LOG.warn(e, "Artifact store(%s, %s) error", info.getRuleKeys(), output);
+    } finally {
+      if (stagedContent.isPresent()) {
+        try {
+          filesystem.deleteFileAtPathIfExists(stagedContent.get());
+        } catch (IOException e) {
+          LOG.warn(e, "Failed to delete staged content %s.", stagedContent.get());
+        }
+      }
     }
 
     if (maxCacheSizeBytes.isPresent()
@@ -263,12 +305,12 @@ public class DirArtifactCache implements ArtifactCache {
     return tmp;
   }
 
-  private ImmutableList<String> subfolders(RuleKey ruleKey) {
-    if (ruleKey.toString().length() < 4) {
+  private ImmutableList<String> subfolders(String key) {
+    if (key.length() < 4) {
       return ImmutableList.of();
     }
-    String first = ruleKey.toString().substring(0, 2);
-    String second = ruleKey.toString().substring(2, 4);
+    String first = key.substring(0, 2);
+    String second = key.substring(2, 4);
     return ImmutableList.of(first, second);
   }
 
@@ -279,14 +321,98 @@ public class DirArtifactCache implements ArtifactCache {
 
   @VisibleForTesting
   Path getParentDirForRuleKey(RuleKey ruleKey) {
-    ImmutableList<String> folders = subfolders(ruleKey);
-    Path result = cacheDir;
-    for (String f : folders) {
+    return getShardedDir(cacheDir, ruleKey.toString());
+  }
+
+  @VisibleForTesting
+  Path getPathForContentHash(Sha1HashCode contentHash) {
+    String hash = contentHash.getHash();
+    return getShardedDir(getPathToContentFolder(), hash).resolve(hash);
+  }
+
+  private Path getShardedDir(Path root, String key) {
+    Path result = root;
+    for (String f : subfolders(key)) {
       result = result.resolve(f);
     }
     return result;
   }
 
+  private Path getPathToContentFolder() {
+    return cacheDir.resolve(CONTENT_FOLDER);
+  }
+
+  /**
+   * Copies the given output, or moves it if it can be borrowed, to a temporary file from which the
+   * content blob can be created.
+   */
+  private Path stageContent(BorrowablePath output) throws IOException {
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "content", TMP_EXTENSION);
+    if (output.canBorrow()) {
+      filesystem.move(output.getPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      filesystem.copyFile(output.getPath(), tmp);
+    }
+    return tmp;
+  }
+
+  /**
+   * Stores the staged content as a blob, unless a blob with identical contents is already present,
+   * and links the artifact to the blob.
+   */
+  private synchronized void storeContentAndLink(
+      Path stagedContent, Path contentPath, Path artifactPath) throws IOException {
+    // Unreferenced blobs are deleted under the same lock, so they can't disappear between being
+    // checked and linked here. Another process sharing the cache may still delete them, in which
+    // case the blob is stored again.
+    for (int attempt = 0; ; attempt++) {
+      if (!filesystem.exists(contentPath)) {
+        storeContent(stagedContent, contentPath);
+      }
+      try {
+        linkArtifactOutput(contentPath, artifactPath);
+        return;
+      } catch (NoSuchFileException e) {
+        if (attempt > 0) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private void storeContent(Path stagedContent, Path contentPath) throws IOException {
+    filesystem.mkdirs(contentPath.getParent());
+    try {
+      Files.createLink(filesystem.resolve(contentPath), filesystem.resolve(stagedContent));
+      bytesSinceLastDeleteOldFiles += filesystem.getFileSize(contentPath);
+    } catch (FileAlreadyExistsException e) {
+      // Stored concurrently by another process.
+    } catch (IOException | UnsupportedOperationException e) {
+      storeArtifactOutput(stagedContent, contentPath);
+    }
+  }
+
+  private void linkArtifactOutput(Path contentPath, Path artifactPath) throws IOException {
+    // Link under a temporary name first, so that the artifact appears atomically under its final
+    // name, just as with copied artifacts.
+    Path tmp = filesystem.createTempFile(getPreparedTempFolder(), "artifact", TMP_EXTENSION);
+    try {
+      filesystem.deleteFileAtPathIfExists(tmp);
+      try {
+        Files.createLink(filesystem.resolve(tmp), filesystem.resolve(contentPath));
+      } catch (NoSuchFileException e) {
+        throw e;
+      } catch (IOException | UnsupportedOperationException e) {
+        LOG.debug(e, "Failed to hard link %s, falling back to a copy.", contentPath);
+        storeArtifactOutput(contentPath, artifactPath);
+        return;
+      }
+      filesystem.move(tmp, artifactPath, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      filesystem.deleteFileAtPathIfExists(tmp);
+    }
+  }
+
   private void storeArtifactOutput(Path output, Path artifactPath) throws IOException {
     // Write to a temporary file and move the file to its final location atomically to protect
     // against partial artifacts (whether due to buck interruption or filesystem failure) posing
@@ -325,16 +451,54 @@ public class DirArtifactCache implements ArtifactCache {
     try {
       synchronized (this) {
         newDirectoryCleaner().clean(cacheDirInFs);
+        if (storageMode == DirCacheStorageMode.CONTENT_ADDRESSED) {
+          deleteUnreferencedContent();
+        }
       }
     } catch (IOException e) {
       LOG.error(e, "Failed to clean path [%s].", cacheDirInFs);
     }
   }
 
+  /**
+   * Deletes content blobs that are no longer linked from any rule key, i.e. whose only remaining
+   * hard link is the blob itself.
+   */
+  @VisibleForTesting
+  void deleteUnreferencedContent() throws IOException {
+    Path contentFolder = filesystem.resolve(getPathToContentFolder());
+    if (!Files.isDirectory(contentFolder)) {
+      return;
+    }
+    Files.walkFileTree(
+        contentFolder,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            if (getLinkCount(file) <= 1) {
+              LOG.verbose("Deleting unreferenced content [%s].", file);
+              Files.deleteIfExists(file);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private static int getLinkCount(Path path) throws IOException {
+    try {
+      return (Integer) Files.getAttribute(path, "unix:nlink");
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      // Without link counts we cannot tell whether a blob is shared, so keep it.
+      return Integer.MAX_VALUE;
+    }
+  }
+
   @VisibleForTesting
   List<Path> getAllFilesInCache() {
     List<Path> allFiles = new ArrayList<>();
-    Path tempFolderPath = getPathToTempFolder();
+    Path tempFolderPath = filesystem.resolve(getPathToTempFolder());
+    Path contentFolderPath = filesystem.resolve(getPathToContentFolder());
     try {
       Files.walkFileTree(
           filesystem.resolve(cacheDir),
@@ -349,6 +513,11 @@ public class DirArtifactCache implements ArtifactCache {
               if (dir.equals(tempFolderPath)) {
                 return FileVisitResult.SKIP_SUBTREE;
               }
+              // content blobs are only released once no rule key links to them anymore
+              if (storageMode == DirCacheStorageMode.CONTENT_ADDRESSED
+                  && dir.equals(contentFolderPath)) {
+                return FileVisitResult.SKIP_SUBTREE;
+              }
               return super.preVisitDirectory(dir, attrs);
             }
 
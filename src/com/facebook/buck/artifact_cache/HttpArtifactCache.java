@@ -30,6 +30,7 @@ import java.net.HttpURLConnection;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.List;
+import java.util.Optional;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -53,6 +54,19 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
 
   @Override
   protected FetchResult fetchImpl(RuleKey ruleKey, LazyPath output) throws IOException {
+    return fetch(ruleKey, output, Optional.empty());
+  }
+
+  @Override
+  protected FetchResult fetchImpl(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer)
+      throws IOException {
+    return fetch(ruleKey, output, Optional.of(payloadConsumer));
+  }
+
+  private FetchResult fetch(
+      RuleKey ruleKey, LazyPath output, Optional<ArtifactPayloadConsumer> payloadConsumer)
+      throws IOException {
     FetchResult.Builder resultBuilder = FetchResult.builder();
     Request.Builder requestBuilder = new Request.Builder().get();
     try (HttpResponse response =
@@ -87,7 +101,8 @@ public final class HttpArtifactCache extends AbstractNetworkCache {
         FetchResponseReadResult fetchedData;
         try (OutputStream tempFileOutputStream = getProjectFilesystem().newFileOutputStream(temp)) {
           fetchedData =
-              HttpArtifactCacheBinaryProtocol.readFetchResponse(input, tempFileOutputStream);
+              HttpArtifactCacheBinaryProtocol.readFetchResponse(
+                  input, tempFileOutputStream, payloadConsumer);
         }
 
         resultBuilder
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.artifact_cache;
 
+import com.facebook.buck.io.TeeInputStream;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.hash.HasherInputStream;
 import com.facebook.buck.util.hash.HasherOutputStream;
@@ -30,6 +31,7 @@ import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -38,6 +40,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Map;
+import java.util.Optional;
 import org.immutables.value.Value;
 
 /** Implements the binary protocol used by Buck to talk to the cache server. */
@@ -53,9 +56,23 @@ public class HttpArtifactCacheBinaryProtocol {
 
   public static FetchResponseReadResult readFetchResponse(
       DataInputStream input, OutputStream payloadSink) throws IOException {
+    return readFetchResponse(input, payloadSink, Optional.empty());
+  }
+
+  /**
+   * Reads a fetch response, writing its payload to {@code payloadSink}. When a {@code
+   * payloadConsumer} is given, it reads the payload as it comes in and everything it reads is
+   * written to {@code payloadSink} too. The checksums are only known once the whole response has
+   * been read, so it is up to the caller to verify them.
+   */
+  public static FetchResponseReadResult readFetchResponse(
+      DataInputStream input,
+      OutputStream payloadSink,
+      Optional<ArtifactPayloadConsumer> payloadConsumer)
+      throws IOException {
 
     MetadataAndPayloadReadResultInternal resultInternal =
-        readMetadataAndPayload(input, payloadSink);
+        readMetadataAndPayload(input, payloadSink, payloadConsumer);
 
     FetchResponseReadResult.Builder result = FetchResponseReadResult.builder().from(resultInternal);
     return result.build();
@@ -79,6 +96,14 @@ public class HttpArtifactCacheBinaryProtocol {
 
   public static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
       DataInputStream input, OutputStream payloadSink) throws IOException {
+    return readMetadataAndPayload(input, payloadSink, Optional.empty());
+  }
+
+  private static MetadataAndPayloadReadResultInternal readMetadataAndPayload(
+      DataInputStream input,
+      OutputStream payloadSink,
+      Optional<ArtifactPayloadConsumer> payloadConsumer)
+      throws IOException {
     // Read the size of a the metadata, and use that to build a input stream to read and
     // process the rest of it.
     int metadataSize = input.readInt();
@@ -128,7 +153,15 @@ public class HttpArtifactCacheBinaryProtocol {
     Hasher artifactOnlyHasher = HASH_FUNCTION.newHasher();
     try (InputStream payload =
         new HasherInputStream(artifactOnlyHasher, new HasherInputStream(hasher, input))) {
-      result.setResponseSizeBytes(ByteStreams.copy(payload, payloadSink));
+      if (payloadConsumer.isPresent()) {
+        CountingInputStream countingPayload = new CountingInputStream(payload);
+        InputStream teePayload = new TeeInputStream(countingPayload, payloadSink);
+        payloadConsumer.get().consume(teePayload);
+        ByteStreams.exhaust(teePayload);
+        result.setResponseSizeBytes(countingPayload.getCount());
+      } else {
+        result.setResponseSizeBytes(ByteStreams.copy(payload, payloadSink));
+      }
       result.setArtifactOnlyHashCode(artifactOnlyHasher.hash());
     }
 
@@ -0,0 +1,344 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.artifact_cache.config.L1CacheEvictionPolicy;
+import com.facebook.buck.io.file.BorrowablePath;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps artifacts fetched from remote caches in a local directory, so that hot artifacts don't have
+ * to be downloaded again. Unlike a dir cache in a {@link MultiArtifactCache}, which stores
+ * everything and is trimmed by age, what stays in here is decided by a {@link L1CacheIndex} within
+ * a byte budget.
+ *
+ * <p>Fetched artifacts are snapshotted with a hard link before the fetch completes, but only
+ * promoted into the cache, which may evict other artifacts, on the promotion executor. Stores go
+ * straight to the delegate.
+ */
+public class L1ArtifactCacheDecorator implements ArtifactCache, CacheDecorator {
+
+  private static final Logger LOG = Logger.get(L1ArtifactCacheDecorator.class);
+
+  /** Source of the {@link CacheResult}s of artifacts served from the L1 cache. */
+  public static final String CACHE_SOURCE = "l1";
+
+  private static final String STAGING_FOLDER = "staging";
+  private static final String TMP_FOLDER = "tmp";
+  private static final Pattern RULE_KEY_PATTERN = Pattern.compile("([0-9a-f]{2})+");
+
+  private final ArtifactCache delegate;
+  private final ProjectFilesystem filesystem;
+  private final Path cacheDir;
+  private final DirArtifactCache store;
+  private final L1CacheIndex index;
+  private final ListeningExecutorService promotionExecutor;
+  private final Object promotionLock = new Object();
+  private final AtomicLong stagedArtifactCount = new AtomicLong();
+
+  public L1ArtifactCacheDecorator(
+      ArtifactCache delegate,
+      ProjectFilesystem filesystem,
+      Path cacheDir,
+      long maxSizeBytes,
+      L1CacheEvictionPolicy evictionPolicy,
+      ListeningExecutorService promotionExecutor)
+      throws IOException {
+    this.delegate = delegate;
+    this.filesystem = filesystem;
+    this.cacheDir = cacheDir;
+    this.store =
+        new DirArtifactCache(
+            CACHE_SOURCE, filesystem, cacheDir, CacheReadMode.READWRITE, Optional.empty());
+    this.index = new L1CacheIndex(maxSizeBytes, evictionPolicy);
+    this.promotionExecutor = promotionExecutor;
+
+    // Anything left in here belongs to promotions which were interrupted.
+    filesystem.deleteRecursivelyIfExists(getStagingFolder());
+    filesystem.mkdirs(getStagingFolder());
+    loadIndex();
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+    return fetch(ruleKey, output, () -> delegate.fetchAsync(ruleKey, output));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchStreamingAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    return fetch(
+        ruleKey, output, () -> delegate.fetchStreamingAsync(ruleKey, output, payloadConsumer));
+  }
+
+  @Override
+  public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      List<Pair<RuleKey, LazyPath>> requests) {
+    // Artifacts we have are served one by one, the rest is fetched from the delegate in one go.
+    List<ListenableFuture<CacheResult>> results = new ArrayList<>(requests.size());
+    List<Integer> delegatedIndices = new ArrayList<>();
+    List<Pair<RuleKey, LazyPath>> delegatedRequests = new ArrayList<>();
+    for (int i = 0; i < requests.size(); i++) {
+      Pair<RuleKey, LazyPath> request = requests.get(i);
+      RuleKey ruleKey = request.getFirst();
+      LazyPath output = request.getSecond();
+      if (index.recordAccess(ruleKey)) {
+        results.add(fetchStored(ruleKey, output, () -> delegate.fetchAsync(ruleKey, output)));
+      } else {
+        results.add(null);
+        delegatedIndices.add(i);
+        delegatedRequests.add(request);
+      }
+    }
+    if (delegatedRequests.isEmpty()) {
+      return Futures.transform(
+          Futures.allAsList(results), ImmutableList::copyOf, MoreExecutors.directExecutor());
+    }
+
+    ListenableFuture<ImmutableList<CacheResult>> delegatedResults =
+        delegate.multiFetchAsync(delegatedRequests);
+    for (int i = 0; i < delegatedIndices.size(); i++) {
+      int delegatedIndex = i;
+      Pair<RuleKey, LazyPath> request = delegatedRequests.get(i);
+      results.set(
+          delegatedIndices.get(i),
+          promoteRemoteHit(
+              request.getFirst(),
+              request.getSecond(),
+              Futures.transform(
+                  delegatedResults,
+                  list -> list.get(delegatedIndex),
+                  MoreExecutors.directExecutor())));
+    }
+    return Futures.transform(
+        Futures.allAsList(results), ImmutableList::copyOf, MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<CacheResult> fetch(
+      RuleKey ruleKey, LazyPath output, Supplier<ListenableFuture<CacheResult>> fetchFromDelegate) {
+    if (!index.recordAccess(ruleKey)) {
+      return promoteRemoteHit(ruleKey, output, fetchFromDelegate.get());
+    }
+    return fetchStored(ruleKey, output, fetchFromDelegate);
+  }
+
+  private ListenableFuture<CacheResult> fetchStored(
+      RuleKey ruleKey, LazyPath output, Supplier<ListenableFuture<CacheResult>> fetchFromDelegate) {
+    return Futures.transformAsync(
+        store.fetchAsync(ruleKey, output),
+        result -> {
+          if (result.getType() == CacheResultType.HIT) {
+            return Futures.immediateFuture(result);
+          }
+          // The artifact is gone, e.g. because someone cleaned up the directory.
+          index.remove(ruleKey);
+          return promoteRemoteHit(ruleKey, output, fetchFromDelegate.get());
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<CacheResult> promoteRemoteHit(
+      RuleKey ruleKey, LazyPath output, ListenableFuture<CacheResult> delegateResult) {
+    return Futures.transform(
+        delegateResult,
+        result -> {
+          if (result.getType() == CacheResultType.HIT
+              && result
+                  .cacheMode()
+                  .map(mode -> mode.getCacheType() == ArtifactCacheMode.CacheType.remote)
+                  .orElse(false)) {
+            stageForPromotion(ruleKey, result.getMetadata(), output);
+          }
+          return result;
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Takes a snapshot of the fetched artifact, as it may be gone by the time it is promoted, and
+   * schedules its promotion.
+   */
+  private void stageForPromotion(
+      RuleKey ruleKey, ImmutableMap<String, String> metadata, LazyPath output) {
+    Path staged =
+        getStagingFolder().resolve(ruleKey + "." + stagedArtifactCount.incrementAndGet());
+    try {
+      Path artifact = output.get();
+      try {
+        Files.createLink(filesystem.resolve(staged), filesystem.resolve(artifact));
+      } catch (IOException | UnsupportedOperationException e) {
+        LOG.verbose(e, "Failed to hard link %s, falling back to a copy.", artifact);
+        filesystem.copyFile(artifact, staged);
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to stage artifact %s for the L1 cache.", ruleKey);
+      deleteStaged(staged);
+      return;
+    }
+    try {
+      promotionExecutor.execute(() -> promote(ruleKey, metadata, staged));
+    } catch (RejectedExecutionException e) {
+      // We're shutting down.
+      deleteStaged(staged);
+    }
+  }
+
+  private void promote(RuleKey ruleKey, ImmutableMap<String, String> metadata, Path staged) {
+    try {
+      long sizeBytes = filesystem.getFileSize(staged);
+      synchronized (promotionLock) {
+        // Store first, so that the index never points at an artifact which isn't there yet.
+        store.store(
+            ArtifactInfo.builder().addRuleKeys(ruleKey).setMetadata(metadata).build(),
+            BorrowablePath.borrowablePath(staged));
+        ImmutableList<RuleKey> evicted = index.add(ruleKey, sizeBytes);
+        if (!evicted.isEmpty()) {
+          LOG.verbose("Evicting %s from the L1 cache.", evicted);
+          Futures.getUnchecked(store.deleteAsync(evicted));
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.warn(e, "Failed to promote artifact %s to the L1 cache.", ruleKey);
+      index.remove(ruleKey);
+    } finally {
+      deleteStaged(staged);
+    }
+  }
+
+  private void deleteStaged(Path staged) {
+    try {
+      filesystem.deleteFileAtPathIfExists(staged);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to delete %s.", staged);
+    }
+  }
+
+  /** Adds the artifacts found on disk to the index, least recently modified ones first. */
+  private void loadIndex() throws IOException {
+    Path root = filesystem.resolve(cacheDir);
+    ImmutableSet<Path> skippedFolders =
+        ImmutableSet.of(root.resolve(TMP_FOLDER), filesystem.resolve(getStagingFolder()));
+    List<Pair<RuleKey, BasicFileAttributes>> artifacts = new ArrayList<>();
+    Files.walkFileTree(
+        root,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            return skippedFolders.contains(dir)
+                ? FileVisitResult.SKIP_SUBTREE
+                : FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            String name = file.getFileName().toString();
+            if (RULE_KEY_PATTERN.matcher(name).matches()) {
+              artifacts.add(new Pair<>(new RuleKey(name), attrs));
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+
+    artifacts.sort(Comparator.comparing(artifact -> artifact.getSecond().lastModifiedTime()));
+    List<RuleKey> evicted = new ArrayList<>();
+    for (Pair<RuleKey, BasicFileAttributes> artifact : artifacts) {
+      evicted.addAll(index.add(artifact.getFirst(), artifact.getSecond().size()));
+    }
+    if (!evicted.isEmpty()) {
+      // The budget may have shrunk since the last run.
+      Futures.getUnchecked(store.deleteAsync(evicted));
+    }
+  }
+
+  private Path getStagingFolder() {
+    return cacheDir.resolve(STAGING_FOLDER);
+  }
+
+  @VisibleForTesting
+  long getSizeBytes() {
+    return index.getSizeBytes();
+  }
+
+  @Override
+  public void skipPendingAndFutureAsyncFetches() {
+    delegate.skipPendingAndFutureAsyncFetches();
+  }
+
+  @Override
+  public ListenableFuture<Void> store(ArtifactInfo info, BorrowablePath output) {
+    return delegate.store(info, output);
+  }
+
+  @Override
+  public ListenableFuture<ImmutableMap<RuleKey, CacheResult>> multiContainsAsync(
+      ImmutableSet<RuleKey> ruleKeys) {
+    return delegate.multiContainsAsync(ruleKeys);
+  }
+
+  @Override
+  public ListenableFuture<CacheDeleteResult> deleteAsync(List<RuleKey> ruleKeys) {
+    synchronized (promotionLock) {
+      ruleKeys.forEach(index::remove);
+      Futures.getUnchecked(store.deleteAsync(ruleKeys));
+    }
+    return delegate.deleteAsync(ruleKeys);
+  }
+
+  @Override
+  public CacheReadMode getCacheReadMode() {
+    return delegate.getCacheReadMode();
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+    store.close();
+  }
+
+  @Override
+  public ArtifactCache getDelegate() {
+    return delegate;
+  }
+}
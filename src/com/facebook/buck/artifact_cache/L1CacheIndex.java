@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import com.facebook.buck.artifact_cache.config.L1CacheEvictionPolicy;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Keeps track of the artifacts held by {@link L1ArtifactCacheDecorator} and decides which of them
+ * to evict, so that their total size stays within a byte budget.
+ *
+ * <p>With {@link L1CacheEvictionPolicy#TINY_LFU} this is a W-TinyLFU cache: new entries go into a
+ * small LRU window, and entries falling out of the window only make it into the main LRU region if
+ * they were requested more often than the entries they would push out. Request frequencies are
+ * estimated by a count-min sketch which is periodically halved, so that old popularity fades away.
+ * This way artifacts which are only fetched once can't flush the ones needed by every build. {@link
+ * L1CacheEvictionPolicy#LRU} admits everything.
+ */
+class L1CacheIndex {
+
+  private static final int WINDOW_PERCENTAGE = 1;
+  // Used to size the frequency sketch, as the number of entries isn't known upfront.
+  private static final long ASSUMED_AVERAGE_ENTRY_SIZE = 64 * 1024L;
+  private static final int MIN_SKETCH_WIDTH = 1 << 8;
+  private static final int MAX_SKETCH_WIDTH = 1 << 20;
+
+  private final long windowMaxBytes;
+  private final long mainMaxBytes;
+  private final Optional<FrequencySketch> sketch;
+
+  // Both are in access order, so the least recently used entry comes first.
+  private final LinkedHashMap<RuleKey, Long> window = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<RuleKey, Long> main = new LinkedHashMap<>(16, 0.75f, true);
+  private long windowBytes = 0;
+  private long mainBytes = 0;
+
+  L1CacheIndex(long maxSizeBytes, L1CacheEvictionPolicy evictionPolicy) {
+    Preconditions.checkArgument(maxSizeBytes > 0);
+    switch (evictionPolicy) {
+      case LRU:
+        // Everything lives in the window, anything falling out of it is evicted.
+        windowMaxBytes = maxSizeBytes;
+        mainMaxBytes = 0;
+        sketch = Optional.empty();
+        break;
+      case TINY_LFU:
+        windowMaxBytes = Math.max(1, maxSizeBytes * WINDOW_PERCENTAGE / 100);
+        mainMaxBytes = maxSizeBytes - windowMaxBytes;
+        long expectedEntries = maxSizeBytes / ASSUMED_AVERAGE_ENTRY_SIZE;
+        sketch =
+            Optional.of(
+                new FrequencySketch(
+                    Integer.highestOneBit(
+                        (int)
+                            Math.max(
+                                MIN_SKETCH_WIDTH, Math.min(MAX_SKETCH_WIDTH, expectedEntries)))));
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown eviction policy: " + evictionPolicy);
+    }
+  }
+
+  /**
+   * Records a request for the artifact with the given key.
+   *
+   * @return whether the artifact is in the cache.
+   */
+  public synchronized boolean recordAccess(RuleKey ruleKey) {
+    sketch.ifPresent(s -> s.increment(ruleKey));
+    // Looking the key up moves it to the most recently used end of its region.
+    return window.get(ruleKey) != null || main.get(ruleKey) != null;
+  }
+
+  public synchronized boolean contains(RuleKey ruleKey) {
+    return window.containsKey(ruleKey) || main.containsKey(ruleKey);
+  }
+
+  /**
+   * Adds an artifact to the cache.
+   *
+   * @return the keys of the artifacts which have to be evicted to stay within the budget. This
+   *     includes {@code ruleKey} itself if the artifact wasn't admitted.
+   */
+  public synchronized ImmutableList<RuleKey> add(RuleKey ruleKey, long sizeBytes) {
+    remove(ruleKey);
+    ImmutableList.Builder<RuleKey> evicted = ImmutableList.builder();
+    window.put(ruleKey, sizeBytes);
+    windowBytes += sizeBytes;
+    while (windowBytes > windowMaxBytes) {
+      Map.Entry<RuleKey, Long> eldest = window.entrySet().iterator().next();
+      RuleKey candidate = eldest.getKey();
+      long candidateSize = eldest.getValue();
+      window.remove(candidate);
+      windowBytes -= candidateSize;
+      admitToMain(candidate, candidateSize, evicted);
+    }
+    return evicted.build();
+  }
+
+  public synchronized void remove(RuleKey ruleKey) {
+    Long size = window.remove(ruleKey);
+    if (size != null) {
+      windowBytes -= size;
+    }
+    size = main.remove(ruleKey);
+    if (size != null) {
+      mainBytes -= size;
+    }
+  }
+
+  public synchronized long getSizeBytes() {
+    return windowBytes + mainBytes;
+  }
+
+  private void admitToMain(
+      RuleKey candidate, long candidateSize, ImmutableList.Builder<RuleKey> evicted) {
+    if (candidateSize > mainMaxBytes) {
+      evicted.add(candidate);
+      return;
+    }
+
+    // Find the least recently used entries which have to make room for the candidate. The
+    // candidate only replaces them if it is more popular than every one of them.
+    int candidateFrequency = getFrequency(candidate);
+    List<RuleKey> victims = new ArrayList<>();
+    long freedBytes = 0;
+    Iterator<Map.Entry<RuleKey, Long>> iterator = main.entrySet().iterator();
+    while (mainBytes - freedBytes + candidateSize > mainMaxBytes) {
+      Map.Entry<RuleKey, Long> victim = iterator.next();
+      if (getFrequency(victim.getKey()) >= candidateFrequency) {
+        evicted.add(candidate);
+        return;
+      }
+      victims.add(victim.getKey());
+      freedBytes += victim.getValue();
+    }
+
+    for (RuleKey victim : victims) {
+      main.remove(victim);
+      evicted.add(victim);
+    }
+    mainBytes -= freedBytes;
+    main.put(candidate, candidateSize);
+    mainBytes += candidateSize;
+  }
+
+  private int getFrequency(RuleKey ruleKey) {
+    return sketch.map(s -> s.estimate(ruleKey)).orElse(0);
+  }
+
+  /** Count-min sketch of 4-bit counters. */
+  private static class FrequencySketch {
+    private static final long[] SEEDS = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final int MAX_COUNT = 15;
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    private FrequencySketch(int width) {
+      Preconditions.checkArgument(Integer.bitCount(width) == 1);
+      this.counters = new byte[SEEDS.length][width];
+      this.mask = width - 1;
+      this.sampleSize = 10 * width;
+    }
+
+    private void increment(RuleKey ruleKey) {
+      long hash = ruleKey.getHashCode().padToLong();
+      boolean added = false;
+      for (int i = 0; i < SEEDS.length; i++) {
+        int index = indexOf(hash, i);
+        if (counters[i][index] < MAX_COUNT) {
+          counters[i][index]++;
+          added = true;
+        }
+      }
+      if (added && ++additions >= sampleSize) {
+        age();
+      }
+    }
+
+    private int estimate(RuleKey ruleKey) {
+      long hash = ruleKey.getHashCode().padToLong();
+      int frequency = MAX_COUNT;
+      for (int i = 0; i < SEEDS.length; i++) {
+        frequency = Math.min(frequency, counters[i][indexOf(hash, i)]);
+      }
+      return frequency;
+    }
+
+    private void age() {
+      for (byte[] row : counters) {
+        for (int i = 0; i < row.length; i++) {
+          row[i] >>= 1;
+        }
+      }
+      additions /= 2;
+    }
+
+    private int indexOf(long hash, int row) {
+      long h = (hash + SEEDS[row]) * SEEDS[row];
+      h ^= h >>> 32;
+      return (int) h & mask;
+    }
+  }
+}
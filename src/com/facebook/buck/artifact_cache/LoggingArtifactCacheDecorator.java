@@ -53,6 +53,18 @@ public class LoggingArtifactCacheDecorator implements ArtifactCache, CacheDecora
     return Futures.immediateFuture(fetchResult);
   }
 
+  @Override
+  public ListenableFuture<CacheResult> fetchStreamingAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    ArtifactCacheEvent.Started started =
+        eventFactory.newFetchStartedEvent(ImmutableSet.of(ruleKey));
+    eventBus.post(started);
+    CacheResult fetchResult =
+        Futures.getUnchecked(delegate.fetchStreamingAsync(ruleKey, output, payloadConsumer));
+    eventBus.post(eventFactory.newFetchFinishedEvent(started, fetchResult));
+    return Futures.immediateFuture(fetchResult);
+  }
+
   @Override
   public void skipPendingAndFutureAsyncFetches() {
     delegate.skipPendingAndFutureAsyncFetches();
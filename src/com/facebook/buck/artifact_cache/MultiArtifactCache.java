@@ -20,6 +20,7 @@ import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.types.Pair;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Functions;
 import com.google.common.collect.ImmutableList;
@@ -35,6 +36,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
 
 /**
  * MultiArtifactCache encapsulates a set of ArtifactCache instances such that fetch() succeeds if
@@ -64,6 +66,22 @@ public class MultiArtifactCache implements ArtifactCache {
    */
   @Override
   public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+    return fetch(ruleKey, output, artifactCache -> artifactCache.fetchAsync(ruleKey, output));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchStreamingAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    return fetch(
+        ruleKey,
+        output,
+        artifactCache -> artifactCache.fetchStreamingAsync(ruleKey, output, payloadConsumer));
+  }
+
+  private ListenableFuture<CacheResult> fetch(
+      RuleKey ruleKey,
+      LazyPath output,
+      Function<ArtifactCache, ListenableFuture<CacheResult>> fetchFromCache) {
     ListenableFuture<CacheResult> cacheResult = Futures.immediateFuture(CacheResult.miss());
     // This is the list of higher-priority caches that we should write the artifact to.
     ImmutableList.Builder<ArtifactCache> cachesToFill = ImmutableList.builder();
@@ -78,7 +96,7 @@ public class MultiArtifactCache implements ArtifactCache {
                 if (artifactCache.getCacheReadMode().isWritable()) {
                   cachesToFill.add(artifactCache);
                 }
-                return artifactCache.fetchAsync(ruleKey, output);
+                return fetchFromCache.apply(artifactCache);
               },
               MoreExecutors.directExecutor());
     }
@@ -99,6 +117,79 @@ public class MultiArtifactCache implements ArtifactCache {
         MoreExecutors.directExecutor());
   }
 
+  /**
+   * Batched version of {@link #fetchAsync(RuleKey, LazyPath)}: every encapsulated ArtifactCache is
+   * asked for all the keys that are still missing in a single {@link
+   * ArtifactCache#multiFetchAsync(List)} call, and hits are propagated to the writable caches that
+   * missed them.
+   */
+  @Override
+  public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      List<Pair<RuleKey, LazyPath>> requests) {
+    CacheResult[] initialResults = new CacheResult[requests.size()];
+    List<List<ArtifactCache>> cachesToFill = new ArrayList<>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      initialResults[i] = CacheResult.miss();
+      cachesToFill.add(new ArrayList<>());
+    }
+
+    ListenableFuture<CacheResult[]> cacheResultFuture = Futures.immediateFuture(initialResults);
+    for (ArtifactCache artifactCache : artifactCaches) {
+      cacheResultFuture =
+          Futures.transformAsync(
+              cacheResultFuture,
+              mergedResults -> {
+                List<Integer> missingIndices = new ArrayList<>();
+                List<Pair<RuleKey, LazyPath>> missingRequests = new ArrayList<>();
+                for (int i = 0; i < mergedResults.length; i++) {
+                  if (!mergedResults[i].getType().isSuccess()) {
+                    missingIndices.add(i);
+                    missingRequests.add(requests.get(i));
+                    if (artifactCache.getCacheReadMode().isWritable()) {
+                      cachesToFill.get(i).add(artifactCache);
+                    }
+                  }
+                }
+
+                if (missingRequests.isEmpty()) {
+                  return Futures.immediateFuture(mergedResults);
+                }
+
+                return Futures.transform(
+                    artifactCache.multiFetchAsync(missingRequests),
+                    results -> {
+                      for (int i = 0; i < results.size(); i++) {
+                        mergedResults[missingIndices.get(i)] = results.get(i);
+                      }
+                      return mergedResults;
+                    },
+                    MoreExecutors.directExecutor());
+              },
+              MoreExecutors.directExecutor());
+    }
+
+    // Propagate the artifacts to previous writable caches.
+    return Futures.transform(
+        cacheResultFuture,
+        results -> {
+          for (int i = 0; i < results.length; i++) {
+            CacheResult result = results[i];
+            if (!result.getType().isSuccess()) {
+              continue;
+            }
+            storeToCaches(
+                ImmutableList.copyOf(cachesToFill.get(i)),
+                ArtifactInfo.builder()
+                    .addRuleKeys(requests.get(i).getFirst())
+                    .setMetadata(result.getMetadata())
+                    .build(),
+                BorrowablePath.notBorrowablePath(requests.get(i).getSecond().getUnchecked()));
+          }
+          return ImmutableList.copyOf(results);
+        },
+        MoreExecutors.directExecutor());
+  }
+
   @Override
   public void skipPendingAndFutureAsyncFetches() {
     for (ArtifactCache artifactCache : artifactCaches) {
@@ -25,13 +25,17 @@ import com.facebook.buck.io.file.LazyPath;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.slb.NoHealthyServersException;
+import com.facebook.buck.util.types.Pair;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class RetryingCacheDecorator implements ArtifactCache, CacheDecorator {
 
@@ -57,8 +61,49 @@ public class RetryingCacheDecorator implements ArtifactCache, CacheDecorator {
 
   @Override
   public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+    return retryFetch(
+        ruleKey, delegate.fetchAsync(ruleKey, output), () -> delegate.fetchAsync(ruleKey, output));
+  }
+
+  @Override
+  public ListenableFuture<CacheResult> fetchStreamingAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    return retryFetch(
+        ruleKey,
+        delegate.fetchStreamingAsync(ruleKey, output, payloadConsumer),
+        () -> delegate.fetchStreamingAsync(ruleKey, output, payloadConsumer));
+  }
+
+  /** The first attempt is made as a single batch, failed keys are then retried one by one. */
+  @Override
+  public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      List<Pair<RuleKey, LazyPath>> requests) {
+    return Futures.transformAsync(
+        delegate.multiFetchAsync(requests),
+        results -> {
+          List<ListenableFuture<CacheResult>> retriedResults = new ArrayList<>(results.size());
+          for (int i = 0; i < results.size(); i++) {
+            RuleKey ruleKey = requests.get(i).getFirst();
+            LazyPath output = requests.get(i).getSecond();
+            retriedResults.add(
+                retryFetch(
+                    ruleKey,
+                    Futures.immediateFuture(results.get(i)),
+                    () -> delegate.fetchAsync(ruleKey, output)));
+          }
+          return Futures.transform(
+              Futures.allAsList(retriedResults),
+              ImmutableList::copyOf,
+              MoreExecutors.directExecutor());
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  private ListenableFuture<CacheResult> retryFetch(
+      RuleKey ruleKey,
+      ListenableFuture<CacheResult> resultFuture,
+      Supplier<ListenableFuture<CacheResult>> fetch) {
     List<String> allCacheErrors = new ArrayList<>();
-    ListenableFuture<CacheResult> resultFuture = delegate.fetchAsync(ruleKey, output);
     for (int retryCount = 1; retryCount < maxFetchRetries; retryCount++) {
       int retryCountForLambda = retryCount;
       resultFuture =
@@ -72,7 +117,7 @@ public class RetryingCacheDecorator implements ArtifactCache, CacheDecorator {
                 LOG.info(
                     "Failed to fetch %s after %d/%d attempts, exception: %s",
                     ruleKey, retryCountForLambda + 1, maxFetchRetries, result.cacheError());
-                return delegate.fetchAsync(ruleKey, output);
+                return fetch.get();
               });
     }
     return Futures.transform(
@@ -28,12 +28,14 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.BuildInfo;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.HumanReadableException;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.sqlite.RetryBusyHandler;
 import com.facebook.buck.util.sqlite.SQLiteUtils;
 import com.facebook.buck.util.types.Pair;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Functions;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -41,6 +43,7 @@ import com.google.common.hash.HashCode;
 import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -54,15 +57,24 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import org.sqlite.BusyHandler;
 import org.sqlite.SQLiteConfig;
 
@@ -72,6 +84,12 @@ import org.sqlite.SQLiteConfig;
  * <p>Cache entries are either metadata or content. All metadata contains a mapping to a content
  * entry. Content entries with sufficiently small content will have their artifacts inlined into the
  * database for improved performance.
+ *
+ * <p>By default all database accesses go through a single connection. In high-concurrency mode,
+ * which is enabled by giving a number of reader connections, lookups are spread over a pool of
+ * connections, which the write-ahead log allows to read concurrently. All writes, including the
+ * updates of access times, are then handed to a single writer thread, which commits everything
+ * that queued up while it was busy in one transaction.
  */
 public class SQLiteArtifactCache implements ArtifactCache {
 
@@ -83,6 +101,9 @@ public class SQLiteArtifactCache implements ArtifactCache {
   private static final String TMP_EXTENSION = ".tmp";
   private static final long DEFAULT_MAX_INLINED_BYTES = 40;
   private static final Duration DEFAULT_EVICTION_TIME = Duration.ofDays(7);
+  // Eviction deletes rows in batches of this size, each in its own transaction, so that it never
+  // blocks other users of the database for long.
+  private static final int EVICTION_BATCH_SIZE = 1000;
 
   private final String name;
   private final ProjectFilesystem filesystem;
@@ -94,6 +115,8 @@ public class SQLiteArtifactCache implements ArtifactCache {
   private final CacheReadMode cacheMode;
 
   private final ConnectionInfo db;
+  private final Optional<ReaderPool> readers;
+  private final Optional<BatchingWriter> writer;
 
   static {
     SQLiteUtils.initialize();
@@ -106,7 +129,8 @@ public class SQLiteArtifactCache implements ArtifactCache {
       BuckEventBus eventBus,
       Optional<Long> maxCacheSizeBytes,
       Optional<Long> maxInlinedSizeBytes,
-      CacheReadMode cacheMode)
+      CacheReadMode cacheMode,
+      int readerConnections)
       throws IOException, SQLException {
     this.name = name;
     this.filesystem = filesystem;
@@ -133,6 +157,13 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
 
     this.db = new ConnectionInfo(cacheDir);
+    if (readerConnections > 0) {
+      this.readers = Optional.of(new ReaderPool(cacheDir, readerConnections));
+      this.writer = Optional.of(new BatchingWriter(db));
+    } else {
+      this.readers = Optional.empty();
+      this.writer = Optional.empty();
+    }
   }
 
   @Override
@@ -167,7 +198,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
             CACHE_MODE,
             String.format("Artifact fetch(%s, %s) stopped unexpectedly", contentHash, output));
     try {
-      Optional<Content> content = db.selectContent(contentHash);
+      Optional<Content> content = selectContent(contentHash);
       if (content.isPresent()) {
         byte[] artifact = content.get().artifact;
         String filepath = content.get().filepath;
@@ -180,12 +211,12 @@ public class SQLiteArtifactCache implements ArtifactCache {
           filesystem.copyFile(filesystem.resolve(filepath), output.get());
         } else {
           // artifact stored on disk was removed by another cache, remove database entry
-          db.deleteContent(contentHash);
+          write(db -> db.deleteContent(ImmutableList.of(contentHash)));
           return result = CacheResult.miss();
         }
 
         long size = content.get().size;
-        db.accessContent(contentHash);
+        accessContent(contentHash);
 
         return result = CacheResult.hit(name, CACHE_MODE, ImmutableMap.of(), size);
       }
@@ -210,9 +241,9 @@ public class SQLiteArtifactCache implements ArtifactCache {
             CACHE_MODE,
             String.format("Metadata fetch(%s, %s) stopped unexpectedly", ruleKey, output));
     try {
-      Optional<byte[]> metadata = db.selectMetadata(ruleKey);
+      Optional<byte[]> metadata = selectMetadata(ruleKey);
       if (metadata.isPresent()) {
-        db.accessMetadata(ruleKey);
+        accessMetadata(ruleKey);
         output.get(); // for MultiArtifactCache, force evaluation of the output path
 
         return result = CacheResult.hit(name, CACHE_MODE, unmarshalMetadata(metadata.get()), 0);
@@ -274,7 +305,8 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
 
     try {
-      db.storeMetadata(info.getRuleKeys(), marshalMetadata(metadata));
+      byte[] data = marshalMetadata(metadata);
+      return write(db -> db.storeMetadata(info.getRuleKeys(), data));
     } catch (IOException | SQLException e) {
       LOG.warn(e, "Metadata store(%s) error", info.getRuleKeys());
     }
@@ -293,7 +325,8 @@ public class SQLiteArtifactCache implements ArtifactCache {
       long size = filesystem.getFileSize(content.getPath());
       if (size <= maxInlinedBytes) {
         // artifact is small enough to inline in the database
-        db.storeArtifact(toStore, Files.readAllBytes(content.getPath()), size);
+        byte[] artifact = Files.readAllBytes(content.getPath());
+        return write(db -> db.storeArtifact(toStore, artifact, size));
       } else if (!toStore.isEmpty()) {
         // artifact is too large to inline, store on disk and put path in database
         Path artifactPath = getArtifactPath(toStore.iterator().next());
@@ -305,7 +338,8 @@ public class SQLiteArtifactCache implements ArtifactCache {
           storeArtifactOutput(content.getPath(), artifactPath);
         }
 
-        db.storeFilepath(toStore, artifactPath.toString(), size);
+        String filepath = artifactPath.toString();
+        return write(db -> db.storeFilepath(toStore, filepath, size));
       }
     } catch (IOException | SQLException e) {
       LOG.warn(e, "Artifact store(%s, %s) error", contentHashes, content);
@@ -319,13 +353,13 @@ public class SQLiteArtifactCache implements ArtifactCache {
     ImmutableSet.Builder<RuleKey> builder = ImmutableSet.builder();
     for (RuleKey contentHash : contentHashes) {
       // if the content already exists in the cache, skip it
-      Optional<Content> existingArtifact = db.selectContent(contentHash);
+      Optional<Content> existingArtifact = selectContent(contentHash);
       if (existingArtifact.isPresent()) {
         byte[] inlined = existingArtifact.get().artifact;
         String artifactPath = existingArtifact.get().filepath;
 
         if (Objects.nonNull(inlined) || filesystem.exists(filesystem.resolve(artifactPath))) {
-          db.accessContent(contentHash);
+          accessContent(contentHash);
           continue;
         }
       }
@@ -336,6 +370,49 @@ public class SQLiteArtifactCache implements ArtifactCache {
     return builder.build();
   }
 
+  private Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
+    if (readers.isPresent()) {
+      return readers.get().read(reader -> reader.selectMetadata(ruleKey));
+    }
+    return db.selectMetadata(ruleKey);
+  }
+
+  private Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
+    if (readers.isPresent()) {
+      return readers.get().read(reader -> reader.selectContent(contentHash));
+    }
+    return db.selectContent(contentHash);
+  }
+
+  private void accessMetadata(RuleKey ruleKey) throws SQLException {
+    if (writer.isPresent()) {
+      writer.get().accessMetadata(ruleKey);
+    } else {
+      db.accessMetadata(ImmutableList.of(ruleKey));
+    }
+  }
+
+  private void accessContent(RuleKey contentHash) throws SQLException {
+    if (writer.isPresent()) {
+      writer.get().accessContent(contentHash);
+    } else {
+      db.accessContent(ImmutableList.of(contentHash));
+    }
+  }
+
+  /**
+   * Runs the write right away, or hands it to the writer thread in high-concurrency mode.
+   *
+   * @return a future which completes once the write has been committed.
+   */
+  private ListenableFuture<Void> write(Write write) throws SQLException {
+    if (writer.isPresent()) {
+      return writer.get().submit(write);
+    }
+    write.run(db);
+    return Futures.immediateFuture(null);
+  }
+
   @VisibleForTesting
   static byte[] marshalMetadata(ImmutableMap<String, String> metadata) throws IOException {
     ByteArrayOutputStream metadataStream = new ByteArrayOutputStream();
@@ -397,7 +474,12 @@ public class SQLiteArtifactCache implements ArtifactCache {
   ListenableFuture<Void> removeOldMetadata() {
     Timestamp evictionTime = Timestamp.from(Instant.now().minus(DEFAULT_EVICTION_TIME));
     try {
-      int deleted = db.deleteMetadata(evictionTime);
+      int deleted = 0;
+      int batch;
+      do {
+        batch = db.deleteMetadata(evictionTime, EVICTION_BATCH_SIZE);
+        deleted += batch;
+      } while (batch > 0);
       LOG.verbose("Removed %d metadata rows not accessed since %s", deleted, evictionTime);
     } catch (SQLException e) {
       LOG.error(e, "Failed to clean database");
@@ -425,16 +507,41 @@ public class SQLiteArtifactCache implements ArtifactCache {
     }
 
     try {
-      Pair<Iterable<String>, Timestamp> contentToEvict =
-          db.getContentToEvict(totalSizeBytes - maxBytesAfterDeletion.get());
+      // Evict the least recently accessed artifacts, one batch at a time. Each batch is looked up
+      // through the index on the access time, so this never sorts the whole table.
+      long bytesToDelete = totalSizeBytes - maxBytesAfterDeletion.get();
+      long deletedBytes = 0;
+      int deleted = 0;
+      while (deletedBytes < bytesToDelete) {
+        ImmutableList<Pair<RuleKey, Content>> candidates =
+            db.selectLeastRecentlyAccessedContent(EVICTION_BATCH_SIZE);
+        if (candidates.isEmpty()) {
+          break;
+        }
 
-      for (String filepath : contentToEvict.getFirst()) {
-        MostFiles.deleteRecursivelyIfExists(filesystem.resolve(filepath));
-      }
+        List<RuleKey> evicted = new ArrayList<>();
+        for (Pair<RuleKey, Content> candidate : candidates) {
+          if (deletedBytes >= bytesToDelete) {
+            break;
+          }
+          String filepath = candidate.getSecond().filepath;
+          long sizeBytes = candidate.getSecond().size;
+
+          // from database constraint, exactly one of filepath/artifact is null
+          if (Objects.nonNull(filepath)) {
+            LOG.verbose("Deleting path [%s] of total size [%d] bytes.", filepath, sizeBytes);
+            MostFiles.deleteRecursivelyIfExists(filesystem.resolve(filepath));
+          } else {
+            LOG.verbose("Deleting inlined artifact of size [%d] bytes.", sizeBytes);
+          }
+          evicted.add(candidate.getFirst());
+          deletedBytes += sizeBytes;
+        }
 
-      Timestamp evictionCutoff = contentToEvict.getSecond();
-      int deleted = db.deleteContent(evictionCutoff);
-      LOG.verbose("Deleted %d cached artifacts last accessed before %s", deleted, evictionCutoff);
+        db.runInTransaction(connection -> connection.deleteContent(evicted));
+        deleted += evicted.size();
+      }
+      LOG.verbose("Deleted %d cached artifacts totalling %d bytes", deleted, deletedBytes);
     } catch (IOException | SQLException e) {
       LOG.error(e, "Failed to clean path [%s].", filesystem.resolve(cacheDir));
     }
@@ -449,12 +556,16 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
   @Override
   public void close() {
+    // Pending writes have to be committed before cleaning up, as they may update access times.
+    writer.ifPresent(BatchingWriter::close);
+
     try (SimplePerfEvent.Scope ignored = SimplePerfEvent.scope(eventBus, "sqlite_cache_clean")) {
       Futures.allAsList(removeOldMetadata(), removeOldContent()).get();
     } catch (ExecutionException | InterruptedException e) {
       LOG.error("Failed to clean SQLite cache");
     }
 
+    readers.ifPresent(ReaderPool::close);
     db.close();
   }
 
@@ -466,7 +577,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
     PreparedStatement stmt =
         db.connection.prepareStatement(
             "INSERT INTO metadata (rulekey, data, accessed) VALUES (?, ?, ?)");
-    stmt.setBytes(1, ConnectionInfo.getBytes(ruleKey));
+    stmt.setBytes(1, getBytes(ruleKey));
     stmt.setBytes(2, marshalMetadata(metadata));
     stmt.setTimestamp(3, time);
     stmt.executeUpdate();
@@ -481,7 +592,7 @@ public class SQLiteArtifactCache implements ArtifactCache {
             "INSERT INTO content (sha1, artifact, filepath, size, accessed, created) "
                 + "VALUES (?, ?, ?, ?, ?, ?)");
 
-    stmt.setBytes(1, ConnectionInfo.getBytes(contentHash));
+    stmt.setBytes(1, getBytes(contentHash));
     if (size <= maxInlinedBytes) {
       stmt.setBytes(2, Files.readAllBytes(file.getPath()));
     } else {
@@ -533,12 +644,198 @@ public class SQLiteArtifactCache implements ArtifactCache {
     return keys.build();
   }
 
-  private static class ConnectionInfo {
+  private static Connection openConnection(Path cacheDir) throws SQLException {
+    // date format must be set to match CURRENT_TIMESTAMP
+    Properties properties = new SQLiteConfig().toProperties();
+    properties.setProperty(
+        SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
+    Connection connection =
+        DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"), properties);
+    connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
+    connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+    BusyHandler.setHandler(connection, new RetryBusyHandler());
+    return connection;
+  }
+
+  private static byte[] getBytes(RuleKey ruleKey) {
+    return ruleKey.getHashCode().asBytes();
+  }
+
+  /** A database write, see {@link #write(Write)}. */
+  @FunctionalInterface
+  private interface Write {
+    void run(ConnectionInfo db) throws SQLException;
+  }
+
+  /** A connection which is only used for lookups. */
+  private static class ReadConnection {
     private final Connection connection;
 
     private final PreparedStatement fetchMetadata;
     private final PreparedStatement fetchContent;
 
+    private ReadConnection(Connection connection) throws SQLException {
+      this.connection = connection;
+      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
+      fetchContent =
+          connection.prepareStatement(
+              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
+    }
+
+    private Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
+      fetchMetadata.setBytes(1, getBytes(ruleKey));
+      try (ResultSet rs = fetchMetadata.executeQuery()) {
+        return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
+      }
+    }
+
+    private Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
+      fetchContent.setBytes(1, getBytes(contentHash));
+      try (ResultSet rs = fetchContent.executeQuery()) {
+        return rs.next()
+            ? Optional.of(new Content(rs.getBytes(1), rs.getString(2), rs.getLong(3)))
+            : Optional.empty();
+      }
+    }
+
+    private void close() {
+      try {
+        connection.close();
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /** Hands out read connections, so that lookups from several threads can run concurrently. */
+  private static class ReaderPool {
+    private final BlockingQueue<ReadConnection> idleConnections;
+
+    private ReaderPool(Path cacheDir, int size) throws SQLException {
+      idleConnections = new ArrayBlockingQueue<>(size);
+      for (int i = 0; i < size; i++) {
+        idleConnections.add(new ReadConnection(openConnection(cacheDir)));
+      }
+    }
+
+    private <T> T read(Read<T> read) throws SQLException {
+      ReadConnection connection;
+      try {
+        connection = idleConnections.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for a database connection", e);
+      }
+      try {
+        return read.run(connection);
+      } finally {
+        idleConnections.add(connection);
+      }
+    }
+
+    private void close() {
+      for (ReadConnection connection : idleConnections) {
+        connection.close();
+      }
+    }
+
+    @FunctionalInterface
+    private interface Read<T> {
+      T run(ReadConnection connection) throws SQLException;
+    }
+  }
+
+  /**
+   * Runs all writes on a single thread. Writes queue up while the thread is busy, and are then
+   * committed together in one transaction. Updates of access times are deduplicated on the way.
+   */
+  private static class BatchingWriter {
+    private final ConnectionInfo db;
+    private final ExecutorService executor =
+        MostExecutors.newSingleThreadExecutor("SQLiteArtifactCache writer");
+
+    private List<Write> pendingWrites = new ArrayList<>();
+    private Set<RuleKey> pendingMetadataAccesses = new LinkedHashSet<>();
+    private Set<RuleKey> pendingContentAccesses = new LinkedHashSet<>();
+    @Nullable private SettableFuture<Void> pendingCommit = null;
+
+    private BatchingWriter(ConnectionInfo db) {
+      this.db = db;
+    }
+
+    private synchronized ListenableFuture<Void> submit(Write write) {
+      pendingWrites.add(write);
+      return scheduleCommit();
+    }
+
+    private synchronized void accessMetadata(RuleKey ruleKey) {
+      pendingMetadataAccesses.add(ruleKey);
+      scheduleCommit();
+    }
+
+    private synchronized void accessContent(RuleKey contentHash) {
+      pendingContentAccesses.add(contentHash);
+      scheduleCommit();
+    }
+
+    private ListenableFuture<Void> scheduleCommit() {
+      if (pendingCommit == null) {
+        pendingCommit = SettableFuture.create();
+        executor.execute(this::commit);
+      }
+      return pendingCommit;
+    }
+
+    private void commit() {
+      List<Write> writes;
+      Set<RuleKey> metadataAccesses;
+      Set<RuleKey> contentAccesses;
+      SettableFuture<Void> committed;
+      synchronized (this) {
+        writes = pendingWrites;
+        metadataAccesses = pendingMetadataAccesses;
+        contentAccesses = pendingContentAccesses;
+        committed = Preconditions.checkNotNull(pendingCommit);
+        pendingWrites = new ArrayList<>();
+        pendingMetadataAccesses = new LinkedHashSet<>();
+        pendingContentAccesses = new LinkedHashSet<>();
+        pendingCommit = null;
+      }
+
+      try {
+        db.runInTransaction(
+            connection -> {
+              for (Write write : writes) {
+                connection.runInSavepoint(write);
+              }
+              connection.accessMetadata(metadataAccesses);
+              connection.accessContent(contentAccesses);
+            });
+      } catch (SQLException e) {
+        LOG.warn(e, "Failed to commit %d writes to the SQLite cache", writes.size());
+      } finally {
+        // Like in the other modes, failed writes are only logged.
+        committed.set(null);
+      }
+    }
+
+    /** Commits the pending writes, and stops the writer thread. */
+    private void close() {
+      executor.shutdown();
+      try {
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          LOG.warn("Timed out waiting for writes to the SQLite cache.");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static class ConnectionInfo {
+    private final Connection connection;
+    private final ReadConnection reader;
+
     private final PreparedStatement updateMetadataTime;
     private final PreparedStatement updateContentTime;
 
@@ -549,20 +846,12 @@ public class SQLiteArtifactCache implements ArtifactCache {
     private final PreparedStatement selectContentByTime;
 
     private final PreparedStatement deleteMetadataBeforeCutoff;
-    private final PreparedStatement deleteContentBeforeCutoff;
     private final PreparedStatement deleteContentForHash;
 
     private final PreparedStatement contentSize;
 
     private ConnectionInfo(Path cacheDir) throws SQLException {
-      // date format must be set to match CURRENT_TIMESTAMP
-      Properties properties = new SQLiteConfig().toProperties();
-      properties.setProperty(
-          SQLiteConfig.Pragma.DATE_STRING_FORMAT.pragmaName, "yyyy-MM-dd HH:mm:ss");
-      connection =
-          DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"), properties);
-      connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
-      connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+      connection = openConnection(cacheDir);
 
       /*
        * This cache is used for two different layers, so we use two separate databases to encode these
@@ -595,11 +884,17 @@ public class SQLiteArtifactCache implements ArtifactCache {
                   + "CONSTRAINT inline CHECK (artifact NOT NULL AND filepath ISNULL "
                   + "OR artifact ISNULL AND filepath NOT NULL)) "
                   + "WITHOUT ROWID");
+      // Eviction goes through the entries in order of their access time.
+      connection
+          .createStatement()
+          .executeUpdate(
+              "CREATE INDEX IF NOT EXISTS metadata_accessed ON metadata (accessed)");
+      connection
+          .createStatement()
+          .executeUpdate(
+              "CREATE INDEX IF NOT EXISTS content_accessed ON content (accessed, created)");
 
-      fetchMetadata = connection.prepareStatement("SELECT data FROM metadata WHERE rulekey = ?");
-      fetchContent =
-          connection.prepareStatement(
-              "SELECT artifact, filepath, size FROM content WHERE sha1 = ?");
+      reader = new ReadConnection(connection);
 
       updateMetadataTime =
           connection.prepareStatement(
@@ -610,50 +905,74 @@ public class SQLiteArtifactCache implements ArtifactCache {
 
       storeMetadata =
           connection.prepareStatement("REPLACE INTO metadata (rulekey, data) VALUES (?, ?)");
+      // The same content may be stored twice, e.g. when its first store is still queued in
+      // high-concurrency mode, and the latest store describes what's on disk.
       storeArtifact =
           connection.prepareStatement(
-              "INSERT INTO content (sha1, artifact, size) VALUES (?, ?, ?)");
+              "INSERT OR REPLACE INTO content (sha1, artifact, size) VALUES (?, ?, ?)");
       storeFilepath =
           connection.prepareStatement(
-              "INSERT INTO content (sha1, filepath, size) VALUES (?, ?, ?)");
+              "INSERT OR REPLACE INTO content (sha1, filepath, size) VALUES (?, ?, ?)");
 
       selectContentByTime =
           connection.prepareStatement(
-              "SELECT filepath, size, accessed FROM content ORDER BY accessed ASC, created ASC");
+              "SELECT sha1, filepath, size FROM content "
+                  + "ORDER BY accessed ASC, created ASC LIMIT ?");
 
       deleteMetadataBeforeCutoff =
-          connection.prepareStatement("DELETE FROM metadata WHERE accessed < ?");
-      deleteContentBeforeCutoff =
-          connection.prepareStatement("DELETE FROM content WHERE accessed < ?");
+          connection.prepareStatement(
+              "DELETE FROM metadata WHERE rulekey IN "
+                  + "(SELECT rulekey FROM metadata WHERE accessed < ? LIMIT ?)");
       deleteContentForHash = connection.prepareStatement("DELETE FROM content WHERE sha1 = ?");
 
       contentSize = connection.prepareStatement("SELECT sum(size) FROM content");
-
-      BusyHandler.setHandler(connection, new RetryBusyHandler());
     }
 
     private synchronized Optional<byte[]> selectMetadata(RuleKey ruleKey) throws SQLException {
-      fetchMetadata.setBytes(1, getBytes(ruleKey));
-      ResultSet rs = fetchMetadata.executeQuery();
-      return rs.next() ? Optional.of(rs.getBytes(1)) : Optional.empty();
+      return reader.selectMetadata(ruleKey);
     }
 
     private synchronized Optional<Content> selectContent(RuleKey contentHash) throws SQLException {
-      fetchContent.setBytes(1, getBytes(contentHash));
-      ResultSet rs = fetchContent.executeQuery();
-      return rs.next()
-          ? Optional.of(new Content(rs.getBytes(1), rs.getString(2), rs.getLong(3)))
-          : Optional.empty();
+      return reader.selectContent(contentHash);
     }
 
-    private synchronized void accessMetadata(RuleKey ruleKey) throws SQLException {
-      updateMetadataTime.setBytes(1, getBytes(ruleKey));
-      updateMetadataTime.executeUpdate();
+    private synchronized void runInTransaction(Write transaction) throws SQLException {
+      connection.setAutoCommit(false);
+      try {
+        transaction.run(this);
+        connection.commit();
+      } catch (SQLException | RuntimeException e) {
+        connection.rollback();
+        throw e;
+      } finally {
+        connection.setAutoCommit(true);
+      }
     }
 
-    private synchronized void accessContent(RuleKey contentHash) throws SQLException {
-      updateContentTime.setBytes(1, getBytes(contentHash));
-      updateContentTime.executeUpdate();
+    /**
+     * Runs a write within the current transaction. If the write fails, only its own changes are
+     * rolled back and the rest of the transaction still goes in.
+     */
+    private synchronized void runInSavepoint(Write write) throws SQLException {
+      Savepoint savepoint = connection.setSavepoint();
+      try {
+        write.run(this);
+      } catch (SQLException e) {
+        LOG.warn(e, "Failed to write to the SQLite cache");
+        // Some errors, e.g. a full disk, make SQLite roll back the whole transaction, in which
+        // case this throws and the whole batch is abandoned.
+        connection.rollback(savepoint);
+        return;
+      }
+      connection.releaseSavepoint(savepoint);
+    }
+
+    private synchronized void accessMetadata(Iterable<RuleKey> ruleKeys) throws SQLException {
+      executeBatch(updateMetadataTime, ruleKeys);
+    }
+
+    private synchronized void accessContent(Iterable<RuleKey> contentHashes) throws SQLException {
+      executeBatch(updateContentTime, contentHashes);
     }
 
     private synchronized void storeMetadata(ImmutableSet<RuleKey> ruleKeys, byte[] metadata)
@@ -688,63 +1007,55 @@ public class SQLiteArtifactCache implements ArtifactCache {
       storeFilepath.executeBatch();
     }
 
-    private synchronized int deleteMetadata(Timestamp evictionCutoff) throws SQLException {
+    /** Deletes up to {@code limit} metadata rows which weren't accessed since the cutoff. */
+    private synchronized int deleteMetadata(Timestamp evictionCutoff, int limit)
+        throws SQLException {
       deleteMetadataBeforeCutoff.setTimestamp(1, evictionCutoff);
+      deleteMetadataBeforeCutoff.setInt(2, limit);
       return deleteMetadataBeforeCutoff.executeUpdate();
     }
 
-    private synchronized int deleteContent(Timestamp evictionCutoff) throws SQLException {
-      deleteContentBeforeCutoff.setTimestamp(1, evictionCutoff);
-      return deleteContentBeforeCutoff.executeUpdate();
-    }
-
-    private synchronized void deleteContent(RuleKey contentHash) throws SQLException {
-      deleteContentForHash.setBytes(1, getBytes(contentHash));
-      deleteContentForHash.executeUpdate();
+    private synchronized void deleteContent(Iterable<RuleKey> contentHashes) throws SQLException {
+      executeBatch(deleteContentForHash, contentHashes);
     }
 
     private synchronized long totalSize() throws SQLException {
-      ResultSet rs = contentSize.executeQuery();
-      if (!rs.next()) {
-        throw new SQLException("Query failed: total size of artifacts");
-      }
-
-      return rs.getLong(1);
-    }
-
-    private synchronized Pair<Iterable<String>, Timestamp> getContentToEvict(long minToDelete)
-        throws SQLException {
-      ImmutableList.Builder<String> filepaths = ImmutableList.builder();
-      long deleted = 0;
-
-      ResultSet artifacts = selectContentByTime.executeQuery();
-      while (deleted < minToDelete && artifacts.next()) {
-        String filepath = artifacts.getString(1);
-        long sizeBytes = artifacts.getLong(2);
-
-        // from database constraint, exactly one of filepath/artifact is null
-        if (Objects.nonNull(filepath)) {
-          LOG.verbose("Deleting path [%s] of total size [%d] bytes.", filepath, sizeBytes);
-          filepaths.add(filepath);
-        } else {
-          LOG.verbose("Deleting inlined artifact of size [%d] bytes.", sizeBytes);
+      try (ResultSet rs = contentSize.executeQuery()) {
+        if (!rs.next()) {
+          throw new SQLException("Query failed: total size of artifacts");
         }
 
-        deleted += sizeBytes;
+        return rs.getLong(1);
       }
+    }
 
-      Timestamp evictionCutoff;
-      if (artifacts.next()) {
-        evictionCutoff = artifacts.getTimestamp(3);
-      } else {
-        evictionCutoff = Timestamp.from(Instant.now());
+    /** @return up to {@code limit} content entries, least recently accessed first. */
+    private synchronized ImmutableList<Pair<RuleKey, Content>> selectLeastRecentlyAccessedContent(
+        int limit) throws SQLException {
+      ImmutableList.Builder<Pair<RuleKey, Content>> content = ImmutableList.builder();
+      selectContentByTime.setInt(1, limit);
+      try (ResultSet rs = selectContentByTime.executeQuery()) {
+        while (rs.next()) {
+          content.add(
+              new Pair<>(
+                  new RuleKey(HashCode.fromBytes(rs.getBytes(1))),
+                  new Content(null, rs.getString(2), rs.getLong(3))));
+        }
       }
-
-      return new Pair<>(filepaths.build(), evictionCutoff);
+      return content.build();
     }
 
-    private static byte[] getBytes(RuleKey ruleKey) {
-      return ruleKey.getHashCode().asBytes();
+    private static void executeBatch(PreparedStatement statement, Iterable<RuleKey> ruleKeys)
+        throws SQLException {
+      boolean empty = true;
+      for (RuleKey ruleKey : ruleKeys) {
+        statement.setBytes(1, getBytes(ruleKey));
+        statement.addBatch();
+        empty = false;
+      }
+      if (!empty) {
+        statement.executeBatch();
+      }
     }
 
     private void close() {
@@ -29,6 +29,7 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.RichStream;
+import com.facebook.buck.util.types.Pair;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Functions;
 import com.google.common.collect.ImmutableList;
@@ -40,9 +41,11 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.function.Function;
 
 /**
  * The {@link DirArtifactCache} and {@link HttpArtifactCache} caches use a straightforward rulekey
@@ -118,68 +121,137 @@ public class TwoLevelArtifactCacheDecorator implements ArtifactCache, CacheDecor
 
   @Override
   public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+    return fetch(ruleKey, output, contentHashKey -> delegate.fetchAsync(contentHashKey, output));
+  }
+
+  /**
+   * Only the second-level fetch is streamed: the first level may return a content hash pointer
+   * rather than the artifact itself, and that must not be handed to the consumer.
+   */
+  @Override
+  public ListenableFuture<CacheResult> fetchStreamingAsync(
+      RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+    return fetch(
+        ruleKey,
+        output,
+        contentHashKey -> delegate.fetchStreamingAsync(contentHashKey, output, payloadConsumer));
+  }
+
+  private ListenableFuture<CacheResult> fetch(
+      RuleKey ruleKey,
+      LazyPath output,
+      Function<RuleKey, ListenableFuture<CacheResult>> fetchSecondLevel) {
     return Futures.transformAsync(
         delegate.fetchAsync(ruleKey, output),
         (CacheResult fetchResult) -> {
-          if (!fetchResult.getType().isSuccess()) {
-            LOG.verbose("Missed first-level lookup.");
-            return Futures.immediateFuture(fetchResult);
-          } else if (!fetchResult.getMetadata().containsKey(METADATA_KEY)) {
-            LOG.verbose("Found a single-level entry.");
+          Optional<String> contentHashKey = getContentHashKey(fetchResult);
+          if (!contentHashKey.isPresent()) {
             return Futures.immediateFuture(fetchResult);
           }
-          LOG.verbose("Found a first-level artifact with metadata: %s", fetchResult.getMetadata());
-
-          String contentHashKey = fetchResult.getMetadata().get(METADATA_KEY);
-          ListenableFuture<CacheResult> outputFileFetchResultFuture =
-              delegate.fetchAsync(new RuleKey(contentHashKey), output);
 
-          return Futures.transformAsync(
-              outputFileFetchResultFuture,
-              (CacheResult outputFileFetchResult) -> {
-                outputFileFetchResult =
-                    outputFileFetchResult.withTwoLevelContentHashKey(contentHashKey);
+          return Futures.transform(
+              fetchSecondLevel.apply(new RuleKey(contentHashKey.get())),
+              (CacheResult outputFileFetchResult) ->
+                  mergeSecondLevelResult(
+                      fetchResult, contentHashKey.get(), outputFileFetchResult),
+              MoreExecutors.directExecutor());
+        },
+        MoreExecutors.directExecutor());
+  }
 
-                if (!outputFileFetchResult.getType().isSuccess()) {
-                  LOG.verbose("Missed second-level lookup.");
-                  secondLevelCacheMisses.inc();
+  /**
+   * Batched version of {@link #fetchAsync(RuleKey, LazyPath)}: all first-level lookups are issued
+   * as one multi-fetch, followed by one multi-fetch for all the second-level contents they point
+   * to.
+   */
+  @Override
+  public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+      List<Pair<RuleKey, LazyPath>> requests) {
+    return Futures.transformAsync(
+        delegate.multiFetchAsync(requests),
+        (ImmutableList<CacheResult> fetchResults) -> {
+          List<Integer> secondLevelIndices = new ArrayList<>();
+          List<String> contentHashKeys = new ArrayList<>();
+          List<Pair<RuleKey, LazyPath>> secondLevelRequests = new ArrayList<>();
+          for (int i = 0; i < fetchResults.size(); i++) {
+            Optional<String> contentHashKey = getContentHashKey(fetchResults.get(i));
+            if (contentHashKey.isPresent()) {
+              secondLevelIndices.add(i);
+              contentHashKeys.add(contentHashKey.get());
+              secondLevelRequests.add(
+                  new Pair<>(new RuleKey(contentHashKey.get()), requests.get(i).getSecond()));
+            }
+          }
 
-                  // Note: for misses, the fetchResult metadata is not important, so we return
-                  // outputFileFetchResult to signal the miss (as fetchResult was a hit).
-                  return Futures.immediateFuture(outputFileFetchResult);
-                }
+          if (secondLevelRequests.isEmpty()) {
+            return Futures.immediateFuture(fetchResults);
+          }
 
-                if (outputFileFetchResult.cacheSource().isPresent()) {
-                  secondLevelCacheHitTypes.add(outputFileFetchResult.cacheSource().get());
+          return Futures.transform(
+              delegate.multiFetchAsync(secondLevelRequests),
+              (ImmutableList<CacheResult> outputFileFetchResults) -> {
+                CacheResult[] results = fetchResults.toArray(new CacheResult[0]);
+                for (int i = 0; i < outputFileFetchResults.size(); i++) {
+                  int index = secondLevelIndices.get(i);
+                  results[index] =
+                      mergeSecondLevelResult(
+                          results[index], contentHashKeys.get(i), outputFileFetchResults.get(i));
                 }
-                if (outputFileFetchResult.artifactSizeBytes().isPresent()) {
-                  secondLevelCacheHitBytes.addSample(
-                      outputFileFetchResult.artifactSizeBytes().get());
-                }
-
-                LOG.verbose(
-                    "Found a second-level artifact with metadata: %s",
-                    outputFileFetchResult.getMetadata());
-                // Note: in the case of a hit, we return fetchResult, rather than
-                // outputFileFetchResult,
-                // so that the client gets the correct metadata.
-                CacheResult finalResult = fetchResult.withTwoLevelContentHashKey(contentHashKey);
-
-                // The two level content hash was not part of the original metadata that was stored
-                // to the cache, don't include it in the result.
-                finalResult =
-                    finalResult.withMetadata(
-                        ImmutableMap.copyOf(
-                            RichStream.from(finalResult.getMetadata().entrySet())
-                                .filter(e -> !Objects.equals(e.getKey(), METADATA_KEY))
-                                .toOnceIterable()));
-                return Futures.immediateFuture(finalResult);
+                return ImmutableList.copyOf(results);
               },
               MoreExecutors.directExecutor());
         },
         MoreExecutors.directExecutor());
   }
 
+  /** @return the content hash key if the first-level result points to a second-level entry. */
+  private static Optional<String> getContentHashKey(CacheResult fetchResult) {
+    if (!fetchResult.getType().isSuccess()) {
+      LOG.verbose("Missed first-level lookup.");
+      return Optional.empty();
+    } else if (!fetchResult.getMetadata().containsKey(METADATA_KEY)) {
+      LOG.verbose("Found a single-level entry.");
+      return Optional.empty();
+    }
+    LOG.verbose("Found a first-level artifact with metadata: %s", fetchResult.getMetadata());
+    return Optional.of(fetchResult.getMetadata().get(METADATA_KEY));
+  }
+
+  private CacheResult mergeSecondLevelResult(
+      CacheResult fetchResult, String contentHashKey, CacheResult outputFileFetchResult) {
+    outputFileFetchResult = outputFileFetchResult.withTwoLevelContentHashKey(contentHashKey);
+
+    if (!outputFileFetchResult.getType().isSuccess()) {
+      LOG.verbose("Missed second-level lookup.");
+      secondLevelCacheMisses.inc();
+
+      // Note: for misses, the fetchResult metadata is not important, so we return
+      // outputFileFetchResult to signal the miss (as fetchResult was a hit).
+      return outputFileFetchResult;
+    }
+
+    if (outputFileFetchResult.cacheSource().isPresent()) {
+      secondLevelCacheHitTypes.add(outputFileFetchResult.cacheSource().get());
+    }
+    if (outputFileFetchResult.artifactSizeBytes().isPresent()) {
+      secondLevelCacheHitBytes.addSample(outputFileFetchResult.artifactSizeBytes().get());
+    }
+
+    LOG.verbose(
+        "Found a second-level artifact with metadata: %s", outputFileFetchResult.getMetadata());
+    // Note: in the case of a hit, we return fetchResult, rather than outputFileFetchResult,
+    // so that the client gets the correct metadata.
+    CacheResult finalResult = fetchResult.withTwoLevelContentHashKey(contentHashKey);
+
+    // The two level content hash was not part of the original metadata that was stored
+    // to the cache, don't include it in the result.
+    return finalResult.withMetadata(
+        ImmutableMap.copyOf(
+            RichStream.from(finalResult.getMetadata().entrySet())
+                .filter(e -> !Objects.equals(e.getKey(), METADATA_KEY))
+                .toOnceIterable()));
+  }
+
   @Override
   public void skipPendingAndFutureAsyncFetches() {
     delegate.skipPendingAndFutureAsyncFetches();
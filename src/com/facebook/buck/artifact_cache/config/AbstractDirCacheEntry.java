@@ -31,4 +31,9 @@ abstract class AbstractDirCacheEntry {
   public abstract Optional<Long> getMaxSizeBytes();
 
   public abstract CacheReadMode getCacheReadMode();
+
+  @Value.Default
+  public DirCacheStorageMode getStorageMode() {
+    return DirCacheStorageMode.RULEKEY;
+  }
 }
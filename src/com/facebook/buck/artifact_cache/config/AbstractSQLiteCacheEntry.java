@@ -33,4 +33,10 @@ abstract class AbstractSQLiteCacheEntry {
   public abstract Optional<Long> getMaxInlinedSizeBytes();
 
   public abstract CacheReadMode getCacheReadMode();
+
+  /**
+   * @return the number of connections used for lookups. If this is more than 0, writes are batched
+   *     on a single writer thread.
+   */
+  public abstract int getReaderConnections();
 }
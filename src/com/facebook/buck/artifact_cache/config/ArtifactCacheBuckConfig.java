@@ -84,9 +84,10 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String DIR_FIELD = "dir";
   private static final String DIR_MODE_FIELD = "dir_mode";
   private static final String DIR_MAX_SIZE_FIELD = "dir_max_size";
+  private static final String DIR_STORAGE_MODE_FIELD = "dir_storage_mode";
   private static final String DIR_CACHE_NAMES_FIELD_NAME = "dir_cache_names";
   private static final ImmutableSet<String> DIR_CACHE_DESCRIPTION_FIELDS =
-      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD);
+      ImmutableSet.of(DIR_FIELD, DIR_MODE_FIELD, DIR_MAX_SIZE_FIELD, DIR_STORAGE_MODE_FIELD);
 
   private static final URI DEFAULT_HTTP_URL = URI.create("http://localhost:8080/");
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheReadMode.READWRITE.name();
@@ -104,6 +105,7 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
   private static final String SQLITE_MODE_FIELD = "sqlite_mode";
   private static final String SQLITE_MAX_SIZE_FIELD = "sqlite_max_size";
   private static final String SQLITE_MAX_INLINED_SIZE_FIELD = "sqlite_inlined_size";
+  private static final String SQLITE_READER_CONNECTIONS_FIELD = "sqlite_reader_connections";
   private static final String SQLITE_CACHE_NAMES_FIELD_NAME = "sqlite_cache_names";
 
   private static final String SERVED_CACHE_ENABLED_FIELD_NAME = "serve_local_cache";
@@ -125,6 +127,10 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
       "two_level_cache_maximum_size";
   private static final long TWO_LEVEL_CACHING_MIN_SIZE_DEFAULT = 20 * 1024L;
 
+  private static final String L1_MAX_SIZE_FIELD_NAME = "l1_max_size";
+  private static final String L1_DIR_FIELD_NAME = "l1_dir";
+  private static final String L1_EVICTION_POLICY_FIELD_NAME = "l1_eviction_policy";
+
   private static final String HYBRID_THRIFT_ENDPOINT = "hybrid_thrift_endpoint";
   private static final String REPOSITORY = "repository";
   private static final String DEFAULT_REPOSITORY = "";
@@ -382,6 +388,25 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
         .map(SizeUnit::parseBytes);
   }
 
+  /** @return the byte budget of the local L1 cache, which is disabled when this isn't set. */
+  public Optional<Long> getL1CacheMaxSizeBytes() {
+    return buckConfig
+        .getValue(CACHE_SECTION_NAME, L1_MAX_SIZE_FIELD_NAME)
+        .map(SizeUnit::parseBytes);
+  }
+
+  public Optional<Path> getL1CacheDir() {
+    return buckConfig
+        .getValue(CACHE_SECTION_NAME, L1_DIR_FIELD_NAME)
+        .map(dir -> buckConfig.resolveNonNullPathOutsideTheProjectFilesystem(Paths.get(dir)));
+  }
+
+  public L1CacheEvictionPolicy getL1CacheEvictionPolicy() {
+    return buckConfig
+        .getEnum(CACHE_SECTION_NAME, L1_EVICTION_POLICY_FIELD_NAME, L1CacheEvictionPolicy.class)
+        .orElse(L1CacheEvictionPolicy.TINY_LFU);
+  }
+
   private boolean getServingLocalCacheEnabled() {
     return buckConfig.getBooleanValue(CACHE_SECTION_NAME, SERVED_CACHE_ENABLED_FIELD_NAME, false);
   }
@@ -438,11 +463,17 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
     Optional<Long> maxSizeBytes =
         buckConfig.getValue(section, DIR_MAX_SIZE_FIELD).map(SizeUnit::parseBytes);
 
+    DirCacheStorageMode storageMode =
+        buckConfig
+            .getEnum(section, DIR_STORAGE_MODE_FIELD, DirCacheStorageMode.class)
+            .orElse(DirCacheStorageMode.RULEKEY);
+
     return DirCacheEntry.builder()
         .setName(cacheName)
         .setCacheDir(pathToCacheDir)
         .setCacheReadMode(readMode)
         .setMaxSizeBytes(maxSizeBytes)
+        .setStorageMode(storageMode)
         .build();
   }
 
@@ -499,12 +530,16 @@ public class ArtifactCacheBuckConfig implements ConfigView<BuckConfig> {
     Optional<Long> maxInlinedSizeBytes =
         buckConfig.getValue(section, SQLITE_MAX_INLINED_SIZE_FIELD).map(SizeUnit::parseBytes);
 
+    int readerConnections =
+        buckConfig.getInteger(section, SQLITE_READER_CONNECTIONS_FIELD).orElse(0);
+
     return SQLiteCacheEntry.builder()
         .setName(cacheName)
         .setCacheDir(pathToCacheDir)
         .setCacheReadMode(readMode)
         .setMaxSizeBytes(maxSizeBytes)
         .setMaxInlinedSizeBytes(maxInlinedSizeBytes)
+        .setReaderConnections(readerConnections)
         .build();
   }
 
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache.config;
+
+/**
+ * How artifacts are encoded before they are stored to the cache. Artifacts are always decoded
+ * according to the way they were stored, so this can be changed without invalidating the cache.
+ */
+public enum ArtifactCodec {
+  // A zip file deflated with the default compression level.
+  ZIP,
+  // A zip file deflated with the fastest compression level.
+  ZIP_FAST,
+  // A zip file with uncompressed entries.
+  ZIP_STORED,
+  // A zip file with uncompressed entries, compressed as a whole with LZ4.
+  LZ4,
+  ;
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache.config;
+
+/** Describes how a dir cache lays out artifacts on disk. */
+public enum DirCacheStorageMode {
+  // One full copy of the artifact per rule key.
+  RULEKEY,
+  // Artifacts are stored once per content hash and shared between rule keys via hard links.
+  CONTENT_ADDRESSED,
+  ;
+}
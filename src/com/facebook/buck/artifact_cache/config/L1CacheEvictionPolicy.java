@@ -0,0 +1,26 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache.config;
+
+/** Decides which artifacts the local L1 cache in front of the network caches keeps. */
+public enum L1CacheEvictionPolicy {
+  // Admit every fetched artifact and evict the least recently used ones.
+  LRU,
+  // Only admit artifacts which are requested more often than the ones they would replace.
+  TINY_LFU,
+  ;
+}
@@ -34,6 +34,7 @@ import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.rules.keys.config.RuleKeyConfiguration;
+import com.facebook.buck.rules.modern.builders.LocalContentAddressedStorage;
 import com.facebook.buck.step.ExecutorPool;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.ProcessExecutor;
@@ -107,6 +108,9 @@ public abstract class AbstractCommandRunnerParams {
   @Value.Parameter
   public abstract Optional<ConcurrentMap<String, WorkerProcessPool>> getPersistentWorkerPools();
 
+  @Value.Parameter
+  public abstract Optional<LocalContentAddressedStorage> getLocalContentAddressedStorage();
+
   @Value.Parameter
   public abstract BuckConfig getBuckConfig();
 
@@ -137,6 +141,9 @@ public abstract class AbstractCommandRunnerParams {
   @Value.Parameter
   public abstract Optional<RuleKeyCacheRecycler<RuleKey>> getDefaultRuleKeyFactoryCacheRecycler();
 
+  @Value.Parameter
+  public abstract Optional<DaemonicQueryState> getQueryState();
+
   @Value.Parameter
   public abstract ProjectFilesystemFactory getProjectFilesystemFactory();
 
@@ -172,6 +179,7 @@ public abstract class AbstractCommandRunnerParams {
         .setBuildInfoStoreManager(getBuildInfoStoreManager())
         .setArtifactCacheFactory(getArtifactCacheFactory())
         .setRuleKeyConfiguration(getRuleKeyConfiguration())
+        .setLocalContentAddressedStorage(getLocalContentAddressedStorage())
         .build();
   }
 }
@@ -24,6 +24,7 @@ import com.facebook.buck.util.ExitCode;
 import com.facebook.buck.util.json.ObjectMappers;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Path;
@@ -84,15 +85,16 @@ public class AuditIncludesCommand extends AbstractCommand {
 
         List<Map<String, Object>> rawRules = parser.getAllRulesAndMetaRules(path, new AtomicLong());
 
-        int includesMetadataEntryIndex = 3;
-        Preconditions.checkState(
-            includesMetadataEntryIndex <= rawRules.size(), "__includes metadata entry is missing.");
-        // __includes meta rule is the 3rd one from the end
-        Map<String, Object> includesMetaRule =
-            rawRules.get(rawRules.size() - includesMetadataEntryIndex);
-        @SuppressWarnings("unchecked")
-        @Nullable
-        Iterable<String> includes = (Iterable<String>) includesMetaRule.get("__includes");
+        // The meta rules follow the rules, and not all parsers produce the same set of them.
+        @Nullable Iterable<String> includes = null;
+        for (Map<String, Object> rawRule : Lists.reverse(rawRules)) {
+          if (rawRule.containsKey("__includes")) {
+            @SuppressWarnings("unchecked")
+            Iterable<String> ruleIncludes = (Iterable<String>) rawRule.get("__includes");
+            includes = ruleIncludes;
+            break;
+          }
+        }
         printIncludesToStdout(
             params, Preconditions.checkNotNull(includes, "__includes metadata entry is missing"));
       }
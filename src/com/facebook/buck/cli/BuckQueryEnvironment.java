@@ -32,9 +32,11 @@ import com.facebook.buck.parser.ParserMessages;
 import com.facebook.buck.parser.PerBuildState;
 import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.exceptions.BuildTargetException;
+import com.facebook.buck.query.MemoizingQueryEvaluator;
 import com.facebook.buck.query.NoopQueryEvaluator;
 import com.facebook.buck.query.QueryBuildTarget;
 import com.facebook.buck.query.QueryEnvironment;
+import com.facebook.buck.query.QueryEvaluator;
 import com.facebook.buck.query.QueryException;
 import com.facebook.buck.query.QueryExpression;
 import com.facebook.buck.query.QueryFileTarget;
@@ -97,8 +99,9 @@ public class BuckQueryEnvironment implements QueryEnvironment {
 
   // Query execution is single threaded, however the buildTransitiveClosure implementation
   // traverses the graph in parallel.
-  private MutableDirectedGraph<TargetNode<?, ?>> graph = MutableDirectedGraph.createConcurrent();
-  private Map<BuildTarget, TargetNode<?, ?>> targetsToNodes = new ConcurrentHashMap<>();
+  private final MutableDirectedGraph<TargetNode<?, ?>> graph;
+  private final Map<BuildTarget, TargetNode<?, ?>> targetsToNodes;
+  private final Optional<MemoizingQueryEvaluator> memoizingEvaluator;
 
   private BuckQueryEnvironment(
       Cell rootCell,
@@ -107,7 +110,10 @@ public class BuckQueryEnvironment implements QueryEnvironment {
       ListeningExecutorService executor,
       TargetPatternEvaluator targetPatternEvaluator,
       Console console,
-      TypeCoercerFactory typeCoercerFactory) {
+      TypeCoercerFactory typeCoercerFactory,
+      MutableDirectedGraph<TargetNode<?, ?>> graph,
+      Map<BuildTarget, TargetNode<?, ?>> targetsToNodes,
+      Optional<MemoizingQueryEvaluator> memoizingEvaluator) {
     this.parserState = parserState;
     this.rootCell = rootCell;
     this.ownersReportBuilder = ownersReportBuilder;
@@ -126,6 +132,9 @@ public class BuckQueryEnvironment implements QueryEnvironment {
     this.console = console;
     this.queryTargetEvaluator = new TargetEvaluator(targetPatternEvaluator, executor);
     this.typeCoercerFactory = typeCoercerFactory;
+    this.graph = graph;
+    this.targetsToNodes = targetsToNodes;
+    this.memoizingEvaluator = memoizingEvaluator;
   }
 
   public static BuckQueryEnvironment from(
@@ -143,7 +152,10 @@ public class BuckQueryEnvironment implements QueryEnvironment {
         executor,
         targetPatternEvaluator,
         console,
-        typeCoercerFactory);
+        typeCoercerFactory,
+        MutableDirectedGraph.createConcurrent(),
+        new ConcurrentHashMap<>(),
+        Optional.empty());
   }
 
   public static BuckQueryEnvironment from(
@@ -151,9 +163,28 @@ public class BuckQueryEnvironment implements QueryEnvironment {
       PerBuildState parserState,
       ListeningExecutorService executor,
       boolean enableProfiling) {
-    return from(
+    return from(params, parserState, executor, enableProfiling, Optional.empty());
+  }
+
+  /**
+   * @param queryState if present, the graph, the owners of files and the results of expressions
+   *     are taken from and added to it, so that they can be reused by later queries.
+   */
+  public static BuckQueryEnvironment from(
+      CommandRunnerParams params,
+      PerBuildState parserState,
+      ListeningExecutorService executor,
+      boolean enableProfiling,
+      Optional<DaemonicQueryState.Lease> queryState) {
+    return new BuckQueryEnvironment(
         params.getCell(),
-        OwnersReport.builder(params.getCell(), params.getParser(), params.getBuckEventBus()),
+        queryState.isPresent()
+            ? OwnersReport.builder(
+                params.getCell(),
+                params.getParser(),
+                params.getBuckEventBus(),
+                queryState.get().getBuildFileNodes())
+            : OwnersReport.builder(params.getCell(), params.getParser(), params.getBuckEventBus()),
         parserState,
         executor,
         new TargetPatternEvaluator(
@@ -163,7 +194,14 @@ public class BuckQueryEnvironment implements QueryEnvironment {
             params.getBuckEventBus(),
             enableProfiling),
         params.getConsole(),
-        params.getTypeCoercerFactory());
+        params.getTypeCoercerFactory(),
+        queryState
+            .map(DaemonicQueryState.Lease::getGraph)
+            .orElseGet(MutableDirectedGraph::createConcurrent),
+        queryState
+            .map(DaemonicQueryState.Lease::getTargetsToNodes)
+            .orElseGet(ConcurrentHashMap::new),
+        queryState.map(DaemonicQueryState.Lease::getEvaluator));
   }
 
   public DirectedAcyclicGraph<TargetNode<?, ?>> getTargetGraph() {
@@ -194,10 +232,16 @@ public class BuckQueryEnvironment implements QueryEnvironment {
    */
   public ImmutableSet<QueryTarget> evaluateQuery(QueryExpression expr)
       throws QueryException, InterruptedException {
+    if (memoizingEvaluator.isPresent() && memoizingEvaluator.get().isPresent(expr)) {
+      // Nothing needs to be parsed for results of earlier queries.
+      return memoizingEvaluator.get().eval(expr, this);
+    }
     Set<String> targetLiterals = new HashSet<>();
     expr.collectTargetPatterns(targetLiterals);
     preloadTargetPatterns(targetLiterals);
-    return new NoopQueryEvaluator().eval(expr, this);
+    QueryEvaluator evaluator =
+        memoizingEvaluator.isPresent() ? memoizingEvaluator.get() : new NoopQueryEvaluator();
+    return evaluator.eval(expr, this);
   }
 
   public ImmutableSet<QueryTarget> evaluateQuery(String query)
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.cli;
 
+import com.facebook.buck.artifact_cache.ArtifactArchives;
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.CacheCountersSummary;
 import com.facebook.buck.artifact_cache.CacheCountersSummaryEvent;
@@ -248,6 +249,7 @@ public class CacheCommand extends AbstractCommand {
                     .setTotalCacheMisses(cacheMisses)
                     .setTotalCacheIgnores(cacheIgnored)
                     .setTotalCacheLocalKeyUnchangedHits(localKeyUnchanged)
+                    .setTotalL1CacheHits(0)
                     .setFailureUploadCount(new AtomicInteger(0))
                     .setSuccessUploadCount(new AtomicInteger(0))
                     .build()));
@@ -304,6 +306,7 @@ public class CacheCommand extends AbstractCommand {
     }
     ImmutableList<Path> paths;
     try {
+      ArtifactArchives.decodeInPlace(artifact);
       paths =
           ArchiveFormat.ZIP
               .getUnarchiver()
@@ -40,10 +40,14 @@ import com.facebook.buck.rules.coercer.ConstructorArgMarshaller;
 import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
+import com.facebook.buck.rules.keys.PersistentRuleKeyStore;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
+import com.facebook.buck.rules.modern.builders.LocalContentAddressedStorage;
+import com.facebook.buck.rules.modern.builders.ModernBuildRuleBuilderFactory;
 import com.facebook.buck.util.RichStream;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
+import com.facebook.buck.util.cache.impl.PersistentFileHashStore;
 import com.facebook.buck.util.cache.impl.WatchedFileHashCache;
 import com.facebook.buck.versions.VersionedTargetGraphCache;
 import com.facebook.buck.worker.WorkerProcessPool;
@@ -69,13 +73,16 @@ final class Daemon implements Closeable {
   private final TypeCoercerFactory typeCoercerFactory;
   private final Parser parser;
   private final ImmutableList<ProjectFileHashCache> hashCaches;
+  private final Optional<PersistentFileHashStore> persistentFileHashStore;
   private final EventBus fileEventBus;
   private final Optional<WebServer> webServer;
   private final ConcurrentMap<String, WorkerProcessPool> persistentWorkerPools;
+  private final Optional<LocalContentAddressedStorage> localContentAddressedStorage;
   private final VersionedTargetGraphCache versionedTargetGraphCache;
   private final ActionGraphCache actionGraphCache;
   private final BroadcastEventListener broadcastEventListener;
   private final RuleKeyCacheRecycler<RuleKey> defaultRuleKeyFactoryCacheRecycler;
+  private final DaemonicQueryState queryState = new DaemonicQueryState();
   private final ImmutableMap<Path, WatchmanCursor> cursor;
   private final KnownBuildRuleTypesProvider knownBuildRuleTypesProvider;
 
@@ -90,12 +97,15 @@ final class Daemon implements Closeable {
     ImmutableList<Cell> allCells = rootCell.getAllCells();
 
     // Setup the stacked file hash cache from all cells.
+    this.persistentFileHashStore = createPersistentFileHashStore(rootCell);
     ImmutableList.Builder<ProjectFileHashCache> hashCachesBuilder = ImmutableList.builder();
     allCells.forEach(
         subCell -> {
           WatchedFileHashCache watchedCache =
               new WatchedFileHashCache(
-                  subCell.getFilesystem(), rootCell.getBuckConfig().getFileHashCacheMode());
+                  subCell.getFilesystem(),
+                  rootCell.getBuckConfig().getFileHashCacheMode(),
+                  persistentFileHashStore);
           fileEventBus.register(watchedCache);
           hashCachesBuilder.add(watchedCache);
         });
@@ -124,11 +134,21 @@ final class Daemon implements Closeable {
     fileEventBus.register(parser);
 
     // Build the the rule key cache recycler.
+    Optional<PersistentRuleKeyStore> persistentRuleKeyStore = Optional.empty();
+    if (rootCell.getBuckConfig().getPersistentRuleKeyCaching()) {
+      ProjectFilesystem filesystem = rootCell.getFilesystem();
+      persistentRuleKeyStore =
+          Optional.of(
+              new PersistentRuleKeyStore(
+                  filesystem.resolve(
+                      filesystem.getBuckPaths().getBuckOut().resolve("rule_key_store"))));
+    }
     this.defaultRuleKeyFactoryCacheRecycler =
         RuleKeyCacheRecycler.createAndRegister(
             fileEventBus,
             new DefaultRuleKeyCache<>(),
-            RichStream.from(allCells).map(Cell::getFilesystem).toImmutableSet());
+            RichStream.from(allCells).map(Cell::getFilesystem).toImmutableSet(),
+            persistentRuleKeyStore);
 
     if (webServerToReuse.isPresent()) {
       webServer = webServerToReuse;
@@ -148,6 +168,7 @@ final class Daemon implements Closeable {
     }
     LOG.debug("Using Watchman Cursor: %s", cursor);
     persistentWorkerPools = new ConcurrentHashMap<>();
+    localContentAddressedStorage = ModernBuildRuleBuilderFactory.createLocalStorage(rootCell);
     JavaUtilsLoggingBuildListener.ensureLogFileIsWritten(rootCell.getFilesystem());
   }
 
@@ -223,6 +244,24 @@ final class Daemon implements Closeable {
     return hashCaches;
   }
 
+  Optional<PersistentFileHashStore> getPersistentFileHashStore() {
+    return persistentFileHashStore;
+  }
+
+  /**
+   * @return the store keeping file hashes on disk, shared by the file hash caches of all cells, if
+   *     enabled.
+   */
+  static Optional<PersistentFileHashStore> createPersistentFileHashStore(Cell rootCell) {
+    if (!rootCell.getBuckConfig().getPersistentFileHashCaching()) {
+      return Optional.empty();
+    }
+    ProjectFilesystem filesystem = rootCell.getFilesystem();
+    return Optional.of(
+        new PersistentFileHashStore(
+            filesystem.resolve(filesystem.getBuckPaths().getBuckOut().resolve("file_hash_store"))));
+  }
+
   KnownBuildRuleTypesProvider getKnownBuildRuleTypesProvider() {
     return knownBuildRuleTypesProvider;
   }
@@ -231,10 +270,19 @@ final class Daemon implements Closeable {
     return persistentWorkerPools;
   }
 
+  /** @return the storage of the modern build rule strategies which isolate builds, if used. */
+  Optional<LocalContentAddressedStorage> getLocalContentAddressedStorage() {
+    return localContentAddressedStorage;
+  }
+
   RuleKeyCacheRecycler<RuleKey> getDefaultRuleKeyFactoryCacheRecycler() {
     return defaultRuleKeyFactoryCacheRecycler;
   }
 
+  DaemonicQueryState getQueryState() {
+    return queryState;
+  }
+
   void interruptOnClientExit(Thread threadToInterrupt) {
     // Synchronize on parser object so that the main command processing thread is not
     // interrupted mid way through a Parser cache update by the Thread.interrupt() call
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import com.facebook.buck.graph.MutableDirectedGraph;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.query.MemoizingQueryEvaluator;
+import com.facebook.buck.query.QueryExpression;
+import com.facebook.buck.query.QueryTarget;
+import com.facebook.buck.rules.TargetNode;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Query state which the daemon keeps between commands: the target graph built by previous queries
+ * along with its reverse edges, the target nodes of the build files searched by {@code owner()},
+ * and the results of evaluated expressions.
+ *
+ * <p>All of it is dropped once the parser state or the environment changes. Results of
+ * expressions calling {@code owner()} aren't kept, since evaluating it reports problems with its
+ * arguments to the console.
+ */
+public class DaemonicQueryState {
+
+  private long parserStateVersion;
+  @Nullable private ImmutableMap<String, String> environment;
+  private Contents contents = new Contents();
+  private boolean leased;
+
+  /**
+   * Hands the state out to one query at a time, after dropping it if it was built against a
+   * different parser state or environment.
+   *
+   * @return the state, or nothing if another query is using it.
+   */
+  synchronized Optional<Lease> acquire(
+      long parserStateVersion, ImmutableMap<String, String> environment) {
+    if (leased) {
+      return Optional.empty();
+    }
+    if (parserStateVersion != this.parserStateVersion || !environment.equals(this.environment)) {
+      this.parserStateVersion = parserStateVersion;
+      this.environment = environment;
+      contents = new Contents();
+    }
+    leased = true;
+    return Optional.of(new Lease(contents));
+  }
+
+  private synchronized void release() {
+    leased = false;
+  }
+
+  private static class Contents {
+    // Query execution is single threaded, however the buildTransitiveClosure implementation
+    // traverses the graph in parallel.
+    private final MutableDirectedGraph<TargetNode<?, ?>> graph =
+        MutableDirectedGraph.createConcurrent();
+    private final Map<BuildTarget, TargetNode<?, ?>> targetsToNodes = new ConcurrentHashMap<>();
+    private final Map<Path, ImmutableSet<TargetNode<?, ?>>> buildFileNodes =
+        new ConcurrentHashMap<>();
+    private final Map<QueryExpression, ImmutableSet<QueryTarget>> results =
+        new ConcurrentHashMap<>();
+  }
+
+  /** Access to the state for the duration of a single query. */
+  class Lease implements AutoCloseable {
+    private final Contents leasedContents;
+    private final MemoizingQueryEvaluator evaluator;
+
+    private Lease(Contents contents) {
+      this.leasedContents = contents;
+      this.evaluator =
+          new MemoizingQueryEvaluator(leasedContents.results, exp -> !exp.usesFunction("owner"));
+    }
+
+    MutableDirectedGraph<TargetNode<?, ?>> getGraph() {
+      return leasedContents.graph;
+    }
+
+    Map<BuildTarget, TargetNode<?, ?>> getTargetsToNodes() {
+      return leasedContents.targetsToNodes;
+    }
+
+    /** Target nodes by the absolute paths of the build files defining them. */
+    Map<Path, ImmutableSet<TargetNode<?, ?>>> getBuildFileNodes() {
+      return leasedContents.buildFileNodes;
+    }
+
+    MemoizingQueryEvaluator getEvaluator() {
+      return evaluator;
+    }
+
+    @Override
+    public void close() {
+      release();
+    }
+  }
+}
@@ -35,6 +35,7 @@ import com.facebook.buck.rules.CachingBuildEngineBuckConfig;
 import com.facebook.buck.rules.DefaultSourcePathResolver;
 import com.facebook.buck.rules.Description;
 import com.facebook.buck.rules.LocalCachingBuildEngineDelegate;
+import com.facebook.buck.rules.LocalLazyOutputStorage;
 import com.facebook.buck.rules.MetadataChecker;
 import com.facebook.buck.rules.NoOpRemoteBuildRuleCompletionWaiter;
 import com.facebook.buck.rules.RuleKey;
@@ -143,6 +144,15 @@ public class FetchCommand extends BuildCommand {
                   cachingBuildEngineBuckConfig.getBuildDepFiles(),
                   cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
                   cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+                  cachingBuildEngineBuckConfig.getBuildArtifactFetchBatchSize(),
+                  cachingBuildEngineBuckConfig.getBuildArtifactCodec(),
+                  cachingBuildEngineBuckConfig.getBuildSchedulingMode(),
+                  Optional.empty(),
+                  cachingBuildEngineBuckConfig.getBuildMaterializationMode(),
+                  Optional.of(
+                      LocalLazyOutputStorage.createLocal(
+                          params.getCell().getFilesystem(),
+                          cachingBuildEngineBuckConfig.getLazyOutputsMaxSizeBytes())),
                   actionGraphAndResolver.getResolver(),
                   sourcePathRuleFinder,
                   DefaultSourcePathResolver.from(sourcePathRuleFinder),
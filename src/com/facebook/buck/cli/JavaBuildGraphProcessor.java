@@ -31,6 +31,7 @@ import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.DefaultSourcePathResolver;
 import com.facebook.buck.rules.DefaultTargetNodeToBuildRuleTransformer;
 import com.facebook.buck.rules.LocalCachingBuildEngineDelegate;
+import com.facebook.buck.rules.LocalLazyOutputStorage;
 import com.facebook.buck.rules.NoOpRemoteBuildRuleCompletionWaiter;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.SingleThreadedBuildRuleResolver;
@@ -146,6 +147,15 @@ final class JavaBuildGraphProcessor {
                   cachingBuildEngineBuckConfig.getBuildDepFiles(),
                   cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
                   cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+                  cachingBuildEngineBuckConfig.getBuildArtifactFetchBatchSize(),
+                  cachingBuildEngineBuckConfig.getBuildArtifactCodec(),
+                  cachingBuildEngineBuckConfig.getBuildSchedulingMode(),
+                  Optional.empty(),
+                  cachingBuildEngineBuckConfig.getBuildMaterializationMode(),
+                  Optional.of(
+                      LocalLazyOutputStorage.createLocal(
+                          params.getCell().getFilesystem(),
+                          cachingBuildEngineBuckConfig.getLazyOutputsMaxSizeBytes())),
                   buildRuleResolver,
                   sourcePathRuleFinder,
                   DefaultSourcePathResolver.from(sourcePathRuleFinder),
@@ -101,6 +101,7 @@ import com.facebook.buck.rules.coercer.TypeCoercerFactory;
 import com.facebook.buck.rules.keys.RuleKeyCacheRecycler;
 import com.facebook.buck.rules.keys.config.RuleKeyConfiguration;
 import com.facebook.buck.rules.keys.config.impl.ConfigRuleKeyConfigurationFactory;
+import com.facebook.buck.rules.modern.builders.LocalContentAddressedStorage;
 import com.facebook.buck.sandbox.SandboxExecutionStrategyFactory;
 import com.facebook.buck.sandbox.impl.PlatformSandboxExecutionStrategyFactory;
 import com.facebook.buck.step.ExecutorPool;
@@ -131,6 +132,7 @@ import com.facebook.buck.util.Verbosity;
 import com.facebook.buck.util.cache.InstrumentingCacheStatsTracker;
 import com.facebook.buck.util.cache.ProjectFileHashCache;
 import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
+import com.facebook.buck.util.cache.impl.PersistentFileHashStore;
 import com.facebook.buck.util.cache.impl.StackedFileHashCache;
 import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.config.Config;
@@ -763,16 +765,21 @@ public final class Main {
       // uses the defaults.
       ProjectFilesystem rootCellProjectFilesystem =
           projectFilesystemFactory.createOrThrow(rootCell.getFilesystem().getRootPath());
+      Optional<PersistentFileHashStore> persistentFileHashStore;
       if (daemon.isPresent()) {
         allCaches.addAll(getFileHashCachesFromDaemon(daemon.get()));
+        persistentFileHashStore = daemon.get().getPersistentFileHashStore();
       } else {
+        persistentFileHashStore = Daemon.createPersistentFileHashStore(rootCell);
         rootCell
             .getAllCells()
             .stream()
             .map(
                 cell ->
                     DefaultFileHashCache.createDefaultFileHashCache(
-                        cell.getFilesystem(), rootCell.getBuckConfig().getFileHashCacheMode()))
+                        cell.getFilesystem(),
+                        rootCell.getBuckConfig().getFileHashCacheMode(),
+                        persistentFileHashStore))
             .forEach(allCaches::add);
         // The Daemon caches a buck-out filehashcache for the root cell, so the non-daemon case
         // needs to create that itself.
@@ -807,6 +814,8 @@ public final class Main {
       Optional<WebServer> webServer = daemon.flatMap(Daemon::getWebServer);
       Optional<ConcurrentMap<String, WorkerProcessPool>> persistentWorkerPools =
           daemon.map(Daemon::getPersistentWorkerPools);
+      Optional<LocalContentAddressedStorage> localContentAddressedStorage =
+          daemon.flatMap(Daemon::getLocalContentAddressedStorage);
 
       TestConfig testConfig = new TestConfig(buckConfig);
       ArtifactCacheBuckConfig cacheBuckConfig = new ArtifactCacheBuckConfig(buckConfig);
@@ -1169,6 +1178,7 @@ public final class Main {
                         processManager,
                         webServer,
                         persistentWorkerPools,
+                        localContentAddressedStorage,
                         buckConfig,
                         fileHashCache,
                         executors,
@@ -1179,6 +1189,7 @@ public final class Main {
                         storeManager,
                         Optional.of(invocationInfo),
                         parserAndCaches.getDefaultRuleKeyFactoryCacheRecycler(),
+                        parserAndCaches.getQueryState(),
                         projectFilesystemFactory,
                         ruleKeyConfiguration,
                         processExecutor,
@@ -1193,6 +1204,7 @@ public final class Main {
               new CacheStatsEvent(
                   "versioned_target_graph_cache",
                   parserAndCaches.getVersionedTargetGraphCache().getCacheStats()));
+          persistentFileHashStore.ifPresent(PersistentFileHashStore::save);
           buildEventBus.post(CommandEvent.finished(startedEvent, exitCode));
         } finally {
           // signal nailgun that we are not interested in client disconnect events anymore
@@ -1240,6 +1252,8 @@ public final class Main {
     public abstract ActionGraphCache getActionGraphCache();
 
     public abstract Optional<RuleKeyCacheRecycler<RuleKey>> getDefaultRuleKeyFactoryCacheRecycler();
+
+    public abstract Optional<DaemonicQueryState> getQueryState();
   }
 
   private static ParserAndCaches getParserAndCaches(
@@ -1306,7 +1320,8 @@ public final class Main {
               new InstrumentedVersionedTargetGraphCache(
                   daemon.getVersionedTargetGraphCache(), new InstrumentingCacheStatsTracker()),
               daemon.getActionGraphCache(),
-              defaultRuleKeyFactoryCacheRecycler);
+              defaultRuleKeyFactoryCacheRecycler,
+              Optional.of(daemon.getQueryState()));
     } else {
       TypeCoercerFactory typeCoercerFactory = new DefaultTypeCoercerFactory();
       parserAndCaches =
@@ -1324,7 +1339,8 @@ public final class Main {
               new ActionGraphCache(
                   buckConfig.getMaxActionGraphCacheEntries(),
                   buckConfig.getMaxActionGraphNodeCacheEntries()),
-              /* defaultRuleKeyFactoryCacheRecycler */ Optional.empty());
+              /* defaultRuleKeyFactoryCacheRecycler */ Optional.empty(),
+              /* queryState */ Optional.empty());
     }
     return parserAndCaches;
   }
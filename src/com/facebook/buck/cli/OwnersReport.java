@@ -154,18 +154,36 @@ final class OwnersReport {
   }
 
   static Builder builder(Cell rootCell, Parser parser, BuckEventBus eventBus) {
-    return new Builder(rootCell, parser, eventBus);
+    return new Builder(rootCell, parser, eventBus, Optional.empty());
+  }
+
+  /**
+   * @param buildFileNodes target nodes by the absolute paths of their build files, which is looked
+   *     up and filled in instead of a map private to each report.
+   */
+  static Builder builder(
+      Cell rootCell,
+      Parser parser,
+      BuckEventBus eventBus,
+      Map<Path, ImmutableSet<TargetNode<?, ?>>> buildFileNodes) {
+    return new Builder(rootCell, parser, eventBus, Optional.of(buildFileNodes));
   }
 
   static final class Builder {
     private final Cell rootCell;
     private final Parser parser;
     private final BuckEventBus eventBus;
+    private final Optional<Map<Path, ImmutableSet<TargetNode<?, ?>>>> buildFileNodes;
 
-    private Builder(Cell rootCell, Parser parser, BuckEventBus eventBus) {
+    private Builder(
+        Cell rootCell,
+        Parser parser,
+        BuckEventBus eventBus,
+        Optional<Map<Path, ImmutableSet<TargetNode<?, ?>>>> buildFileNodes) {
       this.rootCell = rootCell;
       this.parser = parser;
       this.eventBus = eventBus;
+      this.buildFileNodes = buildFileNodes;
     }
 
     private OwnersReport getReportForBasePath(
@@ -268,7 +286,7 @@ final class OwnersReport {
 
         // Path from buck file to target nodes. We keep our own cache here since the manner that we
         // are calling the parser does not make use of its internal caches.
-        Map<Path, ImmutableSet<TargetNode<?, ?>>> map = new HashMap<>();
+        Map<Path, ImmutableSet<TargetNode<?, ?>>> map = buildFileNodes.orElseGet(HashMap::new);
         for (Path absolutePath : entry.getValue()) {
           Path cellRelativePath = cell.getFilesystem().relativize(absolutePath);
           ImmutableSet<Path> basePaths = getAllBasePathsForPath(buildFileTree, cellRelativePath);
@@ -18,23 +18,22 @@ package com.facebook.buck.cli;
 
 import com.facebook.buck.parser.ParserConfig;
 import com.facebook.buck.parser.ParserStateObjectInputStream;
+import com.facebook.buck.parser.ParserStateSnapshot;
 import com.facebook.buck.parser.thrift.RemoteDaemonicParserState;
 import com.facebook.buck.util.ExitCode;
 import com.facebook.buck.util.json.ObjectMappers;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.base.Preconditions;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
 import javax.annotation.Nullable;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.Option;
@@ -76,28 +75,18 @@ public class ParserCacheCommand extends AbstractCommand {
 
     if (saveFilename != null) {
       invalidateChanges(params);
-      RemoteDaemonicParserState state = params.getParser().storeParserState(params.getCell());
-      try (FileOutputStream fos = new FileOutputStream(saveFilename);
-          ZipOutputStream zipos = new ZipOutputStream(fos)) {
-        zipos.putNextEntry(new ZipEntry("parser_data"));
-        try (ObjectOutputStream oos = new ObjectOutputStream(zipos)) {
-          oos.writeObject(state);
-        }
-      }
+      params.getParser().storeParserStateSnapshot(params.getCell(), Paths.get(saveFilename));
     } else if (loadFilename != null) {
-      try (FileInputStream fis = new FileInputStream(loadFilename);
-          ZipInputStream zipis = new ZipInputStream(fis)) {
-        ZipEntry entry = zipis.getNextEntry();
-        Preconditions.checkState(entry.getName().equals("parser_data"));
-        try (ObjectInputStream ois = new ParserStateObjectInputStream(zipis)) {
-          RemoteDaemonicParserState state;
-          try {
-            state = (RemoteDaemonicParserState) ois.readObject();
-          } catch (ClassNotFoundException e) {
-            params.getConsole().printErrorText("Invalid file format");
-            return ExitCode.COMMANDLINE_ERROR;
-          }
-          params.getParser().restoreParserState(state, params.getCell());
+      if (ParserStateSnapshot.isSnapshot(Paths.get(loadFilename))) {
+        params
+            .getParser()
+            .restoreParserStateSnapshot(
+                ParserStateSnapshot.load(Paths.get(loadFilename)), params.getCell());
+      } else {
+        // Files saved by older versions.
+        ExitCode exitCode = loadSerializedParserState(params, loadFilename);
+        if (exitCode != ExitCode.SUCCESS) {
+          return exitCode;
         }
       }
       invalidateChanges(params);
@@ -118,6 +107,26 @@ public class ParserCacheCommand extends AbstractCommand {
     return ExitCode.SUCCESS;
   }
 
+  private ExitCode loadSerializedParserState(CommandRunnerParams params, String filename)
+      throws IOException {
+    try (FileInputStream fis = new FileInputStream(filename);
+        ZipInputStream zipis = new ZipInputStream(fis)) {
+      ZipEntry entry = zipis.getNextEntry();
+      Preconditions.checkState(entry.getName().equals("parser_data"));
+      try (ObjectInputStream ois = new ParserStateObjectInputStream(zipis)) {
+        RemoteDaemonicParserState state;
+        try {
+          state = (RemoteDaemonicParserState) ois.readObject();
+        } catch (ClassNotFoundException e) {
+          params.getConsole().printErrorText("Invalid file format");
+          return ExitCode.COMMANDLINE_ERROR;
+        }
+        params.getParser().restoreParserState(state, params.getCell());
+      }
+    }
+    return ExitCode.SUCCESS;
+  }
+
   private void invalidateChanges(CommandRunnerParams params) throws IOException {
     if (changesPath == null) {
       return;
@@ -173,14 +173,35 @@ public class QueryCommand extends AbstractCommand {
                 getEnableParserProfiling(),
                 PerBuildState.SpeculativeParsing.ENABLED)) {
       ListeningExecutorService executor = pool.getListeningExecutorService();
-      BuckQueryEnvironment env =
-          BuckQueryEnvironment.from(params, parserState, executor, getEnableParserProfiling());
-      return formatAndRunQuery(params, env);
+      Optional<DaemonicQueryState.Lease> queryState = acquireQueryState(params);
+      try {
+        BuckQueryEnvironment env =
+            BuckQueryEnvironment.from(
+                params, parserState, executor, getEnableParserProfiling(), queryState);
+        return formatAndRunQuery(params, env);
+      } finally {
+        queryState.ifPresent(DaemonicQueryState.Lease::close);
+      }
     } catch (QueryException e) {
       throw new HumanReadableException(e);
     }
   }
 
+  private Optional<DaemonicQueryState.Lease> acquireQueryState(CommandRunnerParams params) {
+    if (getOutputFormat() == OutputFormat.MINRANK || getOutputFormat() == OutputFormat.MAXRANK) {
+      // Ranks are computed from the roots of the graph, which has to contain only the nodes
+      // reachable from this query.
+      return Optional.empty();
+    }
+    return params
+        .getQueryState()
+        .flatMap(
+            state ->
+                state.acquire(
+                    params.getParser().getPermState().getStateVersion(),
+                    params.getBuckConfig().getEnvironment()));
+  }
+
   @VisibleForTesting
   ExitCode formatAndRunQuery(CommandRunnerParams params, BuckQueryEnvironment env)
       throws IOException, InterruptedException, QueryException {
@@ -16,7 +16,9 @@
 
 package com.facebook.buck.cli;
 
+import com.facebook.buck.config.RuleKeyCalculationMode;
 import com.facebook.buck.event.ConsoleEvent;
+import com.facebook.buck.event.RuleKeyCalculationEvent;
 import com.facebook.buck.graph.AbstractBreadthFirstTraversal;
 import com.facebook.buck.graph.AcyclicDepthFirstPostOrderTraversal;
 import com.facebook.buck.graph.AcyclicDepthFirstPostOrderTraversal.CycleException;
@@ -882,6 +884,8 @@ public class TargetsCommand extends AbstractCommand {
     Optional<ActionGraph> actionGraph;
     Optional<BuildRuleResolver> buildRuleResolver;
     Optional<ParallelRuleKeyCalculator<RuleKey>> ruleKeyCalculator = Optional.empty();
+    RuleKeyCalculationMode ruleKeyCalculationMode =
+        params.getBuckConfig().getRuleKeyCalculationMode();
 
     try (ThriftRuleKeyLogger ruleKeyLogger = createRuleKeyLogger().orElse(null)) {
       if (isShowRuleKey || isShowOutput || isShowFullOutput) {
@@ -919,7 +923,13 @@ public class TargetsCommand extends AbstractCommand {
                             ruleKeyCacheScope.getCache(),
                             Optional.ofNullable(ruleKeyLogger)),
                         new RuleDepsCache(buildRuleResolver.get()),
-                        (eventBus, rule) -> () -> {}));
+                        ruleKeyCalculationMode == RuleKeyCalculationMode.FORK_JOIN
+                            ? (eventBus, rule) ->
+                                RuleKeyCalculationEvent.scope(
+                                    eventBus,
+                                    RuleKeyCalculationEvent.Type.NORMAL,
+                                    rule.getBuildTarget())
+                            : (eventBus, rule) -> () -> {}));
           }
         }
       } else {
@@ -929,9 +939,18 @@ public class TargetsCommand extends AbstractCommand {
 
       // Start rule calculations in parallel.
       if (actionGraph.isPresent() && isShowRuleKey) {
+        List<BuildRule> rules = new ArrayList<>();
         for (TargetNode<?, ?> targetNode : targetGraphAndTargetNodes.getSecond()) {
-          BuildRule rule = buildRuleResolver.get().requireRule(targetNode.getBuildTarget());
-          ruleKeyCalculator.get().calculate(params.getBuckEventBus(), rule);
+          rules.add(buildRuleResolver.get().requireRule(targetNode.getBuildTarget()));
+        }
+        if (ruleKeyCalculationMode == RuleKeyCalculationMode.FORK_JOIN) {
+          ruleKeyCalculator
+              .get()
+              .calculateAll(params.getBuckEventBus(), rules, poolSupplier.get());
+        } else {
+          for (BuildRule rule : rules) {
+            ruleKeyCalculator.get().calculate(params.getBuckEventBus(), rule);
+          }
         }
       }
 
@@ -39,6 +39,7 @@ import com.facebook.buck.rules.DefaultSourcePathResolver;
 import com.facebook.buck.rules.ExternalTestRunnerRule;
 import com.facebook.buck.rules.ExternalTestRunnerTestSpec;
 import com.facebook.buck.rules.LocalCachingBuildEngineDelegate;
+import com.facebook.buck.rules.LocalLazyOutputStorage;
 import com.facebook.buck.rules.MetadataChecker;
 import com.facebook.buck.rules.NoOpRemoteBuildRuleCompletionWaiter;
 import com.facebook.buck.rules.RuleKey;
@@ -594,7 +595,8 @@ public class TestCommand extends BuildCommand {
                         params.getBuckConfig().getCellPathResolver(),
                         localCachingBuildEngineDelegate.getFileHashCache(),
                         params.getBuckEventBus(),
-                        params.getConsole()),
+                        params.getConsole(),
+                        params.getLocalContentAddressedStorage()),
                     pool.getWeightedListeningExecutorService(),
                     new DefaultStepRunner(),
                     getBuildEngineMode().orElse(cachingBuildEngineBuckConfig.getBuildEngineMode()),
@@ -602,6 +604,15 @@ public class TestCommand extends BuildCommand {
                     cachingBuildEngineBuckConfig.getBuildDepFiles(),
                     cachingBuildEngineBuckConfig.getBuildMaxDepFileCacheEntries(),
                     cachingBuildEngineBuckConfig.getBuildArtifactCacheSizeLimit(),
+                    cachingBuildEngineBuckConfig.getBuildArtifactFetchBatchSize(),
+                    cachingBuildEngineBuckConfig.getBuildArtifactCodec(),
+                    cachingBuildEngineBuckConfig.getBuildSchedulingMode(),
+                    Optional.empty(),
+                    cachingBuildEngineBuckConfig.getBuildMaterializationMode(),
+                    Optional.of(
+                        LocalLazyOutputStorage.createLocal(
+                            params.getCell().getFilesystem(),
+                            cachingBuildEngineBuckConfig.getLazyOutputsMaxSizeBytes())),
                     actionGraphAndResolver.getResolver(),
                     sourcePathRuleFinder,
                     DefaultSourcePathResolver.from(sourcePathRuleFinder),
@@ -21,6 +21,7 @@ import com.facebook.buck.config.resources.ResourcesConfig;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.io.filesystem.ProjectFilesystemFactory;
 import com.facebook.buck.jvm.java.JavaBuckConfig;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.log.thrift.ThriftRuleKeyLogger;
 import com.facebook.buck.parser.BuildTargetParseException;
 import com.facebook.buck.parser.BuildTargetParser;
@@ -34,13 +35,17 @@ import com.facebook.buck.rules.CachingBuildEngineBuckConfig;
 import com.facebook.buck.rules.CachingBuildEngineDelegate;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.DefaultSourcePathResolver;
+import com.facebook.buck.rules.LocalLazyOutputStorage;
 import com.facebook.buck.rules.MetadataChecker;
 import com.facebook.buck.rules.RemoteBuildRuleCompletionWaiter;
+import com.facebook.buck.rules.RuleExecutionHistory;
+import com.facebook.buck.rules.RuleExecutionHistoryRecorder;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.rules.SourcePathRuleFinder;
 import com.facebook.buck.rules.keys.RuleKeyCacheScope;
 import com.facebook.buck.rules.keys.RuleKeyFactories;
 import com.facebook.buck.rules.keys.config.RuleKeyConfiguration;
+import com.facebook.buck.rules.modern.builders.LocalContentAddressedStorage;
 import com.facebook.buck.rules.modern.builders.ModernBuildRuleBuilderFactory;
 import com.facebook.buck.rules.modern.config.ModernBuildRuleConfig;
 import com.facebook.buck.step.DefaultStepRunner;
@@ -68,6 +73,11 @@ import org.immutables.value.Value;
 
 /** Used to build a given set of targets on the local machine. */
 public class LocalBuildExecutor implements BuildExecutor {
+  private static final Logger LOG = Logger.get(LocalBuildExecutor.class);
+
+  /** How long to wait for the events of the last rules when recording their durations. */
+  private static final long RULE_EXECUTION_HISTORY_EVENTS_TIMEOUT_MILLIS = 1000;
+
   private final ActionGraphAndResolver actionGraphAndResolver;
   private final WeightedListeningExecutorService executorService;
   private final CachingBuildEngineDelegate cachingBuildEngineDelegate;
@@ -76,6 +86,8 @@ public class LocalBuildExecutor implements BuildExecutor {
   private final RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter;
   private final Optional<CachingBuildEngine.BuildMode> buildEngineMode;
   private final Optional<ThriftRuleKeyLogger> ruleKeyLogger;
+  private final Optional<RuleExecutionHistory> ruleExecutionHistory;
+  private final Optional<RuleExecutionHistoryRecorder> ruleExecutionHistoryRecorder;
 
   private final CachingBuildEngine cachingBuildEngine;
   private final Build build;
@@ -105,6 +117,9 @@ public class LocalBuildExecutor implements BuildExecutor {
     this.remoteBuildRuleCompletionWaiter = remoteBuildRuleCompletionWaiter;
 
     // Init resources.
+    this.ruleExecutionHistory = openRuleExecutionHistory();
+    this.ruleExecutionHistoryRecorder = ruleExecutionHistory.map(RuleExecutionHistoryRecorder::new);
+    ruleExecutionHistoryRecorder.ifPresent(args.getBuckEventBus()::register);
     this.cachingBuildEngine = createCachingBuildEngine();
     this.build =
         new Build(
@@ -179,6 +194,36 @@ public class LocalBuildExecutor implements BuildExecutor {
     // Destroy resources.
     build.close();
     cachingBuildEngine.close();
+    closeRuleExecutionHistory();
+  }
+
+  private Optional<RuleExecutionHistory> openRuleExecutionHistory() {
+    if (!args.getBuckConfig()
+        .getView(CachingBuildEngineBuckConfig.class)
+        .isRuleExecutionHistoryEnabled()) {
+      return Optional.empty();
+    }
+    try {
+      return Optional.of(new RuleExecutionHistory(args.getRootCell().getFilesystem()));
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to open the rule execution history.");
+      return Optional.empty();
+    }
+  }
+
+  private void closeRuleExecutionHistory() {
+    if (!ruleExecutionHistory.isPresent()) {
+      return;
+    }
+    RuleExecutionHistoryRecorder recorder = ruleExecutionHistoryRecorder.get();
+    args.getBuckEventBus().waitEvents(RULE_EXECUTION_HISTORY_EVENTS_TIMEOUT_MILLIS);
+    args.getBuckEventBus().unregister(recorder);
+    try {
+      recorder.flush();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to update the rule execution history.");
+    }
+    ruleExecutionHistory.get().close();
   }
 
   private ImmutableList<BuildRule> getRulesToBuild(Iterable<String> targetsToBuild) {
@@ -211,7 +256,8 @@ public class LocalBuildExecutor implements BuildExecutor {
             args.getBuckConfig().getCellPathResolver(),
             cachingBuildEngineDelegate.getFileHashCache(),
             args.getBuckEventBus(),
-            args.getConsole()),
+            args.getConsole(),
+            args.getLocalContentAddressedStorage()),
         executorService,
         new DefaultStepRunner(),
         buildEngineMode.orElse(engineConfig.getBuildEngineMode()),
@@ -219,6 +265,14 @@ public class LocalBuildExecutor implements BuildExecutor {
         engineConfig.getBuildDepFiles(),
         engineConfig.getBuildMaxDepFileCacheEntries(),
         engineConfig.getBuildArtifactCacheSizeLimit(),
+        engineConfig.getBuildArtifactFetchBatchSize(),
+        engineConfig.getBuildArtifactCodec(),
+        engineConfig.getBuildSchedulingMode(),
+        ruleExecutionHistory,
+        engineConfig.getBuildMaterializationMode(),
+        Optional.of(
+            LocalLazyOutputStorage.createLocal(
+                args.getRootCell().getFilesystem(), engineConfig.getLazyOutputsMaxSizeBytes())),
         actionGraphAndResolver.getResolver(),
         sourcePathRuleFinder,
         DefaultSourcePathResolver.from(sourcePathRuleFinder),
@@ -299,6 +353,9 @@ abstract class AbstractBuildExecutorArgs {
 
   public abstract RuleKeyConfiguration getRuleKeyConfiguration();
 
+  /** The storage of the modern build rule strategies which isolate builds, kept by the daemon. */
+  public abstract Optional<LocalContentAddressedStorage> getLocalContentAddressedStorage();
+
   public BuckConfig getBuckConfig() {
     return getRootCell().getBuckConfig();
   }
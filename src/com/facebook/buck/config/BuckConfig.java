@@ -988,6 +988,16 @@ public class BuckConfig implements ConfigPathGetter {
     return getBooleanValue("build", "rule_key_caching", false);
   }
 
+  /** @return whether cached rule keys should be kept on disk across daemon restarts. */
+  public boolean getPersistentRuleKeyCaching() {
+    return getBooleanValue("build", "persistent_rule_key_caching", false);
+  }
+
+  /** @return whether file hashes should be kept on disk across daemon restarts. */
+  public boolean getPersistentFileHashCaching() {
+    return getBooleanValue("build", "persistent_file_hash_caching", false);
+  }
+
   public ImmutableList<String> getCleanAdditionalPaths() {
     return getListWithoutComments("clean", "additional_paths");
   }
@@ -1008,6 +1018,12 @@ public class BuckConfig implements ConfigPathGetter {
         .orElse(ActionGraphParallelizationMode.DEFAULT);
   }
 
+  /** How to calculate the rule keys of a whole action graph. */
+  public RuleKeyCalculationMode getRuleKeyCalculationMode() {
+    return getEnum("build", "rule_key_calculation_mode", RuleKeyCalculationMode.class)
+        .orElse(RuleKeyCalculationMode.DEFAULT);
+  }
+
   public Config getConfig() {
     return config;
   }
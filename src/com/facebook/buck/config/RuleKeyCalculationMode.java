@@ -0,0 +1,28 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.config;
+
+/** How the rule keys of a whole action graph are calculated. */
+public enum RuleKeyCalculationMode {
+  /** Chain a future per rule on the regular executor. */
+  FUTURES,
+  /** Walk the action graph bottom-up with fork-join tasks, which idle threads steal. */
+  FORK_JOIN,
+  ;
+
+  public static final RuleKeyCalculationMode DEFAULT = FUTURES;
+}
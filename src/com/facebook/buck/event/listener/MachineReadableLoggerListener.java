@@ -27,6 +27,7 @@ import com.facebook.buck.artifact_cache.CacheCountersSummary;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.HttpArtifactCacheEvent;
+import com.facebook.buck.artifact_cache.L1ArtifactCacheDecorator;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.event.BuckEventListener;
 import com.facebook.buck.event.CommandEvent;
@@ -82,6 +83,7 @@ public class MachineReadableLoggerListener implements BuckEventListener {
   private ConcurrentMap<ArtifactCacheMode, AtomicInteger> cacheModeErrors = Maps.newConcurrentMap();
   private AtomicInteger cacheMisses = new AtomicInteger(0);
   private AtomicInteger cacheIgnores = new AtomicInteger(0);
+  private AtomicInteger l1CacheHits = new AtomicInteger(0);
   private AtomicInteger localKeyUnchangedHits = new AtomicInteger(0);
 
   @Nullable private PerfTimesStats latestPerfTimesStats;
@@ -145,7 +147,11 @@ public class MachineReadableLoggerListener implements BuckEventListener {
       if (cacheResult.getType() == CacheResultType.LOCAL_KEY_UNCHANGED_HIT) {
         localKeyUnchangedHits.incrementAndGet();
       } else if (cacheResult.getType() == CacheResultType.HIT) {
-        cacheResult.cacheMode().ifPresent(mode -> cacheModeHits.get(mode).incrementAndGet());
+        if (cacheResult.getCacheSource().equals(L1ArtifactCacheDecorator.CACHE_SOURCE)) {
+          l1CacheHits.incrementAndGet();
+        } else {
+          cacheResult.cacheMode().ifPresent(mode -> cacheModeHits.get(mode).incrementAndGet());
+        }
       } else {
         throw new IllegalArgumentException("Unexpected CacheResult: " + cacheResult);
       }
@@ -250,11 +256,13 @@ public class MachineReadableLoggerListener implements BuckEventListener {
                     CacheCountersSummary.of(
                         cacheModeHits,
                         cacheModeErrors,
-                        cacheModeHits.values().stream().mapToInt(AtomicInteger::get).sum(),
+                        cacheModeHits.values().stream().mapToInt(AtomicInteger::get).sum()
+                            + l1CacheHits.get(),
                         cacheModeErrors.values().stream().mapToInt(AtomicInteger::get).sum(),
                         cacheMisses.get(),
                         cacheIgnores.get(),
                         localKeyUnchangedHits.get(),
+                        l1CacheHits.get(),
                         cacheUploadSuccessCount,
                         cacheUploadFailureCount));
 
@@ -43,6 +43,14 @@ public abstract class AbstractBottomUpTraversal<T, E extends Throwable> {
    */
   public final void traverse(Predicate<T> shouldExploreChildren) throws E {
     Iterable<T> roots = graph.getNodesWithNoIncomingEdges();
+    if (graph instanceof DirectedAcyclicGraph) {
+      for (T node :
+          AcyclicDepthFirstPostOrderTraversal.traverseGraph(
+              (DirectedAcyclicGraph<T>) graph, roots, shouldExploreChildren)) {
+        visit(node);
+      }
+      return;
+    }
     GraphTraversable<T> graphTraversable = node -> graph.getOutgoingNodesFor(node).iterator();
     try {
       for (T node :
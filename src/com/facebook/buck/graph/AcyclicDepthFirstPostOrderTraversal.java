@@ -20,6 +20,8 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -115,6 +117,70 @@ public class AcyclicDepthFirstPostOrderTraversal<T> {
     return Iterables.unmodifiableIterable(explored);
   }
 
+  /**
+   * Same as traversing with {@code node -> graph.getOutgoingNodesFor(node).iterator()}, but walks
+   * the arrays of edges of the graph instead of hashing nodes. The graph is known to be acyclic, so
+   * there's no need to look for cycles.
+   */
+  public static <T> ImmutableList<T> traverseGraph(
+      DirectedAcyclicGraph<T> graph,
+      Iterable<? extends T> initialNodes,
+      Predicate<T> shouldExploreChildren) {
+    BitSet explored = new BitSet(graph.getNodes().size());
+    // The current chain of nodes being explored, along with the index of the next edge to follow
+    // for each of them, or -1 if their children aren't explored.
+    int[] chain = new int[16];
+    int[] nextEdges = new int[16];
+    Set<T> initialNodesNotInGraph = new HashSet<>();
+    ImmutableList.Builder<T> explorationOrder = ImmutableList.builder();
+
+    for (T initialNode : initialNodes) {
+      int initialId = graph.getNodeId(initialNode);
+      if (initialId < 0) {
+        // Nodes outside of the graph have no children.
+        if (initialNodesNotInGraph.add(initialNode)) {
+          explorationOrder.add(initialNode);
+        }
+        continue;
+      }
+      if (explored.get(initialId)) {
+        continue;
+      }
+      chain[0] = initialId;
+      nextEdges[0] = shouldExploreChildren.test(initialNode) ? 0 : -1;
+      int depth = 1;
+      while (depth > 0) {
+        int id = chain[depth - 1];
+        int nextEdge = nextEdges[depth - 1];
+        int child = -1;
+        if (nextEdge >= 0) {
+          int edgeCount = graph.getOutgoingEdgeCount(id);
+          while (nextEdge < edgeCount && child < 0) {
+            int candidate = graph.getOutgoingNodeId(id, nextEdge++);
+            if (!explored.get(candidate)) {
+              child = candidate;
+            }
+          }
+          nextEdges[depth - 1] = nextEdge;
+        }
+        if (child >= 0) {
+          if (depth == chain.length) {
+            chain = Arrays.copyOf(chain, depth * 2);
+            nextEdges = Arrays.copyOf(nextEdges, depth * 2);
+          }
+          chain[depth] = child;
+          nextEdges[depth] = shouldExploreChildren.test(graph.getNode(child)) ? 0 : -1;
+          depth++;
+        } else {
+          depth--;
+          explored.set(id);
+          explorationOrder.add(graph.getNode(id));
+        }
+      }
+    }
+    return explorationOrder.build();
+  }
+
   /**
    * A node that needs to be explored, paired with a (possibly paused) iteration of its children.
    */
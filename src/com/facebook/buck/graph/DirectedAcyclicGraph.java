@@ -17,42 +17,64 @@
 package com.facebook.buck.graph;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.ImmutableSetMultimap;
-import com.google.common.collect.Sets;
+import com.google.common.collect.Iterables;
+import java.util.Arrays;
 import java.util.Objects;
+import java.util.function.Function;
 
+/**
+ * An immutable, acyclic graph.
+ *
+ * <p>Nodes are numbered by their position in {@link #getNodes()}, and edges are stored in both
+ * directions as arrays of those numbers (in compressed sparse row form), which takes a fraction of
+ * the memory of multimaps and lets the traversals in this package skip hashing nodes. The sets
+ * returned by {@link #getOutgoingNodesFor} and {@link #getIncomingNodesFor} are created the first
+ * time they are asked for, and reused afterwards. Subclasses walking all edges can use the
+ * numbers instead, which doesn't create any sets.
+ */
 public class DirectedAcyclicGraph<T> implements TraversableGraph<T> {
 
   private final ImmutableSet<T> nodes;
-  private final ImmutableSetMultimap<T, T> outgoingEdges;
-  private final ImmutableSetMultimap<T, T> incomingEdges;
+  private final ImmutableList<T> nodesById;
+  private final ImmutableMap<T, Integer> ids;
+  private final Edges outgoingEdges;
+  private final Edges incomingEdges;
 
   public DirectedAcyclicGraph(MutableDirectedGraph<T> graph) {
     Preconditions.checkState(graph.isAcyclic(), "Graph must by acyclic");
     this.nodes = graph.createImmutableCopyOfNodes();
-    this.outgoingEdges = graph.createImmutableCopyOfOutgoingEdges();
-    this.incomingEdges = graph.createImmutableCopyOfIncomingEdges();
+    this.nodesById = nodes.asList();
+    ImmutableMap.Builder<T, Integer> idsBuilder =
+        ImmutableMap.builderWithExpectedSize(nodes.size());
+    for (int id = 0; id < nodesById.size(); id++) {
+      idsBuilder.put(nodesById.get(id), id);
+    }
+    this.ids = idsBuilder.build();
+    this.outgoingEdges = new Edges(graph::getOutgoingNodesFor);
+    this.incomingEdges = new Edges(graph::getIncomingNodesFor);
   }
 
   @Override
   public ImmutableSet<T> getOutgoingNodesFor(T source) {
-    return outgoingEdges.get(source);
+    return outgoingEdges.getNodes(getNodeId(source));
   }
 
   @Override
   public ImmutableSet<T> getIncomingNodesFor(T sink) {
-    return incomingEdges.get(sink);
+    return incomingEdges.getNodes(getNodeId(sink));
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoOutgoingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, outgoingEdges.keySet()));
+    return outgoingEdges.getNodesWithoutEdges();
   }
 
   @Override
   public ImmutableSet<T> getNodesWithNoIncomingEdges() {
-    return ImmutableSet.copyOf(Sets.difference(nodes, incomingEdges.keySet()));
+    return incomingEdges.getNodesWithoutEdges();
   }
 
   @Override
@@ -60,6 +82,32 @@ public class DirectedAcyclicGraph<T> implements TraversableGraph<T> {
     return nodes;
   }
 
+  /** @return the number of the given node, or -1 if it isn't part of the graph. */
+  protected int getNodeId(T node) {
+    Integer id = ids.get(node);
+    return id == null ? -1 : id;
+  }
+
+  protected T getNode(int id) {
+    return nodesById.get(id);
+  }
+
+  protected int getOutgoingEdgeCount(int id) {
+    return outgoingEdges.getCount(id);
+  }
+
+  protected int getOutgoingNodeId(int id, int index) {
+    return outgoingEdges.getNodeId(id, index);
+  }
+
+  protected int getIncomingEdgeCount(int id) {
+    return incomingEdges.getCount(id);
+  }
+
+  protected int getIncomingNodeId(int id, int index) {
+    return incomingEdges.getNodeId(id, index);
+  }
+
   @Override
   public boolean equals(Object other) {
     if (!(other instanceof DirectedAcyclicGraph)) {
@@ -67,13 +115,117 @@ public class DirectedAcyclicGraph<T> implements TraversableGraph<T> {
     }
 
     DirectedAcyclicGraph<?> that = (DirectedAcyclicGraph<?>) other;
-    return Objects.equals(this.nodes, that.nodes)
-        && Objects.equals(this.outgoingEdges, that.outgoingEdges)
-        && Objects.equals(this.incomingEdges, that.incomingEdges);
+    if (!Objects.equals(this.nodes, that.nodes)) {
+      return false;
+    }
+    // The incoming edges follow from the outgoing ones. Both graphs have the same nodes, but unless
+    // they were added in the same order, they are numbered differently, in which case the edges
+    // are compared by the numbers of the other graph.
+    boolean sameIds = nodesById.equals(that.nodesById);
+    for (int id = 0; id < nodesById.size(); id++) {
+      int thatId = sameIds ? id : that.ids.get(nodesById.get(id));
+      int count = getOutgoingEdgeCount(id);
+      if (count != that.getOutgoingEdgeCount(thatId)) {
+        return false;
+      }
+      if (count == 0) {
+        continue;
+      }
+      int[] thatNodeIds = new int[count];
+      for (int index = 0; index < count; index++) {
+        thatNodeIds[index] = that.getOutgoingNodeId(thatId, index);
+      }
+      Arrays.sort(thatNodeIds);
+      for (int index = 0; index < count; index++) {
+        int nodeId = getOutgoingNodeId(id, index);
+        if (!sameIds) {
+          nodeId = that.ids.get(nodesById.get(nodeId));
+        }
+        if (Arrays.binarySearch(thatNodeIds, nodeId) < 0) {
+          return false;
+        }
+      }
+    }
+    return true;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(nodes, outgoingEdges, incomingEdges);
+    return Objects.hash(
+        nodes, outgoingEdges.hashCodeOfMultimap(), incomingEdges.hashCodeOfMultimap());
+  }
+
+  /** Edges in one direction, the ones of node {@code i} being at {@code offsets[i]} and after. */
+  private class Edges {
+    private final int[] offsets;
+    private final int[] nodeIds;
+    private final ImmutableSet<T>[] nodeSets;
+
+    @SuppressWarnings("unchecked")
+    private Edges(Function<T, Iterable<T>> getNodes) {
+      nodeSets = (ImmutableSet<T>[]) new ImmutableSet<?>[nodesById.size()];
+      offsets = new int[nodesById.size() + 1];
+      for (int id = 0; id < nodesById.size(); id++) {
+        offsets[id + 1] = offsets[id] + Iterables.size(getNodes.apply(nodesById.get(id)));
+      }
+      nodeIds = new int[offsets[nodesById.size()]];
+      for (int id = 0; id < nodesById.size(); id++) {
+        int index = offsets[id];
+        for (T node : getNodes.apply(nodesById.get(id))) {
+          nodeIds[index++] = Preconditions.checkNotNull(ids.get(node));
+        }
+      }
+    }
+
+    private int getCount(int id) {
+      return offsets[id + 1] - offsets[id];
+    }
+
+    private int getNodeId(int id, int index) {
+      return nodeIds[offsets[id] + index];
+    }
+
+    private ImmutableSet<T> getNodes(int id) {
+      if (id < 0 || getCount(id) == 0) {
+        return ImmutableSet.of();
+      }
+      // Threads racing here may each build the set, which is harmless, as immutable sets are safe
+      // to publish without synchronization.
+      ImmutableSet<T> set = nodeSets[id];
+      if (set == null) {
+        ImmutableSet.Builder<T> builder = ImmutableSet.builderWithExpectedSize(getCount(id));
+        for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+          builder.add(nodesById.get(nodeIds[i]));
+        }
+        set = builder.build();
+        nodeSets[id] = set;
+      }
+      return set;
+    }
+
+    private ImmutableSet<T> getNodesWithoutEdges() {
+      ImmutableSet.Builder<T> builder = ImmutableSet.builder();
+      for (int id = 0; id < nodesById.size(); id++) {
+        if (getCount(id) == 0) {
+          builder.add(nodesById.get(id));
+        }
+      }
+      return builder.build();
+    }
+
+    /** Same as the hash code of a {@link com.google.common.collect.SetMultimap} of the edges. */
+    private int hashCodeOfMultimap() {
+      int hashCode = 0;
+      for (int id = 0; id < nodesById.size(); id++) {
+        if (getCount(id) > 0) {
+          int valuesHashCode = 0;
+          for (int i = offsets[id]; i < offsets[id + 1]; i++) {
+            valuesHashCode += nodesById.get(nodeIds[i]).hashCode();
+          }
+          hashCode += nodesById.get(id).hashCode() ^ valuesHashCode;
+        }
+      }
+      return hashCode;
+    }
   }
 }
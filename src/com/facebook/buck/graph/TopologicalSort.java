@@ -33,6 +33,9 @@ public class TopologicalSort {
   private TopologicalSort() {}
 
   public static <T extends Comparable<?>> ImmutableList<T> sort(TraversableGraph<T> graph) {
+    if (graph instanceof DirectedAcyclicGraph) {
+      return sortByIds((DirectedAcyclicGraph<T>) graph);
+    }
 
     // AtomicInteger is used to decrement the integer value in-place.
     Map<T, AtomicInteger> effectiveOutDegreesOfExplorableNodes = new HashMap<>();
@@ -77,4 +80,45 @@ public class TopologicalSort {
 
     return toReturn.build();
   }
+
+  /** Same as {@link #sort}, but tracks the out degrees in an array indexed by node ids. */
+  private static <T extends Comparable<?>> ImmutableList<T> sortByIds(
+      DirectedAcyclicGraph<T> graph) {
+    int nodeCount = graph.getNodes().size();
+    int[] effectiveOutDegrees = new int[nodeCount];
+    int[] nextLevel = new int[nodeCount];
+    int nextLevelSize = 0;
+    for (int id = 0; id < nodeCount; id++) {
+      effectiveOutDegrees[id] = graph.getOutgoingEdgeCount(id);
+      if (effectiveOutDegrees[id] == 0) {
+        nextLevel[nextLevelSize++] = id;
+      }
+    }
+    // Every node is added to a level exactly once, so levels fit into arrays of all nodes.
+    int[] toExplore = new int[nodeCount];
+    ImmutableList.Builder<T> toReturn = ImmutableList.builderWithExpectedSize(nodeCount);
+
+    while (nextLevelSize > 0) {
+      int[] swap = toExplore;
+      toExplore = nextLevel;
+      nextLevel = swap;
+      int toExploreSize = nextLevelSize;
+      nextLevelSize = 0;
+
+      Set<T> level = new TreeSet<>();
+      for (int i = 0; i < toExploreSize; i++) {
+        int id = toExplore[i];
+        level.add(graph.getNode(id));
+        for (int j = 0; j < graph.getIncomingEdgeCount(id); j++) {
+          int exploreCandidate = graph.getIncomingNodeId(id, j);
+          if (--effectiveOutDegrees[exploreCandidate] == 0) {
+            nextLevel[nextLevelSize++] = exploreCandidate;
+          }
+        }
+      }
+      toReturn.addAll(level);
+    }
+
+    return toReturn.build();
+  }
 }
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import com.facebook.buck.util.ImmutableMapWithNullValues;
+import com.facebook.buck.util.bser.BserDeserializer;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nullable;
+
+/**
+ * BSER counterpart of {@link BuildFilePythonResultDeserializer}, used when {@code buck.py} is run
+ * with {@code --use_bser_encoding}.
+ *
+ * <p>Produces the same types as the JSON deserializer does: maps with their keys sorted (like
+ * {@code buck.py} sorts them in JSON), {@link ImmutableList}s and {@link Long}s for all integers.
+ */
+final class BuildFilePythonResultBserDeserializer {
+
+  private final BserDeserializer deserializer =
+      new BserDeserializer(BserDeserializer.KeyOrdering.SORTED);
+
+  /** Reads the next result from the given stream. */
+  BuildFilePythonResult deserialize(InputStream inputStream) throws IOException {
+    Object result = deserializer.deserializeBserValue(inputStream);
+    if (!(result instanceof Map)) {
+      throw new IOException("Expected a BSER object, got: " + result);
+    }
+    ImmutableList<Map<String, Object>> values = ImmutableList.of();
+    ImmutableList<Map<String, Object>> diagnostics = ImmutableList.of();
+    Optional<String> profile = Optional.empty();
+    for (Map.Entry<?, ?> entry : ((Map<?, ?>) result).entrySet()) {
+      switch ((String) entry.getKey()) {
+        case "values":
+          values = convertObjectList(entry.getValue());
+          break;
+        case "diagnostics":
+          diagnostics = convertObjectList(entry.getValue());
+          break;
+        case "profile":
+          profile = Optional.ofNullable((String) entry.getValue());
+          break;
+        default:
+          throw new IOException("Unexpected field name: " + entry.getKey());
+      }
+    }
+    return BuildFilePythonResult.of(values, diagnostics, profile);
+  }
+
+  private static ImmutableList<Map<String, Object>> convertObjectList(@Nullable Object value)
+      throws IOException {
+    if (!(value instanceof List)) {
+      throw new IOException("Expected a BSER array, got: " + value);
+    }
+    ImmutableList.Builder<Map<String, Object>> result = ImmutableList.builder();
+    for (Object element : (List<?>) value) {
+      if (!(element instanceof Map)) {
+        throw new IOException("Expected a BSER object, got: " + element);
+      }
+      result.add(convertObject((Map<?, ?>) element));
+    }
+    return result.build();
+  }
+
+  private static Map<String, Object> convertObject(Map<?, ?> map) {
+    // The keys are already sorted by the BserDeserializer.
+    ImmutableMapWithNullValues.Builder<String, Object> builder =
+        ImmutableMapWithNullValues.Builder.insertionOrder();
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      builder.put((String) entry.getKey(), convertRecursive(entry.getValue()));
+    }
+    return builder.build();
+  }
+
+  @Nullable
+  private static Object convertRecursive(@Nullable Object value) {
+    if (value instanceof Map) {
+      return convertObject((Map<?, ?>) value);
+    } else if (value instanceof List) {
+      ImmutableList.Builder<Object> builder = ImmutableList.builder();
+      for (Object element : (List<?>) value) {
+        builder.add(convertRecursive(element));
+      }
+      return builder.build();
+    } else if (value instanceof Number && !(value instanceof Double)) {
+      // BSER uses the smallest integer type which fits, JSON results only ever contain longs.
+      return ((Number) value).longValue();
+    }
+    return value;
+  }
+}
@@ -88,6 +88,8 @@ public class PythonDslProjectBuildFileParser implements ProjectBuildFileParser {
   @Nullable private CountingInputStream buckPyProcessInput;
   @Nullable private JsonGenerator buckPyProcessJsonGenerator;
   @Nullable private JsonParser buckPyProcessJsonParser;
+  private final BuildFilePythonResultBserDeserializer buckPyProcessBserDeserializer =
+      new BuildFilePythonResultBserDeserializer();
 
   private final ProjectBuildFileParserOptions options;
   private final TypeCoercerFactory typeCoercerFactory;
@@ -334,6 +336,10 @@ public class PythonDslProjectBuildFileParser implements ProjectBuildFileParser {
       argBuilder.add("--warn_about_deprecated_syntax");
     }
 
+    if (options.getUseBserEncoding()) {
+      argBuilder.add("--use_bser_encoding");
+    }
+
     return argBuilder.build();
   }
 
@@ -347,8 +353,8 @@ public class PythonDslProjectBuildFileParser implements ProjectBuildFileParser {
       throws BuildFileParseException, InterruptedException {
     ImmutableList<Map<String, Object>> result = getAllRulesAndMetaRules(buildFile, processedBytes);
 
-    // Strip out the __includes, __configs, and __env meta rules, which are the last rules.
-    return result.subList(0, result.size() - 3);
+    // Strip out the __includes, __configs, __env and __globs meta rules, which are the last rules.
+    return result.subList(0, result.size() - 4);
   }
 
   /**
@@ -424,6 +430,10 @@ public class PythonDslProjectBuildFileParser implements ProjectBuildFileParser {
     }
   }
 
+  // TODO(buck_team): Requests are still sent one at a time, and each result is read whole, in
+  // whichever encoding. Sending several requests to a process before reading their results, and
+  // streaming raw nodes back as buck.py produces them, needs a parser interface which takes more
+  // than one build file per call.
   private BuildFilePythonResult performJsonRequest(ImmutableMap<String, String> request)
       throws IOException {
     Preconditions.checkNotNull(request);
@@ -448,6 +458,17 @@ public class PythonDslProjectBuildFileParser implements ProjectBuildFileParser {
       LOG.debug(e, "Swallowing exception on flush");
     }
 
+    if (options.getUseBserEncoding()) {
+      LOG.verbose("Parsing BSER output of process %s...", buckPyProcess);
+      try {
+        return buckPyProcessBserDeserializer.deserialize(
+            Preconditions.checkNotNull(buckPyProcessInput));
+      } catch (IOException e) {
+        LOG.warn(e, "Parser exited while decoding BSER data");
+        throw e;
+      }
+    }
+
     if (buckPyProcessJsonParser == null) {
       // We have to wait to create the JsonParser until after we write our
       // first request, because Jackson "helpfully" synchronously reads
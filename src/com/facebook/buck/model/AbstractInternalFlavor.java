@@ -17,6 +17,8 @@
 package com.facebook.buck.model;
 
 import com.facebook.buck.util.immutables.BuckStyleImmutable;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import org.immutables.value.Value;
 
 /**
@@ -27,14 +29,17 @@ import org.immutables.value.Value;
 @BuckStyleImmutable
 abstract class AbstractInternalFlavor implements Flavor {
 
+  /** Interner for instances of InternalFlavor, most of which are parsed from build targets. */
+  private static final Interner<InternalFlavor> interner = Interners.newWeakInterner();
+
   @Override
   @Value.Parameter
   public abstract String getName();
 
-  @Override
   @Value.Check
-  public void check() {
-    Flavor.super.check();
+  protected AbstractInternalFlavor checkAndIntern() {
+    check();
+    return interner.intern((InternalFlavor) this);
   }
 
   @Override
@@ -44,6 +49,9 @@ abstract class AbstractInternalFlavor implements Flavor {
 
   @Override
   public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
     if (!(obj instanceof Flavor)) {
       return false;
     }
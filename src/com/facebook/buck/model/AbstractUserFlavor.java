@@ -47,6 +47,9 @@ abstract class AbstractUserFlavor implements Flavor {
 
   @Override
   public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
     if (!(obj instanceof Flavor)) {
       return false;
     }
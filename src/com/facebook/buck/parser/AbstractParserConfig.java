@@ -38,6 +38,7 @@ abstract class AbstractParserConfig implements ConfigView<BuckConfig> {
   public static final String INCLUDES_PROPERTY_NAME = "includes";
 
   private static final long NUM_PARSING_THREADS_DEFAULT = 1L;
+  private static final int MAX_PENDING_SPECULATIVE_PARSE_JOBS_DEFAULT = 1024;
 
   public enum GlobHandler {
     PYTHON,
@@ -177,6 +178,14 @@ abstract class AbstractParserConfig implements ConfigView<BuckConfig> {
     return Math.min(value, getDelegate().getNumThreads());
   }
 
+  /** @return how many speculatively scheduled parse jobs may be pending at once. */
+  @Value.Lazy
+  public int getMaxPendingSpeculativeParseJobs() {
+    return getDelegate()
+        .getInteger("project", "parsing_max_pending_speculative_jobs")
+        .orElse(MAX_PENDING_SPECULATIVE_PARSE_JOBS_DEFAULT);
+  }
+
   @Value.Lazy
   public ApplyDefaultFlavorsMode getDefaultFlavorsMode() {
     return getDelegate()
@@ -250,6 +259,21 @@ abstract class AbstractParserConfig implements ConfigView<BuckConfig> {
     return getDelegate().getBooleanValue("parser", "warn_about_deprecated_syntax", true);
   }
 
+  /** @return whether buck.py should send its results encoded in BSER rather than JSON. */
+  @Value.Lazy
+  public boolean isBserEncodingEnabled() {
+    return getDelegate().getBooleanValue("parser", "bser_encoding_enabled", false);
+  }
+
+  /**
+   * @return whether adding or removing a file should only invalidate the packages whose globs may
+   *     match the file, rather than the package containing the file.
+   */
+  @Value.Lazy
+  public boolean isGlobAwareInvalidationEnabled() {
+    return getDelegate().getBooleanValue("parser", "glob_aware_invalidation_enabled", false);
+  }
+
   /**
    * @return whether Buck should invalidate the parser state based on environment variables.
    *     <p>WARNING: Environment variable changes won't discard the parser state. This setting
@@ -38,9 +38,12 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.SetMultimap;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -97,6 +100,10 @@ class DaemonicCellState {
   @GuardedBy("rawAndComputedNodesLock")
   private final Map<Path, ImmutableMap<String, Optional<String>>> buildFileEnv;
 
+  /** Include patterns of the globs evaluated by each build file, if the parser reported them. */
+  @GuardedBy("rawAndComputedNodesLock")
+  private final Map<Path, ImmutableSet<String>> buildFileGlobs;
+
   @GuardedBy("rawAndComputedNodesLock")
   private final ConcurrentMapCache<Path, ImmutableSet<Map<String, Object>>> allRawNodes;
   // Tracks all targets in `allRawNodes`.  Used to verify that every target in `allComputedNodes`
@@ -118,6 +125,7 @@ class DaemonicCellState {
     this.buildFileDependents = HashMultimap.create();
     this.targetsCornucopia = HashMultimap.create();
     this.buildFileEnv = new HashMap<>();
+    this.buildFileGlobs = new HashMap<>();
     this.allRawNodes = new ConcurrentMapCache<>(parsingThreads);
     this.allRawNodeTargets = new HashSet<>();
     this.typedNodeCaches = Maps.newConcurrentMap();
@@ -165,6 +173,16 @@ class DaemonicCellState {
       ImmutableSet<Map<String, Object>> withoutMetaIncludes,
       ImmutableSet<Path> dependentsOfEveryNode,
       ImmutableMap<String, Optional<String>> env) {
+    return putRawNodesIfNotPresentAndStripMetaEntries(
+        buildFile, withoutMetaIncludes, dependentsOfEveryNode, env, Optional.empty());
+  }
+
+  ImmutableSet<Map<String, Object>> putRawNodesIfNotPresentAndStripMetaEntries(
+      Path buildFile,
+      ImmutableSet<Map<String, Object>> withoutMetaIncludes,
+      ImmutableSet<Path> dependentsOfEveryNode,
+      ImmutableMap<String, Optional<String>> env,
+      Optional<ImmutableSet<String>> globs) {
     try (AutoCloseableLock writeLock = rawAndComputedNodesLock.writeLock()) {
       ImmutableSet<Map<String, Object>> updated =
           allRawNodes.putIfAbsentAndGet(buildFile, withoutMetaIncludes);
@@ -180,6 +198,7 @@ class DaemonicCellState {
         for (Path dependent : dependentsOfEveryNode) {
           buildFileDependents.put(dependent, buildFile);
         }
+        globs.ifPresent(patterns -> buildFileGlobs.put(buildFile, patterns));
       }
       return updated;
     }
@@ -217,11 +236,26 @@ class DaemonicCellState {
       }
       buildFileDependents.removeAll(path);
       buildFileEnv.remove(path);
+      buildFileGlobs.remove(path);
 
       return invalidatedRawNodes;
     }
   }
 
+  /**
+   * @param buildFile the build file of a package.
+   * @param path an added or removed file, relative to the package.
+   * @return whether the globs of the build file may pick up the given file. This is always the case
+   *     if the globs of the build file weren't reported by the parser.
+   */
+  boolean globsMayMatch(Path buildFile, Path path) {
+    ImmutableSet<String> globs;
+    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+      globs = buildFileGlobs.get(buildFile);
+    }
+    return globs == null || GlobPatterns.mayMatch(globs, path);
+  }
+
   Optional<MapDifference<String, String>> invalidateIfEnvHasChanged(Cell cell, Path buildFile) {
     // Invalidate if env vars have changed.
     ImmutableMap<String, Optional<String>> usedEnv;
@@ -250,6 +284,114 @@ class DaemonicCellState {
     return Optional.empty();
   }
 
+  /** Writes this state to the block of its cell in a {@link ParserStateSnapshot}. */
+  void writeTo(ParserStateSnapshot.Writer out) throws IOException {
+    Path root = getCellRoot();
+    try (AutoCloseableLock readLock = rawAndComputedNodesLock.readLock()) {
+      Map<Path, Collection<Path>> dependents = buildFileDependents.asMap();
+      out.writeVarInt(dependents.size());
+      for (Map.Entry<Path, Collection<Path>> entry : dependents.entrySet()) {
+        out.writeString(root.relativize(entry.getKey()).toString());
+        out.writeVarInt(entry.getValue().size());
+        for (Path dependent : entry.getValue()) {
+          out.writeString(root.relativize(dependent).toString());
+        }
+      }
+
+      out.writeVarInt(buildFileEnv.size());
+      for (Map.Entry<Path, ImmutableMap<String, Optional<String>>> entry :
+          buildFileEnv.entrySet()) {
+        out.writeString(root.relativize(entry.getKey()).toString());
+        out.writeVarInt(entry.getValue().size());
+        for (Map.Entry<String, Optional<String>> env : entry.getValue().entrySet()) {
+          out.writeString(env.getKey());
+          out.writeBoolean(env.getValue().isPresent());
+          if (env.getValue().isPresent()) {
+            out.writeString(env.getValue().get());
+          }
+        }
+      }
+
+      Map<Path, ImmutableSet<Map<String, Object>>> rawNodes = new HashMap<>();
+      for (Path path : allRawNodes.keySet()) {
+        ImmutableSet<Map<String, Object>> nodes = allRawNodes.getIfPresent(path);
+        if (nodes != null) {
+          rawNodes.put(path, nodes);
+        }
+      }
+      out.writeVarInt(rawNodes.size());
+      for (Map.Entry<Path, ImmutableSet<Map<String, Object>>> entry : rawNodes.entrySet()) {
+        out.writeString(root.relativize(entry.getKey()).toString());
+        ImmutableSet<Map<String, Object>> nodes = entry.getValue();
+        out.writeVarInt(nodes.size());
+        // Nodes of a build file mostly share their attributes, so store them column by column.
+        Set<String> attributes = new LinkedHashSet<>();
+        nodes.forEach(node -> attributes.addAll(node.keySet()));
+        out.writeVarInt(attributes.size());
+        for (String attribute : attributes) {
+          out.writeString(attribute);
+          for (Map<String, Object> node : nodes) {
+            if (node.containsKey(attribute)) {
+              out.writeValue(node.get(attribute));
+            } else {
+              out.writeAbsent();
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /** Reads the state of a cell written by {@link #writeTo}. */
+  static DaemonicCellState readFrom(ParserStateSnapshot.Reader in, Cell cell, int parsingThreads)
+      throws IOException {
+    DaemonicCellState daemonicCellState = new DaemonicCellState(cell, parsingThreads);
+    Path root = cell.getRoot();
+    for (int i = in.readVarInt(); i > 0; i--) {
+      Path key = root.resolve(in.readString());
+      for (int j = in.readVarInt(); j > 0; j--) {
+        daemonicCellState.buildFileDependents.put(key, root.resolve(in.readString()));
+      }
+    }
+
+    for (int i = in.readVarInt(); i > 0; i--) {
+      Path key = root.resolve(in.readString());
+      ImmutableMap.Builder<String, Optional<String>> env = ImmutableMap.builder();
+      for (int j = in.readVarInt(); j > 0; j--) {
+        String name = in.readString();
+        env.put(name, in.readBoolean() ? Optional.of(in.readString()) : Optional.empty());
+      }
+      daemonicCellState.buildFileEnv.put(key, env.build());
+    }
+
+    for (int i = in.readVarInt(); i > 0; i--) {
+      Path key = root.resolve(in.readString());
+      int nodeCount = in.readVarInt();
+      List<Map<String, Object>> nodes = new ArrayList<>(nodeCount);
+      for (int j = 0; j < nodeCount; j++) {
+        nodes.add(new LinkedHashMap<>());
+      }
+      for (int j = in.readVarInt(); j > 0; j--) {
+        String attribute = in.readString();
+        for (Map<String, Object> node : nodes) {
+          Object value = in.readValue();
+          if (value != ParserStateSnapshot.ABSENT) {
+            node.put(attribute, value);
+          }
+        }
+      }
+      ImmutableSet<Map<String, Object>> rawNodes = ImmutableSet.copyOf(nodes);
+      daemonicCellState.allRawNodes.putIfAbsentAndGet(key, rawNodes);
+      for (Map<String, Object> rawNode : rawNodes) {
+        daemonicCellState.allRawNodeTargets.add(
+            RawNodeParsePipeline.parseBuildTargetFromRawRule(
+                daemonicCellState.cellRoot, daemonicCellState.cellCanonicalName, rawNode, key));
+      }
+    }
+
+    return daemonicCellState;
+  }
+
   private Map<String, String> getAllRawNodesForSerialization() throws IOException {
     Map<String, String> result = new HashMap<>();
     Path root = getCellRoot();
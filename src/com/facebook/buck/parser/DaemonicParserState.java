@@ -35,6 +35,7 @@ import com.facebook.buck.parser.thrift.RemoteDaemonicParserState;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.CellPathResolver;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
+import com.facebook.buck.skylark.io.DirectoryListingCache;
 import com.facebook.buck.util.concurrent.AutoCloseableLock;
 import com.facebook.buck.util.concurrent.AutoCloseableReadWriteUpdateLock;
 import com.google.common.base.Preconditions;
@@ -61,7 +62,9 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -90,6 +93,12 @@ public class DaemonicParserState {
   private static final String CONFIGS_META_RULE = "__configs";
   private static final String ENV_META_RULE = "__env";
 
+  /**
+   * Key of the meta-rule that lists the include patterns of all globs evaluated while reading
+   * rules, relative to the package, for example: {"__globs":["*.java", "res/**"]}
+   */
+  private static final String GLOBS_META_RULE = "__globs";
+
   private static final String COUNTER_CATEGORY = "buck_parser_state";
   private static final String INVALIDATED_BY_ENV_VARS_COUNTER_NAME = "invalidated_by_env_vars";
   private static final String INVALIDATED_BY_DEFAULT_INCLUDES_COUNTER_NAME =
@@ -213,6 +222,7 @@ public class DaemonicParserState {
       ImmutableSet.Builder<Map<String, Object>> withoutMetaIncludesBuilder = ImmutableSet.builder();
       ImmutableSet.Builder<Path> dependentsOfEveryNode = ImmutableSet.builder();
       ImmutableMap<String, Optional<String>> env = ImmutableMap.of();
+      Optional<ImmutableSet<String>> globs = Optional.empty();
       for (Map<String, Object> rawNode : rawNodes) {
         if (rawNode.containsKey(INCLUDES_META_RULE)) {
           for (String path :
@@ -226,6 +236,12 @@ public class DaemonicParserState {
                   Maps.transformValues(
                       Preconditions.checkNotNull((Map<String, String>) rawNode.get(ENV_META_RULE)),
                       Optional::ofNullable));
+        } else if (rawNode.containsKey(GLOBS_META_RULE)) {
+          globs =
+              Optional.of(
+                  ImmutableSet.copyOf(
+                      Preconditions.checkNotNull(
+                          (Iterable<String>) rawNode.get(GLOBS_META_RULE))));
         } else {
           withoutMetaIncludesBuilder.add(rawNode);
         }
@@ -244,7 +260,7 @@ public class DaemonicParserState {
 
       return getOrCreateCellState(cell)
           .putRawNodesIfNotPresentAndStripMetaEntries(
-              buildFile, withoutMetaIncludes, dependentsOfEveryNode.build(), env);
+              buildFile, withoutMetaIncludes, dependentsOfEveryNode.build(), env, globs);
     }
 
     /**
@@ -283,6 +299,13 @@ public class DaemonicParserState {
   @GuardedBy("cellStateLock")
   private final ConcurrentMap<Path, DaemonicCellState> cellPathToDaemonicState;
 
+  /**
+   * The states of cells restored from a {@link ParserStateSnapshot} which haven't been decoded yet.
+   * A state is decoded once its cell is first used, or once any path gets invalidated.
+   */
+  @GuardedBy("cellStateLock")
+  private final ConcurrentMap<Path, Supplier<DaemonicCellState>> lazyCellStates;
+
   private final LoadingCache<Class<?>, DaemonicCacheView<?>> typedNodeCaches =
       CacheBuilder.newBuilder().build(CacheLoader.from(cls -> new DaemonicCacheView<>(cls)));
   private final DaemonicRawCacheView rawNodeCache;
@@ -292,6 +315,15 @@ public class DaemonicParserState {
 
   private final LoadingCache<Cell, BuildFileTree> buildFileTrees;
 
+  /** Directory listings shared by the {@code glob()} calls of all Skylark build files. */
+  private final DirectoryListingCache directoryListingCache;
+
+  /**
+   * Changes whenever cached state gets invalidated or files get added or removed, so that data
+   * derived from the cached state can be dropped along with it.
+   */
+  private final AtomicLong stateVersion = new AtomicLong();
+
   /**
    * The default includes used by the previous run of the parser in each cell (the key is the cell's
    * root path). If this value changes, then we need to invalidate all the caches.
@@ -344,9 +376,11 @@ public class DaemonicParserState {
                         cell.getFilesystem(), cell.getBuildFileName());
                   }
                 });
+    this.directoryListingCache = new DirectoryListingCache();
     this.cachedIncludes = new ConcurrentHashMap<>();
     this.cellPathToDaemonicState =
         new ConcurrentHashMap<>(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, parsingThreads);
+    this.lazyCellStates = new ConcurrentHashMap<>();
 
     this.rawNodeCache = new DaemonicRawCacheView();
 
@@ -363,6 +397,18 @@ public class DaemonicParserState {
     return buildFileTrees;
   }
 
+  DirectoryListingCache getDirectoryListingCache() {
+    return directoryListingCache;
+  }
+
+  /**
+   * @return a number which changes whenever the results of parsing any build file, or the set of
+   *     build files, may have changed.
+   */
+  public long getStateVersion() {
+    return stateVersion.get();
+  }
+
   /**
    * Retrieve the cache view for caching a particular type.
    *
@@ -384,12 +430,14 @@ public class DaemonicParserState {
 
   @Nullable
   private DaemonicCellState getCellState(Cell cell) {
+    loadLazyCellState(cell.getRoot());
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
       return cellPathToDaemonicState.get(cell.getRoot());
     }
   }
 
   private DaemonicCellState getOrCreateCellState(Cell cell) {
+    loadLazyCellState(cell.getRoot());
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
       DaemonicCellState state = cellPathToDaemonicState.get(cell.getRoot());
       if (state == null) {
@@ -400,6 +448,27 @@ public class DaemonicParserState {
     }
   }
 
+  private void loadLazyCellState(Path cellRoot) {
+    if (!lazyCellStates.containsKey(cellRoot)) {
+      return;
+    }
+    try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
+      Supplier<DaemonicCellState> lazyState = lazyCellStates.remove(cellRoot);
+      if (lazyState != null) {
+        DaemonicCellState state = lazyState.get();
+        if (state != null) {
+          cellPathToDaemonicState.put(cellRoot, state);
+        }
+      }
+    }
+  }
+
+  private void loadAllLazyCellStates() {
+    for (Path cellRoot : ImmutableList.copyOf(lazyCellStates.keySet())) {
+      loadLazyCellState(cellRoot);
+    }
+  }
+
   public void invalidateBasedOn(WatchmanOverflowEvent event) {
     // Non-path change event, likely an overflow due to many change events: invalidate everything.
     LOG.debug("Received non-path change event %s, assuming overflow and checking caches.", event);
@@ -415,7 +484,13 @@ public class DaemonicParserState {
 
     Path path = event.getPath();
     Path fullPath = event.getCellPath().resolve(event.getPath());
+    if (isPathCreateOrDeleteEvent(event)) {
+      directoryListingCache.invalidate(fullPath);
+      stateVersion.incrementAndGet();
+    }
 
+    // Build files can depend on files of other cells, so all states are needed.
+    loadAllLazyCellStates();
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
       for (DaemonicCellState state : cellPathToDaemonicState.values()) {
         try {
@@ -467,7 +542,12 @@ public class DaemonicParserState {
    */
   public void invalidateBasedOnPath(Path fullPath, boolean isCreatedOrDeleted) {
     filesChangedCounter.inc();
+    if (isCreatedOrDeleted) {
+      directoryListingCache.invalidate(fullPath);
+      stateVersion.incrementAndGet();
+    }
 
+    loadAllLazyCellStates();
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
       for (DaemonicCellState state : cellPathToDaemonicState.values()) {
         try {
@@ -515,6 +595,7 @@ public class DaemonicParserState {
 
     // The paths from watchman are not absolute. Because of this, we adopt a conservative approach
     // to invalidating the caches.
+    loadAllLazyCellStates();
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
       for (DaemonicCellState state : cellPathToDaemonicState.values()) {
         invalidatePath(state, path);
@@ -559,13 +640,33 @@ public class DaemonicParserState {
       return;
     }
 
-    buildFilesInvalidatedByFileAddOrRemoveCounter.inc(packageBuildFiles.size());
-    pathsAddedOrRemovedInvalidatingBuildFiles.add(path.toString());
-
     DaemonicCellState state;
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
       state = cellPathToDaemonicState.get(cell.getRoot());
     }
+
+    // Packages whose globs can't pick up the path don't change. Adding or removing a build file
+    // moves package boundaries though, which changes the results of globs in any package.
+    if (state != null
+        && cell.getBuckConfig().getView(ParserConfig.class).isGlobAwareInvalidationEnabled()
+        && !path.endsWith(cell.getBuildFileName())) {
+      Path fullPath = cell.getRoot().resolve(path);
+      packageBuildFiles.removeIf(
+          packagePath -> {
+            Path fullPackagePath = cell.getRoot().resolve(packagePath);
+            return !state.globsMayMatch(
+                fullPackagePath.resolve(cell.getBuildFileName()),
+                fullPackagePath.relativize(fullPath));
+          });
+      if (packageBuildFiles.isEmpty()) {
+        LOG.debug("%s is not matched by any glob. Not invalidating anything.", fullPath);
+        return;
+      }
+    }
+
+    buildFilesInvalidatedByFileAddOrRemoveCounter.inc(packageBuildFiles.size());
+    pathsAddedOrRemovedInvalidatingBuildFiles.add(path.toString());
+
     // Invalidate all the packages we found.
     for (Path buildFile : packageBuildFiles) {
       invalidatePath(state, buildFile.resolve(cell.getBuildFileName()));
@@ -585,6 +686,9 @@ public class DaemonicParserState {
     path = state.getCellRoot().resolve(path);
     int invalidatedNodes = state.invalidatePath(path);
     rulesInvalidatedByWatchEventsCounter.inc(invalidatedNodes);
+    if (invalidatedNodes > 0) {
+      stateVersion.incrementAndGet();
+    }
   }
 
   public static boolean isPathCreateOrDeleteEvent(WatchmanPathEvent event) {
@@ -593,6 +697,7 @@ public class DaemonicParserState {
   }
 
   private boolean invalidateIfBuckConfigOrEnvHasChanged(Cell cell, Path buildFile) {
+    loadLazyCellState(cell.getRoot());
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
       DaemonicCellState state = cellPathToDaemonicState.get(cell.getRoot());
       if (state == null) {
@@ -617,6 +722,7 @@ public class DaemonicParserState {
           state.invalidateIfEnvHasChanged(cell, buildFile);
       if (envDiff.isPresent()) {
         hasInvalidated = true;
+        stateVersion.incrementAndGet();
         MapDifference<String, String> diff = envDiff.get();
         LOG.warn("Invalidating cache on environment change (%s)", diff);
         Set<String> environmentChanges = new HashSet<>();
@@ -665,9 +771,12 @@ public class DaemonicParserState {
   public boolean invalidateCellCaches(Cell cell) {
     LOG.debug("Starting to invalidate caches for %s..", cell.getRoot());
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
-      boolean invalidated = cellPathToDaemonicState.containsKey(cell.getRoot());
-      cellPathToDaemonicState.remove(cell.getRoot());
+      boolean invalidated = cellPathToDaemonicState.remove(cell.getRoot()) != null;
+      if (lazyCellStates.remove(cell.getRoot()) != null) {
+        invalidated = true;
+      }
       if (invalidated) {
+        stateVersion.incrementAndGet();
         LOG.debug("Cell cache data invalidated.");
       } else {
         LOG.debug("Cell caches were empty, no data invalidated.");
@@ -680,9 +789,12 @@ public class DaemonicParserState {
   public boolean invalidateAllCaches() {
     LOG.debug("Starting to invalidate all caches..");
     try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
-      boolean invalidated = !cellPathToDaemonicState.isEmpty();
+      boolean invalidated = !cellPathToDaemonicState.isEmpty() || !lazyCellStates.isEmpty();
       cellPathToDaemonicState.clear();
+      lazyCellStates.clear();
       buildFileTrees.invalidateAll();
+      directoryListingCache.invalidateAll();
+      stateVersion.incrementAndGet();
       if (invalidated) {
         LOG.debug("Cache data invalidated.");
       } else {
@@ -715,6 +827,7 @@ public class DaemonicParserState {
     ImmutableList.Builder<String> cellPathsBuilder = ImmutableList.builder();
     ImmutableMap.Builder<String, RemoteDaemonicCellState> cellPathToDaemonicStateBuilder =
         ImmutableMap.builder();
+    loadAllLazyCellStates();
     try (AutoCloseableLock readLock = cellStateLock.readLock()) {
       for (Path p : cellPathToDaemonicState.keySet()) {
         DaemonicCellState daemonicCellState = cellPathToDaemonicState.get(p);
@@ -770,6 +883,61 @@ public class DaemonicParserState {
           Path absolutePath = rootCell.getRoot().resolve(path).normalize();
           cachedIncludes.put(absolutePath, v);
         });
+    stateVersion.incrementAndGet();
     return this;
   }
+
+  /** Writes the parser state to a {@link ParserStateSnapshot} at the given path. */
+  public void writeSnapshot(Cell rootCell, Path path) throws IOException {
+    ParserStateSnapshot.Writer writer = new ParserStateSnapshot.Writer();
+    try (AutoCloseableLock readLock = cachedStateLock.readLock()) {
+      for (Map.Entry<Path, Iterable<String>> entry : cachedIncludes.entrySet()) {
+        writer.addCachedIncludes(
+            rootCell.getRoot().relativize(entry.getKey()).toString(), entry.getValue());
+      }
+    }
+    loadAllLazyCellStates();
+    try (AutoCloseableLock readLock = cellStateLock.readLock()) {
+      for (Map.Entry<Path, DaemonicCellState> entry : cellPathToDaemonicState.entrySet()) {
+        writer.startCell(rootCell.getRoot().relativize(entry.getKey()).toString());
+        entry.getValue().writeTo(writer);
+      }
+    }
+    writer.writeTo(path);
+  }
+
+  /**
+   * Restores a state written by {@link #writeSnapshot}, replacing the states of the cells it has.
+   * The states of cells are only decoded once they are needed.
+   */
+  public void restoreSnapshot(ParserStateSnapshot snapshot, Cell rootCell) {
+    try (AutoCloseableLock writeLock = cellStateLock.writeLock()) {
+      for (String cellPath : snapshot.getCellPaths()) {
+        Cell cell =
+            rootCell.getCellIgnoringVisibilityCheck(
+                rootCell.getRoot().resolve(cellPath).normalize());
+        cellPathToDaemonicState.remove(cell.getRoot());
+        lazyCellStates.put(
+            cell.getRoot(),
+            () -> {
+              try {
+                return DaemonicCellState.readFrom(
+                    snapshot.readCell(cellPath), cell, parsingThreads);
+              } catch (IOException | RuntimeException e) {
+                LOG.warn(e, "Failed to restore the parser state of cell %s.", cell.getRoot());
+                return null;
+              }
+            });
+      }
+    }
+    try (AutoCloseableLock writeLock = cachedStateLock.writeLock()) {
+      snapshot
+          .getCachedIncludes()
+          .forEach(
+              (cellPath, includes) ->
+                  cachedIncludes.put(
+                      rootCell.getRoot().resolve(cellPath).normalize(), includes));
+    }
+    stateVersion.incrementAndGet();
+  }
 }
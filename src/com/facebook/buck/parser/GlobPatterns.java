@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.io.file.MorePaths;
+import com.google.common.base.Splitter;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides whether adding or removing a file can change the results of the {@code glob()} calls of
+ * a build file, given their include patterns.
+ *
+ * <p>The answer errs on the side of "yes": excludes are ignored, dot files match wildcards, and a
+ * directory matches if files inside of it could.
+ */
+final class GlobPatterns {
+
+  private static final Splitter PATH_SPLITTER = Splitter.on('/').omitEmptyStrings();
+
+  private GlobPatterns() {}
+
+  /**
+   * @param patterns include patterns of the globs, relative to the package.
+   * @param path path of the added or removed file, relative to the package.
+   */
+  static boolean mayMatch(Iterable<String> patterns, Path path) {
+    List<String> pathParts = PATH_SPLITTER.splitToList(MorePaths.pathWithUnixSeparators(path));
+    for (String pattern : patterns) {
+      if (mayMatch(PATH_SPLITTER.splitToList(pattern), 0, pathParts, 0)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean mayMatch(
+      List<String> patternParts, int patternIndex, List<String> pathParts, int pathIndex) {
+    if (pathIndex == pathParts.size()) {
+      // Either the path matches, or it's a directory on the way to matches.
+      return true;
+    }
+    if (patternIndex == patternParts.size()) {
+      return false;
+    }
+    String patternPart = patternParts.get(patternIndex);
+    if (patternPart.equals("**")) {
+      return mayMatch(patternParts, patternIndex + 1, pathParts, pathIndex)
+          || mayMatch(patternParts, patternIndex, pathParts, pathIndex + 1);
+    }
+    return matchesPart(patternPart, pathParts.get(pathIndex))
+        && mayMatch(patternParts, patternIndex + 1, pathParts, pathIndex + 1);
+  }
+
+  private static boolean matchesPart(String patternPart, String pathPart) {
+    if (patternPart.equals(".") || patternPart.equals("..")) {
+      return true;
+    }
+    try {
+      return Pattern.matches(toRegex(patternPart), pathPart);
+    } catch (PatternSyntaxException e) {
+      return true;
+    }
+  }
+
+  private static String toRegex(String patternPart) {
+    StringBuilder regex = new StringBuilder();
+    int i = 0;
+    while (i < patternPart.length()) {
+      char c = patternPart.charAt(i);
+      if (c == '*') {
+        regex.append(".*");
+      } else if (c == '?') {
+        regex.append('.');
+      } else if (c == '[' && patternPart.indexOf(']', i + 2) != -1) {
+        int end = patternPart.indexOf(']', i + 2);
+        String characters = patternPart.substring(i + 1, end);
+        regex.append('[');
+        if (characters.startsWith("!")) {
+          regex.append('^');
+          characters = characters.substring(1);
+        }
+        regex
+            .append(characters.replace("\\", "\\\\").replace("[", "\\[").replace("&", "\\&"))
+            .append(']');
+        i = end;
+      } else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+      i++;
+    }
+    return regex.toString();
+  }
+}
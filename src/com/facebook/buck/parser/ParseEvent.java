@@ -58,7 +58,16 @@ public abstract class ParseEvent extends AbstractBuckEvent implements LeafEvent,
 
   public static Finished finished(
       Started started, long processedBytes, Optional<TargetGraph> graph) {
-    return new Finished(started, processedBytes, graph);
+    return new Finished(started, processedBytes, graph, 0, 0);
+  }
+
+  public static Finished finished(
+      Started started,
+      long processedBytes,
+      Optional<TargetGraph> graph,
+      int maxPendingSpeculativeJobs,
+      long stallTimeMs) {
+    return new Finished(started, processedBytes, graph, maxPendingSpeculativeJobs, stallTimeMs);
   }
 
   public static class Started extends ParseEvent {
@@ -76,11 +85,20 @@ public abstract class ParseEvent extends AbstractBuckEvent implements LeafEvent,
     private final long processedBytes;
     /** If this is {@link Optional#empty()}, then the parse did not complete successfully. */
     private final Optional<TargetGraph> graph;
-
-    protected Finished(Started started, long processedBytes, Optional<TargetGraph> graph) {
+    private final int maxPendingSpeculativeJobs;
+    private final long stallTimeMs;
+
+    protected Finished(
+        Started started,
+        long processedBytes,
+        Optional<TargetGraph> graph,
+        int maxPendingSpeculativeJobs,
+        long stallTimeMs) {
       super(started.getEventKey(), started.getBuildTargets());
       this.processedBytes = processedBytes;
       this.graph = graph;
+      this.maxPendingSpeculativeJobs = maxPendingSpeculativeJobs;
+      this.stallTimeMs = stallTimeMs;
     }
 
     @Override
@@ -92,6 +110,16 @@ public abstract class ParseEvent extends AbstractBuckEvent implements LeafEvent,
       return processedBytes;
     }
 
+    /** @return the peak depth of the queue of speculatively scheduled parse jobs. */
+    public int getMaxPendingSpeculativeJobs() {
+      return maxPendingSpeculativeJobs;
+    }
+
+    /** @return how long the graph construction was blocked waiting for nodes to be parsed. */
+    public long getStallTimeMs() {
+      return stallTimeMs;
+    }
+
     @JsonIgnore
     public Optional<TargetGraph> getGraph() {
       return graph;
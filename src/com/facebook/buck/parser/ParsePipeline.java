@@ -33,8 +33,10 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import java.nio.file.Path;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Abstract node parsing pipeline. Allows implementors to define their own logic for creating nodes
@@ -47,10 +49,12 @@ public abstract class ParsePipeline<T> implements AutoCloseable {
 
   private final AtomicBoolean shuttingDown;
   private final long minimumPerfEventTimeMs;
+  private final LongAdder stallTimeNanos;
 
   public ParsePipeline() {
     this.shuttingDown = new AtomicBoolean(false);
     this.minimumPerfEventTimeMs = LOG.isVerboseEnabled() ? 0 : 1;
+    this.stallTimeNanos = new LongAdder();
   }
 
   /**
@@ -67,7 +71,7 @@ public abstract class ParsePipeline<T> implements AutoCloseable {
     Preconditions.checkState(!shuttingDown.get());
 
     try {
-      return getAllNodesJob(cell, knownBuildRuleTypes, buildFile, processedBytes).get();
+      return waitFor(getAllNodesJob(cell, knownBuildRuleTypes, buildFile, processedBytes));
     } catch (Exception e) {
       propagateIfInstanceOf(e.getCause(), BuildFileParseException.class);
       propagateCauseIfInstanceOf(e, ExecutionException.class);
@@ -94,7 +98,7 @@ public abstract class ParsePipeline<T> implements AutoCloseable {
     Preconditions.checkState(!shuttingDown.get());
 
     try {
-      return getNodeJob(cell, knownBuildRuleTypes, buildTarget, processedBytes).get();
+      return waitFor(getNodeJob(cell, knownBuildRuleTypes, buildTarget, processedBytes));
     } catch (Exception e) {
       if (e.getCause() != null) {
         propagateIfInstanceOf(e.getCause(), BuildFileParseException.class);
@@ -155,6 +159,26 @@ public abstract class ParsePipeline<T> implements AutoCloseable {
     // state that has already been extracted from the parser.
   }
 
+  /**
+   * @return the total time callers of the blocking methods spent waiting for jobs which weren't
+   *     done yet.
+   */
+  public final long getStallTimeNanos() {
+    return stallTimeNanos.sum();
+  }
+
+  private <V> V waitFor(Future<V> job) throws InterruptedException, ExecutionException {
+    if (job.isDone()) {
+      return job.get();
+    }
+    long start = System.nanoTime();
+    try {
+      return job.get();
+    } finally {
+      stallTimeNanos.add(System.nanoTime() - start);
+    }
+  }
+
   protected final boolean shuttingDown() {
     return shuttingDown.get();
   }
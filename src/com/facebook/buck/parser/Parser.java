@@ -73,6 +73,7 @@ import java.util.Optional;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import javax.annotation.Nullable;
 
 /**
@@ -351,7 +352,11 @@ public class Parser {
     } finally {
       eventBus.post(
           ParseEvent.finished(
-              parseStart, state.getParseProcessedBytes(), Optional.ofNullable(targetGraph)));
+              parseStart,
+              state.getParseProcessedBytes(),
+              Optional.ofNullable(targetGraph),
+              state.getMaxPendingSpeculativeParseJobs(),
+              TimeUnit.NANOSECONDS.toMillis(state.getParseStallTimeNanos())));
     }
   }
 
@@ -620,6 +625,14 @@ public class Parser {
     getPermState().restoreState(state, rootCell);
   }
 
+  public void storeParserStateSnapshot(Cell rootCell, Path path) throws IOException {
+    getPermState().writeSnapshot(rootCell, path);
+  }
+
+  public void restoreParserStateSnapshot(ParserStateSnapshot snapshot, Cell rootCell) {
+    getPermState().restoreSnapshot(snapshot, rootCell);
+  }
+
   @Subscribe
   public void onFileSystemChange(WatchmanOverflowEvent event) {
     LOG.verbose("Parser watched event OVERFLOW %s", event.getReason());
@@ -0,0 +1,475 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.util.json.ObjectMappers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * A compact, versioned binary snapshot of the {@link DaemonicParserState}, as written by {@code
+ * buck parser-cache --save}.
+ *
+ * <p>Every string is stored once in a string table and referred to by its index. Raw nodes are
+ * stored by column: the values of an attribute for all nodes of a build file are stored together,
+ * after the name of the attribute. The state of every cell is stored in a separate block, and the
+ * file is memory-mapped when loaded, so that only the blocks (and strings) of cells which are
+ * actually used get decoded.
+ *
+ * <p>The layout of the file is:
+ *
+ * <pre>
+ *   magic, version
+ *   string table: count, then the UTF-8 bytes of every string prefixed by their length
+ *   cached includes: count, then the cell path and includes of every cell
+ *   cell index: count, then the path, offset and length of the block of every cell
+ *   cell blocks
+ * </pre>
+ */
+public class ParserStateSnapshot {
+
+  private static final int MAGIC = 0x42504353;
+  private static final int FORMAT_VERSION = 1;
+
+  /** Returned by {@link Reader#readValue()} for attributes a node doesn't have. */
+  static final Object ABSENT = new Object();
+
+  private static final byte TAG_ABSENT = 0;
+  private static final byte TAG_NULL = 1;
+  private static final byte TAG_STRING = 2;
+  private static final byte TAG_TRUE = 3;
+  private static final byte TAG_FALSE = 4;
+  private static final byte TAG_INTEGER = 5;
+  private static final byte TAG_LONG = 6;
+  private static final byte TAG_DOUBLE = 7;
+  private static final byte TAG_LIST = 8;
+  private static final byte TAG_MAP = 9;
+  // Anything else goes through JSON, like it did in the original format.
+  private static final byte TAG_JSON = 10;
+
+  private final ByteBuffer buffer;
+  private final int[] stringOffsets;
+  private final String[] strings;
+  private final ImmutableMap<String, ImmutableList<String>> cachedIncludes;
+  private final ImmutableMap<String, ByteBuffer> cellBlocks;
+
+  private ParserStateSnapshot(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+      throw new IOException("Not a parser state snapshot.");
+    }
+    int version = buffer.getInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException(
+          String.format("Unsupported parser state snapshot version %d.", version));
+    }
+
+    int stringCount = readVarInt(buffer);
+    this.stringOffsets = new int[stringCount];
+    this.strings = new String[stringCount];
+    for (int i = 0; i < stringCount; i++) {
+      stringOffsets[i] = buffer.position();
+      int length = readVarInt(buffer);
+      buffer.position(buffer.position() + length);
+    }
+
+    Reader reader = new Reader(buffer);
+    ImmutableMap.Builder<String, ImmutableList<String>> cachedIncludes = ImmutableMap.builder();
+    for (int i = reader.readVarInt(); i > 0; i--) {
+      cachedIncludes.put(reader.readString(), reader.readStrings());
+    }
+    this.cachedIncludes = cachedIncludes.build();
+
+    ImmutableMap.Builder<String, ByteBuffer> cellBlocks = ImmutableMap.builder();
+    for (int i = reader.readVarInt(); i > 0; i--) {
+      String cellPath = reader.readString();
+      int offset = buffer.getInt();
+      int length = buffer.getInt();
+      ByteBuffer block = buffer.duplicate();
+      block.position(offset);
+      block.limit(offset + length);
+      cellBlocks.put(cellPath, block.slice());
+    }
+    this.cellBlocks = cellBlocks.build();
+  }
+
+  /** Maps the given snapshot into memory, decoding only its string table and cell index. */
+  public static ParserStateSnapshot load(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Parser state snapshot is too large to be mapped.");
+      }
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new ParserStateSnapshot(buffer);
+    }
+  }
+
+  /** @return whether the given file starts like a snapshot, rather than like the old format. */
+  public static boolean isSnapshot(Path path) throws IOException {
+    try (InputStream in = Files.newInputStream(path)) {
+      byte[] header = new byte[4];
+      return in.read(header) == 4 && ByteBuffer.wrap(header).getInt() == MAGIC;
+    }
+  }
+
+  /** @return the default includes of every cell, keyed by the cell path. */
+  ImmutableMap<String, ImmutableList<String>> getCachedIncludes() {
+    return cachedIncludes;
+  }
+
+  /** @return the paths of all cells, relative to the root cell. */
+  Iterable<String> getCellPaths() {
+    return cellBlocks.keySet();
+  }
+
+  /** @return a reader for the block of the given cell. */
+  Reader readCell(String cellPath) {
+    ByteBuffer block = cellBlocks.get(cellPath);
+    if (block == null) {
+      throw new IllegalArgumentException("No such cell in the parser state snapshot: " + cellPath);
+    }
+    return new Reader(block.duplicate());
+  }
+
+  private String getString(int index) {
+    String string = strings[index];
+    if (string == null) {
+      ByteBuffer bytes = buffer.duplicate();
+      bytes.position(stringOffsets[index]);
+      int length = readVarInt(bytes);
+      bytes.limit(bytes.position() + length);
+      string = StandardCharsets.UTF_8.decode(bytes).toString();
+      // Racing threads decode the same string, which is harmless.
+      strings[index] = string;
+    }
+    return string;
+  }
+
+  private static int readVarInt(ByteBuffer buffer) {
+    int value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  private static long readVarLong(ByteBuffer buffer) {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  /** Decodes the values stored in a section of the snapshot. */
+  class Reader {
+    private final ByteBuffer section;
+
+    private Reader(ByteBuffer section) {
+      this.section = section;
+    }
+
+    int readVarInt() {
+      return ParserStateSnapshot.readVarInt(section);
+    }
+
+    boolean readBoolean() {
+      return section.get() != 0;
+    }
+
+    String readString() {
+      return getString(readVarInt());
+    }
+
+    ImmutableList<String> readStrings() {
+      int count = readVarInt();
+      ImmutableList.Builder<String> strings = ImmutableList.builder();
+      for (int i = 0; i < count; i++) {
+        strings.add(readString());
+      }
+      return strings.build();
+    }
+
+    /** @return the next value written by {@link Writer#writeValue}, or {@link #ABSENT}. */
+    @Nullable
+    Object readValue() throws IOException {
+      byte tag = section.get();
+      switch (tag) {
+        case TAG_ABSENT:
+          return ABSENT;
+        case TAG_NULL:
+          return null;
+        case TAG_STRING:
+          return readString();
+        case TAG_TRUE:
+          return true;
+        case TAG_FALSE:
+          return false;
+        case TAG_INTEGER:
+          return (int) decodeZigZag(readVarLong(section));
+        case TAG_LONG:
+          return decodeZigZag(readVarLong(section));
+        case TAG_DOUBLE:
+          return section.getDouble();
+        case TAG_LIST:
+          {
+            int size = readVarInt();
+            List<Object> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+              list.add(readValue());
+            }
+            return list;
+          }
+        case TAG_MAP:
+          {
+            int size = readVarInt();
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (int i = 0; i < size; i++) {
+              String key = readString();
+              map.put(key, readValue());
+            }
+            return map;
+          }
+        case TAG_JSON:
+          return ObjectMappers.readValue(readString(), Object.class);
+        default:
+          throw new IOException("Corrupt parser state snapshot, unknown value tag " + tag);
+      }
+    }
+
+    private long decodeZigZag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+    }
+  }
+
+  /** Encodes a parser state, interning all of its strings. */
+  static class Writer {
+    private final Map<String, Integer> stringIndices = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final ByteArrayOutputStream cachedIncludes = new ByteArrayOutputStream();
+    private final Map<String, byte[]> cellBlocks = new LinkedHashMap<>();
+    private int cachedIncludesCount = 0;
+
+    private ByteArrayOutputStream current = cachedIncludes;
+    @Nullable private String currentCellPath = null;
+
+    void addCachedIncludes(String cellPath, Iterable<String> includes) {
+      endCell();
+      writeString(cellPath);
+      writeStrings(includes);
+      cachedIncludesCount++;
+    }
+
+    /** Starts the block of a cell, which everything until {@link #endCell()} is written to. */
+    void startCell(String cellPath) {
+      endCell();
+      intern(cellPath);
+      current = new ByteArrayOutputStream();
+      currentCellPath = cellPath;
+    }
+
+    void endCell() {
+      if (currentCellPath != null) {
+        cellBlocks.put(currentCellPath, current.toByteArray());
+        currentCellPath = null;
+      }
+      current = cachedIncludes;
+    }
+
+    void writeVarInt(int value) {
+      writeVarInt(current, value);
+    }
+
+    void writeBoolean(boolean value) {
+      current.write(value ? 1 : 0);
+    }
+
+    void writeString(String string) {
+      writeVarInt(intern(string));
+    }
+
+    private int intern(String string) {
+      Integer index = stringIndices.get(string);
+      if (index == null) {
+        index = strings.size();
+        strings.add(string);
+        stringIndices.put(string, index);
+      }
+      return index;
+    }
+
+    void writeStrings(Iterable<String> strings) {
+      List<String> list = ImmutableList.copyOf(strings);
+      writeVarInt(list.size());
+      for (String string : list) {
+        writeString(string);
+      }
+    }
+
+    /** Writes the marker for an attribute which a node doesn't have. */
+    void writeAbsent() {
+      current.write(TAG_ABSENT);
+    }
+
+    void writeValue(@Nullable Object value) throws IOException {
+      if (value == null) {
+        current.write(TAG_NULL);
+      } else if (value instanceof String) {
+        current.write(TAG_STRING);
+        writeString((String) value);
+      } else if (value instanceof Boolean) {
+        current.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+      } else if (value instanceof Integer) {
+        current.write(TAG_INTEGER);
+        writeVarLong(encodeZigZag((Integer) value));
+      } else if (value instanceof Long) {
+        current.write(TAG_LONG);
+        writeVarLong(encodeZigZag((Long) value));
+      } else if (value instanceof Double) {
+        current.write(TAG_DOUBLE);
+        long bits = Double.doubleToRawLongBits((Double) value);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+          current.write((int) (bits >>> shift));
+        }
+      } else if (value instanceof List) {
+        List<?> list = (List<?>) value;
+        current.write(TAG_LIST);
+        writeVarInt(list.size());
+        for (Object element : list) {
+          writeValue(element);
+        }
+      } else if (value instanceof Map && allKeysAreStrings((Map<?, ?>) value)) {
+        Map<?, ?> map = (Map<?, ?>) value;
+        current.write(TAG_MAP);
+        writeVarInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+          writeString((String) entry.getKey());
+          writeValue(entry.getValue());
+        }
+      } else {
+        current.write(TAG_JSON);
+        writeString(ObjectMappers.WRITER.writeValueAsString(value));
+      }
+    }
+
+    private static boolean allKeysAreStrings(Map<?, ?> map) {
+      for (Object key : map.keySet()) {
+        if (!(key instanceof String)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static long encodeZigZag(long value) {
+      return (value << 1) ^ (value >> 63);
+    }
+
+    private void writeVarLong(long value) {
+      while ((value & ~0x7FL) != 0) {
+        current.write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      current.write((int) value);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+      while ((value & ~0x7F) != 0) {
+        out.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+
+    /** Writes the snapshot to the given file. */
+    void writeTo(Path path) throws IOException {
+      endCell();
+      ByteArrayOutputStream header = new ByteArrayOutputStream();
+      writeVarInt(header, strings.size());
+      for (String string : strings) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(header, bytes.length);
+        header.write(bytes);
+      }
+      writeVarInt(header, cachedIncludesCount);
+      cachedIncludes.writeTo(header);
+
+      // The cell paths are already interned, so the size of the index is known up front.
+      ByteArrayOutputStream index = new ByteArrayOutputStream();
+      writeVarInt(index, cellBlocks.size());
+      for (String cellPath : cellBlocks.keySet()) {
+        writeVarInt(index, stringIndices.get(cellPath));
+      }
+      long offset = 8L + header.size() + index.size() + 8L * cellBlocks.size();
+
+      try (OutputStream out = Files.newOutputStream(path);
+          DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT_VERSION);
+        header.writeTo(data);
+        writeVarIntTo(data, cellBlocks.size());
+        for (Map.Entry<String, byte[]> cellBlock : cellBlocks.entrySet()) {
+          if (offset + cellBlock.getValue().length > Integer.MAX_VALUE) {
+            throw new IOException("Parser state is too large for a snapshot.");
+          }
+          writeVarIntTo(data, stringIndices.get(cellBlock.getKey()));
+          data.writeInt((int) offset);
+          data.writeInt(cellBlock.getValue().length);
+          offset += cellBlock.getValue().length;
+        }
+        for (byte[] block : cellBlocks.values()) {
+          data.write(block);
+        }
+      }
+    }
+
+    private static void writeVarIntTo(DataOutputStream out, int value) throws IOException {
+      while ((value & ~0x7F) != 0) {
+        out.write((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      out.write(value);
+    }
+  }
+}
@@ -29,6 +29,7 @@ import com.facebook.buck.rules.TargetNode;
 import com.facebook.buck.rules.TargetNodeFactory;
 import com.facebook.buck.rules.coercer.ConstructorArgMarshaller;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
+import com.facebook.buck.skylark.io.DirectoryListingCache;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.base.Preconditions;
@@ -60,6 +61,7 @@ public class PerBuildState implements AutoCloseable {
   private final RawNodeParsePipeline rawNodeParsePipeline;
   private final TargetNodeParsePipeline targetNodeParsePipeline;
   private final KnownBuildRuleTypesProvider knownBuildRuleTypesProvider;
+  private final DirectoryListingCache directoryListingCache;
 
   public enum SpeculativeParsing {
     ENABLED,
@@ -107,6 +109,7 @@ public class PerBuildState implements AutoCloseable {
     this.parserPythonInterpreterProvider = parserPythonInterpreterProvider;
     this.enableProfiling = enableProfiling;
     this.knownBuildRuleTypesProvider = knownBuildRuleTypesProvider;
+    this.directoryListingCache = daemonicParserState.getDirectoryListingCache();
 
     this.cells = new ConcurrentHashMap<>();
 
@@ -141,6 +144,7 @@ public class PerBuildState implements AutoCloseable {
             eventBus,
             parserConfig.getEnableParallelParsing()
                 && speculativeParsing == SpeculativeParsing.ENABLED,
+            parserConfig.getMaxPendingSpeculativeParseJobs(),
             rawNodeParsePipeline,
             knownBuildRuleTypesProvider);
 
@@ -198,7 +202,8 @@ public class PerBuildState implements AutoCloseable {
         eventBus,
         parserPythonInterpreterProvider,
         descriptions,
-        enableProfiling);
+        enableProfiling,
+        Optional.of(directoryListingCache));
   }
 
   private void register(Cell cell) {
@@ -243,6 +248,16 @@ public class PerBuildState implements AutoCloseable {
     return parseProcessedBytes.get();
   }
 
+  /** @return the largest number of speculative parse jobs which were pending at once. */
+  public int getMaxPendingSpeculativeParseJobs() {
+    return targetNodeParsePipeline.getMaxPendingSpeculativeJobs();
+  }
+
+  /** @return how long callers were blocked waiting for target nodes which weren't parsed yet. */
+  public long getParseStallTimeNanos() {
+    return targetNodeParsePipeline.getStallTimeNanos();
+  }
+
   @Override
   public void close() throws BuildFileParseException {
     targetNodeParsePipeline.close();
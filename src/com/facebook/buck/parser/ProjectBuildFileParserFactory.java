@@ -29,6 +29,7 @@ import com.facebook.buck.parser.options.ProjectBuildFileParserOptions;
 import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.Description;
 import com.facebook.buck.rules.coercer.TypeCoercerFactory;
+import com.facebook.buck.skylark.io.DirectoryListingCache;
 import com.facebook.buck.skylark.parser.BuckGlobals;
 import com.facebook.buck.skylark.parser.ConsoleEventHandler;
 import com.facebook.buck.skylark.parser.RuleFunctionFactory;
@@ -95,6 +96,31 @@ public class ProjectBuildFileParserFactory {
       ParserPythonInterpreterProvider pythonInterpreterProvider,
       Iterable<Description<?>> descriptions,
       boolean enableProfiling) {
+    return createBuildFileParser(
+        cell,
+        typeCoercerFactory,
+        console,
+        eventBus,
+        pythonInterpreterProvider,
+        descriptions,
+        enableProfiling,
+        Optional.empty());
+  }
+
+  /**
+   * Same as {@link #createBuildFileParser(Cell, TypeCoercerFactory, Console, BuckEventBus,
+   * ParserPythonInterpreterProvider, Iterable, boolean)} but lets Skylark {@code glob()} calls
+   * share directory listings through the given cache.
+   */
+  static ProjectBuildFileParser createBuildFileParser(
+      Cell cell,
+      TypeCoercerFactory typeCoercerFactory,
+      Console console,
+      BuckEventBus eventBus,
+      ParserPythonInterpreterProvider pythonInterpreterProvider,
+      Iterable<Description<?>> descriptions,
+      boolean enableProfiling,
+      Optional<DirectoryListingCache> directoryListingCache) {
 
     ParserConfig parserConfig = cell.getBuckConfig().getView(ParserConfig.class);
 
@@ -129,10 +155,17 @@ public class ProjectBuildFileParserFactory {
             .setBuildFileImportWhitelist(parserConfig.getBuildFileImportWhitelist())
             .setDisableImplicitNativeRules(parserConfig.getDisableImplicitNativeRules())
             .setWarnAboutDeprecatedSyntax(parserConfig.isWarnAboutDeprecatedSyntax())
+            .setUseBserEncoding(parserConfig.isBserEncodingEnabled())
             .build();
     return EventReportingProjectBuildFileParser.of(
         createProjectBuildFileParser(
-            cell, typeCoercerFactory, console, eventBus, parserConfig, buildFileParserOptions),
+            cell,
+            typeCoercerFactory,
+            console,
+            eventBus,
+            parserConfig,
+            buildFileParserOptions,
+            directoryListingCache),
         eventBus);
   }
 
@@ -143,7 +176,8 @@ public class ProjectBuildFileParserFactory {
       Console console,
       BuckEventBus eventBus,
       ParserConfig parserConfig,
-      ProjectBuildFileParserOptions buildFileParserOptions) {
+      ProjectBuildFileParserOptions buildFileParserOptions,
+      Optional<DirectoryListingCache> directoryListingCache) {
     PythonDslProjectBuildFileParser pythonDslProjectBuildFileParser =
         new PythonDslProjectBuildFileParser(
             buildFileParserOptions,
@@ -168,7 +202,8 @@ public class ProjectBuildFileParserFactory {
                       .setDescriptions(buildFileParserOptions.getDescriptions())
                       .setRuleFunctionFactory(ruleFunctionFactory)
                       .build(),
-                  new ConsoleEventHandler(eventBus, EventKind.ALL_EVENTS))),
+                  new ConsoleEventHandler(eventBus, EventKind.ALL_EVENTS),
+                  directoryListingCache)),
           parserConfig.getDefaultBuildFileSyntax());
     }
     return pythonDslProjectBuildFileParser;
@@ -27,13 +27,17 @@ import com.facebook.buck.rules.Cell;
 import com.facebook.buck.rules.KnownBuildRuleTypes;
 import com.facebook.buck.rules.KnownBuildRuleTypesProvider;
 import com.facebook.buck.rules.TargetNode;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.nio.file.Path;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import javax.annotation.concurrent.ThreadSafe;
@@ -49,6 +53,10 @@ import javax.annotation.concurrent.ThreadSafe;
  * constrain the number of concurrent active parsers. Within a single pipeline instance work is not
  * duplicated (the **JobsCache variables) are used to make sure we don't schedule the same work more
  * than once), however it's possible for multiple read-only commands to duplicate work.
+ *
+ * <p>Speculative parsing of deps is bounded: once the given number of speculative jobs is pending,
+ * deps are left for the caller to request, so that the frontier of scheduled work (and the futures
+ * holding it) can't grow with the size of the graph.
  */
 @ThreadSafe
 public class TargetNodeParsePipeline
@@ -59,6 +67,9 @@ public class TargetNodeParsePipeline
   private final ParserTargetNodeFactory<TargetNode<?, ?>> delegate;
   private final BuckEventBus eventBus;
   private final boolean speculativeDepsTraversal;
+  private final Semaphore speculativeJobPermits;
+  private final AtomicInteger pendingSpeculativeJobs;
+  private final AtomicInteger maxPendingSpeculativeJobs;
   private final RawNodeParsePipeline rawNodeParsePipeline;
   private final SimplePerfEvent.Scope targetNodePipelineLifetimeEventScope;
   private final KnownBuildRuleTypesProvider knownBuildRuleTypesProvider;
@@ -71,6 +82,7 @@ public class TargetNodeParsePipeline
    * @param executorService executor
    * @param eventBus bus to use for parse start/stop events
    * @param speculativeDepsTraversal whether to automatically schedule parsing of nodes' deps in the
+   * @param speculativeJobsLimit how many speculatively scheduled jobs may be pending at once.
    * @param rawNodeParsePipeline
    */
   public TargetNodeParsePipeline(
@@ -79,13 +91,18 @@ public class TargetNodeParsePipeline
       ListeningExecutorService executorService,
       BuckEventBus eventBus,
       boolean speculativeDepsTraversal,
+      int speculativeJobsLimit,
       RawNodeParsePipeline rawNodeParsePipeline,
       KnownBuildRuleTypesProvider knownBuildRuleTypesProvider) {
     super(executorService, cache);
+    Preconditions.checkArgument(speculativeJobsLimit > 0);
 
     this.delegate = targetNodeDelegate;
     this.eventBus = eventBus;
     this.speculativeDepsTraversal = speculativeDepsTraversal;
+    this.speculativeJobPermits = new Semaphore(speculativeJobsLimit);
+    this.pendingSpeculativeJobs = new AtomicInteger();
+    this.maxPendingSpeculativeJobs = new AtomicInteger();
     this.rawNodeParsePipeline = rawNodeParsePipeline;
     this.targetNodePipelineLifetimeEventScope =
         SimplePerfEvent.scope(eventBus, PerfEventId.of("target_node_parse_pipeline"));
@@ -137,19 +154,14 @@ public class TargetNodeParsePipeline
                 Cell depCell = cell.getCellIgnoringVisibilityCheck(depTarget.getCellPath());
                 KnownBuildRuleTypes depKnownBuildRuleTypes =
                     knownBuildRuleTypesProvider.get(depCell);
-                try {
-                  if (depTarget.isFlavored()) {
-                    getNodeJob(
-                        depCell,
-                        depKnownBuildRuleTypes,
-                        BuildTarget.of(depTarget.getUnflavoredBuildTarget()),
-                        processedBytes);
-                  }
-                  getNodeJob(depCell, depKnownBuildRuleTypes, depTarget, processedBytes);
-                } catch (BuildTargetException e) {
-                  // No biggie, we'll hit the error again in the non-speculative path.
-                  LOG.info(e, "Could not schedule speculative parsing for %s", depTarget);
+                if (depTarget.isFlavored()) {
+                  scheduleSpeculativeJob(
+                      depCell,
+                      depKnownBuildRuleTypes,
+                      BuildTarget.of(depTarget.getUnflavoredBuildTarget()),
+                      processedBytes);
                 }
+                scheduleSpeculativeJob(depCell, depKnownBuildRuleTypes, depTarget, processedBytes);
               }
             });
       }
@@ -158,6 +170,37 @@ public class TargetNodeParsePipeline
     }
   }
 
+  private void scheduleSpeculativeJob(
+      Cell cell,
+      KnownBuildRuleTypes knownBuildRuleTypes,
+      BuildTarget buildTarget,
+      AtomicLong processedBytes) {
+    if (!speculativeJobPermits.tryAcquire()) {
+      // The frontier is full, the non-speculative path will get to this target when it needs it.
+      return;
+    }
+    int pending = pendingSpeculativeJobs.incrementAndGet();
+    maxPendingSpeculativeJobs.accumulateAndGet(pending, Math::max);
+    Runnable release =
+        () -> {
+          pendingSpeculativeJobs.decrementAndGet();
+          speculativeJobPermits.release();
+        };
+    try {
+      getNodeJob(cell, knownBuildRuleTypes, buildTarget, processedBytes)
+          .addListener(release, MoreExecutors.directExecutor());
+    } catch (BuildTargetException e) {
+      release.run();
+      // No biggie, we'll hit the error again in the non-speculative path.
+      LOG.info(e, "Could not schedule speculative parsing for %s", buildTarget);
+    }
+  }
+
+  /** @return the largest number of speculatively scheduled jobs which were pending at once. */
+  public int getMaxPendingSpeculativeJobs() {
+    return maxPendingSpeculativeJobs.get();
+  }
+
   @Override
   protected ListenableFuture<ImmutableSet<Map<String, Object>>> getItemsToConvert(
       Cell cell, KnownBuildRuleTypes knownBuildRuleTypes, Path buildFile, AtomicLong processedBytes)
@@ -94,4 +94,9 @@ abstract class AbstractProjectBuildFileParserOptions {
   public boolean isWarnAboutDeprecatedSyntax() {
     return true;
   }
+
+  @Value.Default
+  public boolean getUseBserEncoding() {
+    return false;
+  }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.query;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Evaluates each expression at most once, keeping the results in a map supplied by the caller so
+ * that they can outlive the evaluator, e.g. to be reused by later commands.
+ */
+public class MemoizingQueryEvaluator implements QueryEvaluator {
+  private final Map<QueryExpression, ImmutableSet<QueryTarget>> results;
+  private final Predicate<QueryExpression> shouldMemoize;
+
+  /**
+   * @param results where the results are kept, which has to be thread safe if it is shared.
+   * @param shouldMemoize decides whose results are kept, e.g. to keep evaluating expressions that
+   *     have side effects.
+   */
+  public MemoizingQueryEvaluator(
+      Map<QueryExpression, ImmutableSet<QueryTarget>> results,
+      Predicate<QueryExpression> shouldMemoize) {
+    this.results = results;
+    this.shouldMemoize = shouldMemoize;
+  }
+
+  @Override
+  public ImmutableSet<QueryTarget> eval(QueryExpression exp, QueryEnvironment env)
+      throws QueryException {
+    ImmutableSet<QueryTarget> result = results.get(exp);
+    if (result == null) {
+      result = exp.eval(this, env);
+      if (shouldMemoize.test(exp)) {
+        results.put(exp, result);
+      }
+    }
+    return result;
+  }
+
+  public boolean isPresent(QueryExpression exp) {
+    return results.containsKey(exp);
+  }
+}
@@ -90,6 +90,21 @@ public abstract class QueryExpression {
     return collector.getTargets();
   }
 
+  /** Returns whether the function with the given name is called anywhere within this expression. */
+  public boolean usesFunction(String functionName) {
+    boolean[] found = {false};
+    traverse(
+        exp -> {
+          if (exp instanceof AbstractFunctionExpression
+              && ((AbstractFunctionExpression) exp).getFunction().getName().equals(functionName)) {
+            found[0] = true;
+            return VisitResult.SKIP_SUBTREE;
+          }
+          return VisitResult.CONTINUE;
+        });
+    return found[0];
+  }
+
   /** Returns this query expression pretty-printed. */
   @Override
   public abstract String toString();
@@ -15,16 +15,21 @@
  */
 package com.facebook.buck.rules;
 
+import com.facebook.buck.artifact_cache.config.ArtifactCodec;
 import com.facebook.buck.config.BuckConfig;
 import com.facebook.buck.config.ConfigView;
 import com.facebook.buck.config.resources.ResourcesConfig;
+import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.immutables.BuckStyleTuple;
+import com.facebook.buck.util.unit.SizeUnit;
 import java.util.Optional;
 import org.immutables.value.Value;
 
 @Value.Immutable
 @BuckStyleTuple
 abstract class AbstractCachingBuildEngineBuckConfig implements ConfigView<BuckConfig> {
+  private static final long DEFAULT_LAZY_OUTPUTS_MAX_SIZE_BYTES = SizeUnit.GIGABYTES.toBytes(10);
+
   /** @return the mode with which to run the build engine. */
   public CachingBuildEngine.BuildMode getBuildEngineMode() {
     return getDelegate()
@@ -67,6 +72,62 @@ abstract class AbstractCachingBuildEngineBuckConfig implements ConfigView<BuckCo
     return getDelegate().getLong("build", "artifact_cache_size_limit");
   }
 
+  /**
+   * @return the maximum number of artifact fetches the build engine groups into a single
+   *     multi-fetch. With 0 or 1, the artifact of every rule is fetched separately.
+   */
+  public int getBuildArtifactFetchBatchSize() {
+    int batchSize = getDelegate().getInteger("build", "artifact_fetch_batch_size").orElse(0);
+    if (batchSize < 0) {
+      throw new HumanReadableException(
+          "build.artifact_fetch_batch_size must not be negative (was %d)", batchSize);
+    }
+    return batchSize;
+  }
+
+  /** @return how the build engine encodes the artifacts it stores to the cache. */
+  public ArtifactCodec getBuildArtifactCodec() {
+    return getDelegate()
+        .getEnum("build", "artifact_codec", ArtifactCodec.class)
+        .orElse(ArtifactCodec.ZIP);
+  }
+
+  /** @return the order in which the build engine builds the rules which are ready to be built. */
+  public CachingBuildEngine.SchedulingMode getBuildSchedulingMode() {
+    return getDelegate()
+        .getEnum("build", "scheduling_mode", CachingBuildEngine.SchedulingMode.class)
+        .orElse(CachingBuildEngine.SchedulingMode.FIFO);
+  }
+
+  /**
+   * @return when the build engine writes the outputs of the rules fetched from the cache to the
+   *     project filesystem.
+   */
+  public CachingBuildEngine.MaterializationMode getBuildMaterializationMode() {
+    return getDelegate()
+        .getEnum("build", "materialization", CachingBuildEngine.MaterializationMode.class)
+        .orElse(CachingBuildEngine.MaterializationMode.EAGER);
+  }
+
+  /**
+   * @return how large the artifacts kept for the outputs which haven't been materialized can grow
+   *     before the least recently used ones are evicted.
+   */
+  public long getLazyOutputsMaxSizeBytes() {
+    return getDelegate()
+        .getValue("build", "lazy_outputs_max_size")
+        .map(SizeUnit::parseBytes)
+        .orElse(DEFAULT_LAZY_OUTPUTS_MAX_SIZE_BYTES);
+  }
+
+  /**
+   * @return whether to record how long each rule took to build, to inform the scheduling of later
+   *     builds.
+   */
+  public boolean isRuleExecutionHistoryEnabled() {
+    return getDelegate().getBooleanValue("build", "rule_history", true);
+  }
+
   public ResourceAwareSchedulingInfo getResourceAwareSchedulingInfo() {
     ResourcesConfig resourcesConfig = getDelegate().getView(ResourcesConfig.class);
     return ResourceAwareSchedulingInfo.of(
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.util.immutables.BuckStyleImmutable;
+import org.immutables.value.Value;
+
+/** How long the last execution of a rule took, as stored in the {@link RuleExecutionHistory}. */
+@Value.Immutable
+@BuckStyleImmutable
+abstract class AbstractRuleExecutionRecord {
+
+  /** @return the wall time it took to build the rule locally, or 0 if it was never built. */
+  @Value.Default
+  public long getWallMillis() {
+    return 0;
+  }
+
+  /** @return the CPU time of the thread which built the rule locally. */
+  @Value.Default
+  public long getCpuMillis() {
+    return 0;
+  }
+
+  /** @return the wall time it took to look the rule up in the artifact cache. */
+  @Value.Default
+  public long getCacheFetchMillis() {
+    return 0;
+  }
+
+  /** @return the size of the outputs of the rule, in bytes. */
+  @Value.Default
+  public long getOutputSize() {
+    return 0;
+  }
+}
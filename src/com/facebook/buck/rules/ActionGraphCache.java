@@ -343,7 +343,12 @@ public class ActionGraphCache {
     switch (parallelizationMode) {
       case ENABLED:
         return createActionGraphInParallel(
-            transformer, targetGraph, cellProvider, incrementalActionGraphMode, poolSupplier.get());
+            eventBus,
+            transformer,
+            targetGraph,
+            cellProvider,
+            incrementalActionGraphMode,
+            poolSupplier.get());
       case DISABLED:
         return createActionGraphSerially(
             eventBus,
@@ -361,6 +366,7 @@ public class ActionGraphCache {
   }
 
   private ActionGraphAndResolver createActionGraphInParallel(
+      BuckEventBus eventBus,
       TargetNodeToBuildRuleTransformer transformer,
       TargetGraph targetGraph,
       CellProvider cellProvider,
@@ -371,7 +377,7 @@ public class ActionGraphCache {
     HashMap<BuildTarget, CompletableFuture<BuildRule>> futures = new HashMap<>();
 
     if (incrementalActionGraphMode == IncrementalActionGraphMode.ENABLED) {
-      nodeCache.prepareForTargetGraphWalk(targetGraph, resolver);
+      nodeCache.prepareForTargetGraphWalk(eventBus, targetGraph, resolver);
     }
     try {
       // Don't descend into a node's children if we're loading that node from the cache, as the
@@ -439,7 +445,7 @@ public class ActionGraphCache {
         new SingleThreadedBuildRuleResolver(targetGraph, transformer, cellProvider);
 
     if (incrementalActionGraphMode == IncrementalActionGraphMode.ENABLED) {
-      nodeCache.prepareForTargetGraphWalk(targetGraph, resolver);
+      nodeCache.prepareForTargetGraphWalk(eventBus, targetGraph, resolver);
     }
     try {
       // Don't descend into a node's children if we're loading that node from the cache, as the
@@ -16,6 +16,8 @@
 
 package com.facebook.buck.rules;
 
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.graph.TopologicalSort;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.util.RichStream;
@@ -24,6 +26,10 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -44,15 +50,23 @@ import javax.annotation.Nullable;
  * into the new action graph, without traversing further down in the target graph. Once we've
  * completed the walk, we make sure to update the {@link BuildRuleResolver}s any of the build rules
  * might be hanging on to to prevent leaking the previous action graph.
+ *
+ * <p>Entries are keyed by the {@link TargetGraphHashing} hash of their target node, which covers
+ * the node's whole subgraph, rather than by build target. Invalidation only drops the entries of
+ * the current hashes, so subgraphs cached for other versions of a target survive, and are reused
+ * when builds switch back and forth between different sets of targets.
  */
 public class ActionGraphNodeCache {
   private static class CacheEntry {
     private final TargetNode<?, ?> targetNode;
     private final BuildRule buildRule;
+    private final ImmutableList<CacheEntry> depEntries;
 
-    public CacheEntry(TargetNode<?, ?> targetNode, BuildRule buildRule) {
+    public CacheEntry(
+        TargetNode<?, ?> targetNode, BuildRule buildRule, ImmutableList<CacheEntry> depEntries) {
       this.targetNode = targetNode;
       this.buildRule = buildRule;
+      this.depEntries = depEntries;
     }
 
     public TargetNode<?, ?> getTargetNode() {
@@ -62,11 +76,17 @@ public class ActionGraphNodeCache {
     public BuildRule getBuildRule() {
       return buildRule;
     }
+
+    /** @return the entries of the target graph deps this entry's build rule was created with. */
+    public ImmutableList<CacheEntry> getDepEntries() {
+      return depEntries;
+    }
   }
 
   private static final Logger LOG = Logger.get(ActionGraphNodeCache.class);
 
-  private final Cache<BuildTarget, CacheEntry> buildRuleSubgraphCache;
+  private final Cache<HashCode, CacheEntry> buildRuleSubgraphCache;
+  private ImmutableMap<BuildTarget, HashCode> targetHashes = ImmutableMap.of();
   private Map<BuildRule, SortedSet<BuildRule>> lastDepsCache = new ConcurrentHashMap<>();
   private Map<BuildRule, SortedSet<BuildRule>> depsCache = new ConcurrentHashMap<>();
   @Nullable private BuildRuleResolver lastRuleResolver;
@@ -79,7 +99,7 @@ public class ActionGraphNodeCache {
 
   /** Checks whether a target node equivalent to the given target node is cached. */
   public boolean containsKey(TargetNode<?, ?> targetNode) {
-    CacheEntry cacheEntry = buildRuleSubgraphCache.getIfPresent(targetNode.getBuildTarget());
+    CacheEntry cacheEntry = getEntry(targetNode.getBuildTarget());
     if (cacheEntry == null) {
       return false;
     }
@@ -109,9 +129,15 @@ public class ActionGraphNodeCache {
     return newBuildRule;
   }
 
+  @Nullable
+  private CacheEntry getEntry(BuildTarget buildTarget) {
+    HashCode hash = targetHashes.get(buildTarget);
+    return hash == null ? null : buildRuleSubgraphCache.getIfPresent(hash);
+  }
+
   @Nullable
   private BuildRule getIfPresent(TargetNode<?, ?> targetNode) {
-    CacheEntry cacheEntry = buildRuleSubgraphCache.getIfPresent(targetNode.getBuildTarget());
+    CacheEntry cacheEntry = getEntry(targetNode.getBuildTarget());
     if (cacheEntry == null) {
       if (LOG.isVerboseEnabled()) {
         LOG.verbose("cache miss for target %s", targetNode.getBuildTarget().toString());
@@ -139,7 +165,8 @@ public class ActionGraphNodeCache {
     // cannot generally guarantee that build rules won't do crazy things that violate our
     // assumptions during their construction. We further require that our children are also
     // cached to disallow caching nodes with uncacheable descendants.
-    if (!(buildRule instanceof CacheableBuildRule) || !areDirectTargetGraphDepsCached(targetNode)) {
+    ImmutableList<CacheEntry> depEntries = getDirectTargetGraphDepEntries(targetNode);
+    if (!(buildRule instanceof CacheableBuildRule) || depEntries == null) {
       if (LOG.isVerboseEnabled()) {
         LOG.verbose(
             "not caching target %s of type %s",
@@ -157,16 +184,23 @@ public class ActionGraphNodeCache {
           "caching target %s of type %s",
           targetNode.getBuildTarget().toString(), buildRule.getType());
     }
-    buildRuleSubgraphCache.put(targetNode.getBuildTarget(), new CacheEntry(targetNode, buildRule));
+    buildRuleSubgraphCache.put(
+        Preconditions.checkNotNull(targetHashes.get(targetNode.getBuildTarget())),
+        new CacheEntry(targetNode, buildRule, depEntries));
   }
 
-  private boolean areDirectTargetGraphDepsCached(TargetNode<?, ?> targetNode) {
+  /** @return the cache entries of all direct deps, or null if any of them isn't cached. */
+  @Nullable
+  private ImmutableList<CacheEntry> getDirectTargetGraphDepEntries(TargetNode<?, ?> targetNode) {
+    ImmutableList.Builder<CacheEntry> depEntries = ImmutableList.builder();
     for (BuildTarget dep : targetNode.getParseDeps()) {
-      if (buildRuleSubgraphCache.getIfPresent(dep) == null) {
-        return false;
+      CacheEntry depEntry = getEntry(dep);
+      if (depEntry == null) {
+        return null;
       }
+      depEntries.add(depEntry);
     }
-    return true;
+    return depEntries.build();
   }
 
   private void addBuildRuleSubgraphToIndex(BuildRule buildRule, BuildRuleResolver resolver) {
@@ -243,10 +277,13 @@ public class ActionGraphNodeCache {
    *
    * <p>Must be called before any {@see #requireRule} calls.
    */
-  public void prepareForTargetGraphWalk(TargetGraph targetGraph, BuildRuleResolver ruleResolver) {
+  public void prepareForTargetGraphWalk(
+      BuckEventBus eventBus, TargetGraph targetGraph, BuildRuleResolver ruleResolver) {
     Preconditions.checkState(!isTargetGraphWalkInProgress);
     isTargetGraphWalkInProgress = true;
 
+    targetHashes = hashTargetGraph(eventBus, targetGraph);
+
     // We cache the last build rule resolver so we can grab runtimeDeps for cached rules from it.
     lastRuleResolver = this.ruleResolver;
     this.ruleResolver = ruleResolver;
@@ -275,6 +312,23 @@ public class ActionGraphNodeCache {
         String.valueOf(stopwatch.elapsed(TimeUnit.MILLISECONDS) / 1000.0));
   }
 
+  private static ImmutableMap<BuildTarget, HashCode> hashTargetGraph(
+      BuckEventBus eventBus, TargetGraph targetGraph) {
+    // Hashing the nodes bottom up means the hashes of deps are always done by the time a node
+    // needs them, so the futures can run on the calling thread without any recursion.
+    try {
+      return new TargetGraphHashing(
+              eventBus,
+              targetGraph,
+              TopologicalSort.sort(targetGraph),
+              MoreExecutors.newDirectExecutorService())
+          .hashTargetGraph();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
   private boolean invalidateChangedTargets(
       TargetNode<?, ?> node, TargetGraph targetGraph, Map<BuildTarget, Boolean> explored) {
     if (explored.containsKey(node.getBuildTarget())) {
@@ -296,7 +350,7 @@ public class ActionGraphNodeCache {
       if (LOG.isVerboseEnabled()) {
         LOG.verbose("invalidating target %s", node.getBuildTarget().toString());
       }
-      buildRuleSubgraphCache.invalidate(node.getBuildTarget());
+      buildRuleSubgraphCache.invalidate(targetHashes.get(node.getBuildTarget()));
       invalidateParent = true;
     }
 
@@ -305,7 +359,7 @@ public class ActionGraphNodeCache {
   }
 
   private boolean shouldInvalidateParentChain(TargetNode<?, ?> targetNode) {
-    CacheEntry cacheEntry = buildRuleSubgraphCache.getIfPresent(targetNode.getBuildTarget());
+    CacheEntry cacheEntry = getEntry(targetNode.getBuildTarget());
     if (cacheEntry == null) {
       // If the node isn't cached, we need to invalidate the parent chain. There is an edge case
       // where we run out of room in the cache, and potentially push out a child of a cached node.
@@ -326,6 +380,17 @@ public class ActionGraphNodeCache {
           "target %s of type %s caused invalidation due to target node change",
           targetNode.getBuildTarget().toString(), cacheEntry.getBuildRule().getType());
     }
+    if (!shouldInvalidate
+        && !cacheEntry.getDepEntries().equals(getDirectTargetGraphDepEntries(targetNode))) {
+      // A dep was cached again since this entry was created, while this entry was out of the
+      // target graph, e.g. after a change which its hash doesn't cover.
+      if (LOG.isVerboseEnabled()) {
+        LOG.verbose(
+            "target %s of type %s caused invalidation due to dep change",
+            targetNode.getBuildTarget().toString(), cacheEntry.getBuildRule().getType());
+      }
+      shouldInvalidate = true;
+    }
     return shouldInvalidate;
   }
 
@@ -16,7 +16,9 @@
 
 package com.facebook.buck.rules;
 
+import com.facebook.buck.artifact_cache.ArtifactArchives;
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.ArtifactPayloadConsumer;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.event.ArtifactCompressionEvent;
@@ -30,15 +32,20 @@ import com.facebook.buck.util.Scope;
 import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.facebook.buck.util.unarchive.ArchiveFormat;
 import com.facebook.buck.util.unarchive.ExistingFileMode;
+import com.facebook.buck.util.unarchive.StreamingUnzipper;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 import java.util.zip.ZipFile;
 
 public class BuildCacheArtifactFetcher {
@@ -53,6 +60,7 @@ public class BuildCacheArtifactFetcher {
   private final BuildInfoStoreManager buildInfoStoreManager;
   private final CachingBuildEngine.MetadataStorage metadataStorage;
   private final OnDiskBuildInfo onDiskBuildInfo;
+  private final Optional<LazyOutputMaterializer> lazyOutputMaterializer;
 
   public BuildCacheArtifactFetcher(
       BuildRule rule,
@@ -62,7 +70,8 @@ public class BuildCacheArtifactFetcher {
       BuckEventBus eventBus,
       BuildInfoStoreManager buildInfoStoreManager,
       CachingBuildEngine.MetadataStorage metadataStorage,
-      OnDiskBuildInfo onDiskBuildInfo) {
+      OnDiskBuildInfo onDiskBuildInfo,
+      Optional<LazyOutputMaterializer> lazyOutputMaterializer) {
     this.rule = rule;
     this.buildRuleScopeManager = buildRuleScopeManager;
     this.executorService = executorService;
@@ -71,6 +80,7 @@ public class BuildCacheArtifactFetcher {
     this.buildInfoStoreManager = buildInfoStoreManager;
     this.metadataStorage = metadataStorage;
     this.onDiskBuildInfo = onDiskBuildInfo;
+    this.lazyOutputMaterializer = lazyOutputMaterializer;
   }
 
   private Scope buildRuleScope() {
@@ -80,6 +90,25 @@ public class BuildCacheArtifactFetcher {
   public ListenableFuture<CacheResult>
       tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
           RuleKey ruleKey, ArtifactCache artifactCache, ProjectFilesystem filesystem) {
+    return tryToFetchArtifactFromBuildCache(ruleKey, artifactCache, filesystem, false);
+  }
+
+  /**
+   * Like {@link #tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem}, but only
+   * writes the artifact metadata to the project filesystem when the outputs of the rule can be
+   * materialized lazily, and keeps the other files in the lazy output storage.
+   */
+  public ListenableFuture<CacheResult> tryToFetchArtifactFromBuildCacheWithLazyOutputs(
+      RuleKey ruleKey, ArtifactCache artifactCache, ProjectFilesystem filesystem) {
+    return tryToFetchArtifactFromBuildCache(
+        ruleKey, artifactCache, filesystem, lazyOutputMaterializer.isPresent());
+  }
+
+  private ListenableFuture<CacheResult> tryToFetchArtifactFromBuildCache(
+      RuleKey ruleKey,
+      ArtifactCache artifactCache,
+      ProjectFilesystem filesystem,
+      boolean storeOutputs) {
     if (!rule.isCacheable()) {
       return Futures.immediateFuture(CacheResult.ignored());
     }
@@ -96,39 +125,72 @@ public class BuildCacheArtifactFetcher {
           }
         };
 
-    // TODO(mbolin): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
-    // Then we could download directly from the remote cache into the on-disk cache and unzip it
-    // from there.
-    return Futures.transformAsync(
-        fetch(artifactCache, ruleKey, lazyZipPath),
-        cacheResult -> {
-          try (Scope ignored = buildRuleScope()) {
-            // Verify that the rule key we used to fetch the artifact is one of the rule keys
-            // reported in it's metadata.
-            if (cacheResult.getType().isSuccess()) {
-              ImmutableSet<RuleKey> ruleKeys =
-                  RichStream.from(cacheResult.getMetadata().entrySet())
-                      .filter(e -> BuildInfo.RULE_KEY_NAMES.contains(e.getKey()))
-                      .map(Map.Entry::getValue)
-                      .map(RuleKey::new)
-                      .toImmutableSet();
-              if (!ruleKeys.contains(ruleKey)) {
-                LOG.warn(
-                    "%s: rule keys in artifact don't match rule key used to fetch it: %s not in %s",
-                    rule.getBuildTarget(), ruleKey, ruleKeys);
-              }
-            }
+    // Caches which download the artifact stream it into a staging directory while it's being
+    // written to the zip file, the zip file is then only used to check the staged files and move
+    // them into place. Artifacts whose outputs are stored are only extracted once they have been
+    // fully fetched.
+    StreamingArtifactExtractor streamingExtractor = new StreamingArtifactExtractor(filesystem);
+    ListenableFuture<CacheResult> fetchResult =
+        storeOutputs
+            ? fetch(artifactCache, ruleKey, lazyZipPath)
+            : fetch(artifactCache, ruleKey, lazyZipPath, streamingExtractor);
 
-            return Futures.immediateFuture(
-                unzipArtifactFromCacheResult(ruleKey, lazyZipPath, filesystem, cacheResult));
-          }
-        });
+    ListenableFuture<CacheResult> result =
+        Futures.transformAsync(
+            fetchResult,
+            cacheResult -> {
+              try (Scope ignored = buildRuleScope()) {
+                // Verify that the rule key we used to fetch the artifact is one of the rule keys
+                // reported in it's metadata.
+                if (cacheResult.getType().isSuccess()) {
+                  ImmutableSet<RuleKey> ruleKeys =
+                      RichStream.from(cacheResult.getMetadata().entrySet())
+                          .filter(e -> BuildInfo.RULE_KEY_NAMES.contains(e.getKey()))
+                          .map(Map.Entry::getValue)
+                          .map(RuleKey::new)
+                          .toImmutableSet();
+                  if (!ruleKeys.contains(ruleKey)) {
+                    LOG.warn(
+                        "%s: rule keys in artifact don't match rule key used to fetch it: %s not in %s",
+                        rule.getBuildTarget(), ruleKey, ruleKeys);
+                  }
+                }
+
+                return Futures.immediateFuture(
+                    unzipArtifactFromCacheResult(
+                        ruleKey,
+                        lazyZipPath,
+                        filesystem,
+                        cacheResult,
+                        streamingExtractor,
+                        storeOutputs));
+              }
+            });
+    // Whatever the outcome, files which were streamed but not moved into place are discarded.
+    result.addListener(streamingExtractor::discard, MoreExecutors.directExecutor());
+    return result;
   }
 
   public ListenableFuture<CacheResult> fetch(
       ArtifactCache artifactCache, RuleKey ruleKey, LazyPath outputPath) {
+    return verifyFetchResult(artifactCache, ruleKey, artifactCache.fetchAsync(ruleKey, outputPath));
+  }
+
+  private ListenableFuture<CacheResult> fetch(
+      ArtifactCache artifactCache,
+      RuleKey ruleKey,
+      LazyPath outputPath,
+      ArtifactPayloadConsumer payloadConsumer) {
+    return verifyFetchResult(
+        artifactCache,
+        ruleKey,
+        artifactCache.fetchStreamingAsync(ruleKey, outputPath, payloadConsumer));
+  }
+
+  private ListenableFuture<CacheResult> verifyFetchResult(
+      ArtifactCache artifactCache, RuleKey ruleKey, ListenableFuture<CacheResult> fetchResult) {
     return Futures.transform(
-        artifactCache.fetchAsync(ruleKey, outputPath),
+        fetchResult,
         (CacheResult cacheResult) -> {
           try (Scope ignored = buildRuleScope()) {
             if (cacheResult.getType() != CacheResultType.HIT) {
@@ -167,7 +229,12 @@ public class BuildCacheArtifactFetcher {
   }
 
   private CacheResult unzipArtifactFromCacheResult(
-      RuleKey ruleKey, LazyPath lazyZipPath, ProjectFilesystem filesystem, CacheResult cacheResult)
+      RuleKey ruleKey,
+      LazyPath lazyZipPath,
+      ProjectFilesystem filesystem,
+      CacheResult cacheResult,
+      StreamingArtifactExtractor streamingExtractor,
+      boolean storeOutputs)
       throws IOException {
 
     // We only unpack artifacts from hits.
@@ -175,7 +242,7 @@ public class BuildCacheArtifactFetcher {
       LOG.debug("Cache miss for '%s' with rulekey '%s'", rule, ruleKey);
       return cacheResult;
     }
-    onOutputsWillChange.call();
+    streamingExtractor.outputsWillChange();
 
     Preconditions.checkState(cacheResult.metadata().isPresent());
     Preconditions.checkArgument(cacheResult.getType() == CacheResultType.HIT);
@@ -205,6 +272,8 @@ public class BuildCacheArtifactFetcher {
       BuildInfoStore buildInfoStore =
           buildInfoStoreManager.get(rule.getProjectFilesystem(), metadataStorage);
 
+      // Artifacts stored with a codec wrapping the zip file are turned back into a zip file first.
+      ArtifactArchives.decodeInPlace(zipPath);
       try (ZipFile artifact = new ZipFile(zipPath.toFile())) {
         onDiskBuildInfo.validateArtifact(artifact);
       }
@@ -215,21 +284,33 @@ public class BuildCacheArtifactFetcher {
           ruleKey,
           BuildInfo.MetadataKey.ORIGIN_BUILD_ID);
 
-      ArchiveFormat.ZIP
-          .getUnarchiver()
-          .extractArchive(
-              zipPath.toAbsolutePath(),
-              filesystem,
-              ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+      Optional<ImmutableMap<String, String>> lazyOutputsMetadata = Optional.empty();
+      if (storeOutputs) {
+        lazyOutputsMetadata =
+            lazyOutputMaterializer.get().extractArtifact(rule, zipPath.toAbsolutePath());
+      }
+      if (!lazyOutputsMetadata.isPresent()
+          && !streamingExtractor.finish(zipPath.toAbsolutePath())) {
+        ArchiveFormat.ZIP
+            .getUnarchiver()
+            .extractArchive(
+                zipPath.toAbsolutePath(),
+                filesystem,
+                ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES);
+      }
 
       // We only delete the ZIP file when it has been unzipped successfully. Otherwise, we leave it
-      // around for debugging purposes.
-      Files.delete(zipPath);
+      // around for debugging purposes. Artifacts whose outputs are stored have been moved into the
+      // lazy output storage.
+      Files.deleteIfExists(zipPath);
 
       // TODO(cjhopman): This should probably record metadata with the buildInfoRecorder, not
       // directly into the buildInfoStore.
       // Also write out the build metadata.
       buildInfoStore.updateMetadata(rule.getBuildTarget(), cacheResult.getMetadata());
+      if (lazyOutputsMetadata.isPresent()) {
+        buildInfoStore.updateMetadata(rule.getBuildTarget(), lazyOutputsMetadata.get());
+      }
     } catch (IOException e) {
       throw new IOException(
           String.format("%s. Suggested fix: try `buck clean`", e.getMessage()), e.getCause());
@@ -243,4 +324,59 @@ public class BuildCacheArtifactFetcher {
   interface OnOutputsWillChange {
     void call() throws IOException;
   }
+
+  /**
+   * Unzips an artifact into a staging directory while it's being downloaded, and moves the files
+   * into the project filesystem once the artifact has been fully fetched and validated. Outputs are
+   * only invalidated once, before either the streamed files or the regular extraction are written.
+   */
+  private class StreamingArtifactExtractor implements ArtifactPayloadConsumer {
+    private final StreamingUnzipper unzipper;
+    private boolean streamed = false;
+    private boolean outputsInvalidated = false;
+
+    private StreamingArtifactExtractor(ProjectFilesystem filesystem) {
+      this.unzipper =
+          new StreamingUnzipper(
+              filesystem,
+              ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES,
+              filesystem.resolve(filesystem.getBuckPaths().getTmpDir()));
+    }
+
+    @Override
+    public synchronized void consume(InputStream payload) throws IOException {
+      try (Scope ignored = buildRuleScope()) {
+        streamed = true;
+        // The decoding stream isn't closed, as the payload is owned by the caller.
+        unzipper.extract(ArtifactArchives.decode(payload));
+      }
+    }
+
+    private synchronized void outputsWillChange() throws IOException {
+      if (!outputsInvalidated) {
+        onOutputsWillChange.call();
+        outputsInvalidated = true;
+      }
+    }
+
+    /** @return whether the streamed files matched the fetched artifact and have been finalized. */
+    private synchronized boolean finish(Path zipPath) throws IOException {
+      if (!streamed) {
+        return false;
+      }
+      boolean finished = unzipper.finish(zipPath).isPresent();
+      if (!finished) {
+        LOG.debug("Streamed artifact for %s didn't match %s, extracting it again.", rule, zipPath);
+      }
+      return finished;
+    }
+
+    private void discard() {
+      try {
+        unzipper.close();
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to discard the files streamed for %s.", rule);
+      }
+    }
+  }
 }
@@ -18,6 +18,7 @@ package com.facebook.buck.rules;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactUploader;
+import com.facebook.buck.artifact_cache.config.ArtifactCodec;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.rules.keys.SupportsInputBasedRuleKey;
 import com.google.common.base.Preconditions;
@@ -38,6 +39,7 @@ public class BuildCacheArtifactUploader {
   private final BuckEventBus eventBus;
   private final ArtifactCache artifactCache;
   private final Optional<Long> artifactCacheSizeLimit;
+  private final ArtifactCodec artifactCodec;
 
   public BuildCacheArtifactUploader(
       RuleKey defaultKey,
@@ -47,7 +49,8 @@ public class BuildCacheArtifactUploader {
       ManifestRuleKeyManager manifestRuleKeyManager,
       BuckEventBus eventBus,
       ArtifactCache artifactCache,
-      Optional<Long> artifactCacheSizeLimit) {
+      Optional<Long> artifactCacheSizeLimit,
+      ArtifactCodec artifactCodec) {
     this.defaultKey = defaultKey;
     this.inputBasedKey = inputBasedKey;
     this.onDiskBuildInfo = onDiskBuildInfo;
@@ -56,6 +59,7 @@ public class BuildCacheArtifactUploader {
     this.eventBus = eventBus;
     this.artifactCache = artifactCache;
     this.artifactCacheSizeLimit = artifactCacheSizeLimit;
+    this.artifactCodec = artifactCodec;
   }
 
   public ListenableFuture<Void> uploadToCache(BuildRuleSuccessType success) throws IOException {
@@ -105,7 +109,8 @@ public class BuildCacheArtifactUploader {
         onDiskBuildInfo.getMetadataForArtifact(),
         onDiskBuildInfo.getPathsForArtifact(),
         rule.getBuildTarget(),
-        rule.getProjectFilesystem());
+        rule.getProjectFilesystem(),
+        artifactCodec);
   }
 
   /** @return whether we should upload the given rules artifacts to cache. */
@@ -23,6 +23,7 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.util.ExitCode;
 import com.google.common.base.Joiner;
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 
 /** Base class for events about building. */
@@ -61,6 +62,11 @@ public abstract class BuildEvent extends AbstractBuckEvent implements WorkAdvanc
     return new UnskippedRuleCountUpdated(ruleCount);
   }
 
+  public static CriticalPathEstimated criticalPathEstimated(
+      ImmutableList<BuildTarget> criticalPath, long estimatedLength) {
+    return new CriticalPathEstimated(criticalPath, estimatedLength);
+  }
+
   public static class Started extends BuildEvent {
 
     private final ImmutableSet<String> buildArgs;
@@ -281,4 +287,49 @@ public abstract class BuildEvent extends AbstractBuckEvent implements WorkAdvanc
       return System.identityHashCode(this);
     }
   }
+
+  /**
+   * Reports the chain of rules which is estimated to take the longest to build, starting with the
+   * rule which all of the others are blocked on.
+   */
+  public static class CriticalPathEstimated extends BuildEvent {
+
+    private final ImmutableList<BuildTarget> criticalPath;
+    private final long estimatedLength;
+
+    protected CriticalPathEstimated(
+        ImmutableList<BuildTarget> criticalPath, long estimatedLength) {
+      super(EventKey.unique());
+      this.criticalPath = criticalPath;
+      this.estimatedLength = estimatedLength;
+    }
+
+    public ImmutableList<BuildTarget> getCriticalPath() {
+      return criticalPath;
+    }
+
+    public long getEstimatedLength() {
+      return estimatedLength;
+    }
+
+    @Override
+    public String getEventName() {
+      return "CriticalPathEstimated";
+    }
+
+    @Override
+    protected String getValueString() {
+      return estimatedLength + ": " + Joiner.on(" -> ").join(criticalPath);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return this == o;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(this);
+    }
+  }
 }
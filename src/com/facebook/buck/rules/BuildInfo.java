@@ -72,6 +72,18 @@ public class BuildInfo {
 
     /** Key for {@link OnDiskBuildInfo} to store the hash of the output. */
     static final String OUTPUT_HASH = "OUTPUT_HASH";
+
+    /**
+     * Key for {@link OnDiskBuildInfo} with a map of the outputs which haven't been materialized yet
+     * to their sizes.
+     */
+    static final String LAZY_OUTPUTS = "LAZY_OUTPUTS";
+
+    /**
+     * Key for {@link OnDiskBuildInfo} with the key in the {@link LazyOutputStorage} of the artifact
+     * holding the outputs which haven't been materialized yet.
+     */
+    static final String LAZY_OUTPUTS_ARTIFACT = "LAZY_OUTPUTS_ARTIFACT";
   }
 
   public static final ImmutableSet<String> METADATA_KEYS =
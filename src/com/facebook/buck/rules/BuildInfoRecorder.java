@@ -18,6 +18,7 @@ package com.facebook.buck.rules;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactUploader;
+import com.facebook.buck.artifact_cache.config.ArtifactCodec;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.log.Logger;
@@ -287,7 +288,8 @@ public class BuildInfoRecorder {
         buildMetadata,
         pathsToIncludeInZip,
         buildTarget,
-        projectFilesystem);
+        projectFilesystem,
+        ArtifactCodec.ZIP);
   }
 
   /** @param pathToArtifact Relative path to the project root. */
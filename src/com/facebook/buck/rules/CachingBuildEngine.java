@@ -17,7 +17,9 @@
 package com.facebook.buck.rules;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
+import com.facebook.buck.artifact_cache.BatchingArtifactCacheDecorator;
 import com.facebook.buck.artifact_cache.CacheResult;
+import com.facebook.buck.artifact_cache.config.ArtifactCodec;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.RuleKeyCalculationEvent;
 import com.facebook.buck.model.BuildTarget;
@@ -38,6 +40,7 @@ import com.facebook.buck.util.concurrent.WeightedListeningExecutorService;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -46,8 +49,11 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -109,6 +115,27 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     SQLITE,
   }
 
+  /** The order in which to build the rules which are ready to be built locally. */
+  public enum SchedulingMode {
+
+    // Build the ready rules in the order in which they became ready.
+    FIFO,
+
+    // Build the ready rules which have the longest chains of rules blocked on them first.
+    CRITICAL_PATH,
+  }
+
+  /** When to write the outputs of the rules fetched from the cache to the project filesystem. */
+  public enum MaterializationMode {
+
+    // Write the outputs of the rules as soon as they are fetched.
+    EAGER,
+
+    // In shallow builds, only write the outputs of the rules once they are read by a rule being
+    // built locally, or once the rules are built as top-level targets or their runtime deps.
+    LAZY,
+  }
+
   /**
    * These are the values returned by {@link BuildEngine#build(BuildEngineBuildContext,
    * ExecutionContext, BuildRule)}. This must always return the same value for the build of each
@@ -131,6 +158,13 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
   private final SourcePathRuleFinder ruleFinder;
   private final SourcePathResolver pathResolver;
   private final Optional<Long> artifactCacheSizeLimit;
+  private final int artifactFetchBatchSize;
+  private final ArtifactCodec artifactCodec;
+  private final Optional<CriticalPathEstimator> criticalPathEstimator;
+  // Caches wrapped to group the fetches of concurrently ready rules, keyed by the wrapped cache.
+  // They are only kept until the engine is closed, at the end of the build.
+  private final ConcurrentMap<ArtifactCache, ArtifactCache> batchingArtifactCaches =
+      Maps.newConcurrentMap();
   private final FileHashCache fileHashCache;
   private final RuleKeyFactories ruleKeyFactories;
   private final ResourceAwareSchedulingInfo resourceAwareSchedulingInfo;
@@ -150,6 +184,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   private final Optional<BuildRuleStrategy> customBuildRuleStrategy;
 
+  private final Optional<LazyOutputMaterializer> lazyOutputMaterializer;
+
   public CachingBuildEngine(
       CachingBuildEngineDelegate cachingBuildEngineDelegate,
       Optional<BuildRuleStrategy> customBuildRuleStrategy,
@@ -160,6 +196,12 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      int artifactFetchBatchSize,
+      ArtifactCodec artifactCodec,
+      SchedulingMode schedulingMode,
+      Optional<RuleExecutionHistory> ruleExecutionHistory,
+      MaterializationMode materializationMode,
+      Optional<LazyOutputStorage> lazyOutputStorage,
       BuildRuleResolver resolver,
       SourcePathRuleFinder ruleFinder,
       SourcePathResolver pathResolver,
@@ -178,6 +220,12 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
         depFiles,
         maxDepFileCacheEntries,
         artifactCacheSizeLimit,
+        artifactFetchBatchSize,
+        artifactCodec,
+        schedulingMode,
+        ruleExecutionHistory,
+        materializationMode,
+        lazyOutputStorage,
         resolver,
         buildInfoStoreManager,
         ruleFinder,
@@ -209,6 +257,12 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
       DepFiles depFiles,
       long maxDepFileCacheEntries,
       Optional<Long> artifactCacheSizeLimit,
+      int artifactFetchBatchSize,
+      ArtifactCodec artifactCodec,
+      SchedulingMode schedulingMode,
+      Optional<RuleExecutionHistory> ruleExecutionHistory,
+      MaterializationMode materializationMode,
+      Optional<LazyOutputStorage> lazyOutputStorage,
       BuildRuleResolver resolver,
       BuildInfoStoreManager buildInfoStoreManager,
       SourcePathRuleFinder ruleFinder,
@@ -228,6 +282,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     this.depFiles = depFiles;
     this.maxDepFileCacheEntries = maxDepFileCacheEntries;
     this.artifactCacheSizeLimit = artifactCacheSizeLimit;
+    this.artifactFetchBatchSize = artifactFetchBatchSize;
+    this.artifactCodec = artifactCodec;
     this.resolver = resolver;
     this.ruleFinder = ruleFinder;
     this.pathResolver = pathResolver;
@@ -237,8 +293,30 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     this.resourceAwareSchedulingInfo = resourceAwareSchedulingInfo;
     this.buildInfoStoreManager = buildInfoStoreManager;
     this.remoteBuildRuleCompletionWaiter = remoteBuildRuleCompletionWaiter;
+    // The outputs stored by previous builds are still materialized on demand when the mode changes.
+    this.lazyOutputMaterializer =
+        lazyOutputStorage.map(
+            storage ->
+                new LazyOutputMaterializer(
+                    storage,
+                    buildInfoStoreManager,
+                    metadataStorage,
+                    materializationMode == MaterializationMode.LAZY
+                        && buildMode == BuildMode.SHALLOW));
 
     this.ruleDeps = new RuleDepsCache(resolver);
+    this.criticalPathEstimator =
+        schedulingMode == SchedulingMode.CRITICAL_PATH
+            ? Optional.of(
+                new CriticalPathEstimator(
+                    ruleDeps,
+                    rule ->
+                        ruleExecutionHistory.isPresent()
+                            ? ruleExecutionHistory
+                                .get()
+                                .estimateWallMillis(rule.getBuildTarget(), rule.getType())
+                            : 1))
+            : Optional.empty();
     this.unskippedRulesTracker = createUnskippedRulesTracker(buildMode, ruleDeps, resolver);
     this.defaultRuleKeyDiagnostics = defaultRuleKeyDiagnostics;
     this.consoleLogBuildFailuresInline = consoleLogBuildFailuresInline;
@@ -258,6 +336,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   @Override
   public void close() {
+    batchingArtifactCaches.clear();
+    criticalPathEstimator.ifPresent(CriticalPathEstimator::reportCriticalPath);
     try {
       if (customBuildRuleStrategy.isPresent()) {
         customBuildRuleStrategy.get().close();
@@ -332,6 +412,13 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
 
   private void registerTopLevelRule(BuildRule rule, BuckEventBus eventBus) {
     unskippedRulesTracker.ifPresent(tracker -> tracker.registerTopLevelRule(rule, eventBus));
+    criticalPathEstimator.ifPresent(estimator -> estimator.registerTopLevelRule(rule, eventBus));
+  }
+
+  private long getSchedulingPriority(BuildRule rule) {
+    return criticalPathEstimator.isPresent()
+        ? criticalPathEstimator.get().getRemainingCriticalPath(rule)
+        : 0;
   }
 
   private void markRuleAsUsed(BuildRule rule, BuckEventBus eventBus) {
@@ -443,10 +530,57 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     // to make sure we wait for these before calling yielding the final build result.
     registerTopLevelRule(rule, buildContext.getEventBus());
     ListenableFuture<BuildResult> resultFuture =
-        getBuildRuleResultWithRuntimeDeps(rule, buildContext, executionContext);
+        getBuildRuleResultWithRuntimeDeps(
+            rule, withBatchedArtifactFetches(buildContext), executionContext);
+    if (lazyOutputMaterializer.isPresent()) {
+      resultFuture =
+          Futures.transform(
+              resultFuture,
+              this::materializeOutputsOfTopLevelRule,
+              serviceByAdjustingDefaultWeightsTo(CACHE_CHECK_RESOURCE_AMOUNTS));
+    }
     return BuildEngineResult.builder().setResult(resultFuture).build();
   }
 
+  private BuildResult materializeOutputsOfTopLevelRule(BuildResult result) {
+    if (!result.isSuccess()) {
+      return result;
+    }
+    try {
+      materializeOutputs(ImmutableList.of(result.getRule()));
+      return result;
+    } catch (IOException e) {
+      return BuildResult.failure(result.getRule(), e);
+    }
+  }
+
+  /**
+   * Writes the outputs of the given rules and of their transitive runtime deps which haven't been
+   * materialized yet.
+   */
+  private void materializeOutputs(Iterable<BuildRule> rules) throws IOException {
+    if (!lazyOutputMaterializer.isPresent()) {
+      return;
+    }
+    Set<BuildRule> seen = new HashSet<>();
+    Deque<BuildRule> toMaterialize = new ArrayDeque<>();
+    Iterables.addAll(toMaterialize, rules);
+    while (!toMaterialize.isEmpty()) {
+      BuildRule rule = toMaterialize.pop();
+      if (!seen.add(rule)) {
+        continue;
+      }
+      lazyOutputMaterializer.get().materialize(rule);
+      if (rule instanceof HasRuntimeDeps) {
+        toMaterialize.addAll(
+            resolver.getAllRules(
+                ((HasRuntimeDeps) rule)
+                    .getRuntimeDeps(ruleFinder)
+                    .collect(ImmutableSet.toImmutableSet())));
+      }
+    }
+  }
+
   @Nullable
   @Override
   public BuildResult getBuildRuleResult(BuildTarget buildTarget)
@@ -491,6 +625,24 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     }
   }
 
+  /**
+   * Wraps the artifact cache of the given context so that the cache fetches of all the rules which
+   * become ready at about the same time are grouped into multi-fetches.
+   */
+  private BuildEngineBuildContext withBatchedArtifactFetches(BuildEngineBuildContext buildContext) {
+    if (artifactFetchBatchSize <= 1) {
+      return buildContext;
+    }
+    return buildContext.withArtifactCache(
+        batchingArtifactCaches.computeIfAbsent(
+            buildContext.getArtifactCache(),
+            cache ->
+                new BatchingArtifactCacheDecorator(
+                    cache,
+                    serviceByAdjustingDefaultWeightsTo(SCHEDULING_MORE_WORK_RESOURCE_AMOUNTS),
+                    artifactFetchBatchSize)));
+  }
+
   private ListenableFuture<BuildResult> processBuildRule(
       BuildRule rule, BuildEngineBuildContext buildContext, ExecutionContext executionContext) {
 
@@ -511,6 +663,7 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     return new CachingBuildRuleBuilder(
             new DefaultBuildRuleBuilderDelegate(this, buildContext),
             artifactCacheSizeLimit,
+            artifactCodec,
             buildInfoStoreManager,
             buildMode,
             buildRuleDurationTracker,
@@ -534,7 +687,8 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
             buildableContext,
             pipelinesRunner,
             remoteBuildRuleCompletionWaiter,
-            customBuildRuleStrategy)
+            customBuildRuleStrategy,
+            lazyOutputMaterializer)
         .build();
   }
 
@@ -585,5 +739,15 @@ public class CachingBuildEngine implements BuildEngine, Closeable {
     public void onRuleAboutToBeBuilt(BuildRule rule) {
       cachingBuildEngine.cachingBuildEngineDelegate.onRuleAboutToBeBuilt(rule);
     }
+
+    @Override
+    public void materializeDepOutputs(BuildRule rule) throws IOException {
+      cachingBuildEngine.materializeOutputs(rule.getBuildDeps());
+    }
+
+    @Override
+    public long getSchedulingPriority(BuildRule rule) {
+      return cachingBuildEngine.getSchedulingPriority(rule);
+    }
   }
 }
@@ -21,6 +21,7 @@ import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
 import com.facebook.buck.artifact_cache.RuleKeyCacheResult;
 import com.facebook.buck.artifact_cache.RuleKeyCacheResultEvent;
+import com.facebook.buck.artifact_cache.config.ArtifactCodec;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.event.LeafEvents;
@@ -138,10 +139,12 @@ class CachingBuildRuleBuilder {
   @Nullable private volatile ManifestFetchResult manifestFetchResult = null;
   @Nullable private volatile ManifestStoreResult manifestStoreResult = null;
   private final Optional<BuildRuleStrategy> customBuildRuleStrategy;
+  private final Optional<LazyOutputMaterializer> lazyOutputMaterializer;
 
   public CachingBuildRuleBuilder(
       BuildRuleBuilderDelegate buildRuleBuilderDelegate,
       Optional<Long> artifactCacheSizeLimit,
+      ArtifactCodec artifactCodec,
       BuildInfoStoreManager buildInfoStoreManager,
       CachingBuildEngine.BuildMode buildMode,
       BuildRuleDurationTracker buildRuleDurationTracker,
@@ -165,7 +168,8 @@ class CachingBuildRuleBuilder {
       BuildableContext buildableContext,
       BuildRulePipelinesRunner pipelinesRunner,
       RemoteBuildRuleCompletionWaiter remoteBuildRuleCompletionWaiter,
-      Optional<BuildRuleStrategy> customBuildRuleStrategy) {
+      Optional<BuildRuleStrategy> customBuildRuleStrategy,
+      Optional<LazyOutputMaterializer> lazyOutputMaterializer) {
     this.buildRuleBuilderDelegate = buildRuleBuilderDelegate;
     this.buildMode = buildMode;
     this.buildRuleDurationTracker = buildRuleDurationTracker;
@@ -214,7 +218,8 @@ class CachingBuildRuleBuilder {
             eventBus,
             buildInfoStoreManager,
             metadataStorage,
-            onDiskBuildInfo);
+            onDiskBuildInfo,
+            lazyOutputMaterializer.filter(materializer -> materializer.canStoreOutputsOf(rule)));
     inputBasedRuleKeyManager =
         new InputBasedRuleKeyManager(
             eventBus,
@@ -246,8 +251,10 @@ class CachingBuildRuleBuilder {
             manifestRuleKeyManager,
             eventBus,
             artifactCache,
-            artifactCacheSizeLimit);
+            artifactCacheSizeLimit,
+            artifactCodec);
     this.customBuildRuleStrategy = customBuildRuleStrategy;
+    this.lazyOutputMaterializer = lazyOutputMaterializer;
   }
 
   // Return a `BuildResult.Builder` with rule-specific state pre-filled.
@@ -450,6 +457,7 @@ class CachingBuildRuleBuilder {
             finalizeMatchingKey(success);
             break;
         }
+        prepareLazyOutputs();
       } catch (Exception e) {
         throw new BuckUncheckedExecutionException(e, "When finalizing rule.");
       }
@@ -473,6 +481,22 @@ class CachingBuildRuleBuilder {
     }
   }
 
+  /**
+   * Makes the outputs of the rule which haven't been materialized readable through the file hash
+   * cache, or materializes them if their hashes aren't kept.
+   */
+  private void prepareLazyOutputs() throws IOException {
+    if (!lazyOutputMaterializer.isPresent()) {
+      return;
+    }
+    Optional<String> outputSize = onDiskBuildInfo.getValue(BuildInfo.MetadataKey.OUTPUT_SIZE);
+    if (outputSize.isPresent() && shouldWriteOutputHashes(Long.parseLong(outputSize.get()))) {
+      lazyOutputMaterializer.get().registerOutputHashes(rule, onDiskBuildInfo, fileHashCache);
+    } else {
+      lazyOutputMaterializer.get().materialize(rule);
+    }
+  }
+
   private void finalizeFetchedFromCache(BuildRuleSuccessType success)
       throws StepFailedException, InterruptedException, IOException {
     // For rules fetched from cache, we want to overwrite just the minimum set of things from the
@@ -758,6 +782,11 @@ class CachingBuildRuleBuilder {
           }
         };
     if (customBuildRuleStrategy.isPresent() && customBuildRuleStrategy.get().canBuild(rule)) {
+      try {
+        buildRuleBuilderDelegate.materializeDepOutputs(rule);
+      } catch (IOException e) {
+        return Futures.immediateFailedFuture(e);
+      }
       customBuildRuleStrategy.get().build(service, rule, runner);
     } else {
       service.execute(runner::runWithDefaultExecutor);
@@ -766,6 +795,8 @@ class CachingBuildRuleBuilder {
   }
 
   private ListenableFuture<Optional<BuildResult>> checkManifestBasedCaches() throws IOException {
+    // Dep-file rule keys can look into the outputs of the deps.
+    buildRuleBuilderDelegate.materializeDepOutputs(rule);
     Optional<RuleKeyAndInputs> manifestKeyAndInputs = manifestBasedKeySupplier.get();
     if (!manifestKeyAndInputs.isPresent()) {
       return Futures.immediateFuture(Optional.empty());
@@ -793,6 +824,7 @@ class CachingBuildRuleBuilder {
   }
 
   private Optional<BuildResult> checkMatchingDepfile() throws IOException {
+    buildRuleBuilderDelegate.materializeDepOutputs(rule);
     return dependencyFileRuleKeyManager.checkMatchingDepfile()
         ? Optional.of(
             success(
@@ -927,7 +959,8 @@ class CachingBuildRuleBuilder {
                     service
                         // This needs to adjust the default amounts even in the non-resource-aware
                         // scheduling case so that RuleScheduleInfo works correctly.
-                        .withDefaultAmounts(getRuleResourceAmounts())));
+                        .withDefaultAmounts(getRuleResourceAmounts())
+                        .withPriority(buildRuleBuilderDelegate.getSchedulingPriority(rule))));
 
     if (SupportsPipelining.isSupported(rule)) {
       buildResultFuture.addListener(
@@ -973,9 +1006,12 @@ class CachingBuildRuleBuilder {
     pipelinesRunner.addRule(rule, pipeline -> new BuildRuleSteps<T>(cacheResult, pipeline));
   }
 
-  private Optional<BuildResult> checkMatchingLocalKey() {
+  private Optional<BuildResult> checkMatchingLocalKey() throws IOException {
     Optional<RuleKey> cachedRuleKey = onDiskBuildInfo.getRuleKey(BuildInfo.MetadataKey.RULE_KEY);
-    if (defaultKey.equals(cachedRuleKey.orElse(null))) {
+    // Outputs which haven't been materialized may have been evicted from the lazy output storage.
+    if (defaultKey.equals(cachedRuleKey.orElse(null))
+        && (!lazyOutputMaterializer.isPresent()
+            || lazyOutputMaterializer.get().hasStoredOutputs(rule))) {
       return Optional.of(
           success(BuildRuleSuccessType.MATCHING_RULE_KEY, CacheResult.localKeyUnchangedHit()));
     }
@@ -986,7 +1022,7 @@ class CachingBuildRuleBuilder {
     long cacheRequestTimestampMillis = System.currentTimeMillis();
     return Futures.transform(
         buildCacheArtifactFetcher
-            .tryToFetchArtifactFromBuildCacheAndOverlayOnTopOfProjectFilesystem(
+            .tryToFetchArtifactFromBuildCacheWithLazyOutputs(
                 defaultKey,
                 artifactCache,
                 // TODO(simons): This should be a shared between all tests, not one per cell
@@ -1263,6 +1299,7 @@ class CachingBuildRuleBuilder {
         throws InterruptedException, StepFailedException, IOException {
       try {
         onOutputsWillChange();
+        buildRuleBuilderDelegate.materializeDepOutputs(rule);
       } catch (IOException e) {
         throw new BuckUncheckedExecutionException(e);
       }
@@ -1343,6 +1380,12 @@ class CachingBuildRuleBuilder {
     Throwable getFirstFailure();
 
     void onRuleAboutToBeBuilt(BuildRule rule);
+
+    /** Writes the outputs of the deps of the rule which haven't been materialized yet. */
+    void materializeDepOutputs(BuildRule rule) throws IOException;
+
+    /** @return the priority with which to queue the local build of the rule for resources. */
+    long getSchedulingPriority(BuildRule rule);
   }
 
   /**
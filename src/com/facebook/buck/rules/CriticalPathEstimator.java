@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.graph.AcyclicDepthFirstPostOrderTraversal;
+import com.facebook.buck.model.BuildTarget;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Estimates, for every rule of a build, the length of its remaining critical path: the duration of
+ * the longest chain of rules which starts with the rule and ends with one of the top-level rules.
+ *
+ * <p>Rules with longer remaining critical paths are the ones which should be started first when
+ * there are more ready rules than there are resources to build them, since whatever they block will
+ * take the longest to finish.
+ *
+ * <p>Top-level rules may be registered while the build is already running. The estimates are then
+ * updated by only walking the dependencies of the new top-level rules: no other rule gains a
+ * dependent, and a rule's estimate can only grow by the chains through those dependents.
+ */
+class CriticalPathEstimator {
+
+  private final RuleDepsCache ruleDeps;
+  private final ToLongFunction<BuildRule> durationEstimator;
+
+  @GuardedBy("this")
+  private final Set<BuildRule> topLevelRules = new HashSet<>();
+
+  /** Top-level rules which were registered since the estimates were last updated. */
+  @GuardedBy("this")
+  private final List<BuildRule> newTopLevelRules = new ArrayList<>();
+
+  @GuardedBy("this")
+  private final Map<BuildRule, Long> remainingCriticalPaths = new HashMap<>();
+
+  /** Maps every rule to the dependent which starts the longest chain blocked on it. */
+  @GuardedBy("this")
+  private final Map<BuildRule, BuildRule> longestBlockedChainStarts = new HashMap<>();
+
+  @GuardedBy("this")
+  @Nullable
+  private BuildRule criticalPathStart = null;
+
+  @GuardedBy("this")
+  private long criticalPath = 0;
+
+  @GuardedBy("this")
+  @Nullable
+  private BuckEventBus eventBus = null;
+
+  /**
+   * @param durationEstimator returns the expected duration of building a single rule, in any unit,
+   *     as long as it's the same for all rules.
+   */
+  CriticalPathEstimator(RuleDepsCache ruleDeps, ToLongFunction<BuildRule> durationEstimator) {
+    this.ruleDeps = ruleDeps;
+    this.durationEstimator = durationEstimator;
+  }
+
+  synchronized void registerTopLevelRule(BuildRule rule, BuckEventBus eventBus) {
+    this.eventBus = eventBus;
+    if (topLevelRules.add(rule)) {
+      newTopLevelRules.add(rule);
+    }
+  }
+
+  /**
+   * @return the estimated remaining critical path of the given rule, or 0 if the rule isn't a
+   *     dependency of any of the top-level rules.
+   */
+  synchronized long getRemainingCriticalPath(BuildRule rule) {
+    if (!newTopLevelRules.isEmpty()) {
+      estimate(newTopLevelRules);
+      newTopLevelRules.clear();
+    }
+    return remainingCriticalPaths.getOrDefault(rule, 0L);
+  }
+
+  /**
+   * Reports the critical path of the build, once all of its top-level rules were registered. Does
+   * nothing if no rule was scheduled by the estimates.
+   */
+  synchronized void reportCriticalPath() {
+    if (eventBus == null || criticalPathStart == null) {
+      return;
+    }
+    if (!newTopLevelRules.isEmpty()) {
+      estimate(newTopLevelRules);
+      newTopLevelRules.clear();
+    }
+    List<BuildTarget> criticalPathTargets = new ArrayList<>();
+    for (BuildRule rule = criticalPathStart;
+        rule != null;
+        rule = longestBlockedChainStarts.get(rule)) {
+      criticalPathTargets.add(rule.getBuildTarget());
+    }
+    eventBus.post(
+        BuildEvent.criticalPathEstimated(ImmutableList.copyOf(criticalPathTargets), criticalPath));
+    eventBus = null;
+  }
+
+  @GuardedBy("this")
+  private void estimate(Iterable<BuildRule> newTopLevelRules) {
+    Iterable<BuildRule> dependenciesFirst;
+    try {
+      dependenciesFirst =
+          new AcyclicDepthFirstPostOrderTraversal<BuildRule>(rule -> ruleDeps.get(rule).iterator())
+              .traverse(newTopLevelRules);
+    } catch (AcyclicDepthFirstPostOrderTraversal.CycleException e) {
+      throw new IllegalStateException(e);
+    }
+
+    // Visit dependents before their dependencies, so that the longest chain blocked on a rule is
+    // known by the time the rule is visited.
+    Map<BuildRule, Long> longestNewBlockedChains = new HashMap<>();
+    Map<BuildRule, BuildRule> longestNewBlockedChainStarts = new HashMap<>();
+    for (BuildRule rule : Lists.reverse(ImmutableList.copyOf(dependenciesFirst))) {
+      long remainingCriticalPath =
+          durationEstimator.applyAsLong(rule) + longestNewBlockedChains.getOrDefault(rule, 0L);
+      Long previousRemainingCriticalPath = remainingCriticalPaths.get(rule);
+      if (previousRemainingCriticalPath == null
+          || remainingCriticalPath > previousRemainingCriticalPath) {
+        remainingCriticalPaths.put(rule, remainingCriticalPath);
+        BuildRule chainStart = longestNewBlockedChainStarts.get(rule);
+        if (chainStart == null) {
+          longestBlockedChainStarts.remove(rule);
+        } else {
+          longestBlockedChainStarts.put(rule, chainStart);
+        }
+      } else {
+        remainingCriticalPath = previousRemainingCriticalPath;
+      }
+      if (criticalPathStart == null || remainingCriticalPath > criticalPath) {
+        criticalPath = remainingCriticalPath;
+        criticalPathStart = rule;
+      }
+      for (BuildRule dep : ruleDeps.get(rule)) {
+        if (remainingCriticalPath > longestNewBlockedChains.getOrDefault(dep, -1L)) {
+          longestNewBlockedChains.put(dep, remainingCriticalPath);
+          longestNewBlockedChainStarts.put(dep, rule);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.io.file.MorePaths;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.cache.FileHashCache;
+import com.facebook.buck.util.json.ObjectMappers;
+import com.facebook.buck.util.unarchive.ArchiveFormat;
+import com.facebook.buck.util.unarchive.ExistingFileMode;
+import com.facebook.buck.util.unarchive.Unzip;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.Striped;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.zip.ZipFile;
+
+/**
+ * Defers writing the outputs of rules fetched from the cache to the project filesystem until they
+ * are needed.
+ *
+ * <p>Only the artifact metadata of a fetched artifact is extracted. The artifact is kept in a
+ * {@link LazyOutputStorage}, and its key and the sizes of its other files are recorded in the build
+ * metadata of the rule. The hashes of the files are given to the file hash cache, so that the rule
+ * keys of the dependents can be computed without them. They are only extracted when a dependent is
+ * about to read them, or when the rule is one of the rules being built.
+ */
+class LazyOutputMaterializer {
+  private static final String NO_LAZY_OUTPUTS = "{}";
+
+  private final LazyOutputStorage storage;
+  private final BuildInfoStoreManager buildInfoStoreManager;
+  private final CachingBuildEngine.MetadataStorage metadataStorage;
+  private final boolean storeFetchedOutputs;
+  // The rules whose outputs are known to be fully materialized during this build.
+  private final Set<BuildTarget> materializedTargets = Sets.newConcurrentHashSet();
+  private final Striped<Lock> locks = Striped.lock(64);
+
+  LazyOutputMaterializer(
+      LazyOutputStorage storage,
+      BuildInfoStoreManager buildInfoStoreManager,
+      CachingBuildEngine.MetadataStorage metadataStorage,
+      boolean storeFetchedOutputs) {
+    this.storage = storage;
+    this.buildInfoStoreManager = buildInfoStoreManager;
+    this.metadataStorage = metadataStorage;
+    this.storeFetchedOutputs = storeFetchedOutputs;
+  }
+
+  /** @return whether the outputs of the rule can be stored instead of written when fetched. */
+  boolean canStoreOutputsOf(BuildRule rule) {
+    // These rules read their outputs as soon as they are fetched.
+    return storeFetchedOutputs
+        && !(rule instanceof InitializableFromDisk)
+        && !(rule instanceof HasPostBuildSteps);
+  }
+
+  /**
+   * Extracts the artifact metadata of the rule from a fetched artifact, and moves the artifact into
+   * the storage if it has other files.
+   *
+   * @return the build metadata recording the stored files, or nothing if the artifact has no
+   *     hashes for its files, in which case it has to be extracted as usual.
+   */
+  Optional<ImmutableMap<String, String>> extractArtifact(BuildRule rule, Path artifactPath)
+      throws IOException {
+    ProjectFilesystem filesystem = rule.getProjectFilesystem();
+    Path metadataDirectory =
+        BuildInfo.getPathToArtifactMetadataDirectory(rule.getBuildTarget(), filesystem);
+    try (ZipFile artifact = new ZipFile(artifactPath.toFile())) {
+      String hashesEntry =
+          MorePaths.pathWithUnixSeparators(
+              metadataDirectory.resolve(BuildInfo.MetadataKey.RECORDED_PATH_HASHES));
+      if (artifact.getEntry(hashesEntry) == null) {
+        return Optional.empty();
+      }
+    }
+
+    SortedMap<String, Long> lazyOutputs = new TreeMap<>();
+    ((Unzip) ArchiveFormat.ZIP.getUnarchiver())
+        .extractArchiveDeferringFiles(
+            artifactPath,
+            filesystem,
+            ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES,
+            path -> !path.startsWith(metadataDirectory),
+            (path, size) -> lazyOutputs.put(path.toString(), size));
+    if (lazyOutputs.isEmpty()) {
+      return Optional.of(ImmutableMap.of(BuildInfo.MetadataKey.LAZY_OUTPUTS, NO_LAZY_OUTPUTS));
+    }
+    return Optional.of(
+        ImmutableMap.of(
+            BuildInfo.MetadataKey.LAZY_OUTPUTS,
+            ObjectMappers.WRITER.writeValueAsString(lazyOutputs),
+            BuildInfo.MetadataKey.LAZY_OUTPUTS_ARTIFACT,
+            storage.store(artifactPath)));
+  }
+
+  /**
+   * @return whether the outputs of the rule which haven't been materialized are still stored. If
+   *     they aren't, the rule has to be fetched again.
+   */
+  boolean hasStoredOutputs(BuildRule rule) throws IOException {
+    if (getLazyOutputs(rule).isEmpty()) {
+      return true;
+    }
+    Optional<String> artifact = getLazyOutputsArtifact(rule);
+    return artifact.isPresent() && storage.contains(artifact.get());
+  }
+
+  /**
+   * Gives the hashes and sizes of the outputs of the rule which aren't materialized to the file
+   * hash cache, or materializes them if it can't serve them all.
+   */
+  void registerOutputHashes(
+      BuildRule rule, OnDiskBuildInfo onDiskBuildInfo, FileHashCache fileHashCache)
+      throws IOException {
+    ImmutableMap<String, Long> lazyOutputs = getLazyOutputs(rule);
+    if (lazyOutputs.isEmpty()) {
+      materializedTargets.add(rule.getBuildTarget());
+      return;
+    }
+    Optional<ImmutableMap<String, String>> hashes =
+        onDiskBuildInfo.getMap(BuildInfo.MetadataKey.RECORDED_PATH_HASHES);
+    if (!hashes.isPresent() || !hashes.get().keySet().containsAll(lazyOutputs.keySet())) {
+      materialize(rule);
+      return;
+    }
+
+    // The size of a directory is the total size of the files in it.
+    ProjectFilesystem filesystem = rule.getProjectFilesystem();
+    Map<Path, Long> sizes = new HashMap<>();
+    for (Map.Entry<String, Long> output : lazyOutputs.entrySet()) {
+      long size = output.getValue();
+      for (Path path = filesystem.getPath(output.getKey()); path != null; path = path.getParent()) {
+        sizes.merge(path, size, Long::sum);
+      }
+    }
+    for (Map.Entry<String, String> hash : hashes.get().entrySet()) {
+      Path path = filesystem.getPath(hash.getKey());
+      Long size = sizes.get(path);
+      if (size != null
+          && !fileHashCache.setUnmaterialized(
+              filesystem.resolve(path), HashCode.fromString(hash.getValue()), size)) {
+        materialize(rule);
+        return;
+      }
+    }
+  }
+
+  /** Writes the outputs of the rule which haven't been materialized yet. */
+  void materialize(BuildRule rule) throws IOException {
+    BuildTarget target = rule.getBuildTarget();
+    if (materializedTargets.contains(target)) {
+      return;
+    }
+    Lock lock = locks.get(target);
+    lock.lock();
+    try {
+      if (materializedTargets.contains(target)) {
+        return;
+      }
+      ImmutableMap<String, Long> lazyOutputs = getLazyOutputs(rule);
+      if (!lazyOutputs.isEmpty()) {
+        ProjectFilesystem filesystem = rule.getProjectFilesystem();
+        String artifact =
+            getLazyOutputsArtifact(rule)
+                .orElseThrow(
+                    () ->
+                        new IOException(
+                            String.format("%s has no artifact for its stored outputs.", target)));
+        storage.materialize(
+            artifact,
+            filesystem,
+            lazyOutputs
+                .keySet()
+                .stream()
+                .map(filesystem::getPath)
+                .collect(ImmutableSet.toImmutableSet()));
+        getBuildInfoStore(rule)
+            .updateMetadata(
+                target, ImmutableMap.of(BuildInfo.MetadataKey.LAZY_OUTPUTS, NO_LAZY_OUTPUTS));
+        storage.remove(artifact);
+      }
+      materializedTargets.add(target);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private ImmutableMap<String, Long> getLazyOutputs(BuildRule rule) throws IOException {
+    Optional<String> lazyOutputs =
+        getBuildInfoStore(rule)
+            .readMetadata(rule.getBuildTarget(), BuildInfo.MetadataKey.LAZY_OUTPUTS);
+    if (!lazyOutputs.isPresent()) {
+      return ImmutableMap.of();
+    }
+    return ObjectMappers.readValue(
+        lazyOutputs.get(), new TypeReference<ImmutableMap<String, Long>>() {});
+  }
+
+  private Optional<String> getLazyOutputsArtifact(BuildRule rule) {
+    return getBuildInfoStore(rule)
+        .readMetadata(rule.getBuildTarget(), BuildInfo.MetadataKey.LAZY_OUTPUTS_ARTIFACT);
+  }
+
+  private BuildInfoStore getBuildInfoStore(BuildRule rule) {
+    return buildInfoStoreManager.get(rule.getProjectFilesystem(), metadataStorage);
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+
+/**
+ * Keeps the artifacts of rules fetched from the cache whose outputs haven't been written to the
+ * project filesystem yet, under keys which are recorded in the build metadata of the rules.
+ */
+public interface LazyOutputStorage {
+  /**
+   * Moves a fetched artifact into the storage.
+   *
+   * @return the key with which its files can be written later.
+   */
+  String store(Path artifact) throws IOException;
+
+  /**
+   * @return whether the artifact stored with the given key is still kept. It then won't be evicted
+   *     until the end of the build.
+   */
+  boolean contains(String key) throws IOException;
+
+  /** Writes the given files of the artifact stored with the given key to the filesystem. */
+  void materialize(String key, ProjectFilesystem filesystem, Set<Path> paths) throws IOException;
+
+  /** Drops the artifact stored with the given key, once its files have been written. */
+  void remove(String key) throws IOException;
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.util.unarchive.ArchiveFormat;
+import com.facebook.buck.util.unarchive.Unzip;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A {@link LazyOutputStorage} keeping the fetched artifacts in a directory, from which their files
+ * are extracted when they are materialized. The files are thus only decompressed once, and they
+ * take no more space than they did in the cache.
+ *
+ * <p>The directory is kept under a size budget by deleting the least recently used artifacts
+ * whenever one is stored. The artifacts stored or looked up during the build are never deleted, so
+ * only the rules which aren't part of the build can lose their stored outputs, in which case they
+ * are fetched again the next time they are built.
+ */
+public class LocalLazyOutputStorage implements LazyOutputStorage {
+  private static final String ARTIFACT_PREFIX = "artifact";
+  private static final String ARTIFACT_SUFFIX = ".zip";
+
+  private final Path storageDir;
+  private final long maxSizeBytes;
+
+  // The names of the stored artifacts, from the least to the most recently used, with their sizes.
+  @GuardedBy("this")
+  private final LinkedHashMap<String, Long> artifactSizes = new LinkedHashMap<>(16, 0.75f, true);
+
+  @GuardedBy("this")
+  private long totalSizeBytes = 0;
+
+  @GuardedBy("this")
+  private boolean loaded = false;
+
+  // The artifacts which were stored or looked up during the build, which can't be evicted.
+  @GuardedBy("this")
+  private final Set<String> usedArtifacts = new HashSet<>();
+
+  public LocalLazyOutputStorage(Path storageDir, long maxSizeBytes) {
+    this.storageDir = storageDir;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /** Creates a storage in the scratch directory of the given filesystem. */
+  public static LocalLazyOutputStorage createLocal(
+      ProjectFilesystem filesystem, long maxSizeBytes) {
+    return new LocalLazyOutputStorage(
+        filesystem.resolve(filesystem.getBuckPaths().getScratchDir().resolve("lazy_artifacts")),
+        maxSizeBytes);
+  }
+
+  @Override
+  public String store(Path artifact) throws IOException {
+    loadArtifacts();
+    Files.createDirectories(storageDir);
+    Path path = Files.createTempFile(storageDir, ARTIFACT_PREFIX, ARTIFACT_SUFFIX);
+    try {
+      Files.move(artifact, path, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      Files.deleteIfExists(path);
+      throw e;
+    }
+    String key = path.getFileName().toString();
+    long size = Files.size(path);
+    synchronized (this) {
+      usedArtifacts.add(key);
+      recordArtifact(key, size);
+      evictLeastRecentlyUsed();
+    }
+    return key;
+  }
+
+  @Override
+  public boolean contains(String key) throws IOException {
+    loadArtifacts();
+    Path path = storageDir.resolve(key);
+    synchronized (this) {
+      if (artifactSizes.get(key) == null || !Files.isRegularFile(path)) {
+        return false;
+      }
+      usedArtifacts.add(key);
+    }
+    // The artifacts are ordered by their modification times when the next builds load them.
+    Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+    return true;
+  }
+
+  @Override
+  public void materialize(String key, ProjectFilesystem filesystem, Set<Path> paths)
+      throws IOException {
+    ((Unzip) ArchiveFormat.ZIP.getUnarchiver())
+        .extractFiles(storageDir.resolve(key), filesystem, paths);
+  }
+
+  @Override
+  public void remove(String key) throws IOException {
+    synchronized (this) {
+      usedArtifacts.remove(key);
+      Long size = artifactSizes.remove(key);
+      if (size != null) {
+        totalSizeBytes -= size;
+      }
+    }
+    Files.deleteIfExists(storageDir.resolve(key));
+  }
+
+  /** Loads the names and sizes of the stored artifacts, oldest first, if they haven't been yet. */
+  private synchronized void loadArtifacts() throws IOException {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (!Files.isDirectory(storageDir)) {
+      return;
+    }
+    List<StoredArtifact> storedArtifacts = new ArrayList<>();
+    try (Stream<Path> paths = Files.list(storageDir)) {
+      for (Path path : paths.collect(Collectors.toList())) {
+        String name = path.getFileName().toString();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (attributes.isRegularFile() && name.endsWith(ARTIFACT_SUFFIX)) {
+          storedArtifacts.add(
+              new StoredArtifact(name, attributes.size(), attributes.lastModifiedTime()));
+        }
+      }
+    }
+    storedArtifacts.sort(Comparator.comparing(storedArtifact -> storedArtifact.lastModifiedTime));
+    for (StoredArtifact storedArtifact : storedArtifacts) {
+      recordArtifact(storedArtifact.name, storedArtifact.size);
+    }
+  }
+
+  private synchronized void recordArtifact(String name, long size) {
+    Long previousSize = artifactSizes.put(name, size);
+    totalSizeBytes += size - (previousSize == null ? 0 : previousSize);
+  }
+
+  /** Deletes the least recently used artifacts which weren't used by the build. */
+  private synchronized void evictLeastRecentlyUsed() throws IOException {
+    Iterator<Map.Entry<String, Long>> artifacts = artifactSizes.entrySet().iterator();
+    while (totalSizeBytes > maxSizeBytes && artifacts.hasNext()) {
+      Map.Entry<String, Long> artifact = artifacts.next();
+      if (usedArtifacts.contains(artifact.getKey())) {
+        continue;
+      }
+      Files.deleteIfExists(storageDir.resolve(artifact.getKey()));
+      totalSizeBytes -= artifact.getValue();
+      artifacts.remove();
+    }
+  }
+
+  private static class StoredArtifact {
+    private final String name;
+    private final long size;
+    private final FileTime lastModifiedTime;
+
+    private StoredArtifact(String name, long size, FileTime lastModifiedTime) {
+      this.name = name;
+      this.size = size;
+      this.lastModifiedTime = lastModifiedTime;
+    }
+  }
+}
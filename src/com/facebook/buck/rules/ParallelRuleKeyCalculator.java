@@ -22,6 +22,7 @@ import com.facebook.buck.rules.keys.RuleKeyFactory;
 import com.facebook.buck.util.Scope;
 import com.facebook.buck.util.collect.SortedSets;
 import com.facebook.buck.util.exceptions.BuckUncheckedExecutionException;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -31,6 +32,9 @@ import java.util.List;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.BiFunction;
 import javax.annotation.Nonnull;
 
@@ -109,6 +113,108 @@ public class ParallelRuleKeyCalculator<T> {
     return calculated;
   }
 
+  /**
+   * Calculates the {@link RuleKey}s of the given rules and all of their transitive deps on the
+   * given {@link ForkJoinPool}, blocking until they are done.
+   *
+   * <p>Unlike {@link #calculate}, this doesn't chain futures and callbacks for every rule. The
+   * action graph is walked bottom-up by fork-join tasks, which idle threads steal from busy ones.
+   * Deps without deps of their own are calculated inline by the task which reaches them first, as
+   * forking a task for every leaf would cost more than calculating its rule key.
+   *
+   * <p>The results are recorded just like the ones of {@link #calculate}.
+   *
+   * @return the rule keys of the given rules, in the same order.
+   */
+  @SuppressWarnings("serial") // Tasks are never serialized.
+  public ImmutableList<T> calculateAll(
+      BuckEventBus buckEventBus, Iterable<BuildRule> rules, ForkJoinPool pool) {
+    ConcurrentMap<BuildTarget, RuleKeyTask> tasks = Maps.newConcurrentMap();
+    return pool.invoke(
+        new RecursiveTask<ImmutableList<T>>() {
+          @Override
+          protected ImmutableList<T> compute() {
+            List<RuleKeyTask> ruleTasks = new ArrayList<>();
+            for (BuildRule rule : rules) {
+              ruleTasks.add(getOrForkTask(buckEventBus, rule, tasks));
+            }
+            ImmutableList.Builder<T> ruleKeys = ImmutableList.builder();
+            for (RuleKeyTask task : ruleTasks) {
+              ruleKeys.add(task.join());
+            }
+            return ruleKeys.build();
+          }
+        });
+  }
+
+  /**
+   * @return the task calculating the rule key of the given rule, which is either already running,
+   *     forked by this call, or done if the rule is a leaf.
+   */
+  private RuleKeyTask getOrForkTask(
+      BuckEventBus buckEventBus, BuildRule rule, ConcurrentMap<BuildTarget, RuleKeyTask> tasks) {
+    RuleKeyTask task = tasks.get(rule.getBuildTarget());
+    if (task != null) {
+      return task;
+    }
+    RuleKeyTask newTask = new RuleKeyTask(buckEventBus, rule, tasks);
+    task = tasks.putIfAbsent(rule.getBuildTarget(), newTask);
+    if (task != null) {
+      return task;
+    }
+    if (ruleDepsCache.get(rule).isEmpty()) {
+      newTask.invoke();
+    } else {
+      newTask.fork();
+    }
+    return newTask;
+  }
+
+  /** Calculates the rule key of a single rule, once the ones of its deps are done. */
+  @SuppressWarnings("serial") // Tasks are never serialized.
+  private class RuleKeyTask extends RecursiveTask<T> {
+
+    private final BuckEventBus buckEventBus;
+    private final BuildRule rule;
+    private final ConcurrentMap<BuildTarget, RuleKeyTask> tasks;
+
+    private RuleKeyTask(
+        BuckEventBus buckEventBus, BuildRule rule, ConcurrentMap<BuildTarget, RuleKeyTask> tasks) {
+      this.buckEventBus = buckEventBus;
+      this.rule = rule;
+      this.tasks = tasks;
+    }
+
+    @Override
+    protected T compute() {
+      ListenableFuture<T> recorded = ruleKeys.get(rule.getBuildTarget());
+      if (recorded != null && recorded.isDone()) {
+        return Futures.getUnchecked(recorded);
+      }
+      T ruleKey = ruleKeyFactory.getFromCache(rule);
+      // As in calculate(), a cached rule key means that the ones of all transitive deps are cached.
+      if (ruleKey == null) {
+        SortedSet<BuildRule> deps = ruleDepsCache.get(rule);
+        List<ForkJoinTask<T>> depTasks = new ArrayList<>(deps.size());
+        for (BuildRule dep : deps) {
+          depTasks.add(getOrForkTask(buckEventBus, dep, tasks));
+        }
+        // Join in reverse, so that the most recently forked tasks are likely still ours to run.
+        for (int i = depTasks.size() - 1; i >= 0; i--) {
+          depTasks.get(i).join();
+        }
+        try (Scope scope = ruleKeyCalculationScope.apply(buckEventBus, rule)) {
+          ruleKey = ruleKeyFactory.build(rule);
+        } catch (Exception e) {
+          throw new BuckUncheckedExecutionException(
+              e, String.format("When computing rulekey for %s.", rule));
+        }
+      }
+      ruleKeys.putIfAbsent(rule.getBuildTarget(), Futures.immediateFuture(ruleKey));
+      return ruleKey;
+    }
+  }
+
   public synchronized Set<BuildTarget> getAllKnownTargets() {
     return ruleKeys.keySet();
   }
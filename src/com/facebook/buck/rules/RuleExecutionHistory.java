@@ -0,0 +1,207 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.sqlite.RetryBusyHandler;
+import com.facebook.buck.util.sqlite.SQLiteUtils;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Table;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import org.sqlite.BusyHandler;
+
+/**
+ * A local store of how long the rules of a project took to build in previous builds, keyed by build
+ * target and rule type.
+ *
+ * <p>The records are read into memory the first time they are needed, and are only written by
+ * {@link #update(Map)}, which is meant to be called once at the end of a build.
+ */
+public class RuleExecutionHistory implements AutoCloseable {
+  private final Connection connection;
+  private final PreparedStatement selectAllStmt;
+  private final PreparedStatement updateStmt;
+
+  @GuardedBy("this")
+  @Nullable
+  private ImmutableTable<String, String, RuleExecutionRecord> records;
+
+  @GuardedBy("this")
+  @Nullable
+  private ImmutableMap<String, Long> averageWallMillisPerRuleType;
+
+  @GuardedBy("this")
+  private long averageWallMillis;
+
+  public RuleExecutionHistory(ProjectFilesystem filesystem) throws IOException {
+    SQLiteUtils.initialize();
+    String dbPath =
+        filesystem
+            .getRootPath()
+            .resolve(filesystem.getBuckPaths().getScratchDir().resolve("rule_history.db"))
+            .toString();
+    filesystem.createParentDirs(dbPath);
+    try {
+      Class.forName("org.sqlite.JDBC");
+      connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+      connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
+      connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+      connection
+          .createStatement()
+          .executeUpdate(
+              "CREATE TABLE IF NOT EXISTS history "
+                  + "(target TEXT, rule_type TEXT, wall_millis INTEGER, cpu_millis INTEGER, "
+                  + "cache_fetch_millis INTEGER, output_size INTEGER, "
+                  + "PRIMARY KEY (target, rule_type)) "
+                  + "WITHOUT ROWID");
+      selectAllStmt =
+          connection.prepareStatement(
+              "SELECT target, rule_type, wall_millis, cpu_millis, cache_fetch_millis, output_size "
+                  + "FROM history");
+      updateStmt =
+          connection.prepareStatement(
+              "INSERT OR REPLACE INTO history "
+                  + "(target, rule_type, wall_millis, cpu_millis, cache_fetch_millis, output_size) "
+                  + "VALUES (?, ?, ?, ?, ?, ?)");
+      BusyHandler.setHandler(connection, new RetryBusyHandler());
+    } catch (ClassNotFoundException | SQLException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      connection.close();
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** @return the records of all the rules, keyed by fully qualified target name and rule type. */
+  public synchronized ImmutableTable<String, String, RuleExecutionRecord> getAllRecords() {
+    if (records == null) {
+      records = readAllRecords();
+    }
+    return records;
+  }
+
+  public Optional<RuleExecutionRecord> getRecord(BuildTarget buildTarget, String ruleType) {
+    return Optional.ofNullable(getAllRecords().get(buildTarget.getFullyQualifiedName(), ruleType));
+  }
+
+  /**
+   * @return the wall time the rule is expected to take to build locally: the time it took in the
+   *     last build which built it, or the average time of the rules of its type, or of all rules if
+   *     no rule of its type was ever built.
+   */
+  public synchronized long estimateWallMillis(BuildTarget buildTarget, String ruleType) {
+    RuleExecutionRecord record =
+        getAllRecords().get(buildTarget.getFullyQualifiedName(), ruleType);
+    if (record != null && record.getWallMillis() > 0) {
+      return record.getWallMillis();
+    }
+    if (averageWallMillisPerRuleType == null) {
+      computeAverages();
+    }
+    return Preconditions.checkNotNull(averageWallMillisPerRuleType)
+        .getOrDefault(ruleType, averageWallMillis);
+  }
+
+  /** Stores the given records, replacing the previous records of the same rules. */
+  public synchronized void update(Map<BuildRule, RuleExecutionRecord> newRecords)
+      throws IOException {
+    if (newRecords.isEmpty()) {
+      return;
+    }
+    try {
+      for (Map.Entry<BuildRule, RuleExecutionRecord> entry : newRecords.entrySet()) {
+        RuleExecutionRecord record = entry.getValue();
+        updateStmt.setString(1, entry.getKey().getFullyQualifiedName());
+        updateStmt.setString(2, entry.getKey().getType());
+        updateStmt.setLong(3, record.getWallMillis());
+        updateStmt.setLong(4, record.getCpuMillis());
+        updateStmt.setLong(5, record.getCacheFetchMillis());
+        updateStmt.setLong(6, record.getOutputSize());
+        updateStmt.addBatch();
+      }
+      updateStmt.executeBatch();
+    } catch (SQLException e) {
+      throw new IOException(e);
+    }
+    records = null;
+    averageWallMillisPerRuleType = null;
+  }
+
+  @GuardedBy("this")
+  private ImmutableTable<String, String, RuleExecutionRecord> readAllRecords() {
+    ImmutableTable.Builder<String, String, RuleExecutionRecord> builder = ImmutableTable.builder();
+    try (ResultSet rs = selectAllStmt.executeQuery()) {
+      while (rs.next()) {
+        builder.put(
+            rs.getString(1),
+            rs.getString(2),
+            RuleExecutionRecord.builder()
+                .setWallMillis(rs.getLong(3))
+                .setCpuMillis(rs.getLong(4))
+                .setCacheFetchMillis(rs.getLong(5))
+                .setOutputSize(rs.getLong(6))
+                .build());
+      }
+    } catch (SQLException e) {
+      throw new RuntimeException(e);
+    }
+    return builder.build();
+  }
+
+  @GuardedBy("this")
+  private void computeAverages() {
+    long totalWallMillis = 0;
+    long builtRules = 0;
+    Map<String, long[]> sumsAndCounts = new HashMap<>();
+    for (Table.Cell<String, String, RuleExecutionRecord> cell : getAllRecords().cellSet()) {
+      long wallMillis = cell.getValue().getWallMillis();
+      if (wallMillis > 0) {
+        long[] sumAndCount = sumsAndCounts.computeIfAbsent(cell.getColumnKey(), k -> new long[2]);
+        sumAndCount[0] += wallMillis;
+        sumAndCount[1]++;
+        totalWallMillis += wallMillis;
+        builtRules++;
+      }
+    }
+    ImmutableMap.Builder<String, Long> averages = ImmutableMap.builder();
+    for (Map.Entry<String, long[]> entry : sumsAndCounts.entrySet()) {
+      averages.put(entry.getKey(), entry.getValue()[0] / entry.getValue()[1]);
+    }
+    averageWallMillisPerRuleType = averages.build();
+    // Without any history, all rules are expected to take the same time.
+    averageWallMillis = builtRules == 0 ? 1 : Math.max(totalWallMillis / builtRules, 1);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.artifact_cache.RuleKeyCacheResult;
+import com.facebook.buck.artifact_cache.RuleKeyCacheResultEvent;
+import com.facebook.buck.util.timing.ClockDuration;
+import com.google.common.eventbus.Subscribe;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the durations of the rules finished during a build from the event bus, so that they can
+ * be written to the {@link RuleExecutionHistory} once the build is over.
+ *
+ * <p>Only rules which were built locally or fetched from the cache are recorded; for the rules
+ * fetched from the cache, the local build times of the previous records are kept.
+ */
+public class RuleExecutionHistoryRecorder {
+
+  private final RuleExecutionHistory history;
+  private final ConcurrentMap<String, Long> cacheFetchMillis = new ConcurrentHashMap<>();
+  private final ConcurrentMap<BuildRule, RuleExecutionRecord> records = new ConcurrentHashMap<>();
+
+  public RuleExecutionHistoryRecorder(RuleExecutionHistory history) {
+    this.history = history;
+  }
+
+  @Subscribe
+  public void ruleKeyCacheChecked(RuleKeyCacheResultEvent event) {
+    RuleKeyCacheResult result = event.getRuleKeyCacheResult();
+    cacheFetchMillis.put(
+        result.buildTarget(), Math.max(event.getTimestamp() - result.requestTimestampMillis(), 0));
+  }
+
+  @Subscribe
+  public void buildRuleFinished(BuildRuleEvent.Finished event) {
+    if (!event.getSuccessType().isPresent()) {
+      return;
+    }
+    BuildRule rule = event.getBuildRule();
+    RuleExecutionRecord.Builder record = RuleExecutionRecord.builder();
+    switch (event.getSuccessType().get()) {
+      case BUILT_LOCALLY:
+        ClockDuration duration = event.getDuration();
+        record
+            .setWallMillis(duration.getWallMillisDuration())
+            .setCpuMillis(TimeUnit.NANOSECONDS.toMillis(duration.getThreadUserNanoDuration()));
+        break;
+      case FETCHED_FROM_CACHE:
+      case FETCHED_FROM_CACHE_INPUT_BASED:
+      case FETCHED_FROM_CACHE_MANIFEST_BASED:
+        history
+            .getRecord(rule.getBuildTarget(), rule.getType())
+            .ifPresent(
+                previous ->
+                    record
+                        .setWallMillis(previous.getWallMillis())
+                        .setCpuMillis(previous.getCpuMillis()));
+        break;
+        // $CASES-OMITTED$
+      default:
+        // Nothing was done for the rule, so there's nothing new to record.
+        return;
+    }
+    record
+        .setCacheFetchMillis(cacheFetchMillis.getOrDefault(rule.getFullyQualifiedName(), 0L))
+        .setOutputSize(event.getOutputSize().orElse(0L));
+    records.put(rule, record.build());
+  }
+
+  /** Writes the records collected so far to the history. */
+  public void flush() throws IOException {
+    Map<BuildRule, RuleExecutionRecord> recordsToWrite = new HashMap<>(records);
+    history.update(recordsToWrite);
+    records.keySet().removeAll(recordsToWrite.keySet());
+    cacheFetchMillis.clear();
+  }
+}
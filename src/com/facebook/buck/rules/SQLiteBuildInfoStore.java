@@ -18,8 +18,10 @@ package com.facebook.buck.rules;
 
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.concurrent.MostExecutors;
 import com.facebook.buck.util.sqlite.RetryBusyHandler;
 import com.facebook.buck.util.sqlite.SQLiteUtils;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
 import java.sql.Connection;
@@ -27,16 +29,52 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
 import org.sqlite.BusyHandler;
 
+/**
+ * Stores the metadata in a SQLite database.
+ *
+ * <p>Reads run concurrently, each thread using its own connection. Updates are applied to an
+ * in-memory overlay right away and written by a single background thread, which coalesces all the
+ * updates made within {@link #WRITE_DELAY_MILLIS} into one transaction. {@link #flush()} (and
+ * {@link #close()}, at the end of the build) waits for all pending writes to be committed.
+ *
+ * <p>Deletions are committed before {@link #deleteMetadata} returns, as they mark the outputs of a
+ * rule as about to change: if buck dies while they are being written, the old rule key mustn't be
+ * left next to them.
+ */
 public class SQLiteBuildInfoStore implements BuildInfoStore {
-  private final Connection connection;
-  private final PreparedStatement selectStmt;
-  private final PreparedStatement selectAllStmt;
+  private static final long WRITE_DELAY_MILLIS = 50;
+
+  private final String dbUrl;
+  private final Connection writeConnection;
   private final PreparedStatement updateStmt;
   private final PreparedStatement deleteStmt;
+  private final ThreadLocal<ReadConnection> readConnections;
+  private final Queue<ReadConnection> allReadConnections = new ConcurrentLinkedQueue<>();
+
+  private final ScheduledExecutorService writer;
+  private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+  // Writes which haven't been picked up by the writer yet, and writes which are being committed.
+  // Reads look at both, in this order, before looking at the database.
+  private final ConcurrentMap<String, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, PendingWrite> committingWrites = new ConcurrentHashMap<>();
+  private final ImmutableList<Map<String, PendingWrite>> overlays =
+      ImmutableList.of(pendingWrites, committingWrites);
+  @Nullable private volatile SQLException writeFailure;
 
   public SQLiteBuildInfoStore(ProjectFilesystem filesystem) throws IOException {
     SQLiteUtils.initialize();
@@ -46,46 +84,96 @@ public class SQLiteBuildInfoStore implements BuildInfoStore {
             .resolve(filesystem.getBuckPaths().getScratchDir().resolve("metadata.db"))
             .toString();
     filesystem.createParentDirs(dbPath);
+    dbUrl = "jdbc:sqlite:" + dbPath;
     try {
       Class.forName("org.sqlite.JDBC");
-      connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
-      connection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
-      connection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
-      connection
+      writeConnection = openConnection();
+      writeConnection.createStatement().executeUpdate("PRAGMA SYNCHRONOUS = OFF");
+      writeConnection.createStatement().executeUpdate("PRAGMA JOURNAL_MODE = WAL");
+      writeConnection
           .createStatement()
           .executeUpdate(
               "CREATE TABLE IF NOT EXISTS metadata "
                   + "(target TEXT, key TEXT, value TEXT, "
                   + "PRIMARY KEY (target, key)) "
                   + "WITHOUT ROWID");
-      selectStmt =
-          connection.prepareStatement("SELECT value FROM metadata WHERE target = ? AND key = ?");
-      selectAllStmt =
-          connection.prepareStatement("SELECT key, value FROM metadata WHERE target = ?");
-
+      writeConnection.setAutoCommit(false);
       updateStmt =
-          connection.prepareStatement(
+          writeConnection.prepareStatement(
               "INSERT OR REPLACE INTO metadata (target, key, value) VALUES (?, ?, ?)");
-      deleteStmt = connection.prepareStatement("DELETE FROM metadata WHERE target = ?");
-      BusyHandler.setHandler(connection, new RetryBusyHandler());
+      deleteStmt = writeConnection.prepareStatement("DELETE FROM metadata WHERE target = ?");
     } catch (ClassNotFoundException | SQLException e) {
       throw new IOException(e);
     }
+    readConnections =
+        ThreadLocal.withInitial(
+            () -> {
+              try {
+                ReadConnection connection = new ReadConnection(openConnection());
+                allReadConnections.add(connection);
+                return connection;
+              } catch (SQLException e) {
+                throw new RuntimeException(e);
+              }
+            });
+    writer =
+        Executors.newSingleThreadScheduledExecutor(
+            new MostExecutors.NamedThreadFactory("SQLiteBuildInfoStore"));
+  }
+
+  private Connection openConnection() throws SQLException {
+    Connection connection = DriverManager.getConnection(dbUrl);
+    BusyHandler.setHandler(connection, new RetryBusyHandler());
+    return connection;
   }
 
   @Override
   public void close() {
     try {
-      connection.close();
-    } catch (SQLException e) {
+      flush();
+    } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      writer.shutdownNow();
+      try {
+        for (ReadConnection connection : allReadConnections) {
+          connection.connection.close();
+        }
+        writeConnection.close();
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+  /** Waits until all the metadata updated so far is committed to the database. */
+  public void flush() throws IOException {
+    try {
+      writer.submit(this::writePendingWrites).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
     }
+    checkWriteFailure();
   }
 
   @Override
-  public synchronized Optional<String> readMetadata(BuildTarget buildTarget, String key) {
+  public Optional<String> readMetadata(BuildTarget buildTarget, String key) {
+    String target = cellRelativeName(buildTarget);
+    for (Map<String, PendingWrite> writes : overlays) {
+      PendingWrite write = writes.get(target);
+      if (write != null) {
+        String value = write.updates.get(key);
+        if (value != null || write.deletesPrevious) {
+          return Optional.ofNullable(value);
+        }
+      }
+    }
     try {
-      selectStmt.setString(1, cellRelativeName(buildTarget));
+      PreparedStatement selectStmt = readConnections.get().selectStmt;
+      selectStmt.setString(1, target);
       selectStmt.setString(2, key);
       try (ResultSet rs = selectStmt.executeQuery()) {
         if (!rs.next()) {
@@ -100,48 +188,154 @@ public class SQLiteBuildInfoStore implements BuildInfoStore {
   }
 
   @Override
-  public synchronized ImmutableMap<String, String> getAllMetadata(BuildTarget buildTarget) {
-    try {
-      selectAllStmt.setString(1, cellRelativeName(buildTarget));
-      try (ResultSet rs = selectAllStmt.executeQuery()) {
-        ImmutableMap.Builder<String, String> result = ImmutableMap.builder();
-        while (rs.next()) {
-          result.put(rs.getString(1), rs.getString(2));
+  public ImmutableMap<String, String> getAllMetadata(BuildTarget buildTarget) throws IOException {
+    String target = cellRelativeName(buildTarget);
+    // The writer moves writes from pendingWrites to committingWrites, so look them up in the
+    // opposite order not to miss any. They are applied from the oldest to the newest.
+    PendingWrite pending = pendingWrites.get(target);
+    PendingWrite committing = committingWrites.get(target);
+    Map<String, String> result = new HashMap<>();
+    if ((committing == null || !committing.deletesPrevious)
+        && (pending == null || !pending.deletesPrevious)) {
+      try {
+        PreparedStatement selectAllStmt = readConnections.get().selectAllStmt;
+        selectAllStmt.setString(1, target);
+        try (ResultSet rs = selectAllStmt.executeQuery()) {
+          while (rs.next()) {
+            result.put(rs.getString(1), rs.getString(2));
+          }
         }
-        return result.build();
+      } catch (SQLException e) {
+        throw new IOException(e);
       }
-    } catch (SQLException e) {
-      throw new RuntimeException(e);
     }
+    if (committing != null && (pending == null || !pending.deletesPrevious)) {
+      result.putAll(committing.updates);
+    }
+    if (pending != null) {
+      result.putAll(pending.updates);
+    }
+    return ImmutableMap.copyOf(result);
   }
 
   @Override
-  public synchronized void updateMetadata(BuildTarget buildTarget, Map<String, String> metadata)
+  public void updateMetadata(BuildTarget buildTarget, Map<String, String> metadata)
       throws IOException {
-    try {
-      for (Map.Entry<String, String> e : metadata.entrySet()) {
-        updateStmt.setString(1, cellRelativeName(buildTarget));
-        updateStmt.setString(2, e.getKey());
-        updateStmt.setString(3, e.getValue());
-        updateStmt.addBatch();
-      }
-      updateStmt.executeBatch();
-    } catch (SQLException e) {
-      throw new IOException(e);
-    }
+    checkWriteFailure();
+    pendingWrites.merge(
+        cellRelativeName(buildTarget),
+        new PendingWrite(false, ImmutableMap.copyOf(metadata)),
+        PendingWrite::then);
+    scheduleWrite();
   }
 
   @Override
-  public synchronized void deleteMetadata(BuildTarget buildTarget) throws IOException {
+  public void deleteMetadata(BuildTarget buildTarget) throws IOException {
+    checkWriteFailure();
+    pendingWrites.put(cellRelativeName(buildTarget), new PendingWrite(true, ImmutableMap.of()));
+    flush();
+  }
+
+  private void checkWriteFailure() throws IOException {
+    SQLException failure = writeFailure;
+    if (failure != null) {
+      throw new IOException(failure);
+    }
+  }
+
+  private void scheduleWrite() {
+    if (writeScheduled.compareAndSet(false, true)) {
+      writer.schedule(this::writePendingWrites, WRITE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** Commits all the pending writes in a single transaction. Only runs on the writer thread. */
+  private void writePendingWrites() {
+    writeScheduled.set(false);
+    for (String target : pendingWrites.keySet()) {
+      PendingWrite write = pendingWrites.get(target);
+      if (write != null) {
+        // Make the write visible to readers through committingWrites before it's gone from
+        // pendingWrites.
+        committingWrites.merge(target, write, PendingWrite::then);
+        pendingWrites.remove(target, write);
+      }
+    }
+    if (committingWrites.isEmpty()) {
+      return;
+    }
     try {
-      deleteStmt.setString(1, cellRelativeName(buildTarget));
-      deleteStmt.executeUpdate();
+      for (Map.Entry<String, PendingWrite> entry : committingWrites.entrySet()) {
+        if (entry.getValue().deletesPrevious) {
+          deleteStmt.setString(1, entry.getKey());
+          deleteStmt.addBatch();
+        }
+        for (Map.Entry<String, String> update : entry.getValue().updates.entrySet()) {
+          updateStmt.setString(1, entry.getKey());
+          updateStmt.setString(2, update.getKey());
+          updateStmt.setString(3, update.getValue());
+          updateStmt.addBatch();
+        }
+      }
+      // Deleting first is fine, since a deletion always comes before the updates it's merged with.
+      deleteStmt.executeBatch();
+      updateStmt.executeBatch();
+      writeConnection.commit();
     } catch (SQLException e) {
-      throw new IOException(e);
+      writeFailure = e;
+      try {
+        deleteStmt.clearBatch();
+        updateStmt.clearBatch();
+        writeConnection.rollback();
+      } catch (SQLException rollbackException) {
+        e.addSuppressed(rollbackException);
+      }
+      // The writes are kept in committingWrites, and retried with the next transaction.
+      scheduleWrite();
+      return;
     }
+    committingWrites.clear();
+    // Everything which failed to be written before has now been committed.
+    writeFailure = null;
   }
 
   private String cellRelativeName(BuildTarget buildTarget) {
     return buildTarget.withoutCell().getFullyQualifiedName();
   }
+
+  /** The writes made to the metadata of a target since it was last committed. */
+  private static class PendingWrite {
+    /** Whether all the previous metadata of the target is deleted before applying the updates. */
+    private final boolean deletesPrevious;
+
+    private final ImmutableMap<String, String> updates;
+
+    private PendingWrite(boolean deletesPrevious, ImmutableMap<String, String> updates) {
+      this.deletesPrevious = deletesPrevious;
+      this.updates = updates;
+    }
+
+    private PendingWrite then(PendingWrite next) {
+      if (next.deletesPrevious) {
+        return next;
+      }
+      Map<String, String> mergedUpdates = new HashMap<>(updates);
+      mergedUpdates.putAll(next.updates);
+      return new PendingWrite(deletesPrevious, ImmutableMap.copyOf(mergedUpdates));
+    }
+  }
+
+  private static class ReadConnection {
+    private final Connection connection;
+    private final PreparedStatement selectStmt;
+    private final PreparedStatement selectAllStmt;
+
+    private ReadConnection(Connection connection) throws SQLException {
+      this.connection = connection;
+      this.selectStmt =
+          connection.prepareStatement("SELECT value FROM metadata WHERE target = ? AND key = ?");
+      this.selectAllStmt =
+          connection.prepareStatement("SELECT key, value FROM metadata WHERE target = ?");
+    }
+  }
 }
@@ -53,9 +53,10 @@ public class TargetGraph extends DirectedAcyclicGraph<TargetNode<?, ?>> {
   }
 
   private void verifyVisibilityIntegrity() {
-    for (TargetNode<?, ?> node : getNodes()) {
-      for (TargetNode<?, ?> dep : getOutgoingNodesFor(node)) {
-        dep.isVisibleToOrThrow(node);
+    for (int id = 0; id < getNodes().size(); id++) {
+      TargetNode<?, ?> node = getNode(id);
+      for (int index = 0; index < getOutgoingEdgeCount(id); index++) {
+        getNode(getOutgoingNodeId(id, index)).isVisibleToOrThrow(node);
       }
     }
   }
@@ -41,6 +41,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
@@ -50,7 +51,8 @@ import java.util.stream.Collectors;
  *
  * <p>A build target's hash code is guaranteed to change if the build target or any of its
  * dependencies change, including the contents of all input files to the target and its
- * dependencies.
+ * dependencies. Hashings created without a {@link FileHashLoader} leave out the contents of input
+ * files, and only change when the target graph itself does.
  */
 public class TargetGraphHashing {
 
@@ -58,7 +60,7 @@ public class TargetGraphHashing {
 
   private final BuckEventBus eventBus;
   private final TargetGraph targetGraph;
-  private final FileHashLoader fileHashLoader;
+  private final Optional<FileHashLoader> fileHashLoader;
   private final Iterable<TargetNode<?, ?>> roots;
   private final ListeningExecutorService executor;
 
@@ -68,6 +70,24 @@ public class TargetGraphHashing {
       FileHashLoader fileHashLoader,
       Iterable<TargetNode<?, ?>> roots,
       ListeningExecutorService executor) {
+    this(eventBus, targetGraph, Optional.of(fileHashLoader), roots, executor);
+  }
+
+  /** Creates a hashing which doesn't include the contents of input files. */
+  public TargetGraphHashing(
+      BuckEventBus eventBus,
+      TargetGraph targetGraph,
+      Iterable<TargetNode<?, ?>> roots,
+      ListeningExecutorService executor) {
+    this(eventBus, targetGraph, Optional.empty(), roots, executor);
+  }
+
+  private TargetGraphHashing(
+      BuckEventBus eventBus,
+      TargetGraph targetGraph,
+      Optional<FileHashLoader> fileHashLoader,
+      Iterable<TargetNode<?, ?>> roots,
+      ListeningExecutorService executor) {
     this.eventBus = eventBus;
     this.targetGraph = targetGraph;
     this.fileHashLoader = fileHashLoader;
@@ -109,11 +129,15 @@ public class TargetGraphHashing {
       LOG.verbose("Got rules hash %s", targetRuleHashCode);
       hasher.putBytes(targetRuleHashCode.asBytes());
 
+      if (!fileHashLoader.isPresent()) {
+        return hasher;
+      }
+
       // Hash the contents of all input files and directories.
       ProjectFilesystem cellFilesystem = node.getFilesystem();
       for (Path input : ImmutableSortedSet.copyOf(node.getInputs())) {
         try {
-          hasher.putBytes(fileHashLoader.get(cellFilesystem.resolve(input)).asBytes());
+          hasher.putBytes(fileHashLoader.get().get(cellFilesystem.resolve(input)).asBytes());
         } catch (IOException e) {
           throw new HumanReadableException(
               e, "Error reading path %s for rule %s", input, node.getBuildTarget());
@@ -31,8 +31,10 @@ import com.google.common.collect.ImmutableMap;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.RandomAccess;
 import java.util.SortedMap;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -101,6 +103,16 @@ public abstract class AbstractRuleKeyBuilder<RULE_KEY> implements RuleKeyObjectS
     if (val instanceof Iterable && !(val instanceof Path)) {
       try (RuleKeyScopedHasher.ContainerScope containerScope =
           scopedHasher.containerScope(RuleKeyHasher.Container.LIST)) {
+        // Most collections in rule keys are immutable lists, which don't need an iterator.
+        if (val instanceof List && val instanceof RandomAccess) {
+          List<?> list = (List<?>) val;
+          for (int i = 0; i < list.size(); i++) {
+            try (Scope ignored = containerScope.elementScope()) {
+              setReflectively(list.get(i));
+            }
+          }
+          return this;
+        }
         for (Object element : (Iterable<?>) val) {
           try (Scope ignored = containerScope.elementScope()) {
             setReflectively(element);
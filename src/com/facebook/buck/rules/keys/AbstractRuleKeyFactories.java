@@ -76,7 +76,8 @@ abstract class AbstractRuleKeyFactories {
             pathResolver,
             ruleFinder,
             defaultRuleKeyFactoryCache,
-            ruleKeyLogger),
+            ruleKeyLogger,
+            defaultRuleKeyFactoryCache.getPersistentStore()),
         new InputBasedRuleKeyFactory(
             fieldLoader,
             fileHashCache,
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.rules.keys;
 
+import com.facebook.buck.io.ArchiveMemberPath;
 import com.facebook.buck.log.thrift.ThriftRuleKeyLogger;
 import com.facebook.buck.rules.AddsToRuleKey;
 import com.facebook.buck.rules.BuildRule;
@@ -33,7 +34,10 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.hash.HashCode;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
 import java.util.Optional;
+import java.util.Set;
 import java.util.function.Function;
 import javax.annotation.Nullable;
 
@@ -46,6 +50,7 @@ public class DefaultRuleKeyFactory implements RuleKeyFactoryWithDiagnostics<Rule
   private final SourcePathRuleFinder ruleFinder;
   private final RuleKeyCache<RuleKey> ruleKeyCache;
   private final Optional<ThriftRuleKeyLogger> ruleKeyLogger;
+  private final Optional<PersistentRuleKeyStore> persistentStore;
 
   public DefaultRuleKeyFactory(
       RuleKeyFieldLoader ruleKeyFieldLoader,
@@ -53,13 +58,33 @@ public class DefaultRuleKeyFactory implements RuleKeyFactoryWithDiagnostics<Rule
       SourcePathResolver pathResolver,
       SourcePathRuleFinder ruleFinder,
       RuleKeyCache<RuleKey> ruleKeyCache,
-      Optional<ThriftRuleKeyLogger> ruleKeyLogger) {
+      Optional<ThriftRuleKeyLogger> ruleKeyLogger,
+      Optional<PersistentRuleKeyStore> persistentStore) {
     this.ruleKeyFieldLoader = ruleKeyFieldLoader;
     this.hashLoader = hashLoader;
     this.pathResolver = pathResolver;
     this.ruleFinder = ruleFinder;
     this.ruleKeyCache = ruleKeyCache;
     this.ruleKeyLogger = ruleKeyLogger;
+    // Rule keys served from the store would be missing from the rule key log.
+    this.persistentStore = ruleKeyLogger.isPresent() ? Optional.empty() : persistentStore;
+  }
+
+  public DefaultRuleKeyFactory(
+      RuleKeyFieldLoader ruleKeyFieldLoader,
+      FileHashLoader hashLoader,
+      SourcePathResolver pathResolver,
+      SourcePathRuleFinder ruleFinder,
+      RuleKeyCache<RuleKey> ruleKeyCache,
+      Optional<ThriftRuleKeyLogger> ruleKeyLogger) {
+    this(
+        ruleKeyFieldLoader,
+        hashLoader,
+        pathResolver,
+        ruleFinder,
+        ruleKeyCache,
+        ruleKeyLogger,
+        Optional.empty());
   }
 
   public DefaultRuleKeyFactory(
@@ -119,11 +144,33 @@ public class DefaultRuleKeyFactory implements RuleKeyFactoryWithDiagnostics<Rule
 
   @Override
   public RuleKey build(BuildRule buildRule) {
-    return ruleKeyCache.get(
-        buildRule,
-        rule ->
-            newPopulatedBuilder(rule, RuleKeyBuilder.createDefaultHasher(ruleKeyLogger))
-                .buildResult(RuleKey::new));
+    return ruleKeyCache.get(buildRule, this::calculateBuildRuleKey);
+  }
+
+  private RuleKeyResult<RuleKey> calculateBuildRuleKey(BuildRule buildRule) {
+    if (!persistentStore.isPresent()) {
+      return newPopulatedBuilder(buildRule, RuleKeyBuilder.createDefaultHasher(ruleKeyLogger))
+          .buildResult(RuleKey::new);
+    }
+    PersistentRuleKeyStore store = persistentStore.get();
+
+    // Looking up the structural key doesn't read any input files, so a hit saves hashing them.
+    StructuralBuilder structuralBuilder = new StructuralBuilder(new LinkedHashSet<>());
+    ruleKeyFieldLoader.setFields(structuralBuilder, buildRule, RuleKeyType.DEFAULT);
+    addDepsToRuleKey(buildRule, structuralBuilder);
+    RuleKeyResult<HashCode> structuralKey = structuralBuilder.buildResult(Function.identity());
+    Optional<RuleKey> storedRuleKey = store.get(structuralKey.result);
+    if (storedRuleKey.isPresent()) {
+      return new RuleKeyResult<>(storedRuleKey.get(), structuralKey.deps, structuralKey.inputs);
+    }
+
+    Optional<ImmutableList<PersistentRuleKeyStore.InputStamp>> stamps =
+        PersistentRuleKeyStore.stamp(structuralBuilder.hashedPaths);
+    RuleKeyResult<RuleKey> result =
+        newPopulatedBuilder(buildRule, RuleKeyBuilder.createDefaultHasher(ruleKeyLogger))
+            .buildResult(RuleKey::new);
+    stamps.ifPresent(inputs -> store.put(structuralKey.result, result.result, inputs));
+    return result;
   }
 
   private RuleKey buildAppendableKey(AddsToRuleKey appendable) {
@@ -164,11 +211,21 @@ public class DefaultRuleKeyFactory implements RuleKeyFactoryWithDiagnostics<Rule
 
   public class Builder<RULE_KEY> extends RuleKeyBuilder<RULE_KEY> {
 
-    private final ImmutableList.Builder<Object> deps = ImmutableList.builder();
-    private final ImmutableList.Builder<RuleKeyInput> inputs = ImmutableList.builder();
+    private final ImmutableList.Builder<Object> deps;
+    private final ImmutableList.Builder<RuleKeyInput> inputs;
 
     public Builder(RuleKeyHasher<RULE_KEY> hasher) {
+      this(hasher, hashLoader, ImmutableList.builder(), ImmutableList.builder());
+    }
+
+    private Builder(
+        RuleKeyHasher<RULE_KEY> hasher,
+        FileHashLoader hashLoader,
+        ImmutableList.Builder<Object> deps,
+        ImmutableList.Builder<RuleKeyInput> inputs) {
       super(ruleFinder, pathResolver, hashLoader, hasher);
+      this.deps = deps;
+      this.inputs = inputs;
     }
 
     @Override
@@ -214,4 +271,71 @@ public class DefaultRuleKeyFactory implements RuleKeyFactoryWithDiagnostics<Rule
       return new RuleKeyResult<>(this.build(mapper), deps.build(), inputs.build());
     }
   }
+
+  /**
+   * Hashes everything going into a rule key, except for the contents of input files, which are
+   * only recorded. Appendables are hashed inline, so that their inputs are recorded as well.
+   */
+  private class StructuralBuilder extends Builder<HashCode> {
+
+    private final Set<Path> hashedPaths;
+    private final ImmutableList.Builder<Object> deps;
+    private final ImmutableList.Builder<RuleKeyInput> inputs;
+
+    private StructuralBuilder(Set<Path> hashedPaths) {
+      this(hashedPaths, ImmutableList.builder(), ImmutableList.builder());
+    }
+
+    private StructuralBuilder(
+        Set<Path> hashedPaths,
+        ImmutableList.Builder<Object> deps,
+        ImmutableList.Builder<RuleKeyInput> inputs) {
+      super(
+          RuleKeyBuilder.createDefaultHasher(Optional.empty()),
+          new RecordingFileHashLoader(hashedPaths),
+          deps,
+          inputs);
+      this.hashedPaths = hashedPaths;
+      this.deps = deps;
+      this.inputs = inputs;
+    }
+
+    @Override
+    protected RuleKeyBuilder<HashCode> setAddsToRuleKey(AddsToRuleKey appendable) {
+      StructuralBuilder appendableBuilder = new StructuralBuilder(hashedPaths, deps, inputs);
+      AlterRuleKeys.amendKey(appendableBuilder, appendable);
+      RuleKey key = appendableBuilder.build(RuleKey::new);
+      return setAddsToRuleKey(key);
+    }
+  }
+
+  /** Records the files it is asked for, without reading them. */
+  private static class RecordingFileHashLoader implements FileHashLoader {
+
+    private static final HashCode PLACEHOLDER = HashCode.fromLong(0);
+
+    private final Set<Path> paths;
+
+    private RecordingFileHashLoader(Set<Path> paths) {
+      this.paths = paths;
+    }
+
+    @Override
+    public HashCode get(Path path) {
+      paths.add(path);
+      return PLACEHOLDER;
+    }
+
+    @Override
+    public long getSize(Path path) {
+      paths.add(path);
+      return 0;
+    }
+
+    @Override
+    public HashCode get(ArchiveMemberPath archiveMemberPath) {
+      paths.add(archiveMemberPath.getArchivePath());
+      return PLACEHOLDER;
+    }
+  }
 }
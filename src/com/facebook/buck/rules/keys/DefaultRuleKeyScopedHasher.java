@@ -19,6 +19,11 @@ package com.facebook.buck.rules.keys;
 import com.facebook.buck.rules.keys.hasher.CountingRuleKeyHasher;
 import com.facebook.buck.rules.keys.hasher.RuleKeyHasher;
 import com.facebook.buck.util.Scope;
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * A wrapper of {@link RuleKeyHasher} that provides scoped hashing facilities.
@@ -26,10 +31,27 @@ import com.facebook.buck.util.Scope;
  * <p>Important: Container, wrapper and key signatures only get hashed if their scope was non-empty.
  * I.e. if at least one thing gets hashed under their scope. This is to support rule key builders
  * that ignore some fields.
+ *
+ * <p>Scopes are opened for every single value added to a rule key, so they must be cheap. As they
+ * are always closed in the reverse order they were opened in, their state is kept on stacks, and
+ * the same {@link Scope} instances are handed out over and over again instead of allocating new
+ * ones.
  */
 public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
+  private static final int INITIAL_DEPTH = 16;
+
   private final CountingRuleKeyHasher<HASH> hasher;
 
+  // The hasher count at the start of each open key or wrapper scope, along with the key or wrapper
+  // to hash when it is closed.
+  private long[] signatureCounts = new long[INITIAL_DEPTH];
+  private Object[] signatures = new Object[INITIAL_DEPTH];
+  private int signatureDepth = 0;
+  private final Scope signatureScope = this::closeSignatureScope;
+
+  private final List<DefaultContainerScope> containerScopes = new ArrayList<>();
+  private int containerDepth = 0;
+
   DefaultRuleKeyScopedHasher(CountingRuleKeyHasher<HASH> hasher) {
     this.hasher = hasher;
   }
@@ -41,23 +63,37 @@ public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
   /** Hashes the key iff non-empty (i.e. if anything gets hashed during its scope). */
   @Override
   public Scope keyScope(String key) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putKey(key);
-      }
-    };
+    return openSignatureScope(key);
   }
 
   /** Hashes the wrapper iff non-empty (i.e. if any element gets hashed during its scope). */
   @Override
   public Scope wrapperScope(RuleKeyHasher.Wrapper wrapper) {
-    long hasherCount = hasher.getCount();
-    return () -> {
-      if (hasher.getCount() > hasherCount) {
-        hasher.putWrapper(wrapper);
+    return openSignatureScope(wrapper);
+  }
+
+  private Scope openSignatureScope(Object signature) {
+    if (signatureDepth == signatures.length) {
+      signatureCounts = Arrays.copyOf(signatureCounts, signatureDepth * 2);
+      signatures = Arrays.copyOf(signatures, signatureDepth * 2);
+    }
+    signatureCounts[signatureDepth] = hasher.getCount();
+    signatures[signatureDepth] = signature;
+    signatureDepth++;
+    return signatureScope;
+  }
+
+  private void closeSignatureScope() {
+    signatureDepth--;
+    Object signature = signatures[signatureDepth];
+    signatures[signatureDepth] = null;
+    if (hasher.getCount() > signatureCounts[signatureDepth]) {
+      if (signature instanceof String) {
+        hasher.putKey((String) signature);
+      } else {
+        hasher.putWrapper((RuleKeyHasher.Wrapper) signature);
       }
-    };
+    }
   }
 
   /**
@@ -67,37 +103,53 @@ public class DefaultRuleKeyScopedHasher<HASH> implements RuleKeyScopedHasher {
    */
   @Override
   public ContainerScope containerScope(RuleKeyHasher.Container container) {
-    return new DefaultContainerScope(hasher, container);
+    if (containerDepth == containerScopes.size()) {
+      containerScopes.add(new DefaultContainerScope(this));
+    }
+    DefaultContainerScope containerScope = containerScopes.get(containerDepth++);
+    containerScope.open(container);
+    return containerScope;
   }
 
   public static class DefaultContainerScope implements ContainerScope {
+    private final DefaultRuleKeyScopedHasher<?> scopedHasher;
     private final CountingRuleKeyHasher<?> hasher;
-    private final RuleKeyHasher.Container container;
-    private int elementCount = 0;
+    private final Scope elementScope = this::closeElementScope;
+    @Nullable private RuleKeyHasher.Container container;
+    private int elementCount;
+    private long elementStartCount;
+
+    private DefaultContainerScope(DefaultRuleKeyScopedHasher<?> scopedHasher) {
+      this.scopedHasher = scopedHasher;
+      this.hasher = scopedHasher.hasher;
+    }
 
-    private DefaultContainerScope(
-        CountingRuleKeyHasher<?> hasher, RuleKeyHasher.Container container) {
-      this.hasher = hasher;
+    private void open(RuleKeyHasher.Container container) {
       this.container = container;
+      this.elementCount = 0;
     }
 
     /** Increases element count if anything gets hashed during the element scope. */
     @Override
     public Scope elementScope() {
-      long hasherCount = hasher.getCount();
-      return () -> {
-        if (hasher.getCount() > hasherCount) {
-          elementCount++;
-        }
-      };
+      elementStartCount = hasher.getCount();
+      return elementScope;
+    }
+
+    private void closeElementScope() {
+      if (hasher.getCount() > elementStartCount) {
+        elementCount++;
+      }
     }
 
     /** Hashes the container iff non-empty (i.e. if any element gets hashed during this scope). */
     @Override
     public void close() {
+      scopedHasher.containerDepth--;
       if (elementCount > 0) {
-        hasher.putContainer(container, elementCount);
+        hasher.putContainer(Preconditions.checkNotNull(container), elementCount);
       }
+      container = null;
     }
   }
 }
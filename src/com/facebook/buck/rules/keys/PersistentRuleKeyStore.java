@@ -0,0 +1,346 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.MoreSuppliers;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Stores default {@link RuleKey}s on disk, so that they survive restarts of the daemon.
+ *
+ * <p>Rule keys are looked up by a structural key, which covers everything going into the rule key
+ * except for the contents of the input files (see {@link DefaultRuleKeyFactory}). For those, the
+ * size, modification time and inode of every input file is recorded instead, and an entry is only
+ * served as long as none of them changed. This makes a lookup a matter of a few {@code stat} calls,
+ * while computing the rule key would have to read and hash all of its inputs. Rule keys of inputs
+ * modified within the granularity of the modification time aren't stored, as a further
+ * modification wouldn't change their stamps.
+ *
+ * <p>Entries are dropped as soon as one of their inputs is reported as changed, and entries which
+ * haven't been used by the last {@link #MAX_UNUSED_GENERATIONS} builds aren't written back. Like
+ * {@link com.facebook.buck.util.cache.impl.PersistentFileHashStore}, every save writes a temporary
+ * file of its own, moves it into place and ends it with a checksum of its contents.
+ */
+public class PersistentRuleKeyStore {
+
+  private static final Logger LOG = Logger.get(PersistentRuleKeyStore.class);
+
+  private static final int FORMAT_VERSION = 2;
+  private static final int MAX_UNUSED_GENERATIONS = 50;
+  // Covers the modification time granularity of common filesystems.
+  private static final long RACY_MODIFICATION_MILLIS = 2000;
+
+  private final Path storePath;
+  private final Supplier<State> state;
+
+  public PersistentRuleKeyStore(Path storePath) {
+    this.storePath = storePath;
+    this.state = MoreSuppliers.memoize(this::load);
+  }
+
+  /**
+   * @return the rule key stored for the given structural key, as long as none of the inputs it was
+   *     computed from changed since.
+   */
+  Optional<RuleKey> get(HashCode structuralKey) {
+    State state = this.state.get();
+    Entry entry = state.entries.get(structuralKey);
+    if (entry == null) {
+      return Optional.empty();
+    }
+    for (InputStamp input : entry.inputs) {
+      if (!input.isUpToDate()) {
+        LOG.verbose("%s changed, dropping stored rule key %s", input.path, entry.ruleKey);
+        state.remove(structuralKey, entry);
+        return Optional.empty();
+      }
+    }
+    if (entry.generation != state.generation) {
+      entry.generation = state.generation;
+      state.dirty = true;
+    }
+    return Optional.of(entry.ruleKey);
+  }
+
+  /**
+   * Records the size, modification time and inode of the given inputs. This must happen before
+   * their contents are hashed, so that changes racing with the rule key computation are noticed.
+   *
+   * @return the stamps, or nothing if some inputs can't be tracked this way, in which case the
+   *     rule key must not be stored.
+   */
+  static Optional<ImmutableList<InputStamp>> stamp(Iterable<Path> inputs) {
+    ImmutableList.Builder<InputStamp> stamps = ImmutableList.builder();
+    for (Path input : inputs) {
+      Optional<InputStamp> stamp = InputStamp.of(input);
+      if (!stamp.isPresent()) {
+        return Optional.empty();
+      }
+      stamps.add(stamp.get());
+    }
+    return Optional.of(stamps.build());
+  }
+
+  /**
+   * Stores a rule key which was computed from inputs with the given stamps, unless some of them
+   * were modified too recently for further modifications to be noticed.
+   */
+  void put(HashCode structuralKey, RuleKey ruleKey, ImmutableList<InputStamp> inputs) {
+    long now = System.currentTimeMillis();
+    for (InputStamp input : inputs) {
+      if (now - input.lastModifiedMillis <= RACY_MODIFICATION_MILLIS) {
+        LOG.verbose("%s was modified too recently, not storing rule key %s", input.path, ruleKey);
+        return;
+      }
+    }
+    State state = this.state.get();
+    state.add(structuralKey, new Entry(ruleKey, inputs, state.generation));
+    state.dirty = true;
+  }
+
+  /** Drops all rule keys which were computed from the given file. */
+  public void invalidate(Path absolutePath) {
+    State state = this.state.get();
+    Set<HashCode> structuralKeys = state.inputsIndex.remove(absolutePath);
+    if (structuralKeys != null) {
+      for (HashCode structuralKey : structuralKeys) {
+        Entry entry = state.entries.get(structuralKey);
+        if (entry != null) {
+          state.remove(structuralKey, entry);
+        }
+      }
+    }
+  }
+
+  /** Writes the rule keys back to disk, if anything changed since they were loaded. */
+  public synchronized void save() {
+    State state = this.state.get();
+    if (!state.dirty) {
+      return;
+    }
+    state.dirty = false;
+    int generation = state.generation++;
+
+    Path tmpPath = null;
+    try {
+      Files.createDirectories(storePath.getParent());
+      tmpPath =
+          Files.createTempFile(storePath.getParent(), storePath.getFileName().toString(), ".tmp");
+      CheckedOutputStream checkedOut =
+          new CheckedOutputStream(
+              new BufferedOutputStream(Files.newOutputStream(tmpPath)), new CRC32());
+      try (DataOutputStream out = new DataOutputStream(checkedOut)) {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(generation);
+        for (Map.Entry<HashCode, Entry> mapEntry : state.entries.entrySet()) {
+          Entry entry = mapEntry.getValue();
+          if (generation - entry.generation > MAX_UNUSED_GENERATIONS) {
+            continue;
+          }
+          out.writeBoolean(true);
+          writeHashCode(out, mapEntry.getKey());
+          writeHashCode(out, entry.ruleKey.getHashCode());
+          out.writeInt(entry.generation);
+          out.writeInt(entry.inputs.size());
+          for (InputStamp input : entry.inputs) {
+            out.writeUTF(input.path.toString());
+            out.writeLong(input.size);
+            out.writeLong(input.lastModifiedMillis);
+            out.writeUTF(input.fileKey);
+          }
+        }
+        out.writeBoolean(false);
+        out.writeLong(checkedOut.getChecksum().getValue());
+      }
+      Files.move(tmpPath, storePath, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save rule keys to %s.", storePath);
+      if (tmpPath != null) {
+        try {
+          Files.deleteIfExists(tmpPath);
+        } catch (IOException deleteException) {
+          LOG.debug(deleteException, "Failed to delete %s.", tmpPath);
+        }
+      }
+    }
+  }
+
+  private State load() {
+    State state = new State();
+    CheckedInputStream checkedIn;
+    try {
+      checkedIn =
+          new CheckedInputStream(
+              new BufferedInputStream(Files.newInputStream(storePath)), new CRC32());
+    } catch (NoSuchFileException e) {
+      return state;
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to load rule keys from %s, starting from scratch.", storePath);
+      return state;
+    }
+    try (DataInputStream in = new DataInputStream(checkedIn)) {
+      if (in.readInt() != FORMAT_VERSION) {
+        LOG.debug("Ignoring rule keys stored in an outdated format.");
+        return state;
+      }
+      int generation = in.readInt();
+      while (in.readBoolean()) {
+        HashCode structuralKey = readHashCode(in);
+        RuleKey ruleKey = new RuleKey(readHashCode(in));
+        int entryGeneration = in.readInt();
+        int inputCount = in.readInt();
+        ImmutableList.Builder<InputStamp> inputs = ImmutableList.builder();
+        for (int i = 0; i < inputCount; i++) {
+          inputs.add(
+              new InputStamp(Paths.get(in.readUTF()), in.readLong(), in.readLong(), in.readUTF()));
+        }
+        state.add(structuralKey, new Entry(ruleKey, inputs.build(), entryGeneration));
+      }
+      long checksum = checkedIn.getChecksum().getValue();
+      if (in.readLong() != checksum || in.read() != -1) {
+        LOG.warn("Rule keys stored in %s are corrupt, starting from scratch.", storePath);
+        return new State();
+      }
+      state.generation = generation + 1;
+      LOG.debug("Loaded %d rule keys from %s.", state.entries.size(), storePath);
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.warn(e, "Failed to load rule keys from %s, starting from scratch.", storePath);
+      return new State();
+    }
+    return state;
+  }
+
+  private static void writeHashCode(DataOutputStream out, HashCode hashCode) throws IOException {
+    byte[] bytes = hashCode.asBytes();
+    out.writeByte(bytes.length);
+    out.write(bytes);
+  }
+
+  private static HashCode readHashCode(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readUnsignedByte()];
+    in.readFully(bytes);
+    return HashCode.fromBytes(bytes);
+  }
+
+  @VisibleForTesting
+  int size() {
+    return state.get().entries.size();
+  }
+
+  private static class State {
+    private final ConcurrentHashMap<HashCode, Entry> entries = new ConcurrentHashMap<>();
+    /** Maps every input file to the structural keys of the entries computed from it. */
+    private final ConcurrentHashMap<Path, Set<HashCode>> inputsIndex = new ConcurrentHashMap<>();
+
+    private volatile int generation = 0;
+    private volatile boolean dirty = false;
+
+    private void add(HashCode structuralKey, Entry entry) {
+      entries.put(structuralKey, entry);
+      for (InputStamp input : entry.inputs) {
+        inputsIndex
+            .computeIfAbsent(input.path, path -> ConcurrentHashMap.newKeySet())
+            .add(structuralKey);
+      }
+    }
+
+    private void remove(HashCode structuralKey, Entry entry) {
+      // The index is cleaned up lazily, stale structural keys in it are harmless.
+      if (entries.remove(structuralKey, entry)) {
+        dirty = true;
+      }
+    }
+  }
+
+  private static class Entry {
+    private final RuleKey ruleKey;
+    private final ImmutableList<InputStamp> inputs;
+    private volatile int generation;
+
+    private Entry(RuleKey ruleKey, ImmutableList<InputStamp> inputs, int generation) {
+      this.ruleKey = ruleKey;
+      this.inputs = inputs;
+      this.generation = generation;
+    }
+  }
+
+  /** The size, modification time and inode of an input file at the time it was hashed. */
+  static class InputStamp {
+    private final Path path;
+    private final long size;
+    private final long lastModifiedMillis;
+    /** Identifies the inode of the file, where the platform supports it. */
+    private final String fileKey;
+
+    private InputStamp(Path path, long size, long lastModifiedMillis, String fileKey) {
+      this.path = path;
+      this.size = size;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.fileKey = fileKey;
+    }
+
+    private static Optional<InputStamp> of(Path path) {
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        // The modification time of a directory doesn't tell whether any of its contents changed.
+        if (!attributes.isRegularFile()) {
+          return Optional.empty();
+        }
+        Object fileKey = attributes.fileKey();
+        return Optional.of(
+            new InputStamp(
+                path,
+                attributes.size(),
+                attributes.lastModifiedTime().toMillis(),
+                fileKey == null ? "" : fileKey.toString()));
+      } catch (IOException e) {
+        return Optional.empty();
+      }
+    }
+
+    private boolean isUpToDate() {
+      Optional<InputStamp> current = of(path);
+      return current.isPresent()
+          && current.get().size == size
+          && current.get().lastModifiedMillis == lastModifiedMillis
+          && current.get().fileKey.equals(fileKey);
+    }
+  }
+}
@@ -175,8 +175,7 @@ public abstract class RuleKeyBuilder<RULE_KEY> extends AbstractRuleKeyBuilder<RU
     } else if (sourcePath instanceof PathSourcePath) {
       Path ideallyRelativePath = resolver.getIdeallyRelativePath(sourcePath);
       if (ideallyRelativePath.isAbsolute()) {
-        return setPath(
-            resolver.getAbsolutePath(sourcePath), resolver.getIdeallyRelativePath(sourcePath));
+        return setPath(resolver.getAbsolutePath(sourcePath), ideallyRelativePath);
       } else {
         return setPath(resolver.getFilesystem(sourcePath), ideallyRelativePath);
       }
@@ -32,6 +32,7 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import java.nio.file.Path;
 import java.util.Map;
+import java.util.Optional;
 import java.util.function.Consumer;
 import java.util.stream.IntStream;
 import javax.annotation.Nullable;
@@ -43,13 +44,17 @@ public class RuleKeyCacheRecycler<V> {
 
   private final TrackableRuleKeyCache<V> cache;
   private final ImmutableSet<ProjectFilesystem> watchedFilesystems;
+  private final Optional<PersistentRuleKeyStore> persistentStore;
 
   @Nullable private SettingsAffectingCache previousSettings = null;
 
   private RuleKeyCacheRecycler(
-      TrackableRuleKeyCache<V> cache, ImmutableSet<ProjectFilesystem> watchedFilesystems) {
+      TrackableRuleKeyCache<V> cache,
+      ImmutableSet<ProjectFilesystem> watchedFilesystems,
+      Optional<PersistentRuleKeyStore> persistentStore) {
     this.cache = cache;
     this.watchedFilesystems = watchedFilesystems;
+    this.persistentStore = persistentStore;
   }
 
   /**
@@ -62,8 +67,22 @@ public class RuleKeyCacheRecycler<V> {
       EventBus eventBus,
       TrackableRuleKeyCache<V> ruleKeyCache,
       ImmutableSet<ProjectFilesystem> watchedFilesystems) {
+    return createAndRegister(eventBus, ruleKeyCache, watchedFilesystems, Optional.empty());
+  }
 
-    RuleKeyCacheRecycler<V> recycler = new RuleKeyCacheRecycler<>(ruleKeyCache, watchedFilesystems);
+  /**
+   * @param persistentStore keeps rule keys around across daemon restarts, changed files are
+   *     invalidated in it as well.
+   * @return a new {@link RuleKeyCacheRecycler}.
+   */
+  public static <V> RuleKeyCacheRecycler<V> createAndRegister(
+      EventBus eventBus,
+      TrackableRuleKeyCache<V> ruleKeyCache,
+      ImmutableSet<ProjectFilesystem> watchedFilesystems,
+      Optional<PersistentRuleKeyStore> persistentStore) {
+
+    RuleKeyCacheRecycler<V> recycler =
+        new RuleKeyCacheRecycler<>(ruleKeyCache, watchedFilesystems, persistentStore);
 
     // Subscribe the recycler to receive filesystem watch events.
     eventBus.register(recycler);
@@ -72,7 +91,7 @@ public class RuleKeyCacheRecycler<V> {
   }
 
   public static <V> RuleKeyCacheRecycler<V> create(TrackableRuleKeyCache<V> ruleKeyCache) {
-    return new RuleKeyCacheRecycler<>(ruleKeyCache, ImmutableSet.of());
+    return new RuleKeyCacheRecycler<>(ruleKeyCache, ImmutableSet.of(), Optional.empty());
   }
 
   @Subscribe
@@ -97,6 +116,8 @@ public class RuleKeyCacheRecycler<V> {
             .mapToObj(end -> RuleKeyInput.of(filesystem, path.subpath(0, end)))
             .collect(ImmutableList.toImmutableList()),
         new NoOpCacheStatsTracker());
+    // Only regular files are tracked by the persistent store.
+    persistentStore.ifPresent(store -> store.invalidate(filesystem.resolve(path)));
   }
 
   @Subscribe
@@ -107,6 +128,8 @@ public class RuleKeyCacheRecycler<V> {
       // Do not track stats from Daemon watchman events.
       cache.invalidateFilesystem(filesystem, new NoOpCacheStatsTracker());
     }
+    // The persistent store is left alone, as this happens on every daemon start. Its entries are
+    // checked against the sizes and modification times of their inputs anyway.
   }
 
   /**
@@ -119,7 +142,8 @@ public class RuleKeyCacheRecycler<V> {
   public RuleKeyCacheScope<V> withRecycledCache(
       BuckEventBus buckEventBus, SettingsAffectingCache currentSettings) {
     return new EventPostingRuleKeyCacheScope<V>(
-        buckEventBus, new TrackedRuleKeyCache<>(cache, new InstrumentingCacheStatsTracker())) {
+        buckEventBus,
+        new TrackedRuleKeyCache<>(cache, new InstrumentingCacheStatsTracker(), persistentStore)) {
 
       // Cache setup which is run before the caller gets access to the cache, at the time the scope
       // is allocated.
@@ -151,6 +175,8 @@ public class RuleKeyCacheRecycler<V> {
         LOG.verbose(
             "invalidating unwatched filesystems (everything except %s)", watchedFilesystems);
         getCache().invalidateAllExceptFilesystems(watchedFilesystems);
+
+        persistentStore.ifPresent(PersistentRuleKeyStore::save);
       }
     };
   }
@@ -23,6 +23,7 @@ import com.facebook.buck.util.cache.CacheStats;
 import com.facebook.buck.util.cache.CacheStatsTracker;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
+import java.util.Optional;
 import java.util.function.Function;
 import javax.annotation.Nullable;
 
@@ -35,10 +36,19 @@ public class TrackedRuleKeyCache<V> implements RuleKeyCache<V> {
 
   private final TrackableRuleKeyCache<V> cache;
   private final CacheStatsTracker statsTracker;
+  private final Optional<PersistentRuleKeyStore> persistentStore;
 
   public TrackedRuleKeyCache(TrackableRuleKeyCache<V> cache, CacheStatsTracker statsTracker) {
+    this(cache, statsTracker, Optional.empty());
+  }
+
+  public TrackedRuleKeyCache(
+      TrackableRuleKeyCache<V> cache,
+      CacheStatsTracker statsTracker,
+      Optional<PersistentRuleKeyStore> persistentStore) {
     this.cache = cache;
     this.statsTracker = statsTracker;
+    this.persistentStore = persistentStore;
   }
 
   @Override
@@ -86,6 +96,11 @@ public class TrackedRuleKeyCache<V> implements RuleKeyCache<V> {
     cache.invalidateAll(statsTracker);
   }
 
+  /** @return the store which keeps rule keys around across daemon restarts, if any. */
+  public Optional<PersistentRuleKeyStore> getPersistentStore() {
+    return persistentStore;
+  }
+
   @VisibleForTesting
   TrackableRuleKeyCache<V> getCache() {
     return cache;
@@ -31,24 +31,59 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.regex.Pattern;
 
-/** An implementation of {@link RuleKeyHasher} that wraps Guava's {@link Hasher}. */
+/**
+ * An implementation of {@link RuleKeyHasher} that wraps Guava's {@link Hasher}.
+ *
+ * <p>Strings and hash codes are copied into a reusable buffer before being passed on, rather than
+ * being converted into fresh byte arrays.
+ */
 public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
+  private static final int INITIAL_BUFFER_SIZE = 256;
+
   private final Hasher hasher;
+  private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
 
   public GuavaRuleKeyHasher(Hasher hasher) {
     this.hasher = hasher;
   }
 
   private GuavaRuleKeyHasher putBytes(byte type, byte[] bytes) {
-    hasher.putBytes(bytes);
-    hasher.putInt(bytes.length);
+    return putBytes(type, bytes, bytes.length);
+  }
+
+  private GuavaRuleKeyHasher putBytes(byte type, byte[] bytes, int length) {
+    hasher.putBytes(bytes, 0, length);
+    hasher.putInt(length);
     hasher.putByte(type);
     return this;
   }
 
+  private GuavaRuleKeyHasher putHashCode(byte type, HashCode hashCode) {
+    int length = hashCode.bits() / Byte.SIZE;
+    ensureBufferSize(length);
+    hashCode.writeBytesTo(buffer, 0, length);
+    return putBytes(type, buffer, length);
+  }
+
   private GuavaRuleKeyHasher putStringified(byte type, String val) {
-    return putBytes(type, val.getBytes(StandardCharsets.UTF_8));
+    // Encoding ASCII strings to UTF-8 is a plain copy, which saves allocating a new array.
+    int length = val.length();
+    ensureBufferSize(length);
+    for (int i = 0; i < length; i++) {
+      char c = val.charAt(i);
+      if (c >= 0x80) {
+        return putBytes(type, val.getBytes(StandardCharsets.UTF_8));
+      }
+      buffer[i] = (byte) c;
+    }
+    return putBytes(type, buffer, length);
+  }
+
+  private void ensureBufferSize(int size) {
+    if (buffer.length < size) {
+      buffer = new byte[Math.max(size, buffer.length * 2)];
+    }
   }
 
   private GuavaRuleKeyHasher putBuildTarget(byte type, BuildTarget target) {
@@ -129,14 +164,14 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
   @Override
   public GuavaRuleKeyHasher putPath(Path path, HashCode hash) {
     this.putStringified(RuleKeyHasherTypes.PATH, path.toString());
-    this.putBytes(RuleKeyHasherTypes.PATH, hash.asBytes());
+    this.putHashCode(RuleKeyHasherTypes.PATH, hash);
     return this;
   }
 
   @Override
   public GuavaRuleKeyHasher putArchiveMemberPath(ArchiveMemberPath path, HashCode hash) {
     this.putStringified(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, path.toString());
-    this.putBytes(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash.asBytes());
+    this.putHashCode(RuleKeyHasherTypes.ARCHIVE_MEMBER_PATH, hash);
     return this;
   }
 
@@ -152,7 +187,7 @@ public class GuavaRuleKeyHasher implements RuleKeyHasher<HashCode> {
 
   @Override
   public GuavaRuleKeyHasher putRuleKey(RuleKey ruleKey) {
-    return this.putBytes(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode().asBytes());
+    return this.putHashCode(RuleKeyHasherTypes.RULE_KEY, ruleKey.getHashCode());
   }
 
   @Override
@@ -21,6 +21,7 @@ import com.facebook.buck.rules.modern.builders.thrift.OutputDirectory;
 import com.facebook.buck.rules.modern.builders.thrift.OutputFile;
 import com.facebook.buck.util.function.ThrowingSupplier;
 import com.google.common.collect.ImmutableMap;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
@@ -28,7 +29,12 @@ import java.util.List;
 
 /** This is a simple ContentAddressedStorage interface used for remote execution. */
 public interface ContentAddressedStorage {
-  void addMissing(ImmutableMap<Digest, ThrowingSupplier<InputStream, IOException>> data)
+  /**
+   * For any digests that are missing, adds the corresponding data to the storage. All of the given
+   * data is kept in the storage until the returned lease is closed, so callers should hold it until
+   * they have materialized the data.
+   */
+  Lease addMissing(ImmutableMap<Digest, ThrowingSupplier<InputStream, IOException>> data)
       throws IOException;
 
   /** Materializes the directory encoded by inputsDigest into root. */
@@ -38,4 +44,10 @@ public interface ContentAddressedStorage {
   void materializeOutputs(
       List<OutputDirectory> outputDirectories, List<OutputFile> outputFiles, Path root)
       throws IOException;
+
+  /** Keeps data from being removed from the storage while it is in use. */
+  interface Lease extends Closeable {
+    @Override
+    void close();
+  }
 }
@@ -39,13 +39,13 @@ class InProcessIsolatedExecution implements IsolatedExecution {
   private final Console console;
   private final LocalContentAddressedStorage storage;
 
-  InProcessIsolatedExecution(BuckEventBus eventBus, Console console) throws IOException {
+  InProcessIsolatedExecution(
+      BuckEventBus eventBus, Console console, LocalContentAddressedStorage storage)
+      throws IOException {
     this.eventBus = eventBus;
     this.console = console;
     this.workDir = new NamedTemporaryDirectory("__work__");
-    this.storage =
-        new LocalContentAddressedStorage(
-            workDir.getPath().resolve("__cache__"), InputsDigestBuilder::defaultDigestForStruct);
+    this.storage = storage;
   }
 
   @Override
@@ -72,8 +72,9 @@ class InProcessIsolatedExecution implements IsolatedExecution {
 
     try (Closeable ignored = () -> MostFiles.deleteRecursively(buildDir)) {
       Inputs inputs = inputsBuilder.build();
-      storage.addMissing(inputs.getRequiredData());
-      storage.materializeInputs(buildDir, inputs.getRootDigest());
+      try (ContentAddressedStorage.Lease lease = storage.addMissing(inputs.getRequiredData())) {
+        storage.materializeInputs(buildDir, inputs.getRootDigest());
+      }
       new IsolatedBuildableBuilder(buildDir, projectRoot) {
         @Override
         protected Console createConsole() {
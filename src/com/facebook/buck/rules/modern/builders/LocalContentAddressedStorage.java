@@ -28,62 +28,167 @@ import com.facebook.buck.slb.ThriftUtil;
 import com.facebook.buck.util.function.ThrowingFunction;
 import com.facebook.buck.util.function.ThrowingSupplier;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.MoreFiles;
 import com.google.devtools.build.lib.concurrent.KeyedLocker.AutoUnlocker;
 import com.google.devtools.build.lib.concurrent.StripedKeyedLocker;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import javax.annotation.concurrent.GuardedBy;
 
-/** A simple, on-disk content addressed storage. */
+/**
+ * A simple, on-disk content addressed storage.
+ *
+ * <p>The data is sharded in two levels of directories by the first characters of its hash. It is
+ * written to temporary files which are atomically renamed into place, so that readers never see
+ * partial data, even when several writers add the same digest. Inputs are materialized as hard
+ * links to the stored data (falling back to copies when links can't be made), so the stored files
+ * are made read-only: materialized files must be replaced rather than modified in place.
+ *
+ * <p>The storage is kept under a size budget by evicting the least recently used data whenever
+ * data is added. Data which is leased by {@link #addMissing} is never evicted, so that it is still
+ * there when the caller materializes it. The contents of the storage are loaded into memory on
+ * first use, so that looking up digests doesn't touch the disk; missing digests are mostly answered
+ * by a bloom filter without taking any lock.
+ *
+ * <p>Other processes may share the directory and evict data behind this one's back. Leased data
+ * which turns out to be missing when it is read is added again, and the index forgets about any
+ * other data found missing.
+ */
 public class LocalContentAddressedStorage implements ContentAddressedStorage {
+  private static final String EXECUTABLE_SUFFIX = ".x";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int EXPECTED_ENTRIES = 1 << 20;
+
   private final Path cacheDir;
+  private final long maxSizeBytes;
   private final StripedKeyedLocker<String> fileLock = new StripedKeyedLocker<>(8);
   private final ThrowingFunction<Directory, Digest, IOException> directoryDigester;
 
+  // The names of the stored files, from the least to the most recently used, with their sizes.
+  // The executable copies of the data are stored separately, under their own names.
+  @GuardedBy("this")
+  private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<>(16, 0.75f, true);
+
+  @GuardedBy("this")
+  private long totalSizeBytes = 0;
+
+  @GuardedBy("this")
+  private boolean loaded = false;
+
+  // The hashes of the leased data, with how to add it again if it goes missing.
+  @GuardedBy("this")
+  private final Map<String, Pin> pins = new HashMap<>();
+
+  // Every hash which has been stored. Evicted hashes aren't removed, so this can only tell for sure
+  // that a hash is missing.
+  private final BloomFilter<CharSequence> storedHashes =
+      BloomFilter.create(Funnels.stringFunnel(Charsets.UTF_8), EXPECTED_ENTRIES);
+
   public LocalContentAddressedStorage(
       Path cacheDir, ThrowingFunction<Directory, Digest, IOException> directoryDigester) {
+    this(cacheDir, directoryDigester, Long.MAX_VALUE);
+  }
+
+  public LocalContentAddressedStorage(
+      Path cacheDir,
+      ThrowingFunction<Directory, Digest, IOException> directoryDigester,
+      long maxSizeBytes) {
     this.cacheDir = cacheDir;
     this.directoryDigester = directoryDigester;
+    this.maxSizeBytes = maxSizeBytes;
   }
 
-  /** For any digests that are missing, adds the corresponding data to the storage. */
+  /**
+   * For any digests that are missing, adds the corresponding data to the storage. None of the given
+   * data is evicted until the returned lease is closed.
+   */
   @Override
-  public void addMissing(ImmutableMap<Digest, ThrowingSupplier<InputStream, IOException>> data)
+  public Lease addMissing(ImmutableMap<Digest, ThrowingSupplier<InputStream, IOException>> data)
       throws IOException {
-    Stream<Digest> missing = findMissing(data.keySet());
-    for (Entry<Digest, ThrowingSupplier<InputStream, IOException>> entry :
-        missing.collect(ImmutableMap.toImmutableMap(digest -> digest, data::get)).entrySet()) {
-      String hash = entry.getKey().hash;
-      Path path = ensureParent(getPath(hash));
-      try (AutoUnlocker ignored = fileLock.writeLock(hash)) {
-        if (Files.exists(path)) {
-          continue;
-        }
-        Path tempPath = path.getParent().resolve(path.getFileName() + ".tmp");
-        try (FileOutputStream outputStream = new FileOutputStream(tempPath.toFile())) {
-          ByteStreams.copy(entry.getValue().get(), outputStream);
-        }
-        Files.move(tempPath, path);
+    Lease lease = pin(data);
+    try {
+      for (Digest digest : findMissing(data.keySet())) {
+        storeData(digest.hash, data.get(digest));
+      }
+      evictLeastRecentlyUsed();
+    } catch (IOException | RuntimeException e) {
+      lease.close();
+      throw e;
+    }
+    return lease;
+  }
+
+  private void storeData(String hash, ThrowingSupplier<InputStream, IOException> contents)
+      throws IOException {
+    Path path = ensureParent(getPath(hash));
+    try (AutoUnlocker ignored = fileLock.writeLock(hash)) {
+      if (!Files.exists(path)) {
+        writeAtomically(path, contents, false);
+      }
+    }
+    recordEntry(hash, Files.size(path));
+  }
+
+  private synchronized Lease pin(
+      ImmutableMap<Digest, ThrowingSupplier<InputStream, IOException>> data) {
+    Map<String, ThrowingSupplier<InputStream, IOException>> contentsByHash = new HashMap<>();
+    for (Map.Entry<Digest, ThrowingSupplier<InputStream, IOException>> entry : data.entrySet()) {
+      contentsByHash.putIfAbsent(entry.getKey().hash, entry.getValue());
+    }
+    for (Map.Entry<String, ThrowingSupplier<InputStream, IOException>> entry :
+        contentsByHash.entrySet()) {
+      pins.computeIfAbsent(entry.getKey(), hash -> new Pin(entry.getValue())).count++;
+    }
+    ImmutableSet<String> hashes = ImmutableSet.copyOf(contentsByHash.keySet());
+    AtomicBoolean closed = new AtomicBoolean();
+    return () -> {
+      if (closed.compareAndSet(false, true)) {
+        unpin(hashes);
+      }
+    };
+  }
+
+  private synchronized void unpin(Set<String> hashes) {
+    for (String hash : hashes) {
+      Pin pin = Preconditions.checkNotNull(pins.get(hash));
+      if (--pin.count == 0) {
+        pins.remove(hash);
       }
     }
   }
 
   /**
-   * Materializes the outputs into the build root. All required data must be present (or inlined).
+   * Materializes the outputs into the build root. All required data must be present or leased (or
+   * inlined).
    */
   @Override
   public void materializeOutputs(
@@ -92,16 +197,17 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
     for (OutputFile file : outputFiles) {
       Path path = root.resolve(file.path);
       ensureParent(path);
+      Files.deleteIfExists(path);
       if (file.isSetContent()) {
         try (FileChannel output =
             FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
           output.write(file.content);
         }
+        if (file.isExecutable) {
+          Preconditions.checkState(path.toFile().setExecutable(true));
+        }
       } else {
-        Files.write(path, getData(file.digest));
-      }
-      if (file.isExecutable) {
-        Preconditions.checkState(path.toFile().setExecutable(true));
+        copyOutput(file.digest.hash, file.isExecutable, path);
       }
     }
 
@@ -124,11 +230,28 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
     }
 
     for (FileNode file : dir.files) {
-      materializeFile(root, file);
+      Path path = root.resolve(file.name);
+      Files.deleteIfExists(path);
+      copyOutput(file.digest.hash, file.isExecutable, path);
+    }
+  }
+
+  // Outputs are copied rather than linked, as the build may later modify them in place.
+  private void copyOutput(String hash, boolean isExecutable, Path path) throws IOException {
+    try {
+      Files.copy(getStoredFile(hash, false), path);
+    } catch (NoSuchFileException e) {
+      // Another process evicted the data right after it was looked up.
+      Files.copy(getStoredFile(hash, false), path);
+    }
+    // Copies keep the permissions of the read-only stored file.
+    Preconditions.checkState(path.toFile().setWritable(true));
+    if (isExecutable) {
+      Preconditions.checkState(path.toFile().setExecutable(true));
     }
   }
 
-  /** Materializes all of the inputs into root. All required data must be present. */
+  /** Materializes all of the inputs into root. All required data must be present or leased. */
   @Override
   public void materializeInputs(Path root, Digest inputsDigest) throws IOException {
     Directory dir = readDirectory(inputsDigest);
@@ -144,9 +267,7 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
 
   @VisibleForTesting
   byte[] getData(Digest digest) throws IOException {
-    Path path = getPath(digest.hash);
-    Preconditions.checkState(Files.exists(path));
-    return Files.readAllBytes(path);
+    return Files.readAllBytes(getStoredFile(digest.hash, false));
   }
 
   private Path ensureParent(Path path) throws IOException {
@@ -154,52 +275,237 @@ public class LocalContentAddressedStorage implements ContentAddressedStorage {
     return path;
   }
 
-  private Path getPath(String hashString) {
-    return cacheDir
-        .resolve(hashString.substring(0, 2))
-        .resolve(hashString.substring(2, 4))
-        .resolve(hashString);
+  private Path getPath(String name) {
+    return cacheDir.resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name);
   }
 
   private Tree readTree(Digest digest) throws IOException {
-    Path path = getPath(digest.hash);
-    Preconditions.checkState(Files.exists(path));
     Tree tree = new Tree();
-    ThriftUtil.deserialize(ThriftProtocol.COMPACT, new FileInputStream(path.toFile()), tree);
+    try (InputStream input = Files.newInputStream(getStoredFile(digest.hash, false))) {
+      ThriftUtil.deserialize(ThriftProtocol.COMPACT, input, tree);
+    }
     return tree;
   }
 
   private Directory readDirectory(Digest digest) throws IOException {
-    Path path = getPath(digest.hash);
-    Preconditions.checkState(Files.exists(path));
     Directory directory = new Directory();
-    ThriftUtil.deserialize(ThriftProtocol.COMPACT, new FileInputStream(path.toFile()), directory);
+    try (InputStream input = Files.newInputStream(getStoredFile(digest.hash, false))) {
+      ThriftUtil.deserialize(ThriftProtocol.COMPACT, input, directory);
+    }
     return directory;
   }
 
   private void materializeFile(Path dir, FileNode file) throws IOException {
-    Path path = getPath(file.digest.hash);
-    Preconditions.checkState(Files.exists(path));
+    Path path = dir.resolve(file.name);
+    try {
+      linkOrCopy(getStoredFile(file.digest.hash, file.isExecutable), path);
+    } catch (NoSuchFileException e) {
+      // Another process evicted the data right after it was looked up.
+      linkOrCopy(getStoredFile(file.digest.hash, file.isExecutable), path);
+    }
+  }
+
+  /**
+   * @return the stored file with the data of the given hash, which is made executable if needed.
+   */
+  private Path getStoredFile(String hash, boolean isExecutable) throws IOException {
+    loadEntries();
+    Path path = getPath(hash);
+    if (!Files.exists(path)) {
+      restoreEvictedData(hash);
+    }
+    markUsed(hash);
+    if (!isExecutable) {
+      return path;
+    }
+
     // As this file could potentially be materialized as both executable and non-executable, and
     // links share that, we need two concrete versions of the file.
-    if (file.isExecutable) {
-      Path exePath = path.getParent().resolve(path.getFileName() + ".x");
-      if (!Files.exists(exePath)) {
-        try (AutoUnlocker ignored = fileLock.writeLock(exePath.toString())) {
-          if (!Files.exists(exePath)) {
-            Path tempPath = path.getParent().resolve(path.getFileName() + ".x.tmp");
-            Files.copy(path, tempPath);
-            Preconditions.checkState(tempPath.toFile().setExecutable(true));
-            Files.move(tempPath, exePath);
+    String exeName = hash + EXECUTABLE_SUFFIX;
+    Path exePath = getPath(exeName);
+    if (!Files.exists(exePath)) {
+      try (AutoUnlocker ignored = fileLock.writeLock(exeName)) {
+        if (!Files.exists(exePath)) {
+          writeAtomically(exePath, () -> Files.newInputStream(path), true);
+        }
+      }
+      recordEntry(exeName, Files.size(exePath));
+    } else {
+      markUsed(exeName);
+    }
+    return exePath;
+  }
+
+  /** Writes the file through a temporary file, so that it's never seen partially written. */
+  private void writeAtomically(
+      Path path, ThrowingSupplier<InputStream, IOException> contents, boolean isExecutable)
+      throws IOException {
+    Path tempPath =
+        Files.createTempFile(path.getParent(), path.getFileName().toString(), TEMP_SUFFIX);
+    try {
+      try (InputStream input = contents.get();
+          OutputStream output = Files.newOutputStream(tempPath)) {
+        ByteStreams.copy(input, output);
+      }
+      if (isExecutable) {
+        Preconditions.checkState(tempPath.toFile().setExecutable(true));
+      }
+      Preconditions.checkState(tempPath.toFile().setWritable(false));
+      try {
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        // Some filesystems don't replace existing files atomically. Another writer has stored the
+        // same data, which is as good.
+        if (!Files.exists(path)) {
+          throw e;
+        }
+      }
+    } finally {
+      Files.deleteIfExists(tempPath);
+    }
+  }
+
+  /** Adds data which was evicted by another process again, if it is leased. */
+  private void restoreEvictedData(String hash) throws IOException {
+    ThrowingSupplier<InputStream, IOException> contents;
+    synchronized (this) {
+      forgetEntry(hash);
+      Pin pin = pins.get(hash);
+      if (pin == null) {
+        throw new NoSuchFileException(
+            getPath(hash).toString(), null, "Data which isn't leased was evicted.");
+      }
+      contents = pin.contents;
+    }
+    storeData(hash, contents);
+  }
+
+  private static void linkOrCopy(Path storedFile, Path path) throws IOException {
+    try {
+      Files.createLink(path, storedFile);
+    } catch (FileAlreadyExistsException e) {
+      if (!Files.isSameFile(storedFile, path)) {
+        // A file left by an earlier materialization, which may have other data.
+        Files.delete(path);
+        linkOrCopy(storedFile, path);
+      }
+    } catch (NoSuchFileException e) {
+      throw e;
+    } catch (UnsupportedOperationException | IOException e) {
+      // The storage may be on another filesystem than the build.
+      Files.copy(storedFile, path);
+    }
+  }
+
+  /** @return the digests whose data isn't stored. */
+  private ImmutableList<Digest> findMissing(Set<Digest> digests) throws IOException {
+    loadEntries();
+    ImmutableList.Builder<Digest> missing = ImmutableList.builder();
+    List<Digest> maybeStored = new ArrayList<>(digests.size());
+    for (Digest digest : digests) {
+      if (storedHashes.mightContain(digest.hash)) {
+        maybeStored.add(digest);
+      } else {
+        missing.add(digest);
+      }
+    }
+    if (!maybeStored.isEmpty()) {
+      synchronized (this) {
+        for (Digest digest : maybeStored) {
+          if (entrySizes.get(digest.hash) == null) {
+            missing.add(digest);
           }
         }
       }
-      path = exePath;
     }
-    Files.createLink(dir.resolve(file.name), path);
+    return missing.build();
   }
 
-  private Stream<Digest> findMissing(Set<Digest> digests) {
-    return digests.stream().filter(digest -> !Files.exists(getPath(digest.hash)));
+  /** Loads the names and sizes of the stored files, oldest first, if they haven't been yet. */
+  private synchronized void loadEntries() throws IOException {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    if (!Files.isDirectory(cacheDir)) {
+      return;
+    }
+    List<StoredFile> storedFiles;
+    try (Stream<Path> paths = Files.walk(cacheDir)) {
+      storedFiles = new ArrayList<>();
+      for (Path path : paths.collect(Collectors.toList())) {
+        String name = path.getFileName().toString();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        // Temporary files are either being written or were left behind by a writer which died.
+        if (attributes.isRegularFile() && !name.endsWith(TEMP_SUFFIX)) {
+          storedFiles.add(
+              new StoredFile(name, attributes.size(), attributes.lastModifiedTime()));
+        }
+      }
+    }
+    storedFiles.sort(Comparator.comparing(storedFile -> storedFile.lastModifiedTime));
+    for (StoredFile storedFile : storedFiles) {
+      recordEntry(storedFile.name, storedFile.size);
+    }
+  }
+
+  private synchronized void recordEntry(String name, long size) {
+    if (entrySizes.put(name, size) == null) {
+      totalSizeBytes += size;
+    }
+    if (!name.endsWith(EXECUTABLE_SUFFIX)) {
+      storedHashes.put(name);
+    }
+  }
+
+  private synchronized void markUsed(String name) {
+    entrySizes.get(name);
+  }
+
+  private synchronized void forgetEntry(String name) {
+    Long size = entrySizes.remove(name);
+    if (size != null) {
+      totalSizeBytes -= size;
+    }
+  }
+
+  /** Deletes the least recently used files which aren't leased until the budget is met. */
+  private synchronized void evictLeastRecentlyUsed() throws IOException {
+    Iterator<Map.Entry<String, Long>> entries = entrySizes.entrySet().iterator();
+    while (totalSizeBytes > maxSizeBytes && entries.hasNext()) {
+      Map.Entry<String, Long> entry = entries.next();
+      String name = entry.getKey();
+      String hash =
+          name.endsWith(EXECUTABLE_SUFFIX)
+              ? name.substring(0, name.length() - EXECUTABLE_SUFFIX.length())
+              : name;
+      if (pins.containsKey(hash)) {
+        continue;
+      }
+      Files.deleteIfExists(getPath(name));
+      totalSizeBytes -= entry.getValue();
+      entries.remove();
+    }
+  }
+
+  private static class Pin {
+    private final ThrowingSupplier<InputStream, IOException> contents;
+    private int count = 0;
+
+    private Pin(ThrowingSupplier<InputStream, IOException> contents) {
+      this.contents = contents;
+    }
+  }
+
+  private static class StoredFile {
+    private final String name;
+    private final long size;
+    private final FileTime lastModifiedTime;
+
+    private StoredFile(String name, long size, FileTime lastModifiedTime) {
+      this.name = name;
+      this.size = size;
+      this.lastModifiedTime = lastModifiedTime;
+    }
   }
 }
@@ -17,6 +17,7 @@
 package com.facebook.buck.rules.modern.builders;
 
 import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.rules.BuildExecutorRunner;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleResolver;
@@ -40,7 +41,13 @@ import java.util.Optional;
  * modern_build_rule.strategy config option.
  */
 public class ModernBuildRuleBuilderFactory {
-  /** Creates a BuildRuleStrategy for ModernBuildRules based on the buck configuration. */
+
+  /**
+   * Creates a BuildRuleStrategy for ModernBuildRules based on the buck configuration.
+   *
+   * @param localStorage the storage kept by the daemon, if any. Strategies which need one create it
+   *     otherwise.
+   */
   public static Optional<BuildRuleStrategy> getBuildStrategy(
       ModernBuildRuleConfig config,
       BuildRuleResolver resolver,
@@ -48,7 +55,8 @@ public class ModernBuildRuleBuilderFactory {
       CellPathResolver cellResolver,
       FileHashLoader hashLoader,
       BuckEventBus eventBus,
-      Console console) {
+      Console console,
+      Optional<LocalContentAddressedStorage> localStorage) {
     try {
       switch (config.getBuildStrategy()) {
         case NONE:
@@ -65,12 +73,17 @@ public class ModernBuildRuleBuilderFactory {
                   cellResolver,
                   rootCell,
                   hashLoader::get,
+                  localStorage.orElseGet(() -> createLocalStorage(config, rootCell)),
                   eventBus,
                   console));
         case DEBUG_ISOLATED_OUT_OF_PROCESS:
           return Optional.of(
               createIsolatedOutOfProcess(
-                  new SourcePathRuleFinder(resolver), cellResolver, rootCell, hashLoader::get));
+                  new SourcePathRuleFinder(resolver),
+                  cellResolver,
+                  rootCell,
+                  hashLoader::get,
+                  localStorage.orElseGet(() -> createLocalStorage(config, rootCell))));
       }
     } catch (IOException e) {
       throw new BuckUncheckedExecutionException(e, "When creating MBR build strategy.");
@@ -79,6 +92,35 @@ public class ModernBuildRuleBuilderFactory {
         "Unrecognized build strategy " + config.getBuildStrategy() + ".");
   }
 
+  /**
+   * Creates the content-addressed storage kept in the cache directory of the root cell, so that the
+   * inputs stored by one build can be reused by the next ones, if the configured strategy uses one.
+   * The daemon keeps it across builds, so that its index is only loaded from disk once.
+   */
+  public static Optional<LocalContentAddressedStorage> createLocalStorage(Cell rootCell) {
+    ModernBuildRuleConfig config = rootCell.getBuckConfig().getView(ModernBuildRuleConfig.class);
+    switch (config.getBuildStrategy()) {
+      case NONE:
+      case DEBUG_RECONSTRUCT:
+      case DEBUG_PASSTHROUGH:
+        return Optional.empty();
+      case DEBUG_ISOLATED_IN_PROCESS:
+      case DEBUG_ISOLATED_OUT_OF_PROCESS:
+        return Optional.of(createLocalStorage(config, rootCell));
+    }
+    throw new IllegalStateException(
+        "Unrecognized build strategy " + config.getBuildStrategy() + ".");
+  }
+
+  private static LocalContentAddressedStorage createLocalStorage(
+      ModernBuildRuleConfig config, Cell rootCell) {
+    ProjectFilesystem filesystem = rootCell.getFilesystem();
+    return new LocalContentAddressedStorage(
+        filesystem.resolve(filesystem.getBuckPaths().getCacheDir().resolve("cas")),
+        InputsDigestBuilder::defaultDigestForStruct,
+        config.getLocalStorageMaxSizeBytes());
+  }
+
   /** The passthrough strategy just forwards to executorRunner.runWithDefaultExecutor. */
   public static BuildRuleStrategy createPassthrough() {
     return new AbstractModernBuildRuleStrategy() {
@@ -110,10 +152,15 @@ public class ModernBuildRuleBuilderFactory {
       SourcePathRuleFinder ruleFinder,
       CellPathResolver cellResolver,
       Cell rootCell,
-      ThrowingFunction<Path, HashCode, IOException> fileHasher)
+      ThrowingFunction<Path, HashCode, IOException> fileHasher,
+      LocalContentAddressedStorage storage)
       throws IOException {
     return IsolatedExecution.createIsolatedExecutionStrategy(
-        OutOfProcessIsolatedExecution.create(), ruleFinder, cellResolver, rootCell, fileHasher);
+        OutOfProcessIsolatedExecution.create(storage),
+        ruleFinder,
+        cellResolver,
+        rootCell,
+        fileHasher);
   }
 
   /**
@@ -127,11 +174,12 @@ public class ModernBuildRuleBuilderFactory {
       CellPathResolver cellResolver,
       Cell rootCell,
       ThrowingFunction<Path, HashCode, IOException> fileHasher,
+      LocalContentAddressedStorage storage,
       BuckEventBus eventBus,
       Console console)
       throws IOException {
     return IsolatedExecution.createIsolatedExecutionStrategy(
-        new InProcessIsolatedExecution(eventBus, console),
+        new InProcessIsolatedExecution(eventBus, console, storage),
         ruleFinder,
         cellResolver,
         rootCell,
@@ -39,6 +39,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
+import com.google.common.io.Closer;
 import com.google.common.io.MoreFiles;
 import java.io.Closeable;
 import java.io.IOException;
@@ -55,14 +56,12 @@ public class OutOfProcessIsolatedExecution extends RemoteExecution {
   private final NamedTemporaryDirectory workDir;
 
   /**
-   * Returns a RemoteExecution implementation that uses a local CAS and a separate local temporary
-   * directory for execution.
+   * Returns a RemoteExecution implementation that uses the given local CAS and a separate local
+   * temporary directory for execution.
    */
-  public static OutOfProcessIsolatedExecution create() throws IOException {
+  public static OutOfProcessIsolatedExecution create(LocalContentAddressedStorage storage)
+      throws IOException {
     NamedTemporaryDirectory workDir = new NamedTemporaryDirectory("__work__");
-    LocalContentAddressedStorage storage =
-        new LocalContentAddressedStorage(
-            workDir.getPath().resolve("__cache__"), InputsDigestBuilder::defaultDigestForStruct);
     return new OutOfProcessIsolatedExecution(workDir, storage);
   }
 
@@ -76,7 +75,8 @@ public class OutOfProcessIsolatedExecution extends RemoteExecution {
               ImmutableList<String> command,
               ImmutableSortedMap<String, String> commandEnvironment,
               Digest inputsRootDigest,
-              Set<Path> outputs)
+              Set<Path> outputs,
+              Closer leases)
               throws IOException, InterruptedException {
             Path buildDir = workDir.getPath().resolve(inputsRootDigest.hash);
             try (Closeable ignored = () -> MostFiles.deleteRecursively(buildDir)) {
@@ -102,7 +102,7 @@ public class OutOfProcessIsolatedExecution extends RemoteExecution {
 
                 collectOutputs(
                     outputs, buildDir, outputFilesBuilder, outputDirsBuilder, requiredDataBuilder);
-                storage.addMissing(requiredDataBuilder.build());
+                leases.register(storage.addMissing(requiredDataBuilder.build()));
               }
 
               return new ActionResult(
@@ -30,6 +30,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.hash.HashCode;
+import com.google.common.io.Closer;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -89,28 +90,31 @@ class RemoteExecution implements IsolatedExecution {
     inputsBuilder.addFile(trampolinePath, () -> trampoline, true);
 
     Inputs inputs = inputsBuilder.build();
-    storage.addMissing(inputs.getRequiredData());
-
-    ActionResult result =
-        executionService.execute(command, commandEnvironment, inputs.getRootDigest(), outputs);
-
-    if (result.exitCode != 0) {
-      throw StepFailedException.createForFailingStepWithExitCode(
-          new AbstractExecutionStep("remote_execution") {
-            @Override
-            public StepExecutionResult execute(ExecutionContext context) {
-              throw new RuntimeException();
-            }
-          },
-          executionContext,
-          StepExecutionResult.of(result.exitCode, getStdErr(result)),
-          Optional.of(buildTarget));
-    }
+    try (Closer leases = Closer.create()) {
+      leases.register(storage.addMissing(inputs.getRequiredData()));
+
+      ActionResult result =
+          executionService.execute(
+              command, commandEnvironment, inputs.getRootDigest(), outputs, leases);
+
+      if (result.exitCode != 0) {
+        throw StepFailedException.createForFailingStepWithExitCode(
+            new AbstractExecutionStep("remote_execution") {
+              @Override
+              public StepExecutionResult execute(ExecutionContext context) {
+                throw new RuntimeException();
+              }
+            },
+            executionContext,
+            StepExecutionResult.of(result.exitCode, getStdErr(result)),
+            Optional.of(buildTarget));
+      }
 
-    for (Path path : outputs) {
-      MostFiles.deleteRecursivelyIfExists(cellPrefixRoot.resolve(path));
+      for (Path path : outputs) {
+        MostFiles.deleteRecursivelyIfExists(cellPrefixRoot.resolve(path));
+      }
+      storage.materializeOutputs(result.outputDirectories, result.outputFiles, cellPrefixRoot);
     }
-    storage.materializeOutputs(result.outputDirectories, result.outputFiles, cellPrefixRoot);
   }
 
   private Optional<String> getStdErr(ActionResult result) {
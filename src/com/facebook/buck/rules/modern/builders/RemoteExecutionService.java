@@ -20,6 +20,7 @@ import com.facebook.buck.rules.modern.builders.thrift.ActionResult;
 import com.facebook.buck.rules.modern.builders.thrift.Digest;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.io.Closer;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.Set;
@@ -29,12 +30,15 @@ interface RemoteExecutionService {
   /**
    * This should run the command with the provided environment and inputs.
    *
-   * <p>Returns an ActionResult with exit code, outputs, stdout/stderr, etc.
+   * <p>Returns an ActionResult with exit code, outputs, stdout/stderr, etc. Leases keeping the data
+   * of the outputs in the storage are registered with {@code leases}, which the caller closes once
+   * it has materialized the outputs.
    */
   ActionResult execute(
       ImmutableList<String> command,
       ImmutableSortedMap<String, String> commandEnvironment,
       Digest inputsRootDigest,
-      Set<Path> outputs)
+      Set<Path> outputs,
+      Closer leases)
       throws IOException, InterruptedException;
 }
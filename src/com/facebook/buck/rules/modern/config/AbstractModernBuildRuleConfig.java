@@ -19,6 +19,7 @@ package com.facebook.buck.rules.modern.config;
 import com.facebook.buck.config.BuckConfig;
 import com.facebook.buck.config.ConfigView;
 import com.facebook.buck.util.immutables.BuckStyleTuple;
+import com.facebook.buck.util.unit.SizeUnit;
 import org.immutables.value.Value;
 
 /** Various configuration for ModernBuildRule behavior. */
@@ -27,10 +28,23 @@ import org.immutables.value.Value;
 abstract class AbstractModernBuildRuleConfig implements ConfigView<BuckConfig> {
   public static final String SECTION = "modern_build_rule";
 
+  private static final long DEFAULT_LOCAL_STORAGE_MAX_SIZE_BYTES = SizeUnit.GIGABYTES.toBytes(10);
+
   public Strategy getBuildStrategy() {
     return getDelegate().getEnum(SECTION, "strategy", Strategy.class).orElse(Strategy.DEFAULT);
   }
 
+  /**
+   * @return the size budget of the local content-addressed storage shared by the isolated builds,
+   *     past which the least recently used data is evicted.
+   */
+  public long getLocalStorageMaxSizeBytes() {
+    return getDelegate()
+        .getValue(SECTION, "local_storage_max_size")
+        .map(SizeUnit::parseBytes)
+        .orElse(DEFAULT_LOCAL_STORAGE_MAX_SIZE_BYTES);
+  }
+
   /**
    * These are the supported strategies.
    *
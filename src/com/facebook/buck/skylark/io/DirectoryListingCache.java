@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.io;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * Caches the directory listings and file types looked up by {@code glob()} calls, so that they are
+ * shared between all build files and, in the daemon, between commands.
+ *
+ * <p>Entries are only invalidated through {@link #invalidate(Path)} and {@link #invalidateAll()},
+ * so the owner of the cache has to call them for every file system change.
+ */
+public class DirectoryListingCache {
+
+  /** The type of a directory entry, as far as globbing is concerned. */
+  public enum EntryType {
+    FILE,
+    DIRECTORY,
+    SYMLINK,
+    UNKNOWN,
+  }
+
+  private final ConcurrentMap<Key, ImmutableMap<String, EntryType>> listings =
+      new ConcurrentHashMap<>();
+  private final ConcurrentMap<Key, EntryType> types = new ConcurrentHashMap<>();
+
+  /** @return the cached entries of the given directory, keyed by their names, if any. */
+  @Nullable
+  public ImmutableMap<String, EntryType> getListing(String absolutePath, boolean followSymlinks) {
+    return listings.get(new Key(absolutePath, followSymlinks));
+  }
+
+  public void putListing(
+      String absolutePath, boolean followSymlinks, ImmutableMap<String, EntryType> entries) {
+    listings.put(new Key(absolutePath, followSymlinks), entries);
+  }
+
+  /** @return the cached type of the given existing path, if any. */
+  @Nullable
+  public EntryType getType(String absolutePath, boolean followSymlinks) {
+    return types.get(new Key(absolutePath, followSymlinks));
+  }
+
+  public void putType(String absolutePath, boolean followSymlinks, EntryType type) {
+    types.put(new Key(absolutePath, followSymlinks), type);
+  }
+
+  /**
+   * Drops everything which a creation or deletion of the given path can change: the type of the
+   * path, its listing, and the listing of its parent directory.
+   */
+  public void invalidate(Path absolutePath) {
+    String path = absolutePath.toString();
+    for (boolean followSymlinks : new boolean[] {true, false}) {
+      Key key = new Key(path, followSymlinks);
+      listings.remove(key);
+      types.remove(key);
+      if (absolutePath.getParent() != null) {
+        listings.remove(new Key(absolutePath.getParent().toString(), followSymlinks));
+      }
+    }
+  }
+
+  public void invalidateAll() {
+    listings.clear();
+    types.clear();
+  }
+
+  @VisibleForTesting
+  int size() {
+    return listings.size() + types.size();
+  }
+
+  private static final class Key {
+    private final String path;
+    private final boolean followSymlinks;
+
+    private Key(String path, boolean followSymlinks) {
+      this.path = path;
+      this.followSymlinks = followSymlinks;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) other;
+      return followSymlinks == that.followSymlinks && path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(path, followSymlinks);
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.skylark.io.impl;
+
+import com.facebook.buck.skylark.io.DirectoryListingCache;
+import com.facebook.buck.skylark.io.DirectoryListingCache.EntryType;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.vfs.Dirent;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.UnixGlob.FilesystemCalls;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Serves the file system calls made by {@link com.google.devtools.build.lib.vfs.UnixGlob} from a
+ * {@link DirectoryListingCache}, falling back to the given delegate on misses.
+ *
+ * <p>Only results for paths which don't go through symlinks are stored, since file system events
+ * are reported for the targets of symlinks, which would leave results for the links stale.
+ */
+class CachingFilesystemCalls implements FilesystemCalls {
+
+  private final DirectoryListingCache cache;
+  private final FilesystemCalls delegate;
+
+  CachingFilesystemCalls(DirectoryListingCache cache, FilesystemCalls delegate) {
+    this.cache = cache;
+    this.delegate = delegate;
+  }
+
+  @Override
+  public Collection<Dirent> readdir(Path path, Symlinks symlinks) throws IOException {
+    String pathString = path.getPathString();
+    boolean followSymlinks = symlinks == Symlinks.FOLLOW;
+    ImmutableMap<String, EntryType> entries = cache.getListing(pathString, followSymlinks);
+    if (entries == null) {
+      Collection<Dirent> dirents = delegate.readdir(path, symlinks);
+      ImmutableMap.Builder<String, EntryType> builder = ImmutableMap.builder();
+      for (Dirent dirent : dirents) {
+        builder.put(dirent.getName(), EntryType.valueOf(dirent.getType().name()));
+      }
+      if (isCanonical(path)) {
+        cache.putListing(pathString, followSymlinks, builder.build());
+      }
+      return dirents;
+    }
+    ImmutableList.Builder<Dirent> dirents = ImmutableList.builder();
+    for (Map.Entry<String, EntryType> entry : entries.entrySet()) {
+      dirents.add(new Dirent(entry.getKey(), Dirent.Type.valueOf(entry.getValue().name())));
+    }
+    return dirents.build();
+  }
+
+  @Override
+  @Nullable
+  public FileStatus statIfFound(Path path, Symlinks symlinks) throws IOException {
+    String pathString = path.getPathString();
+    boolean followSymlinks = symlinks == Symlinks.FOLLOW;
+    EntryType type = cache.getType(pathString, followSymlinks);
+    if (type == null) {
+      FileStatus status = delegate.statIfFound(path, symlinks);
+      // Missing files aren't cached, so that they are looked up (and reported) again.
+      if (status != null && isCanonical(path)) {
+        cache.putType(pathString, followSymlinks, getType(status));
+      }
+      return status;
+    }
+    return new CachedFileStatus(path, symlinks, type);
+  }
+
+  private static boolean isCanonical(Path path) {
+    try {
+      return path.resolveSymbolicLinks().equals(path);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static EntryType getType(FileStatus status) {
+    if (status.isSymbolicLink()) {
+      return EntryType.SYMLINK;
+    } else if (status.isDirectory()) {
+      return EntryType.DIRECTORY;
+    } else if (status.isFile()) {
+      return EntryType.FILE;
+    }
+    return EntryType.UNKNOWN;
+  }
+
+  /** Answers type checks from the cache, and stats the file for anything else. */
+  private static class CachedFileStatus implements FileStatus {
+    private final Path path;
+    private final Symlinks symlinks;
+    private final EntryType type;
+
+    private CachedFileStatus(Path path, Symlinks symlinks, EntryType type) {
+      this.path = path;
+      this.symlinks = symlinks;
+      this.type = type;
+    }
+
+    @Override
+    public boolean isFile() {
+      return type == EntryType.FILE;
+    }
+
+    @Override
+    public boolean isDirectory() {
+      return type == EntryType.DIRECTORY;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+      return type == EntryType.SYMLINK;
+    }
+
+    @Override
+    public boolean isSpecialFile() {
+      return type == EntryType.UNKNOWN;
+    }
+
+    @Override
+    public long getSize() throws IOException {
+      return path.stat(symlinks).getSize();
+    }
+
+    @Override
+    public long getLastModifiedTime() throws IOException {
+      return path.stat(symlinks).getLastModifiedTime();
+    }
+
+    @Override
+    public long getLastChangeTime() throws IOException {
+      return path.stat(symlinks).getLastChangeTime();
+    }
+
+    @Override
+    public long getNodeId() throws IOException {
+      return path.stat(symlinks).getNodeId();
+    }
+  }
+}
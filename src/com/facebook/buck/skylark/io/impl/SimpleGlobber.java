@@ -16,6 +16,7 @@
 
 package com.facebook.buck.skylark.io.impl;
 
+import com.facebook.buck.skylark.io.DirectoryListingCache;
 import com.facebook.buck.skylark.io.Globber;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
@@ -28,6 +29,7 @@ import com.google.devtools.build.lib.vfs.UnixGlob.FilesystemCalls;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -36,7 +38,8 @@ import java.util.concurrent.atomic.AtomicReference;
  * include patterns (file patterns that should be returned) minus exclude patterns (file patterns
  * that should be excluded from the resulting set).
  *
- * <p>Since this is a simple implementation it does not support caching and other smarts.
+ * <p>Since this is a simple implementation it does not support smarts beyond optionally sharing
+ * directory listings through a {@link DirectoryListingCache}.
  */
 public class SimpleGlobber implements Globber {
 
@@ -46,8 +49,11 @@ public class SimpleGlobber implements Globber {
   /** Path used as a root when resolving patterns. */
   private final Path basePath;
 
-  private SimpleGlobber(Path basePath) {
+  private final FilesystemCalls filesystemCalls;
+
+  private SimpleGlobber(Path basePath, FilesystemCalls filesystemCalls) {
     this.basePath = basePath;
+    this.filesystemCalls = filesystemCalls;
   }
 
   /**
@@ -62,9 +68,9 @@ public class SimpleGlobber implements Globber {
       Collection<String> include, Collection<String> exclude, boolean excludeDirectories)
       throws IOException {
     ImmutableSet<String> includePaths =
-        resolvePathsMatchingGlobPatterns(include, basePath, excludeDirectories);
+        resolvePathsMatchingGlobPatterns(include, excludeDirectories);
     ImmutableSet<String> excludePaths =
-        resolvePathsMatchingGlobPatterns(exclude, basePath, excludeDirectories);
+        resolvePathsMatchingGlobPatterns(exclude, excludeDirectories);
     return Sets.difference(includePaths, excludePaths);
   }
 
@@ -72,17 +78,16 @@ public class SimpleGlobber implements Globber {
    * Resolves provided list of glob patterns into a set of paths.
    *
    * @param patterns The glob patterns to resolve.
-   * @param basePath The base path used when resolving glob patterns.
    * @param excludeDirectories Flag indicating whether directories should be excluded from result.
    * @return The set of paths corresponding to requested patterns.
    */
-  private static ImmutableSet<String> resolvePathsMatchingGlobPatterns(
-      Collection<String> patterns, Path basePath, boolean excludeDirectories) throws IOException {
+  private ImmutableSet<String> resolvePathsMatchingGlobPatterns(
+      Collection<String> patterns, boolean excludeDirectories) throws IOException {
     return UnixGlob.forPath(basePath)
         .addPatterns(patterns)
         .setExcludeDirectories(excludeDirectories)
         // The default here silently suppresses FileNotFoundExceptions; this implementation doesn't.
-        .setFilesystemCalls(new AtomicReference<>(STRICT_EXISTENCE_FILESYSTEM_CALLS))
+        .setFilesystemCalls(new AtomicReference<>(filesystemCalls))
         .glob()
         .stream()
         .map(includePath -> includePath.relativeTo(basePath).getPathString())
@@ -95,7 +100,23 @@ public class SimpleGlobber implements Globber {
    * @param basePath The base path relative to which paths matching glob patterns will be resolved.
    */
   public static Globber create(Path basePath) {
-    return new SimpleGlobber(basePath);
+    return create(basePath, Optional.empty());
+  }
+
+  /**
+   * Factory method for creating {@link SimpleGlobber} instances.
+   *
+   * @param basePath The base path relative to which paths matching glob patterns will be resolved.
+   * @param directoryListingCache The cache to look up and store directory listings in, if any.
+   */
+  public static Globber create(
+      Path basePath, Optional<DirectoryListingCache> directoryListingCache) {
+    FilesystemCalls filesystemCalls =
+        directoryListingCache
+            .<FilesystemCalls>map(
+                cache -> new CachingFilesystemCalls(cache, STRICT_EXISTENCE_FILESYSTEM_CALLS))
+            .orElse(STRICT_EXISTENCE_FILESYSTEM_CALLS);
+    return new SimpleGlobber(basePath, filesystemCalls);
   }
 
   /**
@@ -25,6 +25,7 @@ import com.facebook.buck.parser.exceptions.BuildFileParseException;
 import com.facebook.buck.parser.options.ProjectBuildFileParserOptions;
 import com.facebook.buck.skylark.function.Glob;
 import com.facebook.buck.skylark.function.SkylarkNativeModule;
+import com.facebook.buck.skylark.io.DirectoryListingCache;
 import com.facebook.buck.skylark.io.impl.SimpleGlobber;
 import com.facebook.buck.skylark.packages.PackageContext;
 import com.facebook.buck.skylark.packages.PackageFactory;
@@ -82,18 +83,21 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
   private final EventHandler eventHandler;
   private final LoadingCache<LoadImport, ExtensionData> extensionDataCache;
   private final BuckGlobals buckGlobals;
+  private final Optional<DirectoryListingCache> directoryListingCache;
 
   private SkylarkProjectBuildFileParser(
       ProjectBuildFileParserOptions options,
       BuckEventBus buckEventBus,
       FileSystem fileSystem,
       BuckGlobals buckGlobals,
-      EventHandler eventHandler) {
+      EventHandler eventHandler,
+      Optional<DirectoryListingCache> directoryListingCache) {
     this.options = options;
     this.buckEventBus = buckEventBus;
     this.fileSystem = fileSystem;
     this.eventHandler = eventHandler;
     this.buckGlobals = buckGlobals;
+    this.directoryListingCache = directoryListingCache;
 
     this.extensionDataCache =
         CacheBuilder.newBuilder()
@@ -113,8 +117,22 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
       FileSystem fileSystem,
       BuckGlobals buckGlobals,
       EventHandler eventHandler) {
+    return using(options, buckEventBus, fileSystem, buckGlobals, eventHandler, Optional.empty());
+  }
+
+  /**
+   * Create an instance of Skylark project build file parser using provided options, which shares
+   * directory listings looked up by {@code glob()} calls through the given cache.
+   */
+  public static SkylarkProjectBuildFileParser using(
+      ProjectBuildFileParserOptions options,
+      BuckEventBus buckEventBus,
+      FileSystem fileSystem,
+      BuckGlobals buckGlobals,
+      EventHandler eventHandler,
+      Optional<DirectoryListingCache> directoryListingCache) {
     return new SkylarkProjectBuildFileParser(
-        options, buckEventBus, fileSystem, buckGlobals, eventHandler);
+        options, buckEventBus, fileSystem, buckGlobals, eventHandler, directoryListingCache);
   }
 
   @Override
@@ -239,7 +257,9 @@ public class SkylarkProjectBuildFileParser implements ProjectBuildFileParser {
     env.setup("repository_name", SkylarkNativeModule.repositoryName);
     PackageContext packageContext =
         PackageContext.builder()
-            .setGlobber(SimpleGlobber.create(fileSystem.getPath(buildFile.getParent().toString())))
+            .setGlobber(
+                SimpleGlobber.create(
+                    fileSystem.getPath(buildFile.getParent().toString()), directoryListingCache))
             .setRawConfig(options.getRawConfig())
             .setPackageIdentifier(
                 PackageIdentifier.create(
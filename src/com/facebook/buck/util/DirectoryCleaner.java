@@ -26,8 +26,11 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nullable;
 
 public class DirectoryCleaner {
   private static final Logger LOG = Logger.get(DirectoryCleaner.class);
@@ -48,10 +51,16 @@ public class DirectoryCleaner {
   public void clean(Path pathToClean) throws IOException {
 
     List<PathStats> pathStats = new ArrayList<>();
+    // Hard linked candidates share their storage, so it is only counted (and only released) once
+    // per underlying file. This keeps the accounting right for caches that deduplicate content.
+    Map<Object, Integer> fileKeyReferences = new HashMap<>();
     long totalSizeBytes = 0;
     for (Path path : args.getPathSelector().getCandidatesToDelete(pathToClean)) {
       PathStats stats = computePathStats(path);
-      totalSizeBytes += stats.getTotalSizeBytes();
+      if (stats.getFileKey() == null
+          || fileKeyReferences.merge(stats.getFileKey(), 1, Integer::sum) == 1) {
+        totalSizeBytes += stats.getTotalSizeBytes();
+      }
       pathStats.add(stats);
     }
 
@@ -77,7 +86,10 @@ public class DirectoryCleaner {
             currentPath.getPath(), currentPath.getTotalSizeBytes());
         MostFiles.deleteRecursivelyIfExists(currentPath.getPath());
         --remainingLogDirectories;
-        totalSizeBytes -= currentPath.getTotalSizeBytes();
+        if (currentPath.getFileKey() == null
+            || fileKeyReferences.merge(currentPath.getFileKey(), -1, Integer::sum) == 0) {
+          totalSizeBytes -= currentPath.getTotalSizeBytes();
+        }
       }
     }
   }
@@ -106,7 +118,8 @@ public class DirectoryCleaner {
           path,
           attributes.size(),
           attributes.creationTime().toMillis(),
-          attributes.lastAccessTime().toMillis());
+          attributes.lastAccessTime().toMillis(),
+          attributes.fileKey());
     }
 
     throw new IllegalArgumentException(
@@ -133,12 +146,23 @@ public class DirectoryCleaner {
     private final long totalSizeBytes;
     private final long creationMillis;
     private final long lastAccessMillis;
+    @Nullable private final Object fileKey;
 
     public PathStats(Path path, long totalSizeBytes, long creationMillis, long lastAccessMillis) {
+      this(path, totalSizeBytes, creationMillis, lastAccessMillis, null);
+    }
+
+    public PathStats(
+        Path path,
+        long totalSizeBytes,
+        long creationMillis,
+        long lastAccessMillis,
+        @Nullable Object fileKey) {
       this.path = path;
       this.totalSizeBytes = totalSizeBytes;
       this.creationMillis = creationMillis;
       this.lastAccessMillis = lastAccessMillis;
+      this.fileKey = fileKey;
     }
 
     public Path getPath() {
@@ -156,5 +180,14 @@ public class DirectoryCleaner {
     public long getLastAccessMillis() {
       return lastAccessMillis;
     }
+
+    /**
+     * @return the {@link BasicFileAttributes#fileKey()} of a regular file, which is shared between
+     *     hard links to the same file, or null if it is unknown.
+     */
+    @Nullable
+    public Object getFileKey() {
+      return fileKey;
+    }
   }
 }
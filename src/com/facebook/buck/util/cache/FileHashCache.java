@@ -55,6 +55,17 @@ public interface FileHashCache extends FileHashLoader {
     set(filesystem.resolve(path), hashCode);
   }
 
+  /**
+   * Sets the {@link HashCode} and size of a path whose contents haven't been written yet, so that
+   * they can be loaded without reading it.
+   *
+   * @return whether they will be returned for the path until it's invalidated.
+   */
+  @SuppressWarnings("unused") // Caches which can't keep them don't use the parameters.
+  default boolean setUnmaterialized(Path path, HashCode hashCode, long size) throws IOException {
+    return false;
+  }
+
   default FileHashCacheVerificationResult verify() throws IOException {
     throw new RuntimeException(
         "FileHashCache class " + getClass().getName() + " does not support verification.");
@@ -52,6 +52,7 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
 
   private final ProjectFilesystem projectFilesystem;
   private final Predicate<Path> ignoredPredicate;
+  private final Optional<PersistentFileHashStore> persistentStore;
 
   @VisibleForTesting FileHashCacheEngine fileHashCacheEngine;
 
@@ -59,8 +60,17 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
       ProjectFilesystem projectFilesystem,
       Predicate<Path> ignoredPredicate,
       FileHashCacheMode fileHashCacheMode) {
+    this(projectFilesystem, ignoredPredicate, fileHashCacheMode, Optional.empty());
+  }
+
+  protected DefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Predicate<Path> ignoredPredicate,
+      FileHashCacheMode fileHashCacheMode,
+      Optional<PersistentFileHashStore> persistentStore) {
     this.projectFilesystem = projectFilesystem;
     this.ignoredPredicate = ignoredPredicate;
+    this.persistentStore = persistentStore;
     FileHashCacheEngine.ValueLoader<HashCodeAndFileType> hashLoader =
         path -> {
           try {
@@ -135,8 +145,22 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
 
   public static DefaultFileHashCache createDefaultFileHashCache(
       ProjectFilesystem projectFilesystem, FileHashCacheMode fileHashCacheMode) {
+    return createDefaultFileHashCache(projectFilesystem, fileHashCacheMode, Optional.empty());
+  }
+
+  /**
+   * @param persistentStore keeps the hashes of files on disk, so that they can be reused after a
+   *     restart.
+   */
+  public static DefaultFileHashCache createDefaultFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      FileHashCacheMode fileHashCacheMode,
+      Optional<PersistentFileHashStore> persistentStore) {
     return new DefaultFileHashCache(
-        projectFilesystem, getDefaultPathPredicate(projectFilesystem), fileHashCacheMode);
+        projectFilesystem,
+        getDefaultPathPredicate(projectFilesystem),
+        fileHashCacheMode,
+        persistentStore);
   }
 
   /**
@@ -204,6 +228,13 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
   }
 
   private HashCode getFileHashCode(Path path) throws IOException {
+    if (persistentStore.isPresent()) {
+      return persistentStore
+          .get()
+          .get(
+              projectFilesystem.resolve(path),
+              () -> projectFilesystem.computeSha1(path).asHashCode());
+    }
     return projectFilesystem.computeSha1(path).asHashCode();
   }
 
@@ -309,6 +340,14 @@ public class DefaultFileHashCache implements ProjectFileHashCache {
     fileHashCacheEngine.put(relativePath, value);
   }
 
+  @Override
+  public boolean setUnmaterialized(Path relativePath, HashCode hashCode, long size)
+      throws IOException {
+    set(relativePath, hashCode);
+    fileHashCacheEngine.putSize(relativePath, size);
+    return true;
+  }
+
   @Override
   public FileHashCacheVerificationResult verify() throws IOException {
     List<String> errors = new ArrayList<>();
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.MoreSuppliers;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.hash.HashCode;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Stores the hashes of files on disk, so that they don't need to be hashed again after a restart of
+ * the daemon, or by the next command when running without one.
+ *
+ * <p>Every hash is stored along with the size, modification time and inode of the file it was
+ * computed from, and is only served as long as a {@code stat} of the file still returns the same
+ * values. As entries are keyed by absolute paths, a single store can be shared by the {@link
+ * DefaultFileHashCache}s of all cells.
+ *
+ * <p>Files which were modified right before being hashed are not stored, as they could change
+ * again without their modification time changing. Entries which haven't been used by the last
+ * {@link #MAX_UNUSED_GENERATIONS} commands aren't written back.
+ *
+ * <p>The daemon and commands running without it may save the store concurrently. Every save writes
+ * a temporary file of its own and moves it into place, and the store ends with a checksum of its
+ * contents, so that a store which is truncated or otherwise corrupt is discarded when loaded.
+ */
+public class PersistentFileHashStore {
+
+  private static final Logger LOG = Logger.get(PersistentFileHashStore.class);
+
+  private static final int FORMAT_VERSION = 2;
+  private static final int MAX_UNUSED_GENERATIONS = 50;
+  // Covers the modification time granularity of common filesystems.
+  private static final long RACY_MODIFICATION_MILLIS = 2000;
+
+  /** Computes the hash of a file which isn't in the store. */
+  public interface HashLoader {
+    HashCode load() throws IOException;
+  }
+
+  private final Path storePath;
+  private final Supplier<State> state;
+
+  public PersistentFileHashStore(Path storePath) {
+    this.storePath = storePath;
+    this.state = MoreSuppliers.memoize(this::load);
+  }
+
+  /**
+   * @return the stored hash of the given file if it didn't change since, otherwise the one computed
+   *     by the given loader.
+   */
+  public HashCode get(Path absolutePath, HashLoader loader) throws IOException {
+    // Stat the file before hashing it, so that changes racing with the hashing are noticed.
+    Optional<FileStamp> stamp = FileStamp.of(absolutePath);
+    if (!stamp.isPresent()) {
+      return loader.load();
+    }
+
+    State state = this.state.get();
+    Entry entry = state.entries.get(absolutePath);
+    if (entry != null && entry.stamp.equals(stamp.get())) {
+      if (entry.generation != state.generation) {
+        entry.generation = state.generation;
+        state.dirty = true;
+      }
+      return entry.hashCode;
+    }
+
+    HashCode hashCode = loader.load();
+    if (System.currentTimeMillis() - stamp.get().lastModifiedMillis > RACY_MODIFICATION_MILLIS) {
+      state.entries.put(absolutePath, new Entry(stamp.get(), hashCode, state.generation));
+      state.dirty = true;
+    } else if (entry != null && state.entries.remove(absolutePath, entry)) {
+      state.dirty = true;
+    }
+    return hashCode;
+  }
+
+  /** Writes the hashes back to disk, if anything changed since they were loaded. */
+  public synchronized void save() {
+    State state = this.state.get();
+    if (!state.dirty) {
+      return;
+    }
+    state.dirty = false;
+    int generation = state.generation++;
+
+    Path tmpPath = null;
+    try {
+      Files.createDirectories(storePath.getParent());
+      tmpPath =
+          Files.createTempFile(storePath.getParent(), storePath.getFileName().toString(), ".tmp");
+      CheckedOutputStream checkedOut =
+          new CheckedOutputStream(
+              new BufferedOutputStream(Files.newOutputStream(tmpPath)), new CRC32());
+      try (DataOutputStream out = new DataOutputStream(checkedOut)) {
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(generation);
+        for (Map.Entry<Path, Entry> mapEntry : state.entries.entrySet()) {
+          Entry entry = mapEntry.getValue();
+          if (generation - entry.generation > MAX_UNUSED_GENERATIONS) {
+            continue;
+          }
+          out.writeBoolean(true);
+          out.writeUTF(mapEntry.getKey().toString());
+          out.writeLong(entry.stamp.size);
+          out.writeLong(entry.stamp.lastModifiedMillis);
+          out.writeUTF(entry.stamp.fileKey);
+          byte[] bytes = entry.hashCode.asBytes();
+          out.writeByte(bytes.length);
+          out.write(bytes);
+          out.writeInt(entry.generation);
+        }
+        out.writeBoolean(false);
+        out.writeLong(checkedOut.getChecksum().getValue());
+      }
+      Files.move(tmpPath, storePath, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save file hashes to %s.", storePath);
+      if (tmpPath != null) {
+        try {
+          Files.deleteIfExists(tmpPath);
+        } catch (IOException deleteException) {
+          LOG.debug(deleteException, "Failed to delete %s.", tmpPath);
+        }
+      }
+    }
+  }
+
+  private State load() {
+    State state = new State();
+    CheckedInputStream checkedIn;
+    try {
+      checkedIn =
+          new CheckedInputStream(
+              new BufferedInputStream(Files.newInputStream(storePath)), new CRC32());
+    } catch (NoSuchFileException e) {
+      return state;
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to load file hashes from %s, starting from scratch.", storePath);
+      return state;
+    }
+    try (DataInputStream in = new DataInputStream(checkedIn)) {
+      if (in.readInt() != FORMAT_VERSION) {
+        LOG.debug("Ignoring file hashes stored in an outdated format.");
+        return state;
+      }
+      int generation = in.readInt();
+      while (in.readBoolean()) {
+        Path path = Paths.get(in.readUTF());
+        FileStamp stamp = new FileStamp(in.readLong(), in.readLong(), in.readUTF());
+        byte[] bytes = new byte[in.readUnsignedByte()];
+        in.readFully(bytes);
+        state.entries.put(path, new Entry(stamp, HashCode.fromBytes(bytes), in.readInt()));
+      }
+      long checksum = checkedIn.getChecksum().getValue();
+      if (in.readLong() != checksum || in.read() != -1) {
+        LOG.warn("File hashes stored in %s are corrupt, starting from scratch.", storePath);
+        return new State();
+      }
+      state.generation = generation + 1;
+      LOG.debug("Loaded %d file hashes from %s.", state.entries.size(), storePath);
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.warn(e, "Failed to load file hashes from %s, starting from scratch.", storePath);
+      return new State();
+    }
+    return state;
+  }
+
+  @VisibleForTesting
+  int size() {
+    return state.get().entries.size();
+  }
+
+  private static class State {
+    private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile int generation = 0;
+    private volatile boolean dirty = false;
+  }
+
+  private static class Entry {
+    private final FileStamp stamp;
+    private final HashCode hashCode;
+    private volatile int generation;
+
+    private Entry(FileStamp stamp, HashCode hashCode, int generation) {
+      this.stamp = stamp;
+      this.hashCode = hashCode;
+      this.generation = generation;
+    }
+  }
+
+  /** What a {@code stat} of a file returns, as far as telling whether it changed goes. */
+  private static class FileStamp {
+    private final long size;
+    private final long lastModifiedMillis;
+    /** Identifies the inode of the file, where the platform supports it. */
+    private final String fileKey;
+
+    private FileStamp(long size, long lastModifiedMillis, String fileKey) {
+      this.size = size;
+      this.lastModifiedMillis = lastModifiedMillis;
+      this.fileKey = fileKey;
+    }
+
+    private static Optional<FileStamp> of(Path path) {
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attributes.isRegularFile()) {
+          return Optional.empty();
+        }
+        Object fileKey = attributes.fileKey();
+        return Optional.of(
+            new FileStamp(
+                attributes.size(),
+                attributes.lastModifiedTime().toMillis(),
+                fileKey == null ? "" : fileKey.toString()));
+      } catch (IOException e) {
+        return Optional.empty();
+      }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof FileStamp)) {
+        return false;
+      }
+      FileStamp that = (FileStamp) other;
+      return size == that.size
+          && lastModifiedMillis == that.lastModifiedMillis
+          && fileKey.equals(that.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(size) * 31 + Long.hashCode(lastModifiedMillis);
+    }
+  }
+}
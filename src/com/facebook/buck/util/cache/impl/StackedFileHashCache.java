@@ -172,6 +172,19 @@ public class StackedFileHashCache implements FileHashCache {
     }
   }
 
+  @Override
+  public boolean setUnmaterialized(Path path, HashCode hashCode, long size) throws IOException {
+    Preconditions.checkArgument(path.isAbsolute());
+    // The path doesn't exist yet, so it's given to the first cache which wouldn't ignore it.
+    for (ProjectFileHashCache cache : caches) {
+      Optional<Path> relativePath = cache.getFilesystem().getPathRelativeToProjectRoot(path);
+      if (relativePath.isPresent() && !cache.isIgnored(relativePath.get())) {
+        return cache.setUnmaterialized(relativePath.get(), hashCode, size);
+      }
+    }
+    return false;
+  }
+
   @Override
   public FileHashCacheVerificationResult verify() throws IOException {
     FileHashCacheVerificationResult.Builder builder = FileHashCacheVerificationResult.builder();
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.unarchive;
+
+import com.facebook.buck.io.file.MostFiles;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import javax.annotation.Nullable;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+/**
+ * Extracts a zip archive while it is still being read, e.g. downloaded.
+ *
+ * <p>The files are streamed into a staging directory, as the stream may turn out to be truncated
+ * or corrupt, and local file headers don't carry everything the central directory does (file
+ * modes, symlinks). Once the complete archive is available and has been validated, {@link
+ * #finish(Path)} checks the staged files against it and moves them into the filesystem,
+ * completing the extraction the same way {@link Unzip} would have done it. Nothing is written to
+ * the filesystem before then.
+ */
+public class StreamingUnzipper implements Closeable {
+
+  private final ProjectFilesystem filesystem;
+  private final ExistingFileMode existingFileMode;
+  private final Path stagingRoot;
+  private final Map<Path, StreamedFile> streamedFiles = new HashMap<>();
+  @Nullable private Path stagingDir;
+
+  /**
+   * @param stagingRoot an absolute directory, on the same volume as the filesystem, in which the
+   *     streamed files are staged.
+   */
+  public StreamingUnzipper(
+      ProjectFilesystem filesystem, ExistingFileMode existingFileMode, Path stagingRoot) {
+    this.filesystem = filesystem;
+    this.existingFileMode = existingFileMode;
+    this.stagingRoot = stagingRoot;
+  }
+
+  /**
+   * Stages the files of the archive read from {@code archive}, which is not closed. Calling this
+   * again discards the files staged by the previous call.
+   */
+  public synchronized void extract(InputStream archive) throws IOException {
+    close();
+    Files.createDirectories(stagingRoot);
+    stagingDir = Files.createTempDirectory(stagingRoot, "unzip");
+    try (ZipArchiveInputStream zip =
+        new ZipArchiveInputStream(
+            new FilterInputStream(archive) {
+              @Override
+              public void close() {
+                // The archive stream is owned by the caller.
+              }
+            },
+            "UTF8",
+            /* useUnicodeExtraFields */ true,
+            /* allowStoredEntriesWithDataDescriptor */ true)) {
+      ZipArchiveEntry entry;
+      while ((entry = zip.getNextZipEntry()) != null) {
+        if (entry.isDirectory()) {
+          continue;
+        }
+        Path target = filesystem.getPath("").resolve(entry.getName()).normalize();
+        Path stagedPath = getStagedPath(target);
+        Files.createDirectories(stagedPath.getParent());
+        CRC32 crc = new CRC32();
+        long size;
+        try (OutputStream out = new CheckedOutputStream(Files.newOutputStream(stagedPath), crc)) {
+          size = ByteStreams.copy(zip, out);
+        }
+        streamedFiles.put(target, new StreamedFile(size, crc.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Completes the extraction started by {@link #extract(InputStream)}, after which the staged
+   * files are discarded.
+   *
+   * @param archiveFile the complete, validated archive which was streamed.
+   * @return the files written, or {@link Optional#empty()} if the files which were streamed don't
+   *     match the ones in {@code archiveFile}, in which case it needs to be extracted in full.
+   */
+  public synchronized Optional<ImmutableList<Path>> finish(Path archiveFile) throws IOException {
+    try (ZipFile zip = new ZipFile(archiveFile.toFile())) {
+      if (stagingDir == null) {
+        return Optional.empty();
+      }
+      SortedMap<Path, ZipArchiveEntry> pathMap = Unzip.getZipFilePaths(zip, filesystem.getPath(""));
+
+      int fileCount = 0;
+      for (SortedMap.Entry<Path, ZipArchiveEntry> p : pathMap.entrySet()) {
+        ZipArchiveEntry entry = p.getValue();
+        if (entry.isDirectory()) {
+          continue;
+        }
+        fileCount++;
+        StreamedFile streamedFile = streamedFiles.get(p.getKey());
+        if (streamedFile == null
+            || streamedFile.size != entry.getSize()
+            || streamedFile.crc != entry.getCrc()) {
+          return Optional.empty();
+        }
+      }
+      if (fileCount != streamedFiles.size()) {
+        return Optional.empty();
+      }
+
+      Unzip.fillIntermediatePaths(pathMap);
+      DirectoryCreator creator = new DirectoryCreator(filesystem);
+      ImmutableList.Builder<Path> filesWritten = ImmutableList.builder();
+      for (SortedMap.Entry<Path, ZipArchiveEntry> p : pathMap.entrySet()) {
+        Path target = p.getKey();
+        ZipArchiveEntry entry = p.getValue();
+        if (entry.isDirectory()) {
+          Unzip.extractDirectory(existingFileMode, pathMap, creator, target);
+        } else {
+          Unzip.prepareFileTarget(creator, target);
+          filesWritten.add(target);
+          if (entry.isUnixSymlink()) {
+            // The link target was streamed as the contents of a regular file.
+            Unzip.writeZipContents(zip, entry, filesystem, target);
+          } else {
+            Files.move(
+                getStagedPath(target),
+                filesystem.resolve(target),
+                StandardCopyOption.REPLACE_EXISTING);
+            Unzip.restoreAttributes(entry, filesystem, target);
+          }
+        }
+      }
+      return Optional.of(filesWritten.build());
+    } finally {
+      close();
+    }
+  }
+
+  /** Discards the staged files. */
+  @Override
+  public synchronized void close() throws IOException {
+    streamedFiles.clear();
+    if (stagingDir != null) {
+      MostFiles.deleteRecursivelyIfExists(stagingDir);
+      stagingDir = null;
+    }
+  }
+
+  private Path getStagedPath(Path target) throws IOException {
+    Path stagedPath = stagingDir.resolve(target.toString()).normalize();
+    if (!stagedPath.startsWith(stagingDir)) {
+      throw new IOException(String.format("Zip entry %s is outside of the archive root.", target));
+    }
+    return stagedPath;
+  }
+
+  private static class StreamedFile {
+    private final long size;
+    private final long crc;
+
+    private StreamedFile(long size, long crc) {
+      this.size = size;
+      this.crc = crc;
+    }
+  }
+}
@@ -41,6 +41,7 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.function.Predicate;
 import java.util.zip.ZipError;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
@@ -48,7 +49,7 @@ import org.apache.commons.compress.archivers.zip.ZipFile;
 /** A simple utility class that extracts zip files */
 public class Unzip extends Unarchiver {
 
-  private void writeZipContents(
+  static void writeZipContents(
       ZipFile zip, ZipArchiveEntry entry, ProjectFilesystem filesystem, Path target)
       throws IOException {
     // Write file
@@ -64,7 +65,12 @@ public class Unzip extends Unarchiver {
         }
       }
     }
+    restoreAttributes(entry, filesystem, target);
+  }
 
+  /** Restores the attributes of an extracted file which are recorded in its zip entry. */
+  static void restoreAttributes(ZipArchiveEntry entry, ProjectFilesystem filesystem, Path target)
+      throws IOException {
     Path filePath = filesystem.resolve(target);
     File file = filePath.toFile();
 
@@ -142,11 +148,26 @@ public class Unzip extends Unarchiver {
     // POSIX permissions. If we find it was executable, use the platform independent java
     // interface to make this unpacked file executable.
 
+    if (isExecutable(entry) && file.getCanonicalFile().exists()) {
+      MostFiles.makeExecutable(filePath);
+    }
+  }
+
+  private static boolean isExecutable(ZipArchiveEntry entry) {
     Set<PosixFilePermission> permissions =
         MorePosixFilePermissions.fromMode(entry.getExternalAttributes() >> 16);
-    if (permissions.contains(PosixFilePermission.OWNER_EXECUTE)
-        && file.getCanonicalFile().exists()) {
-      MostFiles.makeExecutable(filePath);
+    return permissions.contains(PosixFilePermission.OWNER_EXECUTE);
+  }
+
+  /**
+   * A zip file isn't required to list intermediate paths (e.g., it can contain "foo/" and
+   * "foo/bar/baz"), but we need to know not to delete those intermediates, so fill them in.
+   */
+  static void fillIntermediatePaths(SortedMap<Path, ZipArchiveEntry> pathMap) {
+    for (SortedMap.Entry<Path, ZipArchiveEntry> p : new ArrayList<>(pathMap.entrySet())) {
+      if (!isTopLevel(p.getKey(), pathMap)) {
+        fillIntermediatePaths(p.getKey(), pathMap);
+      }
     }
   }
 
@@ -175,6 +196,13 @@ public class Unzip extends Unarchiver {
       Path target,
       ZipArchiveEntry entry)
       throws IOException {
+    prepareFileTarget(creator, target);
+    filesWritten.add(target);
+    writeZipContents(zip, entry, creator.getFilesystem(), target);
+  }
+
+  /** Makes sure a file can be written to {@code target}. */
+  static void prepareFileTarget(DirectoryCreator creator, Path target) throws IOException {
     ProjectFilesystem filesystem = creator.getFilesystem();
     if (filesystem.isFile(target, LinkOption.NOFOLLOW_LINKS)) { // NOPMD for clarity
       // pass
@@ -183,11 +211,9 @@ public class Unzip extends Unarchiver {
     } else if (target.getParent() != null) {
       creator.forcefullyCreateDirs(target.getParent());
     }
-    filesWritten.add(target);
-    writeZipContents(zip, entry, filesystem, target);
   }
 
-  private void extractDirectory(
+  static void extractDirectory(
       ExistingFileMode existingFileMode,
       SortedMap<Path, ZipArchiveEntry> pathMap,
       DirectoryCreator creator,
@@ -241,7 +267,7 @@ public class Unzip extends Unarchiver {
    * @param relativePath The relative path where the extraction will be rooted
    * @return The list of paths in {@code zip} sorted by path so dirs come before contents.
    */
-  private static SortedMap<Path, ZipArchiveEntry> getZipFilePaths(ZipFile zip, Path relativePath) {
+  static SortedMap<Path, ZipArchiveEntry> getZipFilePaths(ZipFile zip, Path relativePath) {
     SortedMap<Path, ZipArchiveEntry> pathMap = new TreeMap<>();
     for (ZipArchiveEntry entry : Collections.list(zip.getEntries())) {
       Path target = relativePath.resolve(entry.getName()).normalize();
@@ -259,6 +285,51 @@ public class Unzip extends Unarchiver {
       Optional<Path> stripPrefix,
       ExistingFileMode existingFileMode)
       throws IOException {
+    return extractArchive(
+        archiveFile,
+        filesystem,
+        relativePath,
+        stripPrefix,
+        existingFileMode,
+        path -> false,
+        (target, size) -> {});
+  }
+
+  /**
+   * Unzips a file into the root of the filesystem like {@link #extractArchive(Path,
+   * ProjectFilesystem, ExistingFileMode)}, except that the regular files whose paths match {@code
+   * shouldDefer} aren't written: whatever was at their paths is deleted, and they are passed to
+   * {@code deferredFiles} instead. Their contents are left in the archive, from which they can be
+   * written later with {@link #extractFiles}.
+   *
+   * @return the paths of the files which were written.
+   */
+  public ImmutableList<Path> extractArchiveDeferringFiles(
+      Path archiveFile,
+      ProjectFilesystem filesystem,
+      ExistingFileMode existingFileMode,
+      Predicate<Path> shouldDefer,
+      DeferredFileConsumer deferredFiles)
+      throws IOException {
+    return extractArchive(
+        archiveFile,
+        filesystem,
+        filesystem.getPath(""),
+        Optional.empty(),
+        existingFileMode,
+        shouldDefer,
+        deferredFiles);
+  }
+
+  private ImmutableList<Path> extractArchive(
+      Path archiveFile,
+      ProjectFilesystem filesystem,
+      Path relativePath,
+      Optional<Path> stripPrefix,
+      ExistingFileMode existingFileMode,
+      Predicate<Path> shouldDefer,
+      DeferredFileConsumer deferredFiles)
+      throws IOException {
 
     // We want to remove stale contents of directories listed in {@code archiveFile}, but avoid
     // deleting and
@@ -275,13 +346,7 @@ public class Unzip extends Unarchiver {
       } else {
         pathMap = getZipFilePaths(zip, relativePath);
       }
-      // A zip file isn't required to list intermediate paths (e.g., it can contain "foo/" and
-      // "foo/bar/baz"), but we need to know not to delete those intermediates, so fill them in.
-      for (SortedMap.Entry<Path, ZipArchiveEntry> p : new ArrayList<>(pathMap.entrySet())) {
-        if (!isTopLevel(p.getKey(), pathMap)) {
-          fillIntermediatePaths(p.getKey(), pathMap);
-        }
-      }
+      fillIntermediatePaths(pathMap);
 
       DirectoryCreator creator = new DirectoryCreator(filesystem);
 
@@ -290,6 +355,10 @@ public class Unzip extends Unarchiver {
         ZipArchiveEntry entry = p.getValue();
         if (entry.isDirectory()) {
           extractDirectory(existingFileMode, pathMap, creator, target);
+        } else if (!entry.isUnixSymlink() && shouldDefer.test(target)) {
+          prepareFileTarget(creator, target);
+          filesystem.deleteFileAtPathIfExists(target);
+          deferredFiles.accept(target, entry.getSize());
         } else {
           extractFile(filesWritten, zip, creator, target, entry);
         }
@@ -298,6 +367,33 @@ public class Unzip extends Unarchiver {
     return filesWritten.build();
   }
 
+  /** Receives the files whose extraction is deferred by {@link #extractArchiveDeferringFiles}. */
+  public interface DeferredFileConsumer {
+    void accept(Path target, long size) throws IOException;
+  }
+
+  /**
+   * Writes the regular files of an archive whose paths are given into the root of the filesystem,
+   * replacing whatever is at their paths, and leaves everything else alone.
+   *
+   * @return the paths of the files which were written.
+   */
+  public ImmutableList<Path> extractFiles(
+      Path archiveFile, ProjectFilesystem filesystem, Set<Path> paths) throws IOException {
+    ImmutableList.Builder<Path> filesWritten = ImmutableList.builder();
+    try (ZipFile zip = new ZipFile(archiveFile.toFile())) {
+      DirectoryCreator creator = new DirectoryCreator(filesystem);
+      for (SortedMap.Entry<Path, ZipArchiveEntry> p :
+          getZipFilePaths(zip, filesystem.getPath("")).entrySet()) {
+        ZipArchiveEntry entry = p.getValue();
+        if (paths.contains(p.getKey()) && !entry.isDirectory() && !entry.isUnixSymlink()) {
+          extractFile(filesWritten, zip, creator, p.getKey(), entry);
+        }
+      }
+    }
+    return filesWritten.build();
+  }
+
   /**
    * Gets a set of files that are contained in an archive
    *
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compresses and decompresses single blocks in the LZ4 block format, see
+ * https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md.
+ *
+ * <p>This trades compression ratio for speed: matches are only searched through a single hash
+ * table lookup per position.
+ */
+class Lz4Block {
+
+  private static final int MIN_MATCH = 4;
+  // The last match must start at least 12 bytes before the end of the block, and the last 5 bytes
+  // are always literals.
+  private static final int MF_LIMIT = 12;
+  private static final int LAST_LITERALS = 5;
+  private static final int MAX_DISTANCE = 65535;
+  private static final int HASH_LOG = 14;
+  // Once this many positions in a row didn't match, start skipping ahead faster.
+  private static final int SKIP_TRIGGER = 6;
+
+  private final int[] hashTable = new int[1 << HASH_LOG];
+
+  /** Returns the size of a buffer large enough for any compressed block of the given length. */
+  static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * Compresses {@code length} bytes of {@code src} into {@code dst}, which must hold at least
+   * {@link #maxCompressedLength(int)} bytes.
+   *
+   * @return the number of bytes written to {@code dst}.
+   */
+  int compress(byte[] src, int length, byte[] dst) {
+    int anchor = 0;
+    int op = 0;
+    if (length > MF_LIMIT) {
+      Arrays.fill(hashTable, -1);
+      int limit = length - MF_LIMIT;
+      int matchLimit = length - LAST_LITERALS;
+      int ip = 0;
+      int misses = 0;
+      while (ip < limit) {
+        int sequence = readInt(src, ip);
+        int hash = hash(sequence);
+        int ref = hashTable[hash];
+        hashTable[hash] = ip;
+        if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+          ip += 1 + (misses++ >>> SKIP_TRIGGER);
+          continue;
+        }
+        misses = 0;
+
+        while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+          ip--;
+          ref--;
+        }
+        int matchLength = MIN_MATCH;
+        while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+          matchLength++;
+        }
+
+        int token = op;
+        op = writeLiterals(src, anchor, ip - anchor, dst, op);
+        int offset = ip - ref;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        int extraMatchLength = matchLength - MIN_MATCH;
+        dst[token] |= (byte) Math.min(extraMatchLength, 15);
+        if (extraMatchLength >= 15) {
+          op = writeLengthBytes(dst, op, extraMatchLength - 15);
+        }
+
+        ip += matchLength;
+        anchor = ip;
+      }
+    }
+    // The last sequence only consists of literals.
+    return writeLiterals(src, anchor, length - anchor, dst, op);
+  }
+
+  /**
+   * Writes the token of a sequence, with only the literal length filled in, followed by the
+   * literals.
+   */
+  private static int writeLiterals(byte[] src, int start, int literals, byte[] dst, int op) {
+    dst[op++] = (byte) (Math.min(literals, 15) << 4);
+    if (literals >= 15) {
+      op = writeLengthBytes(dst, op, literals - 15);
+    }
+    System.arraycopy(src, start, dst, op, literals);
+    return op + literals;
+  }
+
+  private static int writeLengthBytes(byte[] dst, int op, int remaining) {
+    while (remaining >= 255) {
+      dst[op++] = (byte) 255;
+      remaining -= 255;
+    }
+    dst[op++] = (byte) remaining;
+    return op;
+  }
+
+  /**
+   * Decompresses a block of {@code srcLength} bytes into {@code dst}, which has to end up
+   * containing exactly {@code dstLength} bytes.
+   */
+  static void decompress(byte[] src, int srcLength, byte[] dst, int dstLength) throws IOException {
+    int ip = 0;
+    int op = 0;
+    while (true) {
+      if (ip >= srcLength) {
+        throw new IOException("Truncated LZ4 block.");
+      }
+      int token = src[ip++] & 0xFF;
+
+      int literals = token >>> 4;
+      if (literals == 15) {
+        int b;
+        do {
+          if (ip >= srcLength) {
+            throw new IOException("Truncated LZ4 block.");
+          }
+          b = src[ip++] & 0xFF;
+          literals += b;
+        } while (b == 255);
+      }
+      if (literals > srcLength - ip || literals > dstLength - op) {
+        throw new IOException("Corrupt LZ4 block.");
+      }
+      System.arraycopy(src, ip, dst, op, literals);
+      ip += literals;
+      op += literals;
+
+      if (ip == srcLength) {
+        break;
+      }
+
+      if (ip + 2 > srcLength) {
+        throw new IOException("Truncated LZ4 block.");
+      }
+      int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+      ip += 2;
+      int matchLength = token & 0x0F;
+      if (matchLength == 15) {
+        int b;
+        do {
+          if (ip >= srcLength) {
+            throw new IOException("Truncated LZ4 block.");
+          }
+          b = src[ip++] & 0xFF;
+          matchLength += b;
+        } while (b == 255);
+      }
+      matchLength += MIN_MATCH;
+      int ref = op - offset;
+      if (offset == 0 || ref < 0 || matchLength > dstLength - op) {
+        throw new IOException("Corrupt LZ4 block.");
+      }
+      // Matches may overlap with the bytes they produce, so copy byte by byte.
+      for (int i = 0; i < matchLength; i++) {
+        dst[op++] = dst[ref++];
+      }
+    }
+    if (op != dstLength) {
+      throw new IOException("Corrupt LZ4 block.");
+    }
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_LOG);
+  }
+
+  private static int readInt(byte[] buffer, int position) {
+    return (buffer[position] & 0xFF)
+        | (buffer[position + 1] & 0xFF) << 8
+        | (buffer[position + 2] & 0xFF) << 16
+        | (buffer[position + 3] & 0xFF) << 24;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/** Decompresses the data written by {@link Lz4BlockOutputStream}. */
+public class Lz4BlockInputStream extends InputStream {
+
+  private final DataInputStream in;
+  private final byte[] buffer = new byte[Lz4BlockOutputStream.BLOCK_SIZE];
+  private final byte[] compressed =
+      new byte[Lz4Block.maxCompressedLength(Lz4BlockOutputStream.BLOCK_SIZE)];
+  private int position = 0;
+  private int length = 0;
+  private boolean finished = false;
+
+  public Lz4BlockInputStream(InputStream in) {
+    this.in = new DataInputStream(in);
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return buffer[position++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    int count = Math.min(len, length - position);
+    System.arraycopy(buffer, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return length - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /** @return whether there is data left to read in {@link #buffer}. */
+  private boolean fill() throws IOException {
+    while (position == length) {
+      if (finished) {
+        return false;
+      }
+      readBlock();
+    }
+    return true;
+  }
+
+  private void readBlock() throws IOException {
+    int rawLength;
+    int payloadLength;
+    try {
+      rawLength = in.readInt();
+      if (rawLength == 0) {
+        finished = true;
+        position = 0;
+        length = 0;
+        return;
+      }
+      payloadLength = in.readInt();
+    } catch (EOFException e) {
+      throw new IOException("Unexpected end of LZ4 stream.", e);
+    }
+
+    boolean stored = (payloadLength & Lz4BlockOutputStream.STORED_FLAG) != 0;
+    payloadLength &= ~Lz4BlockOutputStream.STORED_FLAG;
+    if (rawLength < 0
+        || rawLength > buffer.length
+        || payloadLength > compressed.length
+        || (stored && payloadLength != rawLength)) {
+      throw new IOException("Corrupt LZ4 block header.");
+    }
+
+    if (stored) {
+      in.readFully(buffer, 0, rawLength);
+    } else {
+      in.readFully(compressed, 0, payloadLength);
+      Lz4Block.decompress(compressed, payloadLength, buffer, rawLength);
+    }
+    position = 0;
+    length = rawLength;
+  }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses everything written to it with LZ4, in blocks of {@link #BLOCK_SIZE} bytes. Use {@link
+ * Lz4BlockInputStream} to read the data back.
+ *
+ * <p>Each block is written as its uncompressed length, the length of its payload and the payload,
+ * the lengths being big endian ints. If compressing a block doesn't make it any smaller, the block
+ * is stored as it is, which is marked by setting the highest bit of the payload length. A block of
+ * length 0 ends the stream.
+ */
+public class Lz4BlockOutputStream extends OutputStream {
+
+  static final int BLOCK_SIZE = 256 * 1024;
+  static final int STORED_FLAG = 0x80000000;
+
+  private final DataOutputStream out;
+  private final Lz4Block compressor = new Lz4Block();
+  private final byte[] buffer = new byte[BLOCK_SIZE];
+  private final byte[] compressed = new byte[Lz4Block.maxCompressedLength(BLOCK_SIZE)];
+  private int length = 0;
+  private boolean closed = false;
+
+  public Lz4BlockOutputStream(OutputStream out) {
+    this.out = new DataOutputStream(out);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (length == BLOCK_SIZE) {
+      writeBlock();
+    }
+    buffer[length++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (length == BLOCK_SIZE) {
+        writeBlock();
+      }
+      int count = Math.min(len, BLOCK_SIZE - length);
+      System.arraycopy(b, off, buffer, length, count);
+      length += count;
+      off += count;
+      len -= count;
+    }
+  }
+
+  /** Flushes the current, possibly partial, block. */
+  @Override
+  public void flush() throws IOException {
+    writeBlock();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      writeBlock();
+      out.writeInt(0);
+      out.flush();
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeBlock() throws IOException {
+    if (length == 0) {
+      return;
+    }
+    int compressedLength = compressor.compress(buffer, length, compressed);
+    out.writeInt(length);
+    if (compressedLength < length) {
+      out.writeInt(compressedLength);
+      out.write(compressed, 0, compressedLength);
+    } else {
+      out.writeInt(length | STORED_FLAG);
+      out.write(buffer, 0, length);
+    }
+    length = 0;
+  }
+}
@@ -17,11 +17,15 @@
 package com.facebook.buck.util.zip;
 
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
 import com.google.common.io.ByteStreams;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.zip.ZipEntry;
 
 public class Zip {
 
@@ -35,23 +39,65 @@ public class Zip {
       ProjectFilesystem projectFilesystem, Collection<Path> pathsToIncludeInZip, Path out)
       throws IOException {
     try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(out)) {
-      for (Path path : pathsToIncludeInZip) {
-        boolean isDirectory = projectFilesystem.isDirectory(path);
-        CustomZipEntry entry = new CustomZipEntry(path, isDirectory);
+      addEntries(projectFilesystem, pathsToIncludeInZip, zip, ZipCompressionLevel.DEFAULT);
+    }
+  }
 
-        // We want deterministic ZIPs, so avoid mtimes.
-        entry.setFakeTime();
+  /**
+   * Like {@link #create(ProjectFilesystem, Collection, Path)}, but writes the zip to a stream and
+   * compresses the file entries with the given level. {@code out} is closed afterwards.
+   */
+  public static void create(
+      ProjectFilesystem projectFilesystem,
+      Collection<Path> pathsToIncludeInZip,
+      OutputStream out,
+      ZipCompressionLevel compressionLevel)
+      throws IOException {
+    try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(out)) {
+      addEntries(projectFilesystem, pathsToIncludeInZip, zip, compressionLevel);
+    }
+  }
+
+  private static void addEntries(
+      ProjectFilesystem projectFilesystem,
+      Collection<Path> pathsToIncludeInZip,
+      CustomZipOutputStream zip,
+      ZipCompressionLevel compressionLevel)
+      throws IOException {
+    for (Path path : pathsToIncludeInZip) {
+      boolean isDirectory = projectFilesystem.isDirectory(path);
+      CustomZipEntry entry = new CustomZipEntry(path, isDirectory);
+
+      // We want deterministic ZIPs, so avoid mtimes.
+      entry.setFakeTime();
+
+      if (!isDirectory && compressionLevel != ZipCompressionLevel.DEFAULT) {
+        entry.setCompressionLevel(compressionLevel.getValue());
+        // If we're using STORED files, we must manually set the CRC, size, and compressed size.
+        if (entry.getMethod() == ZipEntry.STORED) {
+          ByteSource source =
+              new ByteSource() {
+                @Override
+                public InputStream openStream() throws IOException {
+                  return projectFilesystem.newFileInputStream(path);
+                }
+              };
+          long size = source.size();
+          entry.setSize(size);
+          entry.setCompressedSize(size);
+          entry.setCrc(source.hash(Hashing.crc32()).padToLong());
+        }
+      }
 
-        entry.setExternalAttributes(projectFilesystem.getFileAttributesForZipEntry(path));
+      entry.setExternalAttributes(projectFilesystem.getFileAttributesForZipEntry(path));
 
-        zip.putNextEntry(entry);
-        if (!isDirectory) {
-          try (InputStream input = projectFilesystem.newFileInputStream(path)) {
-            ByteStreams.copy(input, zip);
-          }
+      zip.putNextEntry(entry);
+      if (!isDirectory) {
+        try (InputStream input = projectFilesystem.newFileInputStream(path)) {
+          ByteStreams.copy(input, zip);
         }
-        zip.closeEntry();
       }
+      zip.closeEntry();
     }
   }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCodec;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.zip.Zip;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ArtifactArchivesTest {
+
+  private static final byte[] CONTENTS =
+      "some artifact contents, some artifact contents".getBytes(StandardCharsets.UTF_8);
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private ImmutableList<Path> paths;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    Path dir = Paths.get("dir");
+    Path file = dir.resolve("file");
+    filesystem.mkdirs(dir);
+    filesystem.writeBytesToPath(CONTENTS, file);
+    paths = ImmutableList.of(dir, file);
+  }
+
+  private void assertIsArtifactZip(InputStream in) throws IOException {
+    try (ZipInputStream zip = new ZipInputStream(in)) {
+      ZipEntry entry = zip.getNextEntry();
+      assertEquals("dir/", entry.getName());
+      entry = zip.getNextEntry();
+      assertEquals("dir/file", entry.getName());
+      assertArrayEquals(CONTENTS, ByteStreams.toByteArray(zip));
+      assertEquals(null, zip.getNextEntry());
+    }
+  }
+
+  @Test
+  public void everyCodecRoundTrips() throws IOException {
+    for (ArtifactCodec codec : ArtifactCodec.values()) {
+      Path artifact = tmp.newFile(codec + ".artifact");
+      ArtifactArchives.create(filesystem, paths, artifact, codec);
+
+      assertIsArtifactZip(ArtifactArchives.decode(Files.newInputStream(artifact)));
+      ArtifactArchives.decodeInPlace(artifact);
+      assertIsArtifactZip(Files.newInputStream(artifact));
+    }
+  }
+
+  @Test
+  public void legacyZipArtifactsAreReadAsTheyAre() throws IOException {
+    Path artifact = tmp.newFile("legacy.zip");
+    Zip.create(filesystem, paths, artifact);
+    byte[] legacy = Files.readAllBytes(artifact);
+
+    ArtifactArchives.decodeInPlace(artifact);
+    assertArrayEquals(legacy, Files.readAllBytes(artifact));
+    assertIsArtifactZip(ArtifactArchives.decode(Files.newInputStream(artifact)));
+  }
+
+  @Test
+  public void zipCodecWritesLegacyArtifacts() throws IOException {
+    Path legacy = tmp.newFile("legacy.zip");
+    Zip.create(filesystem, paths, legacy);
+    Path artifact = tmp.newFile("artifact");
+    ArtifactArchives.create(filesystem, paths, artifact, ArtifactCodec.ZIP);
+
+    assertArrayEquals(Files.readAllBytes(legacy), Files.readAllBytes(artifact));
+  }
+}
@@ -22,6 +22,7 @@ import com.facebook.buck.artifact_cache.config.ArtifactCacheBuckConfig;
 import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
 import com.facebook.buck.artifact_cache.config.DirCacheEntry;
+import com.facebook.buck.artifact_cache.config.DirCacheStorageMode;
 import com.facebook.buck.artifact_cache.config.HttpCacheEntry;
 import com.facebook.buck.config.BuckConfigTestUtils;
 import com.facebook.buck.io.file.MorePaths;
@@ -36,6 +37,7 @@ import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import java.io.IOException;
 import java.io.StringReader;
 import java.net.URI;
@@ -230,6 +232,19 @@ public class ArtifactCacheBuckConfigTest {
     config.getCacheEntries().getDirCacheEntries();
   }
 
+  @Test
+  public void testDirStorageMode() throws IOException {
+    ArtifactCacheBuckConfig config = createFromText("[cache]", "dir = ~/cache_dir");
+    assertThat(
+        Iterables.getOnlyElement(config.getCacheEntries().getDirCacheEntries()).getStorageMode(),
+        Matchers.equalTo(DirCacheStorageMode.RULEKEY));
+
+    config = createFromText("[cache]", "dir = ~/cache_dir", "dir_storage_mode = content_addressed");
+    assertThat(
+        Iterables.getOnlyElement(config.getCacheEntries().getDirCacheEntries()).getStorageMode(),
+        Matchers.equalTo(DirCacheStorageMode.CONTENT_ADDRESSED));
+  }
+
   @Test
   public void testServedCacheAbsentByDefault() throws IOException {
     ArtifactCacheBuckConfig config = createFromText("[cache]", "dir = ~/cache_dir");
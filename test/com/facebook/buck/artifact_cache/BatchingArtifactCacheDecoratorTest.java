@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+
+public class BatchingArtifactCacheDecoratorTest {
+
+  private static final LazyPath dummyFile = LazyPath.ofInstance(Paths.get("dummy"));
+
+  /** Records the size of every multi-fetch batch it receives. */
+  private static class RecordingArtifactCache extends InMemoryArtifactCache {
+    private final List<Integer> batchSizes = new ArrayList<>();
+    private final List<ArtifactPayloadConsumer> payloadConsumers = new ArrayList<>();
+
+    @Override
+    public ListenableFuture<CacheResult> fetchStreamingAsync(
+        RuleKey ruleKey, LazyPath output, ArtifactPayloadConsumer payloadConsumer) {
+      payloadConsumers.add(payloadConsumer);
+      return fetchAsync(ruleKey, output);
+    }
+
+    @Override
+    public ListenableFuture<ImmutableList<CacheResult>> multiFetchAsync(
+        List<Pair<RuleKey, LazyPath>> requests) {
+      batchSizes.add(requests.size());
+      return super.multiFetchAsync(requests);
+    }
+  }
+
+  /** Executor which only runs its tasks when asked to. */
+  private static class ManualExecutor implements Executor {
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    @Override
+    public void execute(Runnable command) {
+      tasks.add(command);
+    }
+
+    public void runAll() {
+      List<Runnable> toRun = new ArrayList<>(tasks);
+      tasks.clear();
+      toRun.forEach(Runnable::run);
+    }
+  }
+
+  @Test
+  public void fetchesQueuedBeforeDrainAreBatched() throws Exception {
+    RecordingArtifactCache delegate = new RecordingArtifactCache();
+    ManualExecutor executor = new ManualExecutor();
+    BatchingArtifactCacheDecorator cache =
+        new BatchingArtifactCacheDecorator(delegate, executor, 2);
+
+    RuleKey hit = new RuleKey("aaaa");
+    delegate.store(ArtifactInfo.builder().addRuleKeys(hit).build(), new byte[0]);
+
+    List<ListenableFuture<CacheResult>> futures = new ArrayList<>();
+    futures.add(cache.fetchAsync(hit, dummyFile));
+    futures.add(cache.fetchAsync(new RuleKey("bbbb"), dummyFile));
+    futures.add(cache.fetchAsync(new RuleKey("cccc"), dummyFile));
+    for (ListenableFuture<CacheResult> future : futures) {
+      assertFalse(future.isDone());
+    }
+
+    executor.runAll();
+
+    assertEquals(ImmutableList.of(2, 1), delegate.batchSizes);
+    assertEquals(CacheResultType.HIT, Futures.getUnchecked(futures.get(0)).getType());
+    assertEquals(CacheResultType.MISS, Futures.getUnchecked(futures.get(1)).getType());
+    assertEquals(CacheResultType.MISS, Futures.getUnchecked(futures.get(2)).getType());
+  }
+
+  @Test
+  public void fetchAfterDrainSchedulesAnotherDrain() {
+    RecordingArtifactCache delegate = new RecordingArtifactCache();
+    ManualExecutor executor = new ManualExecutor();
+    BatchingArtifactCacheDecorator cache =
+        new BatchingArtifactCacheDecorator(delegate, executor, 10);
+
+    cache.fetchAsync(new RuleKey("aaaa"), dummyFile);
+    executor.runAll();
+    ListenableFuture<CacheResult> future = cache.fetchAsync(new RuleKey("bbbb"), dummyFile);
+    executor.runAll();
+
+    assertEquals(ImmutableList.of(1, 1), delegate.batchSizes);
+    assertEquals(CacheResultType.MISS, Futures.getUnchecked(future).getType());
+  }
+
+  @Test
+  public void streamingFetchesAreForwarded() {
+    RecordingArtifactCache delegate = new RecordingArtifactCache();
+    ManualExecutor executor = new ManualExecutor();
+    BatchingArtifactCacheDecorator cache =
+        new BatchingArtifactCacheDecorator(delegate, executor, 10);
+
+    ArtifactPayloadConsumer payloadConsumer = payload -> {};
+    ListenableFuture<CacheResult> future =
+        cache.fetchStreamingAsync(new RuleKey("aaaa"), dummyFile, payloadConsumer);
+
+    assertEquals(ImmutableList.of(payloadConsumer), delegate.payloadConsumers);
+    assertEquals(CacheResultType.MISS, Futures.getUnchecked(future).getType());
+  }
+}
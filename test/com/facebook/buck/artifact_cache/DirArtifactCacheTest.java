@@ -24,8 +24,10 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.artifact_cache.config.CacheReadMode;
+import com.facebook.buck.artifact_cache.config.DirCacheStorageMode;
 import com.facebook.buck.io.file.BorrowablePath;
 import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
 import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.rules.AddToRuleKey;
@@ -56,9 +58,11 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Rule;
@@ -905,6 +909,131 @@ public class DirArtifactCacheTest {
     cache.close();
   }
 
+  @Test
+  public void testContentAddressedStoreSharesIdenticalArtifacts() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path fileX = tmpDir.newFile("x");
+    Path fileY = tmpDir.newFile("y");
+    Files.write(fileX, "same".getBytes(UTF_8));
+    Files.write(fileY, "same".getBytes(UTF_8));
+
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            TestProjectFilesystems.createProjectFilesystem(cacheDir),
+            Paths.get("."),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.empty(),
+            DirCacheStorageMode.CONTENT_ADDRESSED);
+
+    RuleKey ruleKey1 = new RuleKey("aaaa");
+    RuleKey ruleKey2 = new RuleKey("bbbb");
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey1).build(),
+        BorrowablePath.notBorrowablePath(fileX));
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey2).build(),
+        BorrowablePath.notBorrowablePath(fileY));
+
+    Path artifact1 =
+        cacheDir.resolve(dirArtifactCache.getPathForRuleKey(ruleKey1, Optional.empty()));
+    Path artifact2 =
+        cacheDir.resolve(dirArtifactCache.getPathForRuleKey(ruleKey2, Optional.empty()));
+    assertEquals(
+        Files.readAttributes(artifact1, BasicFileAttributes.class).fileKey(),
+        Files.readAttributes(artifact2, BasicFileAttributes.class).fileKey());
+
+    Path out = tmpDir.getRoot().resolve("out");
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(dirArtifactCache.fetchAsync(ruleKey2, LazyPath.ofInstance(out)))
+            .getType());
+    assertEquals("same", new String(Files.readAllBytes(out), UTF_8));
+  }
+
+  @Test
+  public void testContentAddressedDeleteReleasesUnreferencedContent() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path fileX = tmpDir.newFile("x");
+    Files.write(fileX, "x".getBytes(UTF_8));
+
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            TestProjectFilesystems.createProjectFilesystem(cacheDir),
+            Paths.get("."),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.empty(),
+            DirCacheStorageMode.CONTENT_ADDRESSED);
+
+    RuleKey ruleKey1 = new RuleKey("aaaa");
+    RuleKey ruleKey2 = new RuleKey("bbbb");
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey1, ruleKey2).build(),
+        BorrowablePath.notBorrowablePath(fileX));
+
+    Path content =
+        cacheDir.resolve(
+            dirArtifactCache.getPathForContentHash(
+                TestProjectFilesystems.createProjectFilesystem(cacheDir).computeSha1(fileX)));
+    assertTrue(Files.exists(content));
+
+    // Content is still referenced by the second rule key.
+    Futures.getUnchecked(dirArtifactCache.deleteAsync(ImmutableList.of(ruleKey1)));
+    dirArtifactCache.deleteUnreferencedContent();
+    assertTrue(Files.exists(content));
+
+    Futures.getUnchecked(dirArtifactCache.deleteAsync(ImmutableList.of(ruleKey2)));
+    dirArtifactCache.deleteUnreferencedContent();
+    assertFalse(Files.exists(content));
+  }
+
+  @Test
+  public void testContentAddressedStoreRestoresDeletedContent() throws IOException {
+    Path cacheDir = tmpDir.newFolder();
+    Path fileX = tmpDir.newFile("x");
+    Path fileY = tmpDir.newFile("y");
+    Files.write(fileX, "same".getBytes(UTF_8));
+    Files.write(fileY, "same".getBytes(UTF_8));
+    ProjectFilesystem cacheFilesystem = TestProjectFilesystems.createProjectFilesystem(cacheDir);
+
+    dirArtifactCache =
+        new DirArtifactCache(
+            "dir",
+            cacheFilesystem,
+            Paths.get("."),
+            CacheReadMode.READWRITE,
+            /* maxCacheSizeBytes */ Optional.empty(),
+            DirCacheStorageMode.CONTENT_ADDRESSED);
+
+    RuleKey ruleKey1 = new RuleKey("aaaa");
+    RuleKey ruleKey2 = new RuleKey("bbbb");
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey1).build(),
+        BorrowablePath.borrowablePath(fileX));
+
+    // As if another process sharing the cache had released the content.
+    Path content =
+        cacheDir.resolve(
+            dirArtifactCache.getPathForContentHash(cacheFilesystem.computeSha1(fileY)));
+    Files.delete(content);
+
+    dirArtifactCache.store(
+        ArtifactInfo.builder().addRuleKeys(ruleKey2).build(),
+        BorrowablePath.borrowablePath(fileY));
+
+    assertTrue(Files.exists(content));
+    Path out = tmpDir.getRoot().resolve("out");
+    assertEquals(
+        CacheResultType.HIT,
+        Futures.getUnchecked(dirArtifactCache.fetchAsync(ruleKey2, LazyPath.ofInstance(out)))
+            .getType());
+    assertEquals("same", new String(Files.readAllBytes(out), UTF_8));
+    try (Stream<Path> staged = Files.list(cacheDir.resolve("tmp"))) {
+      assertEquals(0, staged.count());
+    }
+  }
+
   private static class BuildRuleForTest extends FakeBuildRule {
 
     @SuppressWarnings("PMD.UnusedPrivateField")
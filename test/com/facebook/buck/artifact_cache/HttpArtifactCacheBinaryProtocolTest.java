@@ -32,6 +32,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Optional;
 import org.hamcrest.Matchers;
 import org.junit.Rule;
 import org.junit.Test;
@@ -136,6 +137,41 @@ public class HttpArtifactCacheBinaryProtocolTest {
     }
   }
 
+  @Test
+  public void testReadFetchResponseStreamsPayloadToConsumer() throws IOException {
+    RuleKey ruleKey = new RuleKey("00000000010000000000008000000000");
+    String data = "streamed data";
+
+    byte[] responseData;
+    try (ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DataOutputStream dataOut = new DataOutputStream(out)) {
+      byte[] metadata =
+          HttpArtifactCacheBinaryProtocol.createMetadataHeader(
+              ImmutableSet.of(ruleKey),
+              ImmutableMap.of(),
+              ByteSource.wrap(data.getBytes(Charsets.UTF_8)));
+      dataOut.writeInt(metadata.length);
+      dataOut.write(metadata);
+      dataOut.write(data.getBytes(Charsets.UTF_8));
+      responseData = out.toByteArray();
+    }
+
+    // The consumer only reads part of the payload, the rest must still end up in the sink.
+    byte[] consumed = new byte[8];
+    try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(responseData))) {
+      FetchResponseReadResult result =
+          HttpArtifactCacheBinaryProtocol.readFetchResponse(
+              inputStream,
+              outputStream,
+              Optional.of(payload -> ByteStreams.readFully(payload, consumed)));
+      assertThat(new String(consumed, Charsets.UTF_8), Matchers.equalTo(data.substring(0, 8)));
+      assertThat(outputStream.toByteArray(), Matchers.equalTo(data.getBytes(Charsets.UTF_8)));
+      assertThat(result.getActualHashCode(), Matchers.equalTo(result.getExpectedHashCode()));
+      assertThat(result.getResponseSizeBytes(), Matchers.equalTo((long) data.length()));
+    }
+  }
+
   @Test
   public void testMassiveMetadataHeaderWrite() throws IOException {
     ImmutableMap.Builder<String, String> metadataBuilder = ImmutableMap.builder();
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.artifact_cache.config.ArtifactCacheMode;
+import com.facebook.buck.artifact_cache.config.L1CacheEvictionPolicy;
+import com.facebook.buck.io.file.LazyPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.types.Pair;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class L1ArtifactCacheDecoratorTest {
+
+  private static final RuleKey KEY_A = new RuleKey("aaaa");
+  private static final RuleKey KEY_B = new RuleKey("bbbb");
+  private static final byte[] DATA = "artifact".getBytes();
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private RemoteArtifactCache remoteCache;
+  private int outputCount = 0;
+
+  /** Pretends to be a remote cache, and records the keys it was asked for. */
+  private static class RemoteArtifactCache extends InMemoryArtifactCache {
+    private final List<RuleKey> fetchedKeys = new ArrayList<>();
+
+    @Override
+    public ListenableFuture<CacheResult> fetchAsync(RuleKey ruleKey, LazyPath output) {
+      fetchedKeys.add(ruleKey);
+      return Futures.transform(
+          super.fetchAsync(ruleKey, output),
+          result ->
+              result.getType() == CacheResultType.HIT
+                  ? CacheResult.hit(
+                      "remote",
+                      ArtifactCacheMode.http,
+                      result.getMetadata(),
+                      result.getArtifactSizeBytes())
+                  : result,
+          MoreExecutors.directExecutor());
+    }
+  }
+
+  @Before
+  public void setUp() {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    remoteCache = new RemoteArtifactCache();
+    remoteCache.store(
+        ArtifactInfo.builder().addRuleKeys(KEY_A).putMetadata("key", "a").build(), DATA);
+    remoteCache.store(ArtifactInfo.builder().addRuleKeys(KEY_B).build(), DATA);
+  }
+
+  private L1ArtifactCacheDecorator newCache(ArtifactCache delegate, long maxSizeBytes)
+      throws IOException {
+    return new L1ArtifactCacheDecorator(
+        delegate,
+        filesystem,
+        Paths.get("l1"),
+        maxSizeBytes,
+        L1CacheEvictionPolicy.LRU,
+        MoreExecutors.newDirectExecutorService());
+  }
+
+  private Path newOutput() {
+    return tmp.getRoot().resolve("output" + outputCount++);
+  }
+
+  private CacheResult fetch(ArtifactCache cache, RuleKey ruleKey, Path output) {
+    return Futures.getUnchecked(cache.fetchAsync(ruleKey, LazyPath.ofInstance(output)));
+  }
+
+  @Test
+  public void remoteHitsArePromotedAndServedLocally() throws IOException {
+    L1ArtifactCacheDecorator cache = newCache(remoteCache, 1024);
+    assertEquals("remote", fetch(cache, KEY_A, newOutput()).getCacheSource());
+
+    Path output = newOutput();
+    CacheResult result = fetch(cache, KEY_A, output);
+    assertEquals(L1ArtifactCacheDecorator.CACHE_SOURCE, result.getCacheSource());
+    assertEquals(ImmutableMap.of("key", "a"), result.getMetadata());
+    assertArrayEquals(DATA, Files.readAllBytes(output));
+    assertEquals(ImmutableList.of(KEY_A), remoteCache.fetchedKeys);
+  }
+
+  @Test
+  public void localHitsAreNotPromoted() throws IOException {
+    InMemoryArtifactCache localCache = new InMemoryArtifactCache();
+    localCache.store(ArtifactInfo.builder().addRuleKeys(KEY_A).build(), DATA);
+    L1ArtifactCacheDecorator cache = newCache(localCache, 1024);
+
+    fetch(cache, KEY_A, newOutput());
+    assertEquals("in-memory", fetch(cache, KEY_A, newOutput()).getCacheSource());
+    assertEquals(0, cache.getSizeBytes());
+  }
+
+  @Test
+  public void artifactsBeyondTheBudgetAreEvicted() throws IOException {
+    L1ArtifactCacheDecorator cache = newCache(remoteCache, DATA.length + 1);
+    fetch(cache, KEY_A, newOutput());
+    fetch(cache, KEY_B, newOutput());
+    assertEquals(DATA.length, cache.getSizeBytes());
+
+    assertEquals("remote", fetch(cache, KEY_A, newOutput()).getCacheSource());
+    assertEquals(ImmutableList.of(KEY_A, KEY_B, KEY_A), remoteCache.fetchedKeys);
+  }
+
+  @Test
+  public void storedArtifactsAreFoundAfterRestart() throws IOException {
+    fetch(newCache(remoteCache, 1024), KEY_A, newOutput());
+
+    L1ArtifactCacheDecorator cache = newCache(remoteCache, 1024);
+    assertEquals(DATA.length, cache.getSizeBytes());
+    assertEquals(
+        L1ArtifactCacheDecorator.CACHE_SOURCE, fetch(cache, KEY_A, newOutput()).getCacheSource());
+    assertEquals(ImmutableList.of(KEY_A), remoteCache.fetchedKeys);
+  }
+
+  @Test
+  public void multiFetchOnlyAsksTheDelegateForMissingArtifacts() throws IOException {
+    L1ArtifactCacheDecorator cache = newCache(remoteCache, 1024);
+    fetch(cache, KEY_A, newOutput());
+
+    ImmutableList<CacheResult> results =
+        Futures.getUnchecked(
+            cache.multiFetchAsync(
+                ImmutableList.of(
+                    new Pair<>(KEY_A, LazyPath.ofInstance(newOutput())),
+                    new Pair<>(KEY_B, LazyPath.ofInstance(newOutput())))));
+    assertEquals(L1ArtifactCacheDecorator.CACHE_SOURCE, results.get(0).getCacheSource());
+    assertEquals("remote", results.get(1).getCacheSource());
+    assertEquals(ImmutableList.of(KEY_A, KEY_B), remoteCache.fetchedKeys);
+  }
+}
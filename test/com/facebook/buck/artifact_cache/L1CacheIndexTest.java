@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.artifact_cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.artifact_cache.config.L1CacheEvictionPolicy;
+import com.facebook.buck.rules.RuleKey;
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+public class L1CacheIndexTest {
+
+  private static final RuleKey KEY_A = new RuleKey("aaaa");
+  private static final RuleKey KEY_B = new RuleKey("bbbb");
+  private static final RuleKey KEY_C = new RuleKey("cccc");
+  private static final RuleKey KEY_D = new RuleKey("dddd");
+
+  @Test
+  public void lruEvictsLeastRecentlyUsedEntries() {
+    L1CacheIndex index = new L1CacheIndex(100, L1CacheEvictionPolicy.LRU);
+    assertEquals(ImmutableList.of(), index.add(KEY_A, 40));
+    assertEquals(ImmutableList.of(), index.add(KEY_B, 40));
+    assertTrue(index.recordAccess(KEY_A));
+
+    assertEquals(ImmutableList.of(KEY_B), index.add(KEY_C, 40));
+    assertTrue(index.contains(KEY_A));
+    assertFalse(index.contains(KEY_B));
+    assertEquals(80, index.getSizeBytes());
+  }
+
+  @Test
+  public void entriesLargerThanTheBudgetAreRejected() {
+    L1CacheIndex index = new L1CacheIndex(100, L1CacheEvictionPolicy.TINY_LFU);
+    assertEquals(ImmutableList.of(KEY_A), index.add(KEY_A, 101));
+    assertFalse(index.contains(KEY_A));
+    assertEquals(0, index.getSizeBytes());
+  }
+
+  @Test
+  public void tinyLfuOnlyAdmitsEntriesMorePopularThanTheOnesTheyReplace() {
+    // The window holds 100 bytes, so every entry below competes for the main region right away.
+    L1CacheIndex index = new L1CacheIndex(10000, L1CacheEvictionPolicy.TINY_LFU);
+    for (int i = 0; i < 3; i++) {
+      index.recordAccess(KEY_A);
+      index.recordAccess(KEY_B);
+    }
+    assertEquals(ImmutableList.of(), index.add(KEY_A, 4000));
+    assertEquals(ImmutableList.of(), index.add(KEY_B, 4000));
+
+    index.recordAccess(KEY_C);
+    assertEquals(ImmutableList.of(KEY_C), index.add(KEY_C, 4000));
+    assertTrue(index.contains(KEY_A));
+    assertTrue(index.contains(KEY_B));
+
+    for (int i = 0; i < 5; i++) {
+      index.recordAccess(KEY_D);
+    }
+    index.recordAccess(KEY_B);
+    assertEquals(ImmutableList.of(KEY_A), index.add(KEY_D, 4000));
+    assertTrue(index.contains(KEY_B));
+    assertTrue(index.contains(KEY_D));
+  }
+
+  @Test
+  public void removeReleasesSpace() {
+    L1CacheIndex index = new L1CacheIndex(100, L1CacheEvictionPolicy.LRU);
+    index.add(KEY_A, 60);
+    index.remove(KEY_A);
+    assertEquals(0, index.getSizeBytes());
+    assertEquals(ImmutableList.of(), index.add(KEY_B, 60));
+  }
+}
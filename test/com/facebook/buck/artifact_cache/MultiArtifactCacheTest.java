@@ -28,6 +28,7 @@ import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.TestProjectFilesystems;
 import com.facebook.buck.rules.RuleKey;
 import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.types.Pair;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -404,4 +405,33 @@ public class MultiArtifactCacheTest {
 
     multiArtifactCache.close();
   }
+
+  @Test
+  public void cacheMultiFetchFillsHigherCacheOnlyWithMissingArtifacts() throws Exception {
+    InMemoryArtifactCache cache1 = new InMemoryArtifactCache();
+    InMemoryArtifactCache cache2 = new InMemoryArtifactCache();
+    MultiArtifactCache multiArtifactCache =
+        new MultiArtifactCache(ImmutableList.of(cache1, cache2));
+
+    LazyPath output1 = LazyPath.ofInstance(tmp.newFile());
+    LazyPath output2 = LazyPath.ofInstance(tmp.newFile());
+
+    cache1.store(ArtifactInfo.builder().addRuleKeys(dummyRuleKey).build(), new byte[0]);
+    cache2.store(ArtifactInfo.builder().addRuleKeys(dummyRuleKey2).build(), new byte[0]);
+
+    ImmutableList<CacheResult> results =
+        multiArtifactCache
+            .multiFetchAsync(
+                ImmutableList.of(
+                    new Pair<>(dummyRuleKey, output1), new Pair<>(dummyRuleKey2, output2)))
+            .get();
+
+    assertEquals(2, results.size());
+    assertThat(results.get(0).getType(), Matchers.equalTo(CacheResultType.HIT));
+    assertThat(results.get(1).getType(), Matchers.equalTo(CacheResultType.HIT));
+    assertEquals(2, cache1.getArtifactCount());
+    assertEquals(1, cache2.getArtifactCount());
+
+    multiArtifactCache.close();
+  }
 }
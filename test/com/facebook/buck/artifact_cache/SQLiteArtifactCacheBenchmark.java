@@ -31,6 +31,7 @@ import com.google.caliper.Benchmark;
 import com.google.caliper.Param;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
@@ -42,6 +43,7 @@ import java.util.List;
 import java.util.Optional;
 import java.util.Random;
 import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Ignore;
@@ -57,6 +59,10 @@ public class SQLiteArtifactCacheBenchmark {
   @Param({"5", "10"})
   private int threadCount = 2;
 
+  // 0 uses a single connection, anything else the high-concurrency mode.
+  @Param({"0", "4"})
+  private int readerConnections = 0;
+
   private static final Random random = new Random(12345);
   private static final long MAX_INLINED_BYTES = 1024;
 
@@ -70,7 +76,6 @@ public class SQLiteArtifactCacheBenchmark {
   private Path largeFile;
 
   private Path cacheDir;
-  private LazyPath output;
   private SQLiteArtifactCache artifactCache;
   private ListeningExecutorService executor;
 
@@ -87,7 +92,6 @@ public class SQLiteArtifactCacheBenchmark {
     }
 
     cacheDir = tmpDir.newFolder();
-    output = LazyPath.ofInstance(cacheDir.resolve(".output"));
 
     setUpBenchmark();
   }
@@ -137,7 +141,8 @@ public class SQLiteArtifactCacheBenchmark {
         BuckEventBusForTests.newInstance(),
         maxCacheSizeBytes,
         Optional.of(MAX_INLINED_BYTES),
-        CacheReadMode.READWRITE);
+        CacheReadMode.READWRITE,
+        readerConnections);
   }
 
   @Ignore
@@ -154,42 +159,91 @@ public class SQLiteArtifactCacheBenchmark {
     runAllBenchmarks();
   }
 
+  @Ignore
+  @Test
+  public void testMultiThreadedHighConcurrency() throws IOException, SQLException {
+    artifactCache.close();
+    readerConnections = 4;
+    setUpBenchmark();
+    executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threadCount));
+    runAllBenchmarks();
+  }
+
   private void runAllBenchmarks() {
     benchMetadataStore();
     benchMetadataFetch();
     benchArtifactStore();
     benchArtifactFetch();
+    benchMixedFetchAndStore();
+  }
+
+  // Concurrent fetches must not write to the same file.
+  private LazyPath outputFor(RuleKey key) {
+    return LazyPath.ofInstance(cacheDir.resolve(key + ".output"));
+  }
+
+  /** Runs the operations on the executor, and waits for them and the writes they started. */
+  private void runConcurrently(List<Supplier<ListenableFuture<?>>> operations) {
+    List<ListenableFuture<?>> results = new ArrayList<>(operations.size());
+    for (Supplier<ListenableFuture<?>> operation : operations) {
+      results.add(executor.submit(() -> Futures.getUnchecked(operation.get())));
+    }
+    Futures.getUnchecked(Futures.allAsList(results));
   }
 
   @Benchmark
   private void benchMetadataStore() {
+    List<Supplier<ListenableFuture<?>>> operations = new ArrayList<>();
     for (ArtifactInfo info : metadataInfo) {
-      artifactCache.store(info, BorrowablePath.notBorrowablePath(emptyFile));
+      operations.add(() -> artifactCache.store(info, BorrowablePath.notBorrowablePath(emptyFile)));
     }
+    runConcurrently(operations);
   }
 
   @Benchmark
   private void benchMetadataFetch() {
+    List<Supplier<ListenableFuture<?>>> operations = new ArrayList<>();
     for (RuleKey key : ruleKeys) {
-      Futures.getUnchecked(artifactCache.fetchAsync(key, output));
+      operations.add(() -> artifactCache.fetchAsync(key, outputFor(key)));
     }
+    runConcurrently(operations);
   }
 
   @Benchmark
   private void benchArtifactStore() {
+    List<Supplier<ListenableFuture<?>>> operations = new ArrayList<>();
     for (int i = 0; i < contentInfo.size() / 2; i++) {
-      artifactCache.store(contentInfo.get(i), BorrowablePath.notBorrowablePath(inlinedFile));
+      ArtifactInfo info = contentInfo.get(i);
+      operations.add(
+          () -> artifactCache.store(info, BorrowablePath.notBorrowablePath(inlinedFile)));
     }
 
     for (int i = contentInfo.size() / 2; i < contentInfo.size(); i++) {
-      artifactCache.store(contentInfo.get(i), BorrowablePath.notBorrowablePath(largeFile));
+      ArtifactInfo info = contentInfo.get(i);
+      operations.add(() -> artifactCache.store(info, BorrowablePath.notBorrowablePath(largeFile)));
     }
+    runConcurrently(operations);
   }
 
   @Benchmark
   private void benchArtifactFetch() {
-    for (RuleKey key : ruleKeys) {
-      Futures.getUnchecked(artifactCache.fetchAsync(key, output));
+    List<Supplier<ListenableFuture<?>>> operations = new ArrayList<>();
+    for (RuleKey key : contentHashes) {
+      operations.add(() -> artifactCache.fetchAsync(key, outputFor(key)));
+    }
+    runConcurrently(operations);
+  }
+
+  /** Interleaves lookups and stores, like build threads do when most rules are cache misses. */
+  @Benchmark
+  private void benchMixedFetchAndStore() {
+    List<Supplier<ListenableFuture<?>>> operations = new ArrayList<>();
+    for (int i = 0; i < ruleKeys.size(); i++) {
+      RuleKey key = ruleKeys.get(i);
+      ArtifactInfo info = metadataInfo.get(i);
+      operations.add(() -> artifactCache.fetchAsync(key, outputFor(key)));
+      operations.add(() -> artifactCache.store(info, BorrowablePath.notBorrowablePath(emptyFile)));
     }
+    runConcurrently(operations);
   }
 }
@@ -38,15 +38,24 @@ import com.facebook.buck.testutil.TemporaryPaths;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Executors;
 import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Before;
@@ -102,6 +111,11 @@ public class SQLiteArtifactCacheTest {
 
   private SQLiteArtifactCache cache(Optional<Long> maxCacheSizeBytes)
       throws IOException, SQLException {
+    return cache(maxCacheSizeBytes, 0);
+  }
+
+  private SQLiteArtifactCache cache(Optional<Long> maxCacheSizeBytes, int readerConnections)
+      throws IOException, SQLException {
     return new SQLiteArtifactCache(
         "sqlite",
         filesystem,
@@ -109,7 +123,8 @@ public class SQLiteArtifactCacheTest {
         BuckEventBusForTests.newInstance(),
         maxCacheSizeBytes,
         Optional.of(MAX_INLINED_BYTES),
-        CacheReadMode.READWRITE);
+        CacheReadMode.READWRITE,
+        readerConnections);
   }
 
   /**
@@ -432,6 +447,130 @@ public class SQLiteArtifactCacheTest {
     assertArrayEquals(Files.readAllBytes(output.get()), Files.readAllBytes(fileA));
   }
 
+  @Test
+  public void testHighConcurrencyStoreAndFetchHit() throws IOException, SQLException {
+    artifactCache = cache(Optional.empty(), 2);
+    writeInlinedArtifact(fileA);
+    writeFileArtifact(fileB);
+
+    Futures.getUnchecked(
+        artifactCache.store(
+            ArtifactInfo.builder()
+                .addRuleKeys(ruleKeyA)
+                .putMetadata(METADATA_KEY, contentHashA.toString())
+                .build(),
+            BorrowablePath.notBorrowablePath(emptyFile)));
+    Futures.getUnchecked(
+        artifactCache.store(artifactInfoA, BorrowablePath.notBorrowablePath(fileA)));
+    Futures.getUnchecked(
+        artifactCache.store(artifactInfoB, BorrowablePath.notBorrowablePath(fileB)));
+
+    CacheResult metadataResult = Futures.getUnchecked(artifactCache.fetchAsync(ruleKeyA, output));
+    assertEquals(CacheResultType.HIT, metadataResult.getType());
+    assertEquals(contentHashA.toString(), metadataResult.getMetadata().get(METADATA_KEY));
+
+    CacheResult inlinedResult =
+        Futures.getUnchecked(artifactCache.fetchAsync(contentHashA, output));
+    assertEquals(CacheResultType.HIT, inlinedResult.getType());
+    assertArrayEquals(Files.readAllBytes(fileA), Files.readAllBytes(output.get()));
+
+    CacheResult fileResult = Futures.getUnchecked(artifactCache.fetchAsync(contentHashB, output));
+    assertEquals(CacheResultType.HIT, fileResult.getType());
+    assertArrayEquals(Files.readAllBytes(fileB), Files.readAllBytes(output.get()));
+  }
+
+  @Test
+  public void testHighConcurrencyConcurrentStoresAndFetches() throws Exception {
+    artifactCache = cache(Optional.empty(), 2);
+    writeInlinedArtifact(fileA);
+
+    ListeningExecutorService executor =
+        MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(4));
+    try {
+      List<RuleKey> ruleKeys = new ArrayList<>();
+      List<ListenableFuture<Void>> stores = new ArrayList<>();
+      for (int i = 0; i < 50; i++) {
+        RuleKey ruleKey = new RuleKey(String.format("%016x", i));
+        ruleKeys.add(ruleKey);
+        stores.add(
+            executor.submit(
+                () ->
+                    Futures.getUnchecked(
+                        artifactCache.store(
+                            ArtifactInfo.builder().addRuleKeys(ruleKey).build(),
+                            BorrowablePath.notBorrowablePath(fileA)))));
+      }
+      Futures.allAsList(stores).get();
+
+      List<ListenableFuture<CacheResult>> fetches = new ArrayList<>();
+      for (RuleKey ruleKey : ruleKeys) {
+        Path fetchOutput = tmpDir.getRoot().resolve(ruleKey.toString());
+        fetches.add(
+            executor.submit(
+                () ->
+                    Futures.getUnchecked(
+                        artifactCache.fetchAsync(ruleKey, LazyPath.ofInstance(fetchOutput)))));
+      }
+      for (CacheResult result : Futures.allAsList(fetches).get()) {
+        assertEquals(CacheResultType.HIT, result.getType());
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(artifactCache.inlinedArtifactContentHashes(), Matchers.hasSize(50));
+  }
+
+  @Test
+  public void testHighConcurrencyFailedWriteOnlyRollsBackItself() throws Exception {
+    artifactCache = cache(Optional.empty(), 2);
+    try (Connection connection =
+            DriverManager.getConnection("jdbc:sqlite:" + cacheDir.resolve("dircache.db"));
+        Statement statement = connection.createStatement()) {
+      statement.executeUpdate(
+          "CREATE TRIGGER reject_b BEFORE INSERT ON metadata "
+              + "WHEN NEW.rulekey = X'bbbbbbbbbbbbbbbb' "
+              + "BEGIN SELECT RAISE(ABORT, 'rejected'); END");
+    }
+
+    ListenableFuture<Void> failingStore =
+        artifactCache.store(
+            ArtifactInfo.builder()
+                .addRuleKeys(ruleKeyA, ruleKeyB)
+                .putMetadata(METADATA_KEY, contentHashA.toString())
+                .build(),
+            BorrowablePath.notBorrowablePath(emptyFile));
+    ListenableFuture<Void> store =
+        artifactCache.store(
+            ArtifactInfo.builder()
+                .addRuleKeys(ruleKeyC)
+                .putMetadata(METADATA_KEY, contentHashC.toString())
+                .build(),
+            BorrowablePath.notBorrowablePath(emptyFile));
+    Futures.allAsList(failingStore, store).get();
+
+    // The metadata of rule key A was written by the same statement batch as the one of B.
+    assertEquals(ImmutableList.of(ruleKeyC), artifactCache.metadataRuleKeys());
+  }
+
+  @Test
+  public void testHighConcurrencyQueuedDuplicateContentIsStored() throws Exception {
+    artifactCache = cache(Optional.empty(), 2);
+    writeInlinedArtifact(fileA);
+
+    // The second store may not see the content of the first one, which may still be queued.
+    ListenableFuture<Void> first =
+        artifactCache.store(artifactInfoA, BorrowablePath.notBorrowablePath(fileA));
+    ListenableFuture<Void> second =
+        artifactCache.store(
+            ArtifactInfo.builder().addRuleKeys(contentHashA, contentHashB).build(),
+            BorrowablePath.notBorrowablePath(fileA));
+    Futures.allAsList(first, second).get();
+
+    assertThat(
+        artifactCache.inlinedArtifactContentHashes(),
+        Matchers.containsInAnyOrder(contentHashA, contentHashB));
+  }
+
   @Test
   public void testMarshalMetadata() throws IOException {
     byte[] expected = new byte[4];
@@ -301,6 +301,7 @@ public class CleanCommandTest extends EasyMockSupport {
         Optional.empty(),
         Optional.empty(),
         Optional.empty(),
+        Optional.empty(),
         buckConfig,
         new StackedFileHashCache(ImmutableList.of()),
         ImmutableMap.of(),
@@ -315,6 +316,7 @@ public class CleanCommandTest extends EasyMockSupport {
         new BuildInfoStoreManager(),
         Optional.empty(),
         Optional.empty(),
+        Optional.empty(),
         new DefaultProjectFilesystemFactory(),
         TestRuleKeyConfigurationFactory.create(),
         processExecutor,
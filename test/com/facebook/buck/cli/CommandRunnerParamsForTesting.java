@@ -130,6 +130,7 @@ public class CommandRunnerParamsForTesting {
         Optional.empty(),
         webServer,
         Optional.empty(),
+        Optional.empty(),
         config,
         new StackedFileHashCache(ImmutableList.of()),
         ImmutableMap.of(ExecutorPool.PROJECT, MoreExecutors.newDirectExecutorService()),
@@ -141,6 +142,7 @@ public class CommandRunnerParamsForTesting {
         new BuildInfoStoreManager(),
         Optional.empty(),
         Optional.empty(),
+        Optional.empty(),
         new DefaultProjectFilesystemFactory(),
         TestRuleKeyConfigurationFactory.create(),
         processExecutor,
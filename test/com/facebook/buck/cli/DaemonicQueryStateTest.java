@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.cli;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import java.util.Optional;
+import org.junit.Test;
+
+public class DaemonicQueryStateTest {
+
+  private static final ImmutableMap<String, String> ENVIRONMENT = ImmutableMap.of("A", "1");
+
+  @Test
+  public void stateIsKeptForTheSameParserStateAndEnvironment() {
+    DaemonicQueryState state = new DaemonicQueryState();
+    DaemonicQueryState.Lease first = state.acquire(1, ENVIRONMENT).get();
+    first.close();
+    DaemonicQueryState.Lease second = state.acquire(1, ImmutableMap.copyOf(ENVIRONMENT)).get();
+    second.close();
+
+    assertSame(first.getGraph(), second.getGraph());
+    assertSame(first.getTargetsToNodes(), second.getTargetsToNodes());
+    assertSame(first.getBuildFileNodes(), second.getBuildFileNodes());
+  }
+
+  @Test
+  public void stateIsDroppedWhenTheParserStateChanges() {
+    DaemonicQueryState state = new DaemonicQueryState();
+    DaemonicQueryState.Lease first = state.acquire(1, ENVIRONMENT).get();
+    first.close();
+    DaemonicQueryState.Lease second = state.acquire(2, ENVIRONMENT).get();
+    second.close();
+
+    assertNotSame(first.getGraph(), second.getGraph());
+    assertNotSame(first.getBuildFileNodes(), second.getBuildFileNodes());
+  }
+
+  @Test
+  public void stateIsDroppedWhenTheEnvironmentChanges() {
+    DaemonicQueryState state = new DaemonicQueryState();
+    DaemonicQueryState.Lease first = state.acquire(1, ENVIRONMENT).get();
+    first.close();
+    DaemonicQueryState.Lease second = state.acquire(1, ImmutableMap.of("A", "2")).get();
+    second.close();
+
+    assertNotSame(first.getTargetsToNodes(), second.getTargetsToNodes());
+  }
+
+  @Test
+  public void stateIsOnlyUsedByOneQueryAtATime() {
+    DaemonicQueryState state = new DaemonicQueryState();
+    DaemonicQueryState.Lease lease = state.acquire(1, ENVIRONMENT).get();
+    assertFalse(state.acquire(1, ENVIRONMENT).isPresent());
+    lease.close();
+
+    Optional<DaemonicQueryState.Lease> next = state.acquire(1, ENVIRONMENT);
+    assertTrue(next.isPresent());
+    next.get().close();
+  }
+}
@@ -130,7 +130,8 @@ public class EventSerializationTest {
         "{%s,"
             + "\"buildTargets\":[{\"baseName\":\"//base\","
             + "\"shortName\":\"short\",\"flavor\":\"flv\"}],\"type\":\"ParseFinished\","
-            + "\"eventKey\":{\"value\":4242}, \"processedBytes\": 10}",
+            + "\"eventKey\":{\"value\":4242}, \"processedBytes\": 10,"
+            + "\"maxPendingSpeculativeJobs\":0,\"stallTimeMs\":0}",
         message);
   }
 
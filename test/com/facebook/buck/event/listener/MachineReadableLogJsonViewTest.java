@@ -208,6 +208,7 @@ public class MachineReadableLogJsonViewTest {
             0,
             5,
             0,
+            1,
             new AtomicInteger(2),
             new AtomicInteger(0));
 
@@ -217,7 +218,7 @@ public class MachineReadableLogJsonViewTest {
             + "\"cacheErrorsPerMode\":{\"dir\":2,\"http\":1},"
             + "\"totalCacheHits\":3,\"totalCacheErrors\":3,"
             + "\"totalCacheMisses\":0,\"totalCacheIgnores\":5,\""
-            + "totalCacheLocalKeyUnchangedHits\":0,"
+            + "totalCacheLocalKeyUnchangedHits\":0,\"totalL1CacheHits\":1,"
             + "\"successUploadCount\":2,\"failureUploadCount\":0}");
   }
 
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import org.junit.Test;
+
+public class DirectedAcyclicGraphTest {
+
+  /** Random DAG whose edges go from higher to lower numbers. */
+  private static MutableDirectedGraph<Integer> makeRandomGraph(long seed) {
+    Random random = new Random(seed);
+    MutableDirectedGraph<Integer> graph = new MutableDirectedGraph<>();
+    for (int node = 0; node < 200; node++) {
+      graph.addNode(node);
+      for (int edge = 0; edge < random.nextInt(5); edge++) {
+        if (node > 0) {
+          graph.addEdge(node, random.nextInt(node));
+        }
+      }
+    }
+    return graph;
+  }
+
+  @Test
+  public void edgesMatchTheMutableGraph() {
+    MutableDirectedGraph<Integer> mutableGraph = makeRandomGraph(1);
+    DirectedAcyclicGraph<Integer> graph = new DirectedAcyclicGraph<>(mutableGraph);
+    assertEquals(mutableGraph.getNodes(), graph.getNodes());
+    for (Integer node : graph.getNodes()) {
+      assertEquals(
+          ImmutableSet.copyOf(mutableGraph.getOutgoingNodesFor(node)),
+          graph.getOutgoingNodesFor(node));
+      assertEquals(
+          ImmutableSet.copyOf(mutableGraph.getIncomingNodesFor(node)),
+          graph.getIncomingNodesFor(node));
+    }
+    assertEquals(
+        ImmutableSet.copyOf(mutableGraph.getNodesWithNoIncomingEdges()),
+        graph.getNodesWithNoIncomingEdges());
+    assertEquals(
+        ImmutableSet.copyOf(mutableGraph.getNodesWithNoOutgoingEdges()),
+        graph.getNodesWithNoOutgoingEdges());
+    assertEquals(ImmutableSet.of(), graph.getOutgoingNodesFor(1000));
+  }
+
+  @Test
+  public void equalityDependsOnNodesAndEdges() {
+    DirectedAcyclicGraph<Integer> graph = new DirectedAcyclicGraph<>(makeRandomGraph(2));
+    DirectedAcyclicGraph<Integer> sameGraph = new DirectedAcyclicGraph<>(makeRandomGraph(2));
+    assertEquals(graph, sameGraph);
+    assertEquals(graph.hashCode(), sameGraph.hashCode());
+
+    MutableDirectedGraph<Integer> otherEdges = makeRandomGraph(2);
+    otherEdges.addEdge(150, 3);
+    assertNotEquals(graph, new DirectedAcyclicGraph<>(otherEdges));
+  }
+
+  @Test
+  public void equalityDoesNotDependOnTheOrderOfNodes() {
+    MutableDirectedGraph<Integer> mutableGraph = makeRandomGraph(5);
+    MutableDirectedGraph<Integer> reversedGraph = new MutableDirectedGraph<>();
+    for (Integer node : ImmutableList.copyOf(mutableGraph.getNodes()).reverse()) {
+      reversedGraph.addNode(node);
+      for (Integer child : ImmutableList.copyOf(mutableGraph.getOutgoingNodesFor(node)).reverse()) {
+        reversedGraph.addEdge(node, child);
+      }
+    }
+    DirectedAcyclicGraph<Integer> graph = new DirectedAcyclicGraph<>(mutableGraph);
+    DirectedAcyclicGraph<Integer> reversed = new DirectedAcyclicGraph<>(reversedGraph);
+    assertEquals(graph, reversed);
+    assertEquals(reversed, graph);
+    assertEquals(graph.hashCode(), reversed.hashCode());
+
+    // Move one edge to another child, so that the number of edges stays the same.
+    int node = 199;
+    while (graph.getOutgoingNodesFor(node).isEmpty()
+        || graph.getOutgoingNodesFor(node).contains(0)) {
+      node--;
+    }
+    reversedGraph.removeEdge(node, graph.getOutgoingNodesFor(node).iterator().next());
+    reversedGraph.addEdge(node, 0);
+    assertNotEquals(graph, new DirectedAcyclicGraph<>(reversedGraph));
+  }
+
+  @Test
+  public void nodeSetsAreReused() {
+    DirectedAcyclicGraph<Integer> graph = new DirectedAcyclicGraph<>(makeRandomGraph(6));
+    for (Integer node : graph.getNodes()) {
+      assertSame(graph.getOutgoingNodesFor(node), graph.getOutgoingNodesFor(node));
+      assertSame(graph.getIncomingNodesFor(node), graph.getIncomingNodesFor(node));
+    }
+  }
+
+  @Test
+  public void traversalOverIdsMatchesTheGenericTraversal() throws Exception {
+    DirectedAcyclicGraph<Integer> graph = new DirectedAcyclicGraph<>(makeRandomGraph(3));
+    Predicate<Integer> shouldExploreChildren = node -> node % 7 != 0;
+    ImmutableList<Integer> initialNodes = ImmutableList.of(199, 50, 1000, 120, 50);
+    Iterable<Integer> expected =
+        new AcyclicDepthFirstPostOrderTraversal<Integer>(
+                node -> graph.getOutgoingNodesFor(node).iterator())
+            .traverse(initialNodes, shouldExploreChildren);
+    assertEquals(
+        ImmutableList.copyOf(expected),
+        AcyclicDepthFirstPostOrderTraversal.traverseGraph(
+            graph, initialNodes, shouldExploreChildren));
+  }
+
+  @Test
+  public void bottomUpTraversalAndSortMatchTheMutableGraph() {
+    MutableDirectedGraph<Integer> mutableGraph = makeRandomGraph(4);
+    DirectedAcyclicGraph<Integer> graph = new DirectedAcyclicGraph<>(mutableGraph);
+    assertEquals(TopologicalSort.sort(mutableGraph), TopologicalSort.sort(graph));
+    assertEquals(visitBottomUp(mutableGraph), visitBottomUp(graph));
+  }
+
+  private static List<Integer> visitBottomUp(TraversableGraph<Integer> graph) {
+    List<Integer> visited = new ArrayList<>();
+    new AbstractBottomUpTraversal<Integer, RuntimeException>(graph) {
+      @Override
+      public void visit(Integer node) {
+        visited.add(node);
+      }
+    }.traverse();
+    return visited;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.util.bser.BserSerializer;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.Test;
+
+/** Tests for {@link BuildFilePythonResultBserDeserializer}. */
+public final class BuildFilePythonResultBserDeserializerTest {
+
+  private static InputStream serialize(Object... values) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    BserSerializer serializer = new BserSerializer();
+    for (Object value : values) {
+      serializer.serializeToStream(value, out);
+    }
+    return new ByteArrayInputStream(out.toByteArray());
+  }
+
+  @Test
+  public void emptyParse() throws IOException {
+    BuildFilePythonResult result =
+        new BuildFilePythonResultBserDeserializer().deserialize(serialize(ImmutableMap.of()));
+    assertThat(
+        result,
+        is(BuildFilePythonResult.of(ImmutableList.of(), ImmutableList.of(), Optional.empty())));
+  }
+
+  @Test
+  public void resultsMatchTheJsonDeserializer() throws IOException {
+    Map<String, Object> value = new LinkedHashMap<>();
+    value.put("name", "foo");
+    value.put("buck.foo", null);
+    value.put("buck.bar", ImmutableList.of(1, 300, 100000, 10000000000L));
+    value.put("buck.baz", ImmutableMap.of("b", 1.5, "a", true));
+    BuildFilePythonResult result =
+        new BuildFilePythonResultBserDeserializer()
+            .deserialize(
+                serialize(
+                    ImmutableMap.of(
+                        "values",
+                        ImmutableList.of(value),
+                        "diagnostics",
+                        ImmutableList.of(ImmutableMap.of("level", "warning", "message", "Oops")),
+                        "profile",
+                        "this is a profile")));
+
+    // What the JSON deserializer returns: sorted keys, and only longs.
+    Map<String, Object> expectedValue = new LinkedHashMap<>();
+    expectedValue.put("buck.bar", ImmutableList.of(1L, 300L, 100000L, 10000000000L));
+    expectedValue.put("buck.baz", ImmutableMap.of("a", true, "b", 1.5));
+    expectedValue.put("buck.foo", null);
+    expectedValue.put("name", "foo");
+    BuildFilePythonResult expected =
+        BuildFilePythonResult.of(
+            ImmutableList.of(expectedValue),
+            ImmutableList.of(ImmutableMap.of("level", "warning", "message", "Oops")),
+            Optional.of("this is a profile"));
+    assertThat(result, is(expected));
+    assertThat(
+        result.getValues().get(0).keySet(),
+        contains("buck.bar", "buck.baz", "buck.foo", "name"));
+  }
+
+  @Test
+  public void consecutiveResultsAreReadOneByOne() throws IOException {
+    InputStream input =
+        serialize(
+            ImmutableMap.of("profile", "first"), ImmutableMap.of("values", ImmutableList.of()));
+    BuildFilePythonResultBserDeserializer deserializer =
+        new BuildFilePythonResultBserDeserializer();
+    assertThat(deserializer.deserialize(input).getProfile(), is(Optional.of("first")));
+    assertThat(deserializer.deserialize(input).getProfile(), is(Optional.empty()));
+  }
+}
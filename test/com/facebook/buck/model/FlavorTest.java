@@ -17,6 +17,7 @@
 package com.facebook.buck.model;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import org.junit.Test;
 
@@ -30,4 +31,9 @@ public class FlavorTest {
         "abcd_ABCD_e_fg_h-i.jkl.mn_opq____r___049",
         Flavor.replaceInvalidCharacters("abcd/ABCD/e_fg+h-i.jkl.mn/opq@#$$r/()049"));
   }
+
+  @Test
+  public void internalFlavorsAreInterned() {
+    assertSame(InternalFlavor.of("foo"), InternalFlavor.of(new String("foo")));
+  }
 }
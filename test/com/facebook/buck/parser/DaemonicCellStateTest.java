@@ -18,6 +18,7 @@ package com.facebook.buck.parser;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.config.BuckConfig;
 import com.facebook.buck.config.FakeBuckConfig;
@@ -35,6 +36,7 @@ import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Optional;
 import org.junit.Before;
 import org.junit.Test;
@@ -126,4 +128,29 @@ public class DaemonicCellStateTest {
         Optional.empty(),
         cache.lookupComputedNode(childCell, target));
   }
+
+  @Test
+  public void globsOnlyMatchReportedPatterns() {
+    Path buildFile = rootCell.getRoot().resolve("path/to/BUCK");
+    Path otherBuildFile = rootCell.getRoot().resolve("other/BUCK");
+    state.putRawNodesIfNotPresentAndStripMetaEntries(
+        buildFile,
+        ImmutableSet.of(ImmutableMap.of("buck.base_path", "path/to", "name", "target")),
+        ImmutableSet.of(),
+        ImmutableMap.of(),
+        Optional.of(ImmutableSet.of("src/**/*.java")));
+    state.putRawNodesIfNotPresentAndStripMetaEntries(
+        otherBuildFile,
+        ImmutableSet.of(ImmutableMap.of("buck.base_path", "other", "name", "target")),
+        ImmutableSet.of(),
+        ImmutableMap.of());
+
+    assertTrue(state.globsMayMatch(buildFile, Paths.get("src/com/Foo.java")));
+    assertFalse(state.globsMayMatch(buildFile, Paths.get("res/strings.xml")));
+    // Build files whose globs weren't reported are affected by any file.
+    assertTrue(state.globsMayMatch(otherBuildFile, Paths.get("res/strings.xml")));
+
+    state.invalidatePath(buildFile);
+    assertTrue(state.globsMayMatch(buildFile, Paths.get("res/strings.xml")));
+  }
 }
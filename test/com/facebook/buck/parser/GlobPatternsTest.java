@@ -0,0 +1,68 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import java.nio.file.Paths;
+import org.junit.Test;
+
+public class GlobPatternsTest {
+
+  private static boolean mayMatch(String pattern, String path) {
+    return GlobPatterns.mayMatch(ImmutableList.of(pattern), Paths.get(path));
+  }
+
+  @Test
+  public void wildcardsMatchWithinOnePathComponent() {
+    assertTrue(mayMatch("*.java", "Foo.java"));
+    assertTrue(mayMatch("Fo?.java", "Foo.java"));
+    assertTrue(mayMatch("[EF]oo.java", "Foo.java"));
+    assertFalse(mayMatch("[!F]oo.java", "Foo.java"));
+    assertFalse(mayMatch("*.java", "Foo.c"));
+    assertFalse(mayMatch("*.java", "sub/Foo.java"));
+  }
+
+  @Test
+  public void doubleStarMatchesAnyNumberOfDirectories() {
+    assertTrue(mayMatch("**/*.java", "Foo.java"));
+    assertTrue(mayMatch("**/*.java", "a/b/Foo.java"));
+    assertTrue(mayMatch("src/**/test/*.java", "src/a/b/test/Foo.java"));
+    assertFalse(mayMatch("src/**/test/*.java", "res/test/Foo.java"));
+  }
+
+  @Test
+  public void directoriesWhichMayContainMatchesMatch() {
+    assertTrue(mayMatch("src/*.java", "src"));
+    assertTrue(mayMatch("**/*.java", "a/b"));
+    assertFalse(mayMatch("src/*.java", "res"));
+  }
+
+  @Test
+  public void specialCharactersAreMatchedLiterally() {
+    assertTrue(mayMatch("a+b(c).{d}", "a+b(c).{d}"));
+    assertFalse(mayMatch("a.b", "aXb"));
+  }
+
+  @Test
+  public void anyPatternMayMatch() {
+    assertTrue(GlobPatterns.mayMatch(ImmutableList.of("*.c", "*.java"), Paths.get("Foo.java")));
+    assertFalse(GlobPatterns.mayMatch(ImmutableList.of(), Paths.get("Foo.java")));
+  }
+}
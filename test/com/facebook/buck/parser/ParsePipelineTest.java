@@ -17,6 +17,7 @@
 package com.facebook.buck.parser;
 
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.stringContainsInOrder;
 import static org.junit.Assert.assertThat;
@@ -148,6 +149,58 @@ public class ParsePipelineTest {
     fixture.close();
   }
 
+  @Test
+  public void speculativeDepsTraversalIsBounded() throws Exception {
+    // With a single permit and synchronous execution, parsing //a:a speculatively holds the permit
+    // while its own deps are considered, so //c:c is left to the caller. //b:b is scheduled once
+    // //a:a is done and has returned the permit.
+    try (Fixture fixture = createBoundedSpeculationFixture("speculative_parsing_limit", 1)) {
+      Cell cell = fixture.getCell();
+      Path root = cell.getFilesystem().getRootPath();
+      TargetNodeParsePipeline pipeline = fixture.getTargetNodeParsePipeline();
+      pipeline.getNode(
+          cell,
+          fixture.getKnownBuildRuleTypes(),
+          BuildTargetFactory.newInstance(root, "//:lib"),
+          new AtomicLong());
+
+      TypedParsePipelineCache<BuildTarget, TargetNode<?, ?>> cache =
+          fixture.getTargetNodeParsePipelineCache();
+      BuildTarget c = BuildTargetFactory.newInstance(root, "//c:c");
+      assertThat(
+          cache.lookupComputedNode(cell, BuildTargetFactory.newInstance(root, "//a:a")).isPresent(),
+          is(true));
+      assertThat(
+          cache.lookupComputedNode(cell, BuildTargetFactory.newInstance(root, "//b:b")).isPresent(),
+          is(true));
+      assertThat(cache.lookupComputedNode(cell, c).isPresent(), is(false));
+      assertThat(pipeline.getMaxPendingSpeculativeJobs(), is(1));
+
+      // The dep which was left out is still parsed when asked for.
+      TargetNode<?, ?> cNode =
+          pipeline.getNode(cell, fixture.getKnownBuildRuleTypes(), c, new AtomicLong());
+      assertThat(cNode.getBuildTarget(), is(c));
+      assertThat(cache.lookupComputedNode(cell, c).isPresent(), is(true));
+      // Nothing was ever waited for, as every job ran on the calling thread.
+      assertThat(pipeline.getStallTimeNanos(), is(0L));
+    }
+  }
+
+  @Test
+  public void waitingForUnparsedNodesIsReportedAsStalls() throws Exception {
+    try (Fixture fixture = createMultiThreadedFixture("pipeline_test")) {
+      Cell cell = fixture.getCell();
+      fixture
+          .getTargetNodeParsePipeline()
+          .getNode(
+              cell,
+              fixture.getKnownBuildRuleTypes(),
+              BuildTargetFactory.newInstance(cell.getFilesystem().getRootPath(), "//:lib"),
+              new AtomicLong());
+      assertThat(fixture.getTargetNodeParsePipeline().getStallTimeNanos(), greaterThan(0L));
+    }
+  }
+
   @Test
   public void missingTarget() throws Exception {
     try (Fixture fixture = createMultiThreadedFixture("parse_rule_with_bad_dependency")) {
@@ -346,7 +399,8 @@ public class ParsePipelineTest {
         scenario,
         MoreExecutors.listeningDecorator(
             MostExecutors.newMultiThreadExecutor("ParsePipelineTest", 4)),
-        PerBuildState.SpeculativeParsing.ENABLED);
+        PerBuildState.SpeculativeParsing.ENABLED,
+        Integer.MAX_VALUE);
   }
 
   // Use this method to make sure the Pipeline doesn't execute stuff on another thread, useful
@@ -355,7 +409,18 @@ public class ParsePipelineTest {
     return new Fixture(
         scenario,
         MoreExecutors.newDirectExecutorService(),
-        PerBuildState.SpeculativeParsing.DISABLED);
+        PerBuildState.SpeculativeParsing.DISABLED,
+        Integer.MAX_VALUE);
+  }
+
+  // Speculative parsing on the calling thread, so that which deps are parsed ahead is predictable.
+  private Fixture createBoundedSpeculationFixture(String scenario, int speculativeJobsLimit)
+      throws Exception {
+    return new Fixture(
+        scenario,
+        MoreExecutors.newDirectExecutorService(),
+        PerBuildState.SpeculativeParsing.ENABLED,
+        speculativeJobsLimit);
   }
 
   private class Fixture implements AutoCloseable {
@@ -377,7 +442,8 @@ public class ParsePipelineTest {
     public Fixture(
         String scenario,
         ListeningExecutorService executorService,
-        PerBuildState.SpeculativeParsing speculativeParsing)
+        PerBuildState.SpeculativeParsing speculativeParsing,
+        int speculativeJobsLimit)
         throws Exception {
       this.workspace = TestDataHelper.createProjectWorkspaceForScenario(this, scenario, tmp);
       this.eventBus = BuckEventBusForTests.newInstance();
@@ -444,6 +510,7 @@ public class ParsePipelineTest {
               this.executorService,
               this.eventBus,
               speculativeParsing == PerBuildState.SpeculativeParsing.ENABLED,
+              speculativeJobsLimit,
               this.rawNodeParsePipeline,
               KnownBuildRuleTypesProvider.of(knownBuildRuleTypesFactory));
     }
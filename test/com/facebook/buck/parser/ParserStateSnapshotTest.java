@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.config.FakeBuckConfig;
+import com.facebook.buck.event.listener.BroadcastEventListener;
+import com.facebook.buck.rules.Cell;
+import com.facebook.buck.rules.TestCellBuilder;
+import com.facebook.buck.rules.coercer.DefaultTypeCoercerFactory;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class ParserStateSnapshotTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  @Test
+  public void valuesSurviveRoundTrips() throws IOException {
+    Map<String, Object> map = new HashMap<>();
+    map.put("key", "value");
+    map.put("null", null);
+    ImmutableList<Object> values =
+        ImmutableList.of(
+            "string",
+            true,
+            false,
+            42,
+            -7,
+            Long.MAX_VALUE,
+            Long.MIN_VALUE,
+            3.5,
+            Arrays.asList("a", 1, Arrays.asList()),
+            map);
+
+    ParserStateSnapshot.Writer writer = new ParserStateSnapshot.Writer();
+    writer.startCell("");
+    for (Object value : values) {
+      writer.writeValue(value);
+    }
+    writer.writeValue(null);
+    writer.writeAbsent();
+    Path path = tmp.getRoot().resolve("snapshot");
+    writer.writeTo(path);
+
+    ParserStateSnapshot.Reader reader = ParserStateSnapshot.load(path).readCell("");
+    for (Object value : values) {
+      assertEquals(value, reader.readValue());
+    }
+    assertNull(reader.readValue());
+    assertSame(ParserStateSnapshot.ABSENT, reader.readValue());
+  }
+
+  @Test
+  public void cellsAndIncludesAreStoredSeparately() throws IOException {
+    ParserStateSnapshot.Writer writer = new ParserStateSnapshot.Writer();
+    writer.addCachedIncludes("", ImmutableList.of("//DEFS"));
+    writer.startCell("");
+    writer.writeString("root");
+    writer.addCachedIncludes("../other", ImmutableList.of());
+    writer.startCell("../other");
+    writer.writeString("other");
+    writer.writeString("root");
+    Path path = tmp.getRoot().resolve("snapshot");
+    writer.writeTo(path);
+
+    assertTrue(ParserStateSnapshot.isSnapshot(path));
+    ParserStateSnapshot snapshot = ParserStateSnapshot.load(path);
+    assertEquals(
+        ImmutableMap.of("", ImmutableList.of("//DEFS"), "../other", ImmutableList.of()),
+        snapshot.getCachedIncludes());
+    assertEquals(ImmutableList.of("", "../other"), ImmutableList.copyOf(snapshot.getCellPaths()));
+
+    ParserStateSnapshot.Reader other = snapshot.readCell("../other");
+    assertEquals("other", other.readString());
+    assertEquals("root", other.readString());
+    assertEquals("root", snapshot.readCell("").readString());
+  }
+
+  @Test
+  public void otherFilesAreNotSnapshots() throws IOException {
+    Path path = tmp.getRoot().resolve("other");
+    Files.write(path, new byte[] {'P', 'K', 3, 4});
+    assertFalse(ParserStateSnapshot.isSnapshot(path));
+  }
+
+  @Test
+  public void cellStatesSurviveRoundTrips() throws IOException {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Cell cell =
+        new TestCellBuilder()
+            .setFilesystem(filesystem)
+            .setBuckConfig(
+                FakeBuckConfig.builder()
+                    .setFilesystem(filesystem)
+                    .setEnvironment(ImmutableMap.of("HOME", "/home"))
+                    .build())
+            .build();
+    DaemonicCellState state = new DaemonicCellState(cell, 1);
+    Path buildFile = cell.getRoot().resolve("foo/BUCK");
+    Path include = cell.getRoot().resolve("DEFS");
+    // Nodes don't need to have the same attributes.
+    ImmutableSet<Map<String, Object>> rawNodes =
+        ImmutableSet.of(
+            ImmutableMap.of("buck.base_path", "foo", "name", "a", "srcs", ImmutableList.of("A")),
+            ImmutableMap.of("buck.base_path", "foo", "name", "b", "visibility", "PUBLIC"));
+    state.putRawNodesIfNotPresentAndStripMetaEntries(
+        buildFile,
+        rawNodes,
+        ImmutableSet.of(include),
+        ImmutableMap.of("HOME", Optional.of("/home"), "UNSET", Optional.empty()));
+
+    ParserStateSnapshot.Writer writer = new ParserStateSnapshot.Writer();
+    writer.startCell("");
+    state.writeTo(writer);
+    Path path = tmp.getRoot().resolve("snapshot");
+    writer.writeTo(path);
+
+    DaemonicCellState restored =
+        DaemonicCellState.readFrom(ParserStateSnapshot.load(path).readCell(""), cell, 1);
+    assertEquals(Optional.of(rawNodes), restored.lookupRawNodes(buildFile));
+    assertEquals(Optional.empty(), restored.invalidateIfEnvHasChanged(cell, buildFile));
+
+    // Dependents survive as well.
+    assertEquals(2, restored.invalidatePath(include));
+    assertEquals(Optional.empty(), restored.lookupRawNodes(buildFile));
+  }
+
+  @Test
+  public void restoredSnapshotsReplaceLoadedCellStates() throws Exception {
+    FakeProjectFilesystem filesystem = new FakeProjectFilesystem();
+    Cell cell =
+        new TestCellBuilder()
+            .setFilesystem(filesystem)
+            .setBuckConfig(
+                FakeBuckConfig.builder()
+                    .setFilesystem(filesystem)
+                    .setEnvironment(ImmutableMap.of("HOME", "/home"))
+                    .build())
+            .build();
+    Path buildFile = cell.getRoot().resolve("foo/BUCK");
+    ImmutableSet<Map<String, Object>> snapshotNodes =
+        ImmutableSet.of(ImmutableMap.of("buck.base_path", "foo", "name", "snapshot"));
+    ImmutableSet<Map<String, Object>> loadedNodes =
+        ImmutableSet.of(ImmutableMap.of("buck.base_path", "foo", "name", "loaded"));
+
+    DaemonicParserState snapshotState = createParserState();
+    snapshotState.getRawNodeCache().putComputedNodeIfNotPresent(cell, buildFile, snapshotNodes);
+    Path path = tmp.getRoot().resolve("snapshot");
+    snapshotState.writeSnapshot(cell, path);
+
+    DaemonicParserState state = createParserState();
+    state.getRawNodeCache().putComputedNodeIfNotPresent(cell, buildFile, loadedNodes);
+    state.restoreSnapshot(ParserStateSnapshot.load(path), cell);
+    assertEquals(
+        Optional.of(snapshotNodes), state.getRawNodeCache().lookupComputedNode(cell, buildFile));
+  }
+
+  private static DaemonicParserState createParserState() {
+    return new DaemonicParserState(
+        new BroadcastEventListener(), new DefaultTypeCoercerFactory(), 1, false);
+  }
+}
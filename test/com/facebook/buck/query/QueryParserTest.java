@@ -21,7 +21,9 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.query.QueryEnvironment.Argument;
 import com.facebook.buck.testutil.TemporaryPaths;
@@ -77,6 +79,15 @@ public class QueryParserTest {
     assertThat(result, is(equalTo(testsofExpr)));
   }
 
+  @Test
+  public void usesFunctionFindsNestedCalls() throws Exception {
+    QueryExpression result =
+        QueryParser.parse("testsof(deps(set('//foo:bar' //other:lib)))", queryEnvironment);
+    assertTrue(result.usesFunction("deps"));
+    assertTrue(result.usesFunction("testsof"));
+    assertFalse(result.usesFunction("rdeps"));
+  }
+
   @Test
   public void shouldThrowExceptionWhenUnexpetedComma() throws QueryException {
     String query = "testsof(deps(set('//foo:bar', //other:lib)))";
@@ -22,6 +22,8 @@ import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetFactory;
 import com.facebook.buck.rules.FakeTargetNodeBuilder.FakeDescription;
@@ -38,12 +40,14 @@ import org.junit.rules.ExpectedException;
 public class ActionGraphNodeCacheTest {
   @Rule public ExpectedException expectedException = ExpectedException.none();
 
+  private BuckEventBus eventBus;
   private ActionGraphNodeCache cache;
   private TargetGraph targetGraph;
   private BuildRuleResolver ruleResolver;
 
   @Before
   public void setUp() {
+    eventBus = BuckEventBusForTests.newInstance();
     cache = new ActionGraphNodeCache(100);
   }
 
@@ -52,7 +56,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> node = createTargetNode("test1");
     setUpTargetGraphAndResolver(node);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(node);
     cache.finishTargetGraphWalk();
 
@@ -65,7 +69,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> node = createUncacheableTargetNode("test1");
     setUpTargetGraphAndResolver(node);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(node);
     cache.finishTargetGraphWalk();
 
@@ -79,7 +83,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> parentNode = createTargetNode("parent", childNode);
     setUpTargetGraphAndResolver(parentNode, childNode);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(childNode);
     cache.requireRule(parentNode);
     cache.finishTargetGraphWalk();
@@ -99,7 +103,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> node3 = createTargetNode("test3");
     setUpTargetGraphAndResolver(node1, node2, node3);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(node1);
     cache.requireRule(node2);
     cache.requireRule(node3);
@@ -115,7 +119,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> originalNode = createTargetNode("test1");
     setUpTargetGraphAndResolver(originalNode);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     BuildRule originalBuildRule = cache.requireRule(originalNode);
     cache.finishTargetGraphWalk();
 
@@ -123,7 +127,7 @@ public class ActionGraphNodeCacheTest {
     assertEquals(originalNode, newNode);
     setUpTargetGraphAndResolver(newNode);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     BuildRule newBuildRule = cache.requireRule(newNode);
     cache.finishTargetGraphWalk();
 
@@ -137,7 +141,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> originalNode = createTargetNode("test1");
     setUpTargetGraphAndResolver(originalNode);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     BuildRule originalBuildRule = cache.requireRule(originalNode);
     cache.finishTargetGraphWalk();
 
@@ -145,7 +149,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> newNode = createTargetNode("test1", depNode);
     setUpTargetGraphAndResolver(newNode, depNode);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     BuildRule newBuildRule = cache.requireRule(newNode);
     cache.finishTargetGraphWalk();
 
@@ -161,7 +165,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> originalParentNode2 = createTargetNode("parent2", originalChildNode);
     setUpTargetGraphAndResolver(originalParentNode1, originalParentNode2, originalChildNode);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(originalChildNode);
     BuildRule originalParentBuildRule1 = cache.requireRule(originalParentNode1);
     BuildRule originalParentBuildRule2 = cache.requireRule(originalParentNode2);
@@ -172,7 +176,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> newParentNode2 = createTargetNode("parent2", newChildNode);
     setUpTargetGraphAndResolver(newParentNode1, newParentNode2, newChildNode);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(newChildNode);
     cache.requireRule(newParentNode1);
     cache.requireRule(newParentNode2);
@@ -184,6 +188,38 @@ public class ActionGraphNodeCacheTest {
     assertNotSame(originalParentBuildRule2, ruleResolver.getRule(newParentNode2.getBuildTarget()));
   }
 
+  @Test
+  public void buildRuleForPreviousVersionOfTargetLoadedFromCache() {
+    TargetNode<?, ?> childNode1 = createTargetNode("child1");
+    TargetNode<?, ?> childNode2 = createTargetNode("child2");
+    TargetNode<?, ?> originalParentNode = createTargetNode("parent", childNode1);
+    setUpTargetGraphAndResolver(originalParentNode, childNode1);
+
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
+    cache.requireRule(childNode1);
+    BuildRule originalParentRule = cache.requireRule(originalParentNode);
+    cache.finishTargetGraphWalk();
+
+    TargetNode<?, ?> newParentNode = createTargetNode("parent", childNode2);
+    setUpTargetGraphAndResolver(newParentNode, childNode2);
+
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
+    cache.requireRule(childNode2);
+    BuildRule newParentRule = cache.requireRule(newParentNode);
+    cache.finishTargetGraphWalk();
+
+    assertNotSame(originalParentRule, newParentRule);
+
+    setUpTargetGraphAndResolver(originalParentNode, childNode1);
+
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
+    assertTrue(cache.containsKey(originalParentNode));
+    cache.requireRule(originalParentNode);
+    cache.finishTargetGraphWalk();
+
+    assertSame(originalParentRule, ruleResolver.getRule(originalParentNode.getBuildTarget()));
+  }
+
   @Test
   public void buildRuleSubtreeForCachedTargetAddedToResolver() {
     FakeCacheableBuildRule buildRuleDep1 = new FakeCacheableBuildRule("test1#flav1");
@@ -193,12 +229,12 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> node = createTargetNode(buildRule);
     setUpTargetGraphAndResolver(node);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(node);
     cache.finishTargetGraphWalk();
 
     BuildRuleResolver newRuleResolver = createBuildRuleResolver(targetGraph);
-    cache.prepareForTargetGraphWalk(targetGraph, newRuleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, newRuleResolver);
     cache.requireRule(node);
     cache.finishTargetGraphWalk();
 
@@ -215,7 +251,7 @@ public class ActionGraphNodeCacheTest {
         createTargetNode("parent", originalChildNode1, originalChildNode2);
     setUpTargetGraphAndResolver(originalParentNode, originalChildNode1, originalChildNode2);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     BuildRule originalChildRule1 = cache.requireRule(originalChildNode1);
     BuildRule originalChildRule2 = cache.requireRule(originalChildNode2);
     BuildRule originalParentRule = cache.requireRule(originalParentNode);
@@ -226,7 +262,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> newParentNode = createTargetNode("parent", newChildNode1, newChildNode2);
     setUpTargetGraphAndResolver(newParentNode, newChildNode1, newChildNode2);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(newChildNode1);
     cache.requireRule(newChildNode2);
     cache.requireRule(newParentNode);
@@ -250,7 +286,7 @@ public class ActionGraphNodeCacheTest {
         createTargetNode("parent", originalChildNode1, originalChildNode2);
     setUpTargetGraphAndResolver(originalParentNode, originalChildNode1, originalChildNode2);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     BuildRule originalChildRule1 = cache.requireRule(originalChildNode1);
     BuildRule originalChildRule2 = cache.requireRule(originalChildNode2);
     BuildRule originalParentRule = cache.requireRule(originalParentNode);
@@ -261,7 +297,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> newParentNode = createTargetNode("parent", newChildNode1, newChildNode2);
     setUpTargetGraphAndResolver(newParentNode, newChildNode1, newChildNode2);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(newChildNode1);
     cache.requireRule(newChildNode2);
     cache.requireRule(newParentNode);
@@ -286,7 +322,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> parentNode = createTargetNode("parent", childNode1, childNode2);
     setUpTargetGraphAndResolver(parentNode, childNode1, childNode2);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(childNode1);
     cache.requireRule(childNode2);
     cache.requireRule(parentNode);
@@ -296,7 +332,7 @@ public class ActionGraphNodeCacheTest {
     assertTrue(cache.containsKey(childNode2));
     assertTrue(cache.containsKey(parentNode));
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.finishTargetGraphWalk();
 
     assertFalse(cache.containsKey(parentNode));
@@ -317,7 +353,7 @@ public class ActionGraphNodeCacheTest {
     setUpTargetGraphAndResolver(
         parentNode, declaredChildNode, extraChildNode, targetGraphOnlyChildNode);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(declaredChildNode);
     cache.requireRule(extraChildNode);
     cache.requireRule(targetGraphOnlyChildNode);
@@ -328,7 +364,7 @@ public class ActionGraphNodeCacheTest {
     setUpTargetGraphAndResolver(
         parentNode, declaredChildNode, extraChildNode, targetGraphOnlyChildNode);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(parentNode);
     cache.finishTargetGraphWalk();
 
@@ -345,7 +381,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> originalNode = createTargetNode(parentBuildRule);
     setUpTargetGraphAndResolver(originalNode);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     ruleResolver.addToIndex(childBuildRule);
     cache.requireRule(originalNode);
     cache.finishTargetGraphWalk();
@@ -354,7 +390,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> newNode = createTargetNode(newParentBuildRule);
     setUpTargetGraphAndResolver(newNode);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(newNode);
     cache.finishTargetGraphWalk();
 
@@ -374,12 +410,12 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> node = createTargetNode(buildRule);
     setUpTargetGraphAndResolver(node);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(node);
     cache.finishTargetGraphWalk();
 
     BuildRuleResolver newRuleResolver = createBuildRuleResolver(targetGraph);
-    cache.prepareForTargetGraphWalk(targetGraph, newRuleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, newRuleResolver);
     cache.requireRule(node);
     cache.finishTargetGraphWalk();
 
@@ -398,13 +434,13 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> node2 = createTargetNode("test2");
     setUpTargetGraphAndResolver(node1, node2);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(node1);
     cache.requireRule(node2);
     cache.finishTargetGraphWalk();
 
     BuildRuleResolver newRuleResolver = createBuildRuleResolver(targetGraph);
-    cache.prepareForTargetGraphWalk(targetGraph, newRuleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, newRuleResolver);
     cache.requireRule(node2);
     cache.finishTargetGraphWalk();
 
@@ -420,14 +456,14 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> node = createTargetNode("node");
     setUpTargetGraphAndResolver(node);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(node);
     cache.finishTargetGraphWalk();
 
     BuildRuleResolver oldRuleResolver = ruleResolver;
     setUpTargetGraphAndResolver(node);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(node);
     cache.finishTargetGraphWalk();
 
@@ -442,7 +478,7 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> node1 = createTargetNode(parentBuildRule);
     setUpTargetGraphAndResolver(node1);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(node1);
     ruleResolver.addToIndex(childBuildRule);
     cache.finishTargetGraphWalk();
@@ -450,12 +486,12 @@ public class ActionGraphNodeCacheTest {
     TargetNode<?, ?> node2 = createTargetNode("test2");
     setUpTargetGraphAndResolver(node2);
 
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(node2);
     cache.finishTargetGraphWalk();
 
     setUpTargetGraphAndResolver(node1);
-    cache.prepareForTargetGraphWalk(targetGraph, ruleResolver);
+    cache.prepareForTargetGraphWalk(eventBus, targetGraph, ruleResolver);
     cache.requireRule(node1);
     cache.finishTargetGraphWalk();
 
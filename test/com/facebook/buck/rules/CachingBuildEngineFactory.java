@@ -16,6 +16,7 @@
 
 package com.facebook.buck.rules;
 
+import com.facebook.buck.artifact_cache.config.ArtifactCodec;
 import com.facebook.buck.rules.keys.DefaultRuleKeyCache;
 import com.facebook.buck.rules.keys.RuleKeyDiagnostics;
 import com.facebook.buck.rules.keys.RuleKeyFactories;
@@ -39,6 +40,11 @@ public class CachingBuildEngineFactory {
   private CachingBuildEngine.DepFiles depFiles = CachingBuildEngine.DepFiles.ENABLED;
   private long maxDepFileCacheEntries = 256L;
   private Optional<Long> artifactCacheSizeLimit = Optional.empty();
+  private int artifactFetchBatchSize = 0;
+  private CachingBuildEngine.SchedulingMode schedulingMode = CachingBuildEngine.SchedulingMode.FIFO;
+  private CachingBuildEngine.MaterializationMode materializationMode =
+      CachingBuildEngine.MaterializationMode.EAGER;
+  private Optional<LazyOutputStorage> lazyOutputStorage = Optional.empty();
   private long inputFileSizeLimit = Long.MAX_VALUE;
   private Optional<RuleKeyFactories> ruleKeyFactories = Optional.empty();
   private CachingBuildEngineDelegate cachingBuildEngineDelegate;
@@ -83,6 +89,28 @@ public class CachingBuildEngineFactory {
     return this;
   }
 
+  public CachingBuildEngineFactory setArtifactFetchBatchSize(int artifactFetchBatchSize) {
+    this.artifactFetchBatchSize = artifactFetchBatchSize;
+    return this;
+  }
+
+  public CachingBuildEngineFactory setSchedulingMode(
+      CachingBuildEngine.SchedulingMode schedulingMode) {
+    this.schedulingMode = schedulingMode;
+    return this;
+  }
+
+  public CachingBuildEngineFactory setMaterializationMode(
+      CachingBuildEngine.MaterializationMode materializationMode) {
+    this.materializationMode = materializationMode;
+    return this;
+  }
+
+  public CachingBuildEngineFactory setLazyOutputStorage(LazyOutputStorage lazyOutputStorage) {
+    this.lazyOutputStorage = Optional.of(lazyOutputStorage);
+    return this;
+  }
+
   public CachingBuildEngineFactory setCachingBuildEngineDelegate(
       CachingBuildEngineDelegate cachingBuildEngineDelegate) {
     this.cachingBuildEngineDelegate = cachingBuildEngineDelegate;
@@ -136,6 +164,12 @@ public class CachingBuildEngineFactory {
           depFiles,
           maxDepFileCacheEntries,
           artifactCacheSizeLimit,
+          artifactFetchBatchSize,
+          ArtifactCodec.ZIP,
+          schedulingMode,
+          Optional.empty(),
+          materializationMode,
+          lazyOutputStorage,
           buildRuleResolver,
           buildInfoStoreManager,
           ruleFinder,
@@ -157,6 +191,12 @@ public class CachingBuildEngineFactory {
         depFiles,
         maxDepFileCacheEntries,
         artifactCacheSizeLimit,
+        artifactFetchBatchSize,
+        ArtifactCodec.ZIP,
+        schedulingMode,
+        Optional.empty(),
+        materializationMode,
+        lazyOutputStorage,
         buildRuleResolver,
         ruleFinder,
         sourcePathResolver,
@@ -35,6 +35,7 @@ import static org.junit.Assert.fail;
 
 import com.facebook.buck.artifact_cache.ArtifactCache;
 import com.facebook.buck.artifact_cache.ArtifactInfo;
+import com.facebook.buck.artifact_cache.ArtifactPayloadConsumer;
 import com.facebook.buck.artifact_cache.CacheDeleteResult;
 import com.facebook.buck.artifact_cache.CacheResult;
 import com.facebook.buck.artifact_cache.CacheResultType;
@@ -82,6 +83,7 @@ import com.facebook.buck.step.StepExecutionResult;
 import com.facebook.buck.step.StepExecutionResults;
 import com.facebook.buck.step.StepFailedException;
 import com.facebook.buck.step.TestExecutionContext;
+import com.facebook.buck.step.fs.CopyStep;
 import com.facebook.buck.step.fs.WriteFileStep;
 import com.facebook.buck.testutil.DummyFileHashCache;
 import com.facebook.buck.testutil.FakeFileHashCache;
@@ -120,6 +122,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.AbstractListeningExecutorService;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -130,6 +133,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -143,6 +147,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.concurrent.Exchanger;
 import java.util.concurrent.ExecutionException;
@@ -506,8 +511,10 @@ public class CachingBuildEngineTest {
               metadataDirectory.resolve(BuildInfo.MetadataKey.OUTPUT_HASH),
               HashCode.fromInt(123).toString());
       expect(
-              artifactCache.fetchAsync(
-                  eq(defaultRuleKeyFactory.build(buildRule)), isA(LazyPath.class)))
+              artifactCache.fetchStreamingAsync(
+                  eq(defaultRuleKeyFactory.build(buildRule)),
+                  isA(LazyPath.class),
+                  isA(ArtifactPayloadConsumer.class)))
           .andDelegateTo(new FakeArtifactCacheThatWritesAZipFile(desiredZipEntries, metadata));
 
       BuildEngineBuildContext buildContext =
@@ -595,8 +602,10 @@ public class CachingBuildEngineTest {
               Paths.get("buck-out/gen/src/com/facebook/orca/orca.jar"),
               "Imagine this is the contents of a valid JAR file.");
       expect(
-              artifactCache.fetchAsync(
-                  eq(defaultRuleKeyFactory.build(buildRule)), isA(LazyPath.class)))
+              artifactCache.fetchStreamingAsync(
+                  eq(defaultRuleKeyFactory.build(buildRule)),
+                  isA(LazyPath.class),
+                  isA(ArtifactPayloadConsumer.class)))
           .andDelegateTo(new FakeArtifactCacheThatWritesAZipFile(desiredZipEntries, metadata));
 
       BuildEngineBuildContext buildContext =
@@ -3223,6 +3232,451 @@ public class CachingBuildEngineTest {
     }
   }
 
+  public static class LazyOutputTests extends CommonFixture {
+
+    private RecordingLazyOutputStorage storage;
+
+    public LazyOutputTests(CachingBuildEngine.MetadataStorage metadataStorage) throws IOException {
+      super(metadataStorage);
+    }
+
+    @Before
+    public void setUpLazyOutputFixture() {
+      storage =
+          new RecordingLazyOutputStorage(
+              LocalLazyOutputStorage.createLocal(filesystem, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void storedOutputsMatchTheLocalRuleKey() throws Exception {
+      FakeBuildRule dep = createRuleWithOutput("//:dep");
+      fetchLazilyAsDepOfInputBasedRule(dep);
+
+      // The stored outputs are written when the dep becomes a top-level rule.
+      try (CachingBuildEngine cachingBuildEngine = createLazyEngine(storage)) {
+        assertThat(
+            getSuccess(build(cachingBuildEngine, dep)),
+            equalTo(BuildRuleSuccessType.MATCHING_RULE_KEY));
+      }
+      assertThat(filesystem.readFileIfItExists(getOutput(dep)), equalTo(Optional.of("//:dep")));
+    }
+
+    @Test
+    public void evictedOutputsAreFetchedAgain() throws Exception {
+      FakeBuildRule dep = createRuleWithOutput("//:dep");
+      fetchLazilyAsDepOfInputBasedRule(dep);
+
+      // A build with a smaller storage evicts the artifact of the dep when it stores another one.
+      FakeBuildRule other = createRuleWithOutput("//:other");
+      storeArtifact(other, defaultRuleKeyFactory.build(other));
+      try (CachingBuildEngine cachingBuildEngine =
+          createLazyEngine(LocalLazyOutputStorage.createLocal(filesystem, 1))) {
+        assertThat(
+            getSuccess(build(cachingBuildEngine, other)),
+            equalTo(BuildRuleSuccessType.FETCHED_FROM_CACHE));
+        assertThat(
+            getSuccess(build(cachingBuildEngine, dep)),
+            equalTo(BuildRuleSuccessType.FETCHED_FROM_CACHE));
+      }
+      assertThat(filesystem.readFileIfItExists(getOutput(dep)), equalTo(Optional.of("//:dep")));
+    }
+
+    @Test
+    public void depOutputsAreMaterializedBeforeBuildingLocally() throws Exception {
+      FakeBuildRule dep = createRuleWithOutput("//:dep");
+      storeArtifact(dep, defaultRuleKeyFactory.build(dep));
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      Path output = BuildTargets.getGenPath(filesystem, target, "%s/output");
+      filesystem.mkdirs(output.getParent());
+      BuildRule rule =
+          new RuleWithSteps(
+              target,
+              filesystem,
+              TestBuildRuleParams.create().withDeclaredDeps(ImmutableSortedSet.of(dep)),
+              ImmutableList.of(CopyStep.forFile(filesystem, getOutput(dep), output)),
+              output);
+
+      try (CachingBuildEngine cachingBuildEngine = createLazyEngine(storage)) {
+        assertThat(
+            getSuccess(build(cachingBuildEngine, rule)),
+            equalTo(BuildRuleSuccessType.BUILT_LOCALLY));
+      }
+      assertThat(storage.getMaterializedPaths(), hasItem(getOutput(dep)));
+      assertThat(filesystem.readFileIfItExists(output), equalTo(Optional.of("//:dep")));
+    }
+
+    @Test
+    public void depOutputsAreMaterializedBeforeCheckingDepFiles() throws Exception {
+      FakeBuildRule dep = createRuleWithOutput("//:dep");
+      storeArtifact(dep, defaultRuleKeyFactory.build(dep));
+      BuildRule rule = createDepFileRule(dep);
+      RuleKey depFileRuleKey = new RuleKey("aaaa");
+      ExistenceRecordingDepFileRuleKeyFactory depFileFactory =
+          new ExistenceRecordingDepFileRuleKeyFactory(
+              filesystem,
+              getOutput(dep),
+              new FakeRuleKeyFactory(ImmutableMap.of(rule.getBuildTarget(), depFileRuleKey)));
+
+      // Prepopulate the dep file rule key and dep file of a previous build.
+      BuildInfoRecorder recorder = createBuildInfoRecorder(rule.getBuildTarget());
+      recorder.addBuildMetadata(BuildInfo.MetadataKey.DEP_FILE_RULE_KEY, depFileRuleKey.toString());
+      recorder.addMetadata(
+          BuildInfo.MetadataKey.DEP_FILE,
+          ImmutableList.of(fileToDepFileEntryString(getOutput(dep))));
+      recorder.addMetadata(BuildInfo.MetadataKey.RECORDED_PATHS, ImmutableList.of());
+      recorder.writeMetadataToDisk(true);
+
+      try (CachingBuildEngine cachingBuildEngine =
+          createLazyEngineFactory(storage)
+              .setDepFiles(CachingBuildEngine.DepFiles.ENABLED)
+              .setRuleKeyFactories(
+                  RuleKeyFactories.of(
+                      defaultRuleKeyFactory, inputBasedRuleKeyFactory, depFileFactory))
+              .build()) {
+        assertThat(
+            getSuccess(build(cachingBuildEngine, rule)),
+            equalTo(BuildRuleSuccessType.MATCHING_DEP_FILE_RULE_KEY));
+      }
+      assertThat(depFileFactory.getDepFileKeyInputsExisted(), equalTo(ImmutableList.of(true)));
+    }
+
+    @Test
+    public void depOutputsAreMaterializedBeforeCheckingManifests() throws Exception {
+      FakeBuildRule dep = createRuleWithOutput("//:dep");
+      storeArtifact(dep, defaultRuleKeyFactory.build(dep));
+      BuildRule rule = createDepFileRule(dep);
+      ExistenceRecordingDepFileRuleKeyFactory depFileFactory =
+          new ExistenceRecordingDepFileRuleKeyFactory(
+              filesystem,
+              getOutput(dep),
+              new FakeRuleKeyFactory(
+                  ImmutableMap.of(rule.getBuildTarget(), new RuleKey("aaaa"))));
+
+      try (CachingBuildEngine cachingBuildEngine =
+          createLazyEngineFactory(storage)
+              .setDepFiles(CachingBuildEngine.DepFiles.CACHE)
+              .setRuleKeyFactories(
+                  RuleKeyFactories.of(
+                      defaultRuleKeyFactory, inputBasedRuleKeyFactory, depFileFactory))
+              .build()) {
+        assertThat(
+            getSuccess(build(cachingBuildEngine, rule)),
+            equalTo(BuildRuleSuccessType.BUILT_LOCALLY));
+      }
+      assertThat(depFileFactory.getManifestKeyInputsExisted(), hasItem(true));
+      assertThat(depFileFactory.getManifestKeyInputsExisted(), Matchers.not(hasItem(false)));
+    }
+
+    @Test
+    public void topLevelRulesAndTheirRuntimeDepsAreMaterialized() throws Exception {
+      FakeBuildRule runtimeDep = createRuleWithOutput("//:runtime_dep");
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      FakeBuildRule rule = new FakeHasRuntimeDeps(target, filesystem, runtimeDep);
+      rule.setOutputFile(BuildTargets.getGenPath(filesystem, target, "%s/output").toString());
+      resolver.addToIndex(rule);
+      storeArtifact(runtimeDep, defaultRuleKeyFactory.build(runtimeDep));
+      storeArtifact(rule, defaultRuleKeyFactory.build(rule));
+
+      try (CachingBuildEngine cachingBuildEngine = createLazyEngine(storage)) {
+        assertThat(
+            getSuccess(build(cachingBuildEngine, rule)),
+            equalTo(BuildRuleSuccessType.FETCHED_FROM_CACHE));
+      }
+      assertThat(
+          storage.getMaterializedPaths(),
+          equalTo(ImmutableSet.of(getOutput(rule), getOutput(runtimeDep))));
+      assertThat(filesystem.readFileIfItExists(getOutput(rule)), equalTo(Optional.of("//:rule")));
+      assertThat(
+          filesystem.readFileIfItExists(getOutput(runtimeDep)),
+          equalTo(Optional.of("//:runtime_dep")));
+    }
+
+    @Test
+    public void seededHashesKeepInputBasedRuleKeysOfDependents() throws Exception {
+      FakeBuildRule dep = createRuleWithOutput("//:dep");
+      storeArtifact(dep, defaultRuleKeyFactory.build(dep));
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      Path output = BuildTargets.getGenPath(filesystem, target, "%s/output");
+      filesystem.mkdirs(output.getParent());
+      BuildRule rule =
+          new InputRuleKeyBuildRule(
+              target,
+              filesystem,
+              TestBuildRuleParams.create().withDeclaredDeps(ImmutableSortedSet.of(dep))) {
+            @AddToRuleKey private final SourcePath input = dep.getSourcePathToOutput();
+
+            @Override
+            public ImmutableList<Step> getBuildSteps(
+                BuildContext context, BuildableContext buildableContext) {
+              return ImmutableList.of(
+                  new WriteFileStep(filesystem, "", output, /* executable */ false));
+            }
+
+            @Override
+            public SourcePath getSourcePathToOutput() {
+              return ExplicitBuildTargetSourcePath.of(getBuildTarget(), output);
+            }
+          };
+
+      // The input-based rule key is calculated from the hashes of the fetched artifact before the
+      // output of the dep is written for the local build.
+      try (CachingBuildEngine cachingBuildEngine = createLazyEngine(storage)) {
+        assertThat(
+            getSuccess(build(cachingBuildEngine, rule)),
+            equalTo(BuildRuleSuccessType.BUILT_LOCALLY));
+      }
+      assertThat(storage.getMaterializedPaths(), hasItem(getOutput(dep)));
+
+      // It has to match the key calculated by hashing the written output.
+      InputBasedRuleKeyFactory eagerInputBasedRuleKeyFactory =
+          new TestInputBasedRuleKeyFactory(
+              FIELD_LOADER,
+              StackedFileHashCache.createDefaultHashCaches(filesystem, FileHashCacheMode.DEFAULT),
+              pathResolver,
+              ruleFinder,
+              NO_INPUT_FILE_SIZE_LIMIT);
+      OnDiskBuildInfo onDiskBuildInfo =
+          buildContext.createOnDiskBuildInfoFor(target, filesystem, buildInfoStore);
+      assertThat(
+          onDiskBuildInfo.getRuleKey(BuildInfo.MetadataKey.INPUT_BASED_RULE_KEY),
+          equalTo(Optional.of(eagerInputBasedRuleKeyFactory.build(rule))));
+    }
+
+    /**
+     * Builds an input-based rule depending on the given rule from the cache, which only fetches
+     * the dep to calculate the input-based rule key, so its outputs are stored and not written.
+     */
+    private void fetchLazilyAsDepOfInputBasedRule(FakeBuildRule dep) throws Exception {
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      FakeBuildRule rule =
+          new FakeInputBasedBuildRule(
+              target,
+              filesystem,
+              TestBuildRuleParams.create().withDeclaredDeps(ImmutableSortedSet.of(dep)));
+      rule.setOutputFile(BuildTargets.getGenPath(filesystem, target, "%s/output").toString());
+      resolver.addToIndex(rule);
+      RuleKey inputRuleKey = new RuleKey("aaaa");
+      storeArtifact(dep, defaultRuleKeyFactory.build(dep));
+      storeArtifact(rule, inputRuleKey);
+
+      try (CachingBuildEngine cachingBuildEngine =
+          createLazyEngineFactory(storage)
+              .setRuleKeyFactories(
+                  RuleKeyFactories.of(
+                      defaultRuleKeyFactory,
+                      new FakeRuleKeyFactory(ImmutableMap.of(target, inputRuleKey)),
+                      NOOP_DEP_FILE_RULE_KEY_FACTORY))
+              .build()) {
+        assertThat(
+            getSuccess(build(cachingBuildEngine, rule)),
+            equalTo(BuildRuleSuccessType.FETCHED_FROM_CACHE_INPUT_BASED));
+        assertThat(
+            getSuccess(cachingBuildEngine.getBuildRuleResult(dep.getBuildTarget())),
+            equalTo(BuildRuleSuccessType.FETCHED_FROM_CACHE));
+      }
+      assertFalse(filesystem.exists(getOutput(dep)));
+    }
+
+    private DepFileBuildRule createDepFileRule(BuildRule dep) throws IOException {
+      BuildTarget target = BuildTargetFactory.newInstance("//:rule");
+      Path output = BuildTargets.getGenPath(filesystem, target, "%s/output");
+      filesystem.mkdirs(output.getParent());
+      return new DepFileBuildRule(
+          target,
+          filesystem,
+          TestBuildRuleParams.create().withDeclaredDeps(ImmutableSortedSet.of(dep))) {
+        @AddToRuleKey private final SourcePath input = dep.getSourcePathToOutput();
+
+        @Override
+        public ImmutableList<Step> getBuildSteps(
+            BuildContext context, BuildableContext buildableContext) {
+          return ImmutableList.of(
+              new WriteFileStep(filesystem, "", output, /* executable */ false));
+        }
+
+        @Override
+        public Predicate<SourcePath> getCoveredByDepFilePredicate(
+            SourcePathResolver pathResolver) {
+          return (SourcePath path) -> true;
+        }
+
+        @Override
+        public Predicate<SourcePath> getExistenceOfInterestPredicate(
+            SourcePathResolver pathResolver) {
+          return (SourcePath path) -> false;
+        }
+
+        @Override
+        public ImmutableList<SourcePath> getInputsAfterBuildingLocally(
+            BuildContext context, CellPathResolver cellPathResolver) {
+          return ImmutableList.of(input);
+        }
+
+        @Override
+        public SourcePath getSourcePathToOutput() {
+          return ExplicitBuildTargetSourcePath.of(getBuildTarget(), output);
+        }
+      };
+    }
+
+    private FakeBuildRule createRuleWithOutput(String name) {
+      BuildTarget target = BuildTargetFactory.newInstance(name);
+      FakeBuildRule rule = new FakeBuildRule(target, filesystem);
+      rule.setOutputFile(BuildTargets.getGenPath(filesystem, target, "%s/output").toString());
+      resolver.addToIndex(rule);
+      return rule;
+    }
+
+    private Path getOutput(BuildRule rule) {
+      return pathResolver.getRelativePath(Preconditions.checkNotNull(rule.getSourcePathToOutput()));
+    }
+
+    /**
+     * Stores an artifact under the given key with the output of the rule, which contains the name
+     * of the rule, and the hash of the output.
+     */
+    private void storeArtifact(BuildRule rule, RuleKey ruleKey) throws IOException {
+      BuildTarget target = rule.getBuildTarget();
+      Path output = getOutput(rule);
+      String contents = target.getFullyQualifiedName();
+      HashCode hash = Hashing.sha1().hashString(contents, StandardCharsets.UTF_8);
+      Path metadataDirectory = BuildInfo.getPathToArtifactMetadataDirectory(target, filesystem);
+      Path artifact = tmp.newFile();
+      writeEntriesToZip(
+          artifact,
+          ImmutableMap.of(
+              output,
+              contents,
+              metadataDirectory.resolve(BuildInfo.MetadataKey.RECORDED_PATHS),
+              ObjectMappers.WRITER.writeValueAsString(ImmutableList.of(output.toString())),
+              metadataDirectory.resolve(BuildInfo.MetadataKey.RECORDED_PATH_HASHES),
+              ObjectMappers.WRITER.writeValueAsString(
+                  ImmutableMap.of(output.toString(), hash.toString())),
+              metadataDirectory.resolve(BuildInfo.MetadataKey.OUTPUT_SIZE),
+              String.valueOf(contents.length()),
+              metadataDirectory.resolve(BuildInfo.MetadataKey.OUTPUT_HASH),
+              hash.toString()),
+          ImmutableList.of(metadataDirectory));
+      cache.store(
+          ArtifactInfo.builder()
+              .addRuleKeys(ruleKey)
+              .putMetadata(BuildInfo.MetadataKey.BUILD_ID, buildContext.getBuildId().toString())
+              .putMetadata(
+                  BuildInfo.MetadataKey.ORIGIN_BUILD_ID, buildContext.getBuildId().toString())
+              .putMetadata(
+                  BuildInfo.MetadataKey.RULE_KEY, defaultRuleKeyFactory.build(rule).toString())
+              .build(),
+          BorrowablePath.notBorrowablePath(artifact));
+    }
+
+    private CachingBuildEngineFactory createLazyEngineFactory(LazyOutputStorage storage) {
+      return cachingBuildEngineFactory()
+          .setMaterializationMode(CachingBuildEngine.MaterializationMode.LAZY)
+          .setLazyOutputStorage(storage)
+          .setRuleKeyFactories(
+              RuleKeyFactories.of(
+                  defaultRuleKeyFactory, inputBasedRuleKeyFactory, NOOP_DEP_FILE_RULE_KEY_FACTORY));
+    }
+
+    private CachingBuildEngine createLazyEngine(LazyOutputStorage storage) {
+      return createLazyEngineFactory(storage).build();
+    }
+
+    private BuildResult build(CachingBuildEngine cachingBuildEngine, BuildRule rule)
+        throws Exception {
+      return cachingBuildEngine
+          .build(buildContext, TestExecutionContext.newInstance(), rule)
+          .getResult()
+          .get();
+    }
+
+    private static class FakeInputBasedBuildRule extends FakeBuildRule
+        implements SupportsInputBasedRuleKey {
+      public FakeInputBasedBuildRule(
+          BuildTarget buildTarget,
+          ProjectFilesystem projectFilesystem,
+          BuildRuleParams buildRuleParams) {
+        super(buildTarget, projectFilesystem, buildRuleParams);
+      }
+    }
+
+    /** Records which outputs of the fetched artifacts were written. */
+    private static class RecordingLazyOutputStorage implements LazyOutputStorage {
+      private final LazyOutputStorage delegate;
+      private final Set<Path> materializedPaths = Sets.newConcurrentHashSet();
+
+      public RecordingLazyOutputStorage(LazyOutputStorage delegate) {
+        this.delegate = delegate;
+      }
+
+      public Set<Path> getMaterializedPaths() {
+        return materializedPaths;
+      }
+
+      @Override
+      public String store(Path artifact) throws IOException {
+        return delegate.store(artifact);
+      }
+
+      @Override
+      public boolean contains(String key) throws IOException {
+        return delegate.contains(key);
+      }
+
+      @Override
+      public void materialize(String key, ProjectFilesystem filesystem, Set<Path> paths)
+          throws IOException {
+        delegate.materialize(key, filesystem, paths);
+        materializedPaths.addAll(paths);
+      }
+
+      @Override
+      public void remove(String key) throws IOException {
+        delegate.remove(key);
+      }
+    }
+
+    /** Records whether an input existed whenever a dep file or manifest key was calculated. */
+    private static class ExistenceRecordingDepFileRuleKeyFactory
+        implements DependencyFileRuleKeyFactory {
+      private final ProjectFilesystem filesystem;
+      private final Path input;
+      private final DependencyFileRuleKeyFactory delegate;
+      private final List<Boolean> depFileKeyInputsExisted = new ArrayList<>();
+      private final List<Boolean> manifestKeyInputsExisted = new ArrayList<>();
+
+      public ExistenceRecordingDepFileRuleKeyFactory(
+          ProjectFilesystem filesystem, Path input, DependencyFileRuleKeyFactory delegate) {
+        this.filesystem = filesystem;
+        this.input = input;
+        this.delegate = delegate;
+      }
+
+      public synchronized ImmutableList<Boolean> getDepFileKeyInputsExisted() {
+        return ImmutableList.copyOf(depFileKeyInputsExisted);
+      }
+
+      public synchronized ImmutableList<Boolean> getManifestKeyInputsExisted() {
+        return ImmutableList.copyOf(manifestKeyInputsExisted);
+      }
+
+      @Override
+      public synchronized RuleKeyAndInputs build(
+          SupportsDependencyFileRuleKey rule, ImmutableList<DependencyFileEntry> inputs)
+          throws IOException {
+        depFileKeyInputsExisted.add(filesystem.exists(input));
+        return delegate.build(rule, inputs);
+      }
+
+      @Override
+      public synchronized RuleKeyAndInputs buildManifestKey(SupportsDependencyFileRuleKey rule)
+          throws IOException {
+        manifestKeyInputsExisted.add(filesystem.exists(input));
+        return delegate.buildManifestKey(rule);
+      }
+    }
+  }
+
   public static class UncachableRuleTests extends CommonFixture {
     public UncachableRuleTests(CachingBuildEngine.MetadataStorage metadataStorage)
         throws IOException {
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.eventbus.Subscribe;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CriticalPathEstimatorTest {
+
+  private BuckEventBus eventBus;
+  private List<BuildEvent.CriticalPathEstimated> events = new ArrayList<>();
+
+  private BuildRule ruleA;
+  private BuildRule ruleB;
+  private BuildRule ruleC;
+  private BuildRule ruleD;
+  private BuildRule ruleE;
+  private CriticalPathEstimator estimator;
+
+  @Before
+  public void setUp() {
+    eventBus = BuckEventBusForTests.newInstance();
+    eventBus.register(
+        new Object() {
+          @Subscribe
+          public void onCriticalPathEstimated(BuildEvent.CriticalPathEstimated event) {
+            events.add(event);
+          }
+        });
+
+    // Visualisation of the action graph (rules depend on rules below them), with the estimated
+    // durations of the rules:
+    //
+    //   a:2  b:1
+    //    |  / |
+    //   c:10 d:3
+    //     \  /
+    //     e:1
+    BuildRuleResolver resolver = new TestBuildRuleResolver();
+    ruleE = resolver.addToIndex(createRule("//:e"));
+    ruleD = resolver.addToIndex(createRule("//:d", ruleE));
+    ruleC = resolver.addToIndex(createRule("//:c", ruleE));
+    ruleB = resolver.addToIndex(createRule("//:b", ruleC, ruleD));
+    ruleA = resolver.addToIndex(createRule("//:a", ruleC));
+    ImmutableMap<BuildRule, Long> durations =
+        ImmutableMap.of(ruleA, 2L, ruleB, 1L, ruleC, 10L, ruleD, 3L, ruleE, 1L);
+    estimator = new CriticalPathEstimator(new RuleDepsCache(resolver), durations::get);
+  }
+
+  @Test
+  public void remainingCriticalPathsIncludeTheLongestChainOfDependents() {
+    estimator.registerTopLevelRule(ruleA, eventBus);
+    estimator.registerTopLevelRule(ruleB, eventBus);
+
+    assertThat(estimator.getRemainingCriticalPath(ruleA), equalTo(2L));
+    assertThat(estimator.getRemainingCriticalPath(ruleB), equalTo(1L));
+    assertThat(estimator.getRemainingCriticalPath(ruleC), equalTo(12L));
+    assertThat(estimator.getRemainingCriticalPath(ruleD), equalTo(4L));
+    assertThat(estimator.getRemainingCriticalPath(ruleE), equalTo(13L));
+  }
+
+  @Test
+  public void estimatesAreUpdatedForTopLevelRulesRegisteredLater() {
+    estimator.registerTopLevelRule(ruleB, eventBus);
+    assertThat(estimator.getRemainingCriticalPath(ruleC), equalTo(11L));
+    assertThat(estimator.getRemainingCriticalPath(ruleE), equalTo(12L));
+
+    estimator.registerTopLevelRule(ruleA, eventBus);
+    assertThat(estimator.getRemainingCriticalPath(ruleA), equalTo(2L));
+    assertThat(estimator.getRemainingCriticalPath(ruleB), equalTo(1L));
+    assertThat(estimator.getRemainingCriticalPath(ruleC), equalTo(12L));
+    assertThat(estimator.getRemainingCriticalPath(ruleD), equalTo(4L));
+    assertThat(estimator.getRemainingCriticalPath(ruleE), equalTo(13L));
+  }
+
+  @Test
+  public void criticalPathIsReportedOnce() {
+    estimator.registerTopLevelRule(ruleB, eventBus);
+    estimator.getRemainingCriticalPath(ruleE);
+    estimator.registerTopLevelRule(ruleA, eventBus);
+    estimator.getRemainingCriticalPath(ruleE);
+    assertThat(events.size(), equalTo(0));
+
+    estimator.reportCriticalPath();
+    estimator.reportCriticalPath();
+    assertThat(events.size(), equalTo(1));
+    BuildEvent.CriticalPathEstimated event = events.get(0);
+    assertThat(event.getEstimatedLength(), equalTo(13L));
+    assertThat(
+        event.getCriticalPath(),
+        contains(ruleE.getBuildTarget(), ruleC.getBuildTarget(), ruleA.getBuildTarget()));
+  }
+
+  @Test
+  public void criticalPathIsNotReportedWithoutEstimates() {
+    estimator.registerTopLevelRule(ruleA, eventBus);
+    estimator.reportCriticalPath();
+
+    assertThat(events.size(), equalTo(0));
+  }
+
+  @Test
+  public void rulesOutsideOfTheBuildHaveNoCriticalPath() {
+    estimator.registerTopLevelRule(ruleD, eventBus);
+
+    assertThat(estimator.getRemainingCriticalPath(ruleE), equalTo(4L));
+    assertThat(estimator.getRemainingCriticalPath(ruleC), equalTo(0L));
+  }
+
+  private static BuildRule createRule(String buildTarget, BuildRule... deps) {
+    return new FakeBuildRule(
+        BuildTargetFactory.newInstance(buildTarget), ImmutableSortedSet.copyOf(deps));
+  }
+}
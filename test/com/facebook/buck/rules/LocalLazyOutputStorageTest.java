@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class LocalLazyOutputStorageTest {
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Path storageDir;
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() throws IOException {
+    storageDir = tmp.getRoot().resolve("__storage__");
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.newFolder("project"));
+  }
+
+  @Test
+  public void onlyTheRequestedFilesAreMaterialized() throws IOException {
+    LocalLazyOutputStorage storage = new LocalLazyOutputStorage(storageDir, Long.MAX_VALUE);
+    Path artifact = createArtifact("artifact", "out/first.txt", "out/second.txt");
+    String key = storage.store(artifact);
+    assertFalse(Files.exists(artifact));
+
+    storage.materialize(key, filesystem, ImmutableSet.of(Paths.get("out/first.txt")));
+
+    assertEquals(
+        "out/first.txt", filesystem.readFileIfItExists(Paths.get("out/first.txt")).get());
+    assertFalse(filesystem.exists(Paths.get("out/second.txt")));
+  }
+
+  @Test
+  public void artifactsUsedByTheBuildAreNotEvicted() throws IOException {
+    LocalLazyOutputStorage storage = new LocalLazyOutputStorage(storageDir, Long.MAX_VALUE);
+    String first = storage.store(createArtifact("first", "out/first.txt"));
+    String second = storage.store(createArtifact("second", "out/second.txt"));
+    long artifactSize = Files.size(storageDir.resolve(second));
+
+    // The next build only uses the second artifact.
+    storage = new LocalLazyOutputStorage(storageDir, 2 * artifactSize);
+    assertTrue(storage.contains(second));
+    String third = storage.store(createArtifact("third", "out/third.txt"));
+
+    assertFalse(storage.contains(first));
+    assertTrue(storage.contains(second));
+    assertTrue(storage.contains(third));
+    assertFalse(Files.exists(storageDir.resolve(first)));
+  }
+
+  @Test
+  public void removedArtifactsAreDeleted() throws IOException {
+    LocalLazyOutputStorage storage = new LocalLazyOutputStorage(storageDir, Long.MAX_VALUE);
+    String key = storage.store(createArtifact("artifact", "out/file.txt"));
+
+    storage.remove(key);
+
+    assertFalse(storage.contains(key));
+    assertFalse(Files.exists(storageDir.resolve(key)));
+  }
+
+  private Path createArtifact(String name, String... files) throws IOException {
+    Path artifact = tmp.newFile(name + ".zip");
+    try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(artifact))) {
+      for (String file : files) {
+        zip.putNextEntry(new ZipEntry(file));
+        zip.write(file.getBytes(Charsets.UTF_8));
+        zip.closeEntry();
+      }
+    }
+    return artifact;
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusForTests;
+import com.facebook.buck.rules.keys.RuleKeyFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ParallelRuleKeyCalculatorTest {
+
+  private final BuckEventBus eventBus = BuckEventBusForTests.newInstance();
+  private final BuildRuleResolver resolver = new TestBuildRuleResolver();
+  private final Set<BuildRule> builtRules = ConcurrentHashMap.newKeySet();
+  private final ConcurrentLinkedQueue<BuildRule> calculationScopes = new ConcurrentLinkedQueue<>();
+  private ForkJoinPool pool;
+  private ListeningExecutorService service;
+
+  /** Checks that rule keys are built once per rule, and only after the ones of all deps. */
+  private final RuleKeyFactory<String> ruleKeyFactory =
+      rule -> {
+        for (BuildRule dep : rule.getBuildDeps()) {
+          assertTrue(builtRules.contains(dep));
+        }
+        assertTrue(builtRules.add(rule));
+        return rule.getFullyQualifiedName();
+      };
+
+  @Before
+  public void setUp() {
+    pool = new ForkJoinPool(4);
+    service = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor());
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+    service.shutdownNow();
+  }
+
+  private ParallelRuleKeyCalculator<String> newCalculator() {
+    return new ParallelRuleKeyCalculator<>(
+        service,
+        ruleKeyFactory,
+        new RuleDepsCache(resolver),
+        (eventBus, rule) -> {
+          calculationScopes.add(rule);
+          return () -> {};
+        });
+  }
+
+  /** Creates layers of rules, each of which depends on a few rules of the layer below. */
+  private List<BuildRule> createLayeredGraph(int layers, int width) {
+    List<BuildRule> previousLayer = new ArrayList<>();
+    for (int layer = 0; layer < layers; layer++) {
+      List<BuildRule> currentLayer = new ArrayList<>();
+      for (int i = 0; i < width; i++) {
+        List<BuildRule> deps = new ArrayList<>();
+        for (int dep = i; dep < i + 3 && dep < previousLayer.size(); dep++) {
+          deps.add(previousLayer.get(dep));
+        }
+        currentLayer.add(
+            resolver.addToIndex(
+                new FakeBuildRule(
+                    "//layer" + layer + ":rule" + i, deps.toArray(new BuildRule[deps.size()]))));
+      }
+      previousLayer = currentLayer;
+    }
+    return previousLayer;
+  }
+
+  @Test
+  public void calculatesAllRuleKeysBottomUp() {
+    List<BuildRule> topRules = createLayeredGraph(10, 20);
+    ParallelRuleKeyCalculator<String> calculator = newCalculator();
+
+    ImmutableList<String> ruleKeys = calculator.calculateAll(eventBus, topRules, pool);
+
+    assertEquals(topRules.size(), ruleKeys.size());
+    for (int i = 0; i < topRules.size(); i++) {
+      assertEquals(topRules.get(i).getFullyQualifiedName(), ruleKeys.get(i));
+    }
+    assertEquals(200, builtRules.size());
+    assertEquals(200, calculationScopes.size());
+    assertEquals(200, calculator.getAllKnownTargets().size());
+  }
+
+  @Test
+  public void recordedRuleKeysAreNotCalculatedAgain() {
+    BuildRule leaf = resolver.addToIndex(new FakeBuildRule("//:leaf"));
+    BuildRule rule = resolver.addToIndex(new FakeBuildRule("//:rule", leaf));
+    ParallelRuleKeyCalculator<String> calculator = newCalculator();
+    calculator.calculateAll(eventBus, ImmutableList.of(rule, leaf), pool);
+
+    assertEquals("//:rule", Futures.getUnchecked(calculator.calculate(eventBus, rule)));
+    assertEquals(
+        ImmutableList.of("//:leaf", "//:rule"),
+        calculator.calculateAll(eventBus, ImmutableList.of(leaf, rule), pool));
+    assertEquals(2, builtRules.size());
+  }
+}
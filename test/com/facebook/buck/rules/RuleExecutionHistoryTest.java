@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class RuleExecutionHistoryTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private BuildRule ruleA;
+  private BuildRule ruleB;
+
+  @Before
+  public void setUp() {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    ruleA = new FakeBuildRule("//:a");
+    ruleB = new FakeBuildRule("//:b");
+  }
+
+  @Test
+  public void recordsAreKeptAcrossBuilds() throws IOException {
+    RuleExecutionRecord record =
+        RuleExecutionRecord.builder()
+            .setWallMillis(1000)
+            .setCpuMillis(800)
+            .setCacheFetchMillis(20)
+            .setOutputSize(4096)
+            .build();
+    try (RuleExecutionHistory history = new RuleExecutionHistory(filesystem)) {
+      assertThat(
+          history.getRecord(ruleA.getBuildTarget(), ruleA.getType()), equalTo(Optional.empty()));
+      history.update(ImmutableMap.of(ruleA, record));
+      assertThat(
+          history.getRecord(ruleA.getBuildTarget(), ruleA.getType()), equalTo(Optional.of(record)));
+    }
+
+    try (RuleExecutionHistory history = new RuleExecutionHistory(filesystem)) {
+      assertThat(
+          history.getRecord(ruleA.getBuildTarget(), ruleA.getType()), equalTo(Optional.of(record)));
+      assertThat(
+          history.getRecord(ruleA.getBuildTarget(), "other_type"), equalTo(Optional.empty()));
+    }
+  }
+
+  @Test
+  public void rulesWithoutRecordsAreEstimatedFromTheAverageOfTheirType() throws IOException {
+    try (RuleExecutionHistory history = new RuleExecutionHistory(filesystem)) {
+      assertThat(history.estimateWallMillis(ruleB.getBuildTarget(), ruleB.getType()), equalTo(1L));
+
+      history.update(
+          ImmutableMap.of(ruleA, RuleExecutionRecord.builder().setWallMillis(300).build()));
+      assertThat(
+          history.estimateWallMillis(ruleA.getBuildTarget(), ruleA.getType()), equalTo(300L));
+      assertThat(
+          history.estimateWallMillis(ruleB.getBuildTarget(), ruleB.getType()), equalTo(300L));
+      assertThat(
+          history.estimateWallMillis(BuildTargetFactory.newInstance("//:c"), "other_type"),
+          equalTo(300L));
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.google.common.collect.ImmutableMap;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class SQLiteBuildInfoStoreTest {
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private BuildTarget target = BuildTargetFactory.newInstance("//:a");
+
+  @Before
+  public void setUp() {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+  }
+
+  @Test
+  public void writesAreVisibleBeforeAndAfterTheyAreFlushed() throws IOException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem)) {
+      store.updateMetadata(target, ImmutableMap.of("a", "1", "b", "2"));
+      assertThat(store.readMetadata(target, "a"), equalTo(Optional.of("1")));
+
+      store.flush();
+      store.updateMetadata(target, ImmutableMap.of("b", "3"));
+      assertThat(store.getAllMetadata(target), equalTo(ImmutableMap.of("a", "1", "b", "3")));
+    }
+
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem)) {
+      assertThat(store.getAllMetadata(target), equalTo(ImmutableMap.of("a", "1", "b", "3")));
+    }
+  }
+
+  @Test
+  public void updatesAfterDeletionReplaceAllPreviousMetadata() throws IOException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem)) {
+      store.updateMetadata(target, ImmutableMap.of("a", "1", "b", "2"));
+      store.flush();
+
+      store.deleteMetadata(target);
+      assertThat(store.readMetadata(target, "a"), equalTo(Optional.empty()));
+      store.updateMetadata(target, ImmutableMap.of("b", "3"));
+      assertThat(store.readMetadata(target, "a"), equalTo(Optional.empty()));
+      assertThat(store.getAllMetadata(target), equalTo(ImmutableMap.of("b", "3")));
+
+      store.flush();
+      assertThat(store.getAllMetadata(target), equalTo(ImmutableMap.of("b", "3")));
+    }
+  }
+
+  @Test
+  public void deletionsAreCommittedRightAway() throws IOException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem)) {
+      store.updateMetadata(target, ImmutableMap.of("a", "1"));
+      store.flush();
+
+      store.deleteMetadata(target);
+      try (SQLiteBuildInfoStore otherStore = new SQLiteBuildInfoStore(filesystem)) {
+        assertThat(otherStore.getAllMetadata(target), equalTo(ImmutableMap.of()));
+      }
+    }
+  }
+
+  @Test
+  public void writesRecoverFromFailedTransactions() throws IOException, SQLException {
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem);
+        Connection connection = DriverManager.getConnection(getDatabaseUrl())) {
+      store.updateMetadata(target, ImmutableMap.of("a", "1"));
+      store.flush();
+
+      connection.createStatement().executeUpdate("ALTER TABLE metadata RENAME TO moved");
+      store.updateMetadata(target, ImmutableMap.of("b", "2"));
+      try {
+        store.flush();
+        fail("Writing to a missing table should fail.");
+      } catch (IOException e) {
+        // Expected.
+      }
+
+      connection.createStatement().executeUpdate("ALTER TABLE moved RENAME TO metadata");
+      store.flush();
+      store.updateMetadata(target, ImmutableMap.of("c", "3"));
+      store.flush();
+    }
+
+    try (SQLiteBuildInfoStore store = new SQLiteBuildInfoStore(filesystem)) {
+      assertThat(
+          store.getAllMetadata(target), equalTo(ImmutableMap.of("a", "1", "b", "2", "c", "3")));
+    }
+  }
+
+  private String getDatabaseUrl() {
+    return "jdbc:sqlite:"
+        + filesystem.resolve(filesystem.getBuckPaths().getScratchDir().resolve("metadata.db"));
+  }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import com.facebook.buck.io.ArchiveMemberPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.DefaultSourcePathResolver;
+import com.facebook.buck.rules.NoopBuildRuleWithDeclaredAndExtraDeps;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.RuleKey;
+import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.SourcePathRuleFinder;
+import com.facebook.buck.rules.TestBuildRuleParams;
+import com.facebook.buck.rules.TestBuildRuleResolver;
+import com.facebook.buck.rules.keys.config.TestRuleKeyConfigurationFactory;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.cache.FileHashCacheMode;
+import com.facebook.buck.util.cache.NoOpCacheStatsTracker;
+import com.facebook.buck.util.cache.impl.DefaultFileHashCache;
+import com.facebook.buck.util.cache.impl.StackedFileHashCache;
+import com.facebook.buck.util.hashing.FileHashLoader;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+// The fields of the test rules are only read reflectively.
+@SuppressWarnings("unused")
+public class PersistentRuleKeyStoreTest {
+
+  private static final HashCode STRUCTURAL_KEY =
+      HashCode.fromString("a002b39af204cdfaa5fdb67816b13867c32ac52c");
+  private static final RuleKey RULE_KEY = new RuleKey("b67816b13867c32ac52ca002b39af204cdfaa5fd");
+
+  private static final FileHashLoader FAILING_HASH_LOADER =
+      new FileHashLoader() {
+        @Override
+        public HashCode get(Path path) {
+          throw new AssertionError("Unexpected hashing of " + path);
+        }
+
+        @Override
+        public long getSize(Path path) {
+          throw new AssertionError("Unexpected hashing of " + path);
+        }
+
+        @Override
+        public HashCode get(ArchiveMemberPath archiveMemberPath) {
+          throw new AssertionError("Unexpected hashing of " + archiveMemberPath);
+        }
+      };
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private ProjectFilesystem filesystem;
+  private Path storePath;
+  private Path input;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    storePath = tmp.getRoot().resolve("buck-out/rule_key_store");
+    input = tmp.getRoot().resolve("input");
+    Files.write(input, "contents".getBytes());
+    // Rule keys of inputs which were just modified aren't stored.
+    Files.setLastModifiedTime(input, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+  }
+
+  private void putRuleKey(PersistentRuleKeyStore store, Path... inputs) {
+    store.put(
+        STRUCTURAL_KEY,
+        RULE_KEY,
+        PersistentRuleKeyStore.stamp(ImmutableList.copyOf(inputs)).get());
+  }
+
+  @Test
+  public void ruleKeysSurviveRestarts() {
+    PersistentRuleKeyStore store = new PersistentRuleKeyStore(storePath);
+    putRuleKey(store, input);
+    store.save();
+
+    assertEquals(Optional.of(RULE_KEY), new PersistentRuleKeyStore(storePath).get(STRUCTURAL_KEY));
+  }
+
+  @Test
+  public void ruleKeysOfChangedInputsAreDropped() throws IOException {
+    PersistentRuleKeyStore store = new PersistentRuleKeyStore(storePath);
+    putRuleKey(store, input);
+    Files.write(input, "changed contents".getBytes());
+
+    assertEquals(Optional.empty(), store.get(STRUCTURAL_KEY));
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void sameSizeEditsDropRuleKeys() throws IOException {
+    PersistentRuleKeyStore store = new PersistentRuleKeyStore(storePath);
+    putRuleKey(store, input);
+    Files.write(input, "CONTENTS".getBytes());
+
+    assertEquals(Optional.empty(), store.get(STRUCTURAL_KEY));
+  }
+
+  @Test
+  public void replacedInputsDropRuleKeysEvenWithTheSameModificationTime() throws IOException {
+    assumeNotNull(Files.readAttributes(input, BasicFileAttributes.class).fileKey());
+    PersistentRuleKeyStore store = new PersistentRuleKeyStore(storePath);
+    putRuleKey(store, input);
+    Path replacement = tmp.getRoot().resolve("replacement");
+    Files.write(replacement, "CONTENTS".getBytes());
+    Files.setLastModifiedTime(replacement, Files.getLastModifiedTime(input));
+    Files.move(replacement, input, StandardCopyOption.REPLACE_EXISTING);
+
+    assertEquals(Optional.empty(), store.get(STRUCTURAL_KEY));
+  }
+
+  @Test
+  public void ruleKeysOfRecentlyModifiedInputsAreNotStored() throws IOException {
+    Path racyInput = tmp.getRoot().resolve("racy_input");
+    Files.write(racyInput, "contents".getBytes());
+    PersistentRuleKeyStore store = new PersistentRuleKeyStore(storePath);
+    putRuleKey(store, input, racyInput);
+
+    assertEquals(Optional.empty(), store.get(STRUCTURAL_KEY));
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void corruptStoresAreDiscarded() throws IOException {
+    PersistentRuleKeyStore store = new PersistentRuleKeyStore(storePath);
+    putRuleKey(store, input);
+    store.save();
+    byte[] bytes = Files.readAllBytes(storePath);
+    bytes[bytes.length - 1] ^= 1;
+    Files.write(storePath, bytes);
+
+    assertEquals(Optional.empty(), new PersistentRuleKeyStore(storePath).get(STRUCTURAL_KEY));
+  }
+
+  @Test
+  public void invalidatedInputsDropRuleKeys() {
+    PersistentRuleKeyStore store = new PersistentRuleKeyStore(storePath);
+    putRuleKey(store, input);
+    store.invalidate(tmp.getRoot().resolve("other"));
+    assertEquals(Optional.of(RULE_KEY), store.get(STRUCTURAL_KEY));
+
+    store.invalidate(input);
+    assertEquals(Optional.empty(), store.get(STRUCTURAL_KEY));
+  }
+
+  @Test
+  public void directoriesAndMissingFilesCannotBeStamped() {
+    assertFalse(PersistentRuleKeyStore.stamp(ImmutableList.of(tmp.getRoot())).isPresent());
+    assertFalse(
+        PersistentRuleKeyStore.stamp(ImmutableList.of(tmp.getRoot().resolve("missing")))
+            .isPresent());
+    assertTrue(PersistentRuleKeyStore.stamp(ImmutableList.of(input)).isPresent());
+  }
+
+  @Test
+  public void factoryServesStoredRuleKeysWithoutHashingInputs() throws IOException {
+    PersistentRuleKeyStore store = new PersistentRuleKeyStore(storePath);
+    RuleKey ruleKey = newFactory(newFileHashCache(), store).build(newRule());
+    store.save();
+
+    RuleKey storedRuleKey =
+        newFactory(FAILING_HASH_LOADER, new PersistentRuleKeyStore(storePath)).build(newRule());
+    assertEquals(ruleKey, storedRuleKey);
+
+    Files.write(input, "changed contents".getBytes());
+    RuleKey changedRuleKey =
+        newFactory(newFileHashCache(), new PersistentRuleKeyStore(storePath)).build(newRule());
+    assertNotEquals(ruleKey, changedRuleKey);
+  }
+
+  private FileHashLoader newFileHashCache() {
+    return new StackedFileHashCache(
+        ImmutableList.of(
+            DefaultFileHashCache.createDefaultFileHashCache(
+                filesystem, FileHashCacheMode.DEFAULT)));
+  }
+
+  private DefaultRuleKeyFactory newFactory(
+      FileHashLoader hashLoader, PersistentRuleKeyStore store) {
+    SourcePathRuleFinder ruleFinder = new SourcePathRuleFinder(new TestBuildRuleResolver());
+    SourcePathResolver pathResolver = DefaultSourcePathResolver.from(ruleFinder);
+    return new DefaultRuleKeyFactory(
+        new RuleKeyFieldLoader(TestRuleKeyConfigurationFactory.create()),
+        hashLoader,
+        pathResolver,
+        ruleFinder,
+        new TrackedRuleKeyCache<>(new DefaultRuleKeyCache<>(), new NoOpCacheStatsTracker()),
+        Optional.empty(),
+        Optional.of(store));
+  }
+
+  // Every build of the action graph creates new rule instances.
+  private BuildRule newRule() {
+    PathSourcePath inputSourcePath = PathSourcePath.of(filesystem, Paths.get("input"));
+    BuildRule dep =
+        new NoopBuildRuleWithDeclaredAndExtraDeps(
+            BuildTargetFactory.newInstance("//:dep"), filesystem, TestBuildRuleParams.create()) {
+          @AddToRuleKey private final SourcePath inputField = inputSourcePath;
+        };
+    return new NoopBuildRuleWithDeclaredAndExtraDeps(
+        BuildTargetFactory.newInstance("//:rule"),
+        filesystem,
+        TestBuildRuleParams.create().withDeclaredDeps(ImmutableSortedSet.of(dep))) {
+      @AddToRuleKey private final String field = "value";
+    };
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules.keys;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.io.ArchiveMemberPath;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.rules.AddToRuleKey;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.DefaultSourcePathResolver;
+import com.facebook.buck.rules.NoopBuildRuleWithDeclaredAndExtraDeps;
+import com.facebook.buck.rules.PathSourcePath;
+import com.facebook.buck.rules.SourcePath;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.rules.SourcePathRuleFinder;
+import com.facebook.buck.rules.TestBuildRuleParams;
+import com.facebook.buck.rules.TestBuildRuleResolver;
+import com.facebook.buck.rules.keys.config.TestRuleKeyConfigurationFactory;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.util.cache.NoOpCacheStatsTracker;
+import com.facebook.buck.util.hashing.FileHashLoader;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures how fast default rule keys are computed. Every benchmark iteration computes the rule
+ * keys of {@link #RULE_COUNT} rules, so rule keys per second are {@code RULE_COUNT} divided by the
+ * reported time.
+ */
+public class RuleKeyBenchmark {
+  private static final int RULE_COUNT = 1000;
+  private static final int DEPS_PER_RULE = 5;
+
+  @Param({"10", "100"})
+  private int sourcesPerRule = 10;
+
+  private final ProjectFilesystem filesystem = new FakeProjectFilesystem();
+  private final SourcePathRuleFinder ruleFinder =
+      new SourcePathRuleFinder(new TestBuildRuleResolver());
+  private final SourcePathResolver pathResolver = DefaultSourcePathResolver.from(ruleFinder);
+  private final RuleKeyFieldLoader fieldLoader =
+      new RuleKeyFieldLoader(TestRuleKeyConfigurationFactory.create());
+  private List<BuildRule> rules = new ArrayList<>();
+
+  /** Hashes files by their names, so that no time is spent reading them. */
+  private static final FileHashLoader HASH_LOADER =
+      new FileHashLoader() {
+        @Override
+        public HashCode get(Path path) {
+          return HashCode.fromInt(path.hashCode());
+        }
+
+        @Override
+        public long getSize(Path path) {
+          return 0;
+        }
+
+        @Override
+        public HashCode get(ArchiveMemberPath archiveMemberPath) {
+          return HashCode.fromInt(archiveMemberPath.hashCode());
+        }
+      };
+
+  /** A rule with the kinds of fields rules commonly add to their rule keys. */
+  @SuppressWarnings("unused")
+  private static class BenchmarkRule extends NoopBuildRuleWithDeclaredAndExtraDeps {
+    @AddToRuleKey private final ImmutableList<SourcePath> srcs;
+    @AddToRuleKey private final ImmutableList<String> flags;
+    @AddToRuleKey private final ImmutableMap<String, String> env;
+    @AddToRuleKey private final Optional<String> mainClass;
+    @AddToRuleKey private final int level;
+    @AddToRuleKey private final boolean enabled = true;
+
+    private BenchmarkRule(
+        BuildTarget buildTarget,
+        ProjectFilesystem filesystem,
+        ImmutableSortedSet<BuildRule> deps,
+        ImmutableList<SourcePath> srcs,
+        int level) {
+      super(buildTarget, filesystem, TestBuildRuleParams.create().withDeclaredDeps(deps));
+      this.srcs = srcs;
+      this.flags = ImmutableList.of("-g", "-O2", "-Wall", "-DLEVEL=" + level);
+      this.env = ImmutableMap.of("LANG", "C", "TARGET", buildTarget.getShortName());
+      this.mainClass = Optional.of("com.example.Main" + level);
+      this.level = level;
+    }
+  }
+
+  @Before
+  public void setUpTest() {
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() {
+    rules = new ArrayList<>();
+    for (int i = 0; i < RULE_COUNT; i++) {
+      ImmutableSortedSet.Builder<BuildRule> deps = ImmutableSortedSet.naturalOrder();
+      for (int dep = Math.max(0, i - DEPS_PER_RULE); dep < i; dep++) {
+        deps.add(rules.get(dep));
+      }
+      ImmutableList.Builder<SourcePath> srcs = ImmutableList.builder();
+      for (int src = 0; src < sourcesPerRule; src++) {
+        srcs.add(PathSourcePath.of(filesystem, Paths.get("dir" + i, "Source" + src + ".java")));
+      }
+      rules.add(
+          new BenchmarkRule(
+              BuildTargetFactory.newInstance("//dir" + i + ":rule"),
+              filesystem,
+              deps.build(),
+              srcs.build(),
+              i));
+    }
+  }
+
+  @Test
+  public void computeRuleKeysPerformance() {
+    assertEquals(RULE_COUNT, computeRuleKeys());
+  }
+
+  @Benchmark
+  public int computeRuleKeys() {
+    // A fresh cache, so that every rule key actually gets computed.
+    DefaultRuleKeyFactory factory =
+        new DefaultRuleKeyFactory(
+            fieldLoader,
+            HASH_LOADER,
+            pathResolver,
+            ruleFinder,
+            new TrackedRuleKeyCache<>(new DefaultRuleKeyCache<>(), new NoOpCacheStatsTracker()),
+            Optional.empty());
+    for (BuildRule rule : rules) {
+      factory.build(rule);
+    }
+    return rules.size();
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.facebook.buck.rules.modern.builders;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.io.file.MostFiles;
+import com.facebook.buck.rules.modern.builders.InputsDigestBuilder.DefaultDelegate;
+import com.google.caliper.AfterExperiment;
+import com.google.caliper.BeforeExperiment;
+import com.google.caliper.Benchmark;
+import com.google.caliper.Param;
+import com.google.common.base.Charsets;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures how fast the inputs of a rule are stored and materialized by the isolated build
+ * strategies, once they were stored by an earlier build. Every benchmark iteration materializes
+ * {@link #inputCount} small files into a fresh directory.
+ */
+public class LocalContentAddressedStorageBenchmark {
+  private static final int FILES_PER_DIRECTORY = 100;
+
+  @Param({"1000", "10000"})
+  private int inputCount = 1000;
+
+  private Path root;
+  private Path storageDir;
+  private Inputs inputs;
+  private LocalContentAddressedStorage storage;
+  private int buildCount = 0;
+
+  @Before
+  public void setUpTest() throws IOException {
+    setUpBenchmark();
+  }
+
+  @BeforeExperiment
+  public void setUpBenchmark() throws IOException {
+    root = Files.createTempDirectory("cas_benchmark");
+    storageDir = root.resolve("storage");
+    InputsDigestBuilder inputsBuilder =
+        new InputsDigestBuilder(
+            new DefaultDelegate(
+                root,
+                path -> {
+                  throw new IllegalStateException("Unexpected hashing of " + path);
+                }));
+    for (int i = 0; i < inputCount; i++) {
+      byte[] data = ("input data " + i).getBytes(Charsets.UTF_8);
+      inputsBuilder.addFile(
+          Paths.get("dir" + i / FILES_PER_DIRECTORY, "input" + i), () -> data, false);
+    }
+    inputs = inputsBuilder.build();
+
+    // Stored by an earlier build.
+    storage = newStorage();
+    storage.addMissing(inputs.getRequiredData()).close();
+  }
+
+  @After
+  @AfterExperiment
+  public void tearDown() throws IOException {
+    MostFiles.deleteRecursivelyIfExists(root);
+  }
+
+  private LocalContentAddressedStorage newStorage() {
+    return new LocalContentAddressedStorage(
+        storageDir, InputsDigestBuilder::defaultDigestForStruct);
+  }
+
+  @Test
+  public void materializeStoredInputsPerformance() throws IOException {
+    assertEquals(inputCount, materializeStoredInputs());
+    assertEquals(inputCount, materializeStoredInputsWithNewStorage());
+  }
+
+  /** Materializes the inputs with the storage kept by the daemon. */
+  @Benchmark
+  public int materializeStoredInputs() throws IOException {
+    return materializeInputs(storage);
+  }
+
+  /** Materializes the inputs with a storage which has to load its index, as without the daemon. */
+  @Benchmark
+  public int materializeStoredInputsWithNewStorage() throws IOException {
+    return materializeInputs(newStorage());
+  }
+
+  private int materializeInputs(LocalContentAddressedStorage storage) throws IOException {
+    Path buildDir = root.resolve("build" + buildCount++);
+    try (ContentAddressedStorage.Lease lease = storage.addMissing(inputs.getRequiredData())) {
+      storage.materializeInputs(buildDir, inputs.getRootDigest());
+    }
+    return inputCount;
+  }
+}
@@ -21,13 +21,17 @@ import static org.junit.Assert.*;
 import com.facebook.buck.rules.modern.builders.InputsDigestBuilder.DefaultDelegate;
 import com.facebook.buck.rules.modern.builders.thrift.Digest;
 import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.function.ThrowingSupplier;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -93,4 +97,157 @@ public class LocalContentAddressedStorageTest {
     assertDataEquals(someData, Files.readAllBytes(inputsDir.resolve(somePath)));
     assertDataEquals(otherData, Files.readAllBytes(inputsDir.resolve(otherPath)));
   }
+
+  @Test
+  public void manySmallInputsAreOnlyStoredOnceAcrossInstances() throws IOException {
+    ImmutableMap.Builder<Digest, ThrowingSupplier<InputStream, IOException>> data =
+        ImmutableMap.builder();
+    ImmutableMap.Builder<Digest, ThrowingSupplier<InputStream, IOException>> presentData =
+        ImmutableMap.builder();
+    for (int i = 0; i < 5000; i++) {
+      byte[] bytes = ("data" + i).getBytes(Charsets.UTF_8);
+      Digest digest = new Digest(String.format("hash%05d", i), bytes.length);
+      data.put(digest, () -> new ByteArrayInputStream(bytes));
+      presentData.put(
+          digest,
+          () -> {
+            throw new RuntimeException();
+          });
+    }
+    storage.addMissing(data.build());
+
+    LocalContentAddressedStorage otherStorage =
+        new LocalContentAddressedStorage(storageDir, InputsDigestBuilder::defaultDigestForStruct);
+    otherStorage.addMissing(presentData.build());
+    assertDataEquals(
+        "data1234".getBytes(Charsets.UTF_8), otherStorage.getData(new Digest("hash01234", 8)));
+  }
+
+  @Test
+  public void leastRecentlyUsedDataIsEvicted() throws IOException {
+    storage =
+        new LocalContentAddressedStorage(
+            storageDir, InputsDigestBuilder::defaultDigestForStruct, 10);
+    Digest first = addString("first", "aaaaa");
+    addString("second", "bbbbb");
+    storage.getData(first);
+    addString("third", "ccccc");
+
+    assertTrue(Files.exists(getStoredPath("first")));
+    assertFalse(Files.exists(getStoredPath("second")));
+    assertTrue(Files.exists(getStoredPath("third")));
+  }
+
+  @Test
+  public void leasedDataIsNotEvicted() throws IOException {
+    storage =
+        new LocalContentAddressedStorage(
+            storageDir, InputsDigestBuilder::defaultDigestForStruct, 10);
+    byte[] data = "aaaaa".getBytes(Charsets.UTF_8);
+    try (ContentAddressedStorage.Lease lease =
+        storage.addMissing(
+            ImmutableMap.of(new Digest("first", 5), () -> new ByteArrayInputStream(data)))) {
+      addString("second", "bbbbb");
+      addString("third", "ccccc");
+
+      assertTrue(Files.exists(getStoredPath("first")));
+      assertFalse(Files.exists(getStoredPath("second")));
+    }
+
+    addString("fourth", "ddddd");
+    assertFalse(Files.exists(getStoredPath("first")));
+  }
+
+  @Test
+  public void leasedDataIsAddedAgainWhenEvictedByAnotherProcess() throws IOException {
+    byte[] data = "hello world!".getBytes(Charsets.UTF_8);
+    Digest digest = new Digest("myhashcode", data.length);
+    try (ContentAddressedStorage.Lease lease =
+        storage.addMissing(ImmutableMap.of(digest, () -> new ByteArrayInputStream(data)))) {
+      Files.delete(getStoredPath("myhashcode"));
+      storage.addMissing(
+              ImmutableMap.of(
+                  digest,
+                  () -> {
+                    throw new RuntimeException();
+                  }))
+          .close();
+
+      assertDataEquals(data, storage.getData(digest));
+    }
+  }
+
+  @Test(expected = NoSuchFileException.class)
+  public void dataWhichIsNotLeasedCanGoMissing() throws IOException {
+    Digest digest = addString("myhashcode", "hello world!");
+    Files.delete(getStoredPath("myhashcode"));
+    storage.getData(digest);
+  }
+
+  @Test
+  public void inputsCanBeMaterializedOverExistingFiles() throws IOException {
+    InputsDigestBuilder inputsBuilder =
+        new InputsDigestBuilder(
+            new DefaultDelegate(
+                tmp.getRoot(),
+                path -> {
+                  throw new RuntimeException();
+                }));
+    Path somePath = Paths.get("dir/some.path");
+    byte[] someData = "hello world!".getBytes(Charsets.UTF_8);
+    inputsBuilder.addFile(somePath, () -> someData, false);
+    Inputs inputs = inputsBuilder.build();
+
+    Path inputsDir = tmp.getRoot().resolve("inputs");
+    try (ContentAddressedStorage.Lease lease = storage.addMissing(inputs.getRequiredData())) {
+      storage.materializeInputs(inputsDir, inputs.getRootDigest());
+      storage.materializeInputs(inputsDir, inputs.getRootDigest());
+    }
+
+    assertDataEquals(someData, Files.readAllBytes(inputsDir.resolve(somePath)));
+  }
+
+  @Test
+  public void staleFilesAreReplacedWhenMaterializingInputs() throws IOException {
+    InputsDigestBuilder inputsBuilder =
+        new InputsDigestBuilder(
+            new DefaultDelegate(
+                tmp.getRoot(),
+                path -> {
+                  throw new RuntimeException();
+                }));
+    Path somePath = Paths.get("dir/some.path");
+    byte[] someData = "hello world!".getBytes(Charsets.UTF_8);
+    inputsBuilder.addFile(somePath, () -> someData, false);
+    Inputs inputs = inputsBuilder.build();
+
+    Path inputsDir = tmp.getRoot().resolve("inputs");
+    Files.createDirectories(inputsDir.resolve(somePath).getParent());
+    Files.write(inputsDir.resolve(somePath), "stale data".getBytes(Charsets.UTF_8));
+    try (ContentAddressedStorage.Lease lease = storage.addMissing(inputs.getRequiredData())) {
+      storage.materializeInputs(inputsDir, inputs.getRootDigest());
+    }
+
+    assertDataEquals(someData, Files.readAllBytes(inputsDir.resolve(somePath)));
+  }
+
+  @Test
+  public void storedDataIsReadOnly() throws IOException {
+    Digest digest = addString("aa11", "data");
+
+    assertFalse(
+        Files.getPosixFilePermissions(getStoredPath(digest.hash))
+            .contains(PosixFilePermission.OWNER_WRITE));
+  }
+
+  private Path getStoredPath(String hash) {
+    return storageDir.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+  }
+
+  private Digest addString(String hash, String contents) throws IOException {
+    byte[] data = contents.getBytes(Charsets.UTF_8);
+    Digest digest = new Digest(hash, data.length);
+    storage.addMissing(ImmutableMap.of(digest, () -> new ByteArrayInputStream(data))).close();
+    return digest;
+  }
 }
@@ -21,6 +21,7 @@ import static org.junit.Assert.assertThat;
 
 import com.facebook.buck.io.filesystem.ProjectFilesystem;
 import com.facebook.buck.io.filesystem.skylark.SkylarkFilesystem;
+import com.facebook.buck.skylark.io.DirectoryListingCache;
 import com.facebook.buck.skylark.io.Globber;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.google.common.collect.ImmutableSet;
@@ -28,7 +29,9 @@ import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.Collections;
+import java.util.Optional;
 import org.hamcrest.CoreMatchers;
 import org.junit.Before;
 import org.junit.Rule;
@@ -103,4 +106,26 @@ public class SimpleGlobberTest {
 
     globber.run(Collections.singleton("does_not_exist.txt"), Collections.emptySet(), false);
   }
+
+  @Test
+  public void testCachedListingsAreReusedUntilInvalidated() throws Exception {
+    Path canonicalRoot = root.resolveSymbolicLinks();
+    DirectoryListingCache cache = new DirectoryListingCache();
+    Globber cachingGlobber = SimpleGlobber.create(canonicalRoot, Optional.of(cache));
+    FileSystemUtils.createEmptyFile(canonicalRoot.getChild("foo.txt"));
+    assertThat(
+        cachingGlobber.run(Collections.singleton("*.txt"), Collections.emptySet(), false),
+        equalTo(ImmutableSet.of("foo.txt")));
+
+    Path bar = canonicalRoot.getChild("bar.txt");
+    FileSystemUtils.createEmptyFile(bar);
+    assertThat(
+        cachingGlobber.run(Collections.singleton("*.txt"), Collections.emptySet(), false),
+        equalTo(ImmutableSet.of("foo.txt")));
+
+    cache.invalidate(Paths.get(bar.getPathString()));
+    assertThat(
+        cachingGlobber.run(Collections.singleton("*.txt"), Collections.emptySet(), false),
+        equalTo(ImmutableSet.of("bar.txt", "foo.txt")));
+  }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.util.cache.FileHashCacheMode;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class PersistentFileHashStoreTest {
+
+  private static final HashCode HASH =
+      HashCode.fromString("a002b39af204cdfaa5fdb67816b13867c32ac52c");
+
+  private static final PersistentFileHashStore.HashLoader FAILING_LOADER =
+      () -> {
+        throw new AssertionError("Unexpected hashing.");
+      };
+
+  @Rule public TemporaryPaths tmp = new TemporaryPaths();
+
+  private Path storePath;
+  private Path file;
+
+  @Before
+  public void setUp() throws IOException {
+    storePath = tmp.getRoot().resolve("buck-out/file_hash_store");
+    file = tmp.getRoot().resolve("file");
+    writeOldFile("contents");
+  }
+
+  /** Writes the file with a modification time far enough in the past to be stored. */
+  private void writeOldFile(String contents) throws IOException {
+    Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+    Files.setLastModifiedTime(
+        file, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1)));
+  }
+
+  @Test
+  public void hashesSurviveRestarts() throws IOException {
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath);
+    assertEquals(HASH, store.get(file, () -> HASH));
+    store.save();
+
+    assertEquals(HASH, new PersistentFileHashStore(storePath).get(file, FAILING_LOADER));
+  }
+
+  @Test
+  public void changedFilesAreHashedAgain() throws IOException {
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath);
+    store.get(file, () -> HASH);
+    writeOldFile("changed contents");
+
+    HashCode changedHash = Hashing.sha1().hashInt(1);
+    assertEquals(changedHash, store.get(file, () -> changedHash));
+    assertEquals(changedHash, store.get(file, FAILING_LOADER));
+  }
+
+  @Test
+  public void recentlyModifiedFilesAreNotStored() throws IOException {
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    store.get(file, () -> HASH);
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void directoriesAndMissingFilesAreNotStored() throws IOException {
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath);
+    store.get(tmp.getRoot(), () -> HASH);
+    store.get(tmp.getRoot().resolve("missing"), () -> HASH);
+    assertEquals(0, store.size());
+  }
+
+  @Test
+  public void fileHashCachesShareTheStore() throws IOException {
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath);
+    ProjectFilesystem filesystem = TestProjectFilesystems.createProjectFilesystem(tmp.getRoot());
+    DefaultFileHashCache cache =
+        DefaultFileHashCache.createDefaultFileHashCache(
+            filesystem, FileHashCacheMode.DEFAULT, Optional.of(store));
+    HashCode hash = cache.get(Paths.get("file"));
+    store.save();
+
+    assertEquals(hash, new PersistentFileHashStore(storePath).get(file, FAILING_LOADER));
+  }
+
+  @Test
+  public void corruptStoresAreDiscarded() throws IOException {
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath);
+    store.get(file, () -> HASH);
+    store.save();
+
+    byte[] bytes = Files.readAllBytes(storePath);
+    // Flip a bit of the stored hash, which leaves the store readable.
+    bytes[bytes.length - 14] ^= 1;
+    Files.write(storePath, bytes);
+
+    HashCode rehashed = Hashing.sha1().hashInt(1);
+    assertEquals(rehashed, new PersistentFileHashStore(storePath).get(file, () -> rehashed));
+  }
+
+  @Test
+  public void truncatedStoresAreDiscarded() throws IOException {
+    PersistentFileHashStore store = new PersistentFileHashStore(storePath);
+    store.get(file, () -> HASH);
+    store.save();
+
+    byte[] bytes = Files.readAllBytes(storePath);
+    Files.write(storePath, Arrays.copyOf(bytes, bytes.length - 8));
+
+    assertEquals(0, new PersistentFileHashStore(storePath).size());
+  }
+
+  @Test
+  public void concurrentSavesDontCorruptTheStore() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        PersistentFileHashStore store = new PersistentFileHashStore(storePath);
+        futures.add(
+            executor.submit(
+                () -> {
+                  for (int j = 0; j < 50; j++) {
+                    // Every save starts a new generation, so using the entry dirties the store.
+                    store.get(file, () -> HASH);
+                    store.save();
+                  }
+                  return null;
+                }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals(HASH, new PersistentFileHashStore(storePath).get(file, FAILING_LOADER));
+    try (Stream<Path> files = Files.list(storePath.getParent())) {
+      assertEquals(ImmutableList.of(storePath), files.collect(ImmutableList.toImmutableList()));
+    }
+  }
+}
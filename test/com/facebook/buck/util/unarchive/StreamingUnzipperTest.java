@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.unarchive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.io.file.MorePosixFilePermissions;
+import com.facebook.buck.io.filesystem.ProjectFilesystem;
+import com.facebook.buck.io.filesystem.TestProjectFilesystems;
+import com.facebook.buck.testutil.TemporaryPaths;
+import com.facebook.buck.testutil.ZipArchive;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+public class StreamingUnzipperTest {
+  private static final byte[] DUMMY_FILE_CONTENTS = "BUCK Unzip Test String!\nNihao\n".getBytes();
+
+  @Rule public TemporaryPaths tmpFolder = new TemporaryPaths();
+
+  private Path zipFile;
+  private Path stagingRoot;
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() throws IOException {
+    zipFile = tmpFolder.getRoot().resolve("tmp.zip");
+    stagingRoot = tmpFolder.getRoot().resolve("staging");
+    filesystem = TestProjectFilesystems.createProjectFilesystem(tmpFolder.newFolder());
+  }
+
+  @Test
+  public void testStreamedFilesAreWrittenAndFinished() throws IOException {
+    try (ZipArchive zipArchive = new ZipArchive(zipFile, true)) {
+      zipArchive.add("1.bin", DUMMY_FILE_CONTENTS);
+      zipArchive.add("subdir/2.bin", DUMMY_FILE_CONTENTS);
+      zipArchive.addDir("emptydir");
+    }
+    filesystem.mkdirs(Paths.get("subdir"));
+    filesystem.writeContentsToPath("stale", Paths.get("subdir/stale.bin"));
+
+    StreamingUnzipper unzipper =
+        new StreamingUnzipper(
+            filesystem, ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES, stagingRoot);
+    try (InputStream input = Files.newInputStream(zipFile)) {
+      unzipper.extract(input);
+    }
+    assertFalse(filesystem.exists(Paths.get("subdir/2.bin")));
+    assertTrue(filesystem.exists(Paths.get("subdir/stale.bin")));
+
+    Optional<ImmutableList<Path>> result = unzipper.finish(zipFile);
+    assertEquals(
+        Optional.of(ImmutableList.of(Paths.get("1.bin"), Paths.get("subdir/2.bin"))), result);
+    assertTrue(filesystem.isDirectory(Paths.get("emptydir")));
+    assertFalse(filesystem.exists(Paths.get("subdir/stale.bin")));
+    assertEquals(
+        new String(DUMMY_FILE_CONTENTS, Charsets.UTF_8),
+        filesystem.readFileIfItExists(Paths.get("1.bin")).get());
+    assertStagingDirIsEmpty();
+  }
+
+  @Test
+  public void testFinishRestoresExecutePermissions() throws IOException {
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipFile.toFile())) {
+      ZipArchiveEntry entry = new ZipArchiveEntry("test.exe");
+      entry.setUnixMode(
+          (int) MorePosixFilePermissions.toMode(PosixFilePermissions.fromString("r-x------")));
+      entry.setSize(DUMMY_FILE_CONTENTS.length);
+      entry.setMethod(ZipEntry.STORED);
+      zip.putArchiveEntry(entry);
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeArchiveEntry();
+    }
+
+    StreamingUnzipper unzipper =
+        new StreamingUnzipper(filesystem, ExistingFileMode.OVERWRITE, stagingRoot);
+    try (InputStream input = Files.newInputStream(zipFile)) {
+      unzipper.extract(input);
+    }
+    assertTrue(unzipper.finish(zipFile).isPresent());
+    assertTrue(Files.isExecutable(filesystem.resolve("test.exe")));
+  }
+
+  @Test
+  public void testFinishFailsWhenStreamedFilesDontMatchArchive() throws IOException {
+    Path otherZipFile = tmpFolder.getRoot().resolve("other.zip");
+    try (ZipArchive zipArchive = new ZipArchive(otherZipFile, true)) {
+      zipArchive.add("1.bin", "something else");
+    }
+    try (ZipArchive zipArchive = new ZipArchive(zipFile, true)) {
+      zipArchive.add("1.bin", DUMMY_FILE_CONTENTS);
+    }
+
+    StreamingUnzipper unzipper =
+        new StreamingUnzipper(filesystem, ExistingFileMode.OVERWRITE, stagingRoot);
+    try (InputStream input = Files.newInputStream(otherZipFile)) {
+      unzipper.extract(input);
+    }
+    assertFalse(unzipper.finish(zipFile).isPresent());
+    assertFalse(filesystem.exists(Paths.get("1.bin")));
+    assertStagingDirIsEmpty();
+  }
+
+  @Test
+  public void testClosingDiscardsStreamedFiles() throws IOException {
+    try (ZipArchive zipArchive = new ZipArchive(zipFile, true)) {
+      zipArchive.add("1.bin", DUMMY_FILE_CONTENTS);
+    }
+
+    try (StreamingUnzipper unzipper =
+        new StreamingUnzipper(filesystem, ExistingFileMode.OVERWRITE, stagingRoot)) {
+      try (InputStream input = Files.newInputStream(zipFile)) {
+        unzipper.extract(input);
+      }
+    }
+    assertFalse(filesystem.exists(Paths.get("1.bin")));
+    assertStagingDirIsEmpty();
+  }
+
+  private void assertStagingDirIsEmpty() throws IOException {
+    try (Stream<Path> staged = Files.list(stagingRoot)) {
+      assertEquals(0, staged.count());
+    }
+  }
+}
@@ -33,6 +33,7 @@ import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.util.zip.ZipConstants;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
 import java.io.InputStream;
@@ -41,6 +42,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.zip.ZipEntry;
@@ -370,4 +373,68 @@ public class UnzipTest {
     assertEquals(
         new String(DUMMY_FILE_CONTENTS), filesystem.readFileIfItExists(bazDotTxtPath).get());
   }
+
+  @Test
+  public void testDeferredFilesAreNotWritten() throws IOException {
+    byte[] runDotSh = "echo \"run.sh\"\n".getBytes(Charsets.UTF_8);
+    try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(zipFile.toFile())) {
+      zip.putArchiveEntry(new ZipArchiveEntry("kept.txt"));
+      zip.write(DUMMY_FILE_CONTENTS, 0, DUMMY_FILE_CONTENTS.length);
+      zip.closeArchiveEntry();
+      zip.putArchiveEntry(new ZipArchiveEntry("out/deferred.txt"));
+      zip.write(DUMMY_FILE_CONTENTS, 0, DUMMY_FILE_CONTENTS.length);
+      zip.closeArchiveEntry();
+
+      ZipArchiveEntry exeEntry = new ZipArchiveEntry("out/run.sh");
+      exeEntry.setUnixMode(
+          (int) MorePosixFilePermissions.toMode(PosixFilePermissions.fromString("r-x------")));
+      exeEntry.setMethod(ZipEntry.STORED);
+      exeEntry.setSize(runDotSh.length);
+      zip.putArchiveEntry(exeEntry);
+      zip.write(runDotSh);
+      zip.closeArchiveEntry();
+    }
+
+    ProjectFilesystem filesystem =
+        TestProjectFilesystems.createProjectFilesystem(tmpFolder.getRoot());
+    filesystem.mkdirs(Paths.get("out"));
+    filesystem.writeContentsToPath("stale", Paths.get("out/deferred.txt"));
+
+    Map<Path, Long> deferredSizes = new HashMap<>();
+    Unzip unzip = (Unzip) ArchiveFormat.ZIP.getUnarchiver();
+    ImmutableList<Path> written =
+        unzip.extractArchiveDeferringFiles(
+            zipFile,
+            filesystem,
+            ExistingFileMode.OVERWRITE_AND_CLEAN_DIRECTORIES,
+            path -> path.startsWith("out"),
+            deferredSizes::put);
+
+    assertEquals(ImmutableList.of(Paths.get("kept.txt")), written);
+    assertTrue(filesystem.isFile(Paths.get("kept.txt")));
+    assertTrue(filesystem.isDirectory(Paths.get("out")));
+    assertFalse(filesystem.exists(Paths.get("out/deferred.txt")));
+    assertFalse(filesystem.exists(Paths.get("out/run.sh")));
+    assertEquals(
+        ImmutableMap.of(
+            Paths.get("out/deferred.txt"),
+            (long) DUMMY_FILE_CONTENTS.length,
+            Paths.get("out/run.sh"),
+            (long) runDotSh.length),
+        deferredSizes);
+
+    filesystem.deleteFileAtPath(Paths.get("kept.txt"));
+    written = unzip.extractFiles(zipFile, filesystem, deferredSizes.keySet());
+
+    assertEquals(
+        ImmutableSet.of(Paths.get("out/deferred.txt"), Paths.get("out/run.sh")),
+        ImmutableSet.copyOf(written));
+    assertFalse(filesystem.exists(Paths.get("kept.txt")));
+    assertEquals(
+        new String(DUMMY_FILE_CONTENTS),
+        filesystem.readFileIfItExists(Paths.get("out/deferred.txt")).get());
+    assertEquals(
+        new String(runDotSh), filesystem.readFileIfItExists(Paths.get("out/run.sh")).get());
+    assertTrue(filesystem.isExecutable(Paths.get("out/run.sh")));
+  }
 }
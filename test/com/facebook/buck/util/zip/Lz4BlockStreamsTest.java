@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.zip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+public class Lz4BlockStreamsTest {
+
+  private static byte[] compress(byte[] data) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream out = new Lz4BlockOutputStream(bytes)) {
+      // Write in uneven chunks, so that writes straddle block boundaries.
+      int position = 0;
+      int chunk = 1;
+      while (position < data.length) {
+        int length = Math.min(chunk, data.length - position);
+        out.write(data, position, length);
+        position += length;
+        chunk = chunk * 3 + 1;
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] decompress(byte[] compressed) throws IOException {
+    try (InputStream in = new Lz4BlockInputStream(new ByteArrayInputStream(compressed))) {
+      return ByteStreams.toByteArray(in);
+    }
+  }
+
+  @Test
+  public void emptyStreamRoundTrips() throws IOException {
+    assertArrayEquals(new byte[0], decompress(compress(new byte[0])));
+  }
+
+  @Test
+  public void repetitiveDataRoundTripsAndShrinks() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 100000; i++) {
+      text.append("public class Foo").append(i % 97).append(" {}\n");
+    }
+    byte[] data = text.toString().getBytes(StandardCharsets.UTF_8);
+
+    byte[] compressed = compress(data);
+    assertThat(compressed.length, Matchers.lessThan(data.length / 4));
+    assertArrayEquals(data, decompress(compressed));
+  }
+
+  @Test
+  public void randomDataRoundTrips() throws IOException {
+    byte[] data = new byte[3 * Lz4BlockOutputStream.BLOCK_SIZE + 12345];
+    new Random(42).nextBytes(data);
+    // Some runs of the same byte, including long overlapping matches.
+    Arrays.fill(data, 1000, 5000, (byte) 7);
+    System.arraycopy(data, 100000, data, 200000, 30000);
+
+    assertArrayEquals(data, decompress(compress(data)));
+  }
+
+  @Test
+  public void shortInputsRoundTrip() throws IOException {
+    for (int length = 0; length < 40; length++) {
+      byte[] data = new byte[length];
+      Arrays.fill(data, (byte) 'a');
+      assertArrayEquals(data, decompress(compress(data)));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void truncatedStreamsAreRejected() throws IOException {
+    byte[] data = new byte[100000];
+    new Random(1).nextBytes(data);
+    byte[] compressed = compress(data);
+    decompress(Arrays.copyOf(compressed, compressed.length / 2));
+  }
+}